@@ -66,10 +66,12 @@ import com.vectrace.MercurialEclipse.commands.RootlessHgCommand;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants;
+import com.vectrace.MercurialEclipse.search.SearchIndexManager;
 import com.vectrace.MercurialEclipse.storage.HgCommitMessageManager;
 import com.vectrace.MercurialEclipse.storage.HgRepositoryLocationManager;
 import com.vectrace.MercurialEclipse.team.MercurialUtilities;
 import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.RemoteRefreshScheduler;
 import com.vectrace.MercurialEclipse.utils.StringUtils;
 import com.vectrace.MercurialEclipse.views.console.HgConsoleHolder;
 
@@ -163,6 +165,8 @@ public class MercurialEclipsePlugin extends AbstractUIPlugin {
 					monitor.subTask(Messages
 							.getString("MercurialEclipsePlugin.startingCommitMessageManager")); //$NON-NLS-1$
 					commitMessageManager.start();
+					SearchIndexManager.getInstance().start();
+					RemoteRefreshScheduler.getInstance().start();
 					monitor.worked(1);
 					monitor.done();
 					return new Status(IStatus.OK, ID, Messages
@@ -309,6 +313,8 @@ public class MercurialEclipsePlugin extends AbstractUIPlugin {
 			repoManager.stop();
 			// save commit messages to disk
 			commitMessageManager.stop();
+			SearchIndexManager.getInstance().stop();
+			RemoteRefreshScheduler.getInstance().stop();
 			proxyServiceTracker.close();
 			MercurialUtilities.disposeColorsAndFonts();
 		} finally {
@@ -12,35 +12,143 @@
 
 package com.vectrace.MercurialEclipse.annotations;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import com.vectrace.MercurialEclipse.model.ChangeSet;
+
+/**
+ * The annotation of a file: the changeset of each line.
+ * <p>
+ * Each distinct changeset is stored once. The lines only keep the index of their changeset, and
+ * runs of lines of the same changeset are kept in a block table, so appending a line takes
+ * constant time and the blocks are available without walking all lines.
+ */
 public class AnnotateBlocks {
-	private final List<AnnotateBlock> blocks = new LinkedList<AnnotateBlock>();
+
+	/** distinct changesets, in the order of their first line */
+	private final List<ChangeSet> changeSets = new ArrayList<ChangeSet>();
+
+	/** node -> index in {@link #changeSets} */
+	private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+	/** changeset index of each line */
+	private int[] lines = new int[64];
+
+	private int lineCount;
+
+	/** first line of each block */
+	private int[] blockStarts = new int[16];
+
+	/** changeset index of each block */
+	private int[] blockChangeSets = new int[16];
+
+	private int blockCount;
 
 	/**
 	 * Add an annotate block merging this block with the previous block if it is part of the same
 	 * change.
 	 *
 	 * @param aBlock
+	 *            the block following the lines added so far
 	 */
 	public void add(AnnotateBlock aBlock) {
+		add(aBlock.getChangeSet(), aBlock.getEndLine() - aBlock.getStartLine() + 1);
+	}
 
-		int size = blocks.size();
-		if (size == 0) {
-			blocks.add(aBlock);
-		} else {
-			AnnotateBlock lastBlock = blocks.get(size - 1);
-			if (lastBlock.getChangeSet().equals(aBlock.getChangeSet())) {
-				lastBlock.setEndLine(aBlock.getStartLine());
-			} else {
-				blocks.add(aBlock);
+	/**
+	 * Appends lines of the given changeset, merging them with the previous block if it is part of
+	 * the same change.
+	 *
+	 * @param count
+	 *            the number of lines
+	 */
+	public void add(ChangeSet changeSet, int count) {
+		int index = getIndex(changeSet);
+		ensureLines(lineCount + count);
+		for (int i = 0; i < count; i++) {
+			lines[lineCount + i] = index;
+		}
+		if (blockCount == 0 || blockChangeSets[blockCount - 1] != index) {
+			if (blockCount == blockStarts.length) {
+				blockStarts = grow(blockStarts, blockCount + 1);
+				blockChangeSets = grow(blockChangeSets, blockCount + 1);
 			}
+			blockStarts[blockCount] = lineCount;
+			blockChangeSets[blockCount] = index;
+			blockCount++;
+		}
+		lineCount += count;
+	}
+
+	private int getIndex(ChangeSet changeSet) {
+		Integer index = indexes.get(changeSet.getNode());
+		if (index == null) {
+			index = Integer.valueOf(changeSets.size());
+			changeSets.add(changeSet);
+			indexes.put(changeSet.getNode(), index);
+		}
+		return index.intValue();
+	}
+
+	private void ensureLines(int size) {
+		if (size > lines.length) {
+			lines = grow(lines, size);
+		}
+	}
+
+	private static int[] grow(int[] array, int minSize) {
+		int[] result = new int[Math.max(minSize, array.length * 2)];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	/**
+	 * @return the number of annotated lines
+	 */
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * @param line
+	 *            zero based line number
+	 * @return the changeset which last changed the line
+	 */
+	public ChangeSet getChangeSet(int line) {
+		if (line < 0 || line >= lineCount) {
+			throw new IndexOutOfBoundsException("Line " + line + " of " + lineCount); //$NON-NLS-1$ //$NON-NLS-2$
 		}
+		return changeSets.get(lines[line]);
 	}
 
+	/**
+	 * @return the distinct changesets, in the order of their first line. Not modifiable
+	 */
+	public List<ChangeSet> getChangeSets() {
+		return Collections.unmodifiableList(changeSets);
+	}
+
+	/**
+	 * @return the number of blocks of consecutive lines of the same changeset
+	 */
+	public int getBlockCount() {
+		return blockCount;
+	}
+
+	/**
+	 * @return a new list with the blocks of consecutive lines of the same changeset
+	 */
 	public List<AnnotateBlock> getAnnotateBlocks() {
+		List<AnnotateBlock> blocks = new ArrayList<AnnotateBlock>(blockCount);
+		for (int i = 0; i < blockCount; i++) {
+			int end = i + 1 < blockCount ? blockStarts[i + 1] : lineCount;
+			blocks.add(new AnnotateBlock(changeSets.get(blockChangeSets[i]), blockStarts[i],
+					end - 1));
+		}
 		return blocks;
 	}
-
 }
@@ -13,21 +13,11 @@
  *******************************************************************************/
 package com.vectrace.MercurialEclipse.annotations;
 
-import java.io.BufferedReader;
-import java.io.CharArrayWriter;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
 
 import org.eclipse.core.resources.IFile;
-import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
-import org.eclipse.core.runtime.IStatus;
-import org.eclipse.core.runtime.Status;
-import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jface.text.Document;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.ui.IEditorInput;
@@ -38,11 +28,7 @@ import org.eclipse.ui.texteditor.IElementStateListener;
 import org.eclipse.ui.texteditor.ITextEditor;
 import org.eclipse.ui.texteditor.quickdiff.IQuickDiffReferenceProvider;
 
-import com.vectrace.MercurialEclipse.exception.HgException;
-import com.vectrace.MercurialEclipse.model.HgFile;
 import com.vectrace.MercurialEclipse.team.MercurialTeamProvider;
-import com.vectrace.MercurialEclipse.team.cache.MercurialStatusCache;
-import com.vectrace.MercurialEclipse.utils.CompareUtils;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
 /**
@@ -67,6 +53,9 @@ import com.vectrace.MercurialEclipse.utils.ResourceUtils;
  * quickdiff support relies on IDocument change events to update the quickdiff, and returning null
  * for the reference document doesn't allow the transition to later return a IDocument.]
  *
+ * The reference documents are kept by the {@link PristineCopyManager}, which shares them between
+ * editors of the same file and reloads them after status changes.
+ *
  * @since 3.0
  */
 public class HgPristineCopyQuickDiffProvider implements	IQuickDiffReferenceProvider {
@@ -91,8 +80,8 @@ public class HgPristineCopyQuickDiffProvider implements	IQuickDiffReferenceProvi
 	// Unique id for this reference provider as set via setId().
 	private String id;
 
-	// Job that re-creates the reference document.
-	private Job fUpdateJob;
+	// The file whose reference document is used, null if not connected to the manager.
+	private IFile connectedFile;
 
 	/**
 	 * Updates the document if the document is changed (e.g. replace with)
@@ -105,8 +94,8 @@ public class HgPristineCopyQuickDiffProvider implements	IQuickDiffReferenceProvi
 		}
 
 		public void elementContentReplaced(Object element) {
-			if (editor != null && editor.getEditorInput() == element) {
-				fetchContentsInJob();
+			if (editor != null && editor.getEditorInput() == element && connectedFile != null) {
+				PristineCopyManager.getInstance().reload(connectedFile);
 			}
 		}
 
@@ -123,7 +112,10 @@ public class HgPristineCopyQuickDiffProvider implements	IQuickDiffReferenceProvi
 			return null;
 		}
 		if (referenceDocument == null) {
-			readDocument(monitor);
+			connect();
+		}
+		if (connectedFile != null) {
+			PristineCopyManager.getInstance().load(connectedFile, monitor);
 		}
 		return referenceDocument;
 	}
@@ -151,9 +143,9 @@ public class HgPristineCopyQuickDiffProvider implements	IQuickDiffReferenceProvi
 
 	public void dispose() {
 		isReferenceInitialized = false;
-		// stop update job
-		if (fUpdateJob != null && fUpdateJob.getState() != Job.NONE) {
-			fUpdateJob.cancel();
+		if (connectedFile != null) {
+			PristineCopyManager.getInstance().disconnect(connectedFile);
+			connectedFile = null;
 		}
 
 		// remove listeners
@@ -171,108 +163,23 @@ public class HgPristineCopyQuickDiffProvider implements	IQuickDiffReferenceProvi
 	}
 
 	/**
-	 * Determine if the file represented by this quickdiff provider has changed
-	 * with respect to it's remote state. Return true if the remote contents
-	 * should be refreshed, and false if not.
-	 */
-	private boolean computeChange(IProgressMonitor monitor) {
-		boolean needToUpdateReferenceDocument = false;
-		if (isReferenceInitialized) {
-			needToUpdateReferenceDocument = getFileFromEditor().isSynchronized(
-					IResource.DEPTH_ONE);
-		}
-		return needToUpdateReferenceDocument;
-	}
-
-	/**
-	 * Creates a document and initializes it with the contents of a Hg file
-	 * resource.
-	 *
-	 * @param monitor
-	 *            the progress monitor
-	 * @throws CoreException
+	 * Gets the reference document of the file from the {@link PristineCopyManager}, or an empty
+	 * document if the file can't be read.
 	 */
-	private void readDocument(IProgressMonitor monitor) throws CoreException {
-		if (!isReferenceInitialized) {
-			return;
-		}
-		if (referenceDocument == null) {
+	private void connect() {
+		IFile file = getFileFromEditor();
+		if (file == null || !(documentProvider instanceof IStorageDocumentProvider)) {
+			// the remote is null, so ensure that the document is empty
 			referenceDocument = new Document();
+			return;
 		}
-		if (computeChange(monitor)) {
-			IFile remoteFile = getFileFromEditor();
-			if (remoteFile != null && documentProvider instanceof IStorageDocumentProvider) {
-				IStorageDocumentProvider provider = (IStorageDocumentProvider) documentProvider;
-				String encoding = provider.getEncoding(editor.getEditorInput());
-				if (encoding == null) {
-					encoding = provider.getDefaultEncoding();
-				}
-				if (monitor.isCanceled()) {
-					return;
-				}
-				InputStream stream;
-				// if file is unchanged, simply read the content from current version on the disk
-				if(MercurialStatusCache.getInstance().isClean(remoteFile)){
-					stream = remoteFile.getContents();
-				} else {
-					// fetch the file version matching to the current hg root changeset
-					HgFile revision = CompareUtils.toHgFileAtCurrentRev(remoteFile);
-					stream = revision.getContents();
-				}
-				if (stream == null || monitor.isCanceled() || !isReferenceInitialized) {
-					return;
-				}
-				setDocumentContent(referenceDocument, stream, encoding);
-			} else {
-				// the remote is null, so ensure that the document is null
-				if (monitor.isCanceled()) {
-					return;
-				}
-				referenceDocument.set(""); //$NON-NLS-1$
-			}
-		}
-	}
-
-	/**
-	 * Intitializes the given document with the given stream using the given
-	 * encoding.
-	 *
-	 * @param document
-	 *            the document to be initialized
-	 * @param contentStream
-	 *            the stream which delivers the document content
-	 * @param encoding
-	 *            the character encoding for reading the given stream
-	 * @exception CoreException
-	 *                if the given stream can not be read
-	 */
-	private static void setDocumentContent(IDocument document,
-			InputStream contentStream, String encoding) throws CoreException {
-		Reader in = null;
-		try {
-			final int defaultFileSize = 15 * 1024;
-
-			in = new BufferedReader(new InputStreamReader(contentStream,
-					encoding), defaultFileSize);
-			CharArrayWriter caw = new CharArrayWriter(defaultFileSize);
-			char[] readBuffer = new char[2048];
-			int n = in.read(readBuffer);
-			while (n > 0) {
-				caw.write(readBuffer, 0, n);
-				n = in.read(readBuffer);
-			}
-			document.set(caw.toString());
-		} catch (IOException x) {
-			throw new HgException("Failed to read file content", x); //$NON-NLS-1$
-		} finally {
-			if (in != null) {
-				try {
-					in.close();
-				} catch (IOException x) {
-					throw new HgException("Failed to close stream", x); //$NON-NLS-1$
-				}
-			}
+		IStorageDocumentProvider provider = (IStorageDocumentProvider) documentProvider;
+		String encoding = provider.getEncoding(editor.getEditorInput());
+		if (encoding == null) {
+			encoding = provider.getDefaultEncoding();
 		}
+		referenceDocument = PristineCopyManager.getInstance().connect(file, encoding);
+		connectedFile = file;
 	}
 
 	/**
@@ -304,30 +211,4 @@ public class HgPristineCopyQuickDiffProvider implements	IQuickDiffReferenceProvi
 		}
 		return null;
 	}
-
-	/**
-	 * Runs a job that updates the document. If a previous job is already
-	 * running it is stopped before the new job can start.
-	 */
-	private void fetchContentsInJob() {
-		if (!isReferenceInitialized) {
-			return;
-		}
-		if (fUpdateJob != null && fUpdateJob.getState() != Job.NONE) {
-			fUpdateJob.cancel();
-		}
-		fUpdateJob = new Job("Fetching last versioned file state") { //$NON-NLS-1$
-			@Override
-			protected IStatus run(IProgressMonitor monitor) {
-				try {
-					readDocument(monitor);
-				} catch (CoreException e) {
-					// continue and return ok for now. The error will be reported
-					// when the quick diff supports calls getReference() again.
-				}
-				return Status.OK_STATUS;
-			}
-		};
-		fUpdateJob.schedule();
-	}
 }
@@ -0,0 +1,364 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.annotations;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IDocument;
+
+import com.vectrace.MercurialEclipse.commands.HgCatClient;
+import com.vectrace.MercurialEclipse.exception.HgException;
+import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.model.JHgChangeSet;
+import com.vectrace.MercurialEclipse.team.cache.CacheChangeEvent;
+import com.vectrace.MercurialEclipse.team.cache.FileContentCache;
+import com.vectrace.MercurialEclipse.team.cache.LocalChangesetCache;
+import com.vectrace.MercurialEclipse.team.cache.MercurialRootCache;
+import com.vectrace.MercurialEclipse.team.cache.MercurialStatusCache;
+import com.vectrace.MercurialEclipse.utils.CompareUtils;
+
+/**
+ * Keeps the reference documents of the {@link HgPristineCopyQuickDiffProvider}s.
+ * <p>
+ * All editors of the same file share one reference document. When the status cache reports
+ * changes, the references of all affected files are reloaded in one job: the pristine copies of
+ * all files of a root are fetched with one hg call, and files whose working directory parent did
+ * not change are skipped. References of clean files are read from the working copy and are
+ * always read again, because the status may have been out of date when they were read.
+ */
+final class PristineCopyManager implements Observer {
+
+	/** delay to collect the changes of one operation */
+	private static final long RELOAD_DELAY = 200;
+
+	private static PristineCopyManager instance;
+
+	/** guarded by itself */
+	private final Map<IFile, Reference> references = new HashMap<IFile, Reference>();
+
+	/** files to reload, guarded by {@link #references} */
+	private final Set<IFile> pending = new HashSet<IFile>();
+
+	private final Job reloadJob = new ReloadJob();
+
+	/**
+	 * The reference document of a file, shared by all its editors
+	 */
+	private static final class Reference {
+		final IDocument document = new Document();
+
+		/** the encoding of the editor which connected first, may be null */
+		final String encoding;
+
+		/**
+		 * key of the loaded content in the {@link FileContentCache}, null if not loaded or if the
+		 * content was read from the working copy
+		 */
+		String key;
+
+		/** number of connected providers */
+		int users;
+
+		Reference(String encoding) {
+			this.encoding = encoding;
+		}
+	}
+
+	private PristineCopyManager() {
+	}
+
+	public static synchronized PristineCopyManager getInstance() {
+		if (instance == null) {
+			instance = new PristineCopyManager();
+		}
+		return instance;
+	}
+
+	/**
+	 * @param encoding
+	 *            the encoding of the editor, may be null
+	 * @return the reference document of the file, not loaded yet if it is the first connection,
+	 *         see {@link #load(IFile, IProgressMonitor)}
+	 */
+	public IDocument connect(IFile file, String encoding) {
+		synchronized (references) {
+			if (references.isEmpty()) {
+				MercurialStatusCache.getInstance().addObserver(this);
+			}
+			Reference reference = references.get(file);
+			if (reference == null) {
+				reference = new Reference(encoding);
+				references.put(file, reference);
+			}
+			reference.users++;
+			return reference.document;
+		}
+	}
+
+	public void disconnect(IFile file) {
+		synchronized (references) {
+			Reference reference = references.get(file);
+			if (reference == null || --reference.users > 0) {
+				return;
+			}
+			references.remove(file);
+			pending.remove(file);
+			if (references.isEmpty()) {
+				MercurialStatusCache.getInstance().deleteObserver(this);
+			}
+		}
+	}
+
+	/**
+	 * Loads the reference of the file, if it is not loaded yet or out of date
+	 */
+	public void load(IFile file, IProgressMonitor monitor) throws CoreException {
+		Set<IFile> files = new HashSet<IFile>();
+		files.add(file);
+		reload(files, monitor);
+	}
+
+	/**
+	 * Schedules a reload of the reference of the file, even if it seems to be up to date (e.g.
+	 * after the file was replaced)
+	 */
+	public void reload(IFile file) {
+		synchronized (references) {
+			Reference reference = references.get(file);
+			if (reference == null) {
+				return;
+			}
+			synchronized (reference) {
+				reference.key = null;
+			}
+			pending.add(file);
+		}
+		reloadJob.schedule(RELOAD_DELAY);
+	}
+
+	/**
+	 * Collects the connected files affected by the status change
+	 *
+	 * @see java.util.Observer#update(java.util.Observable, java.lang.Object)
+	 */
+	public void update(Observable o, Object arg) {
+		if (!(arg instanceof CacheChangeEvent)) {
+			return;
+		}
+		Set<IResource> changed = ((CacheChangeEvent) arg).getResources();
+		boolean found = false;
+		synchronized (references) {
+			for (IFile file : references.keySet()) {
+				// a project is reported after commit, update etc.
+				if (changed.contains(file) || changed.contains(file.getProject())) {
+					found |= pending.add(file);
+				}
+			}
+		}
+		if (found) {
+			reloadJob.schedule(RELOAD_DELAY);
+		}
+	}
+
+	private void reload(Set<IFile> files, IProgressMonitor monitor)
+			throws CoreException {
+		Map<HgRoot, List<IFile>> byRoot = new HashMap<HgRoot, List<IFile>>();
+		for (IFile file : files) {
+			HgRoot root = MercurialRootCache.getInstance().getHgRoot(file);
+			if (root == null) {
+				continue;
+			}
+			List<IFile> rootFiles = byRoot.get(root);
+			if (rootFiles == null) {
+				rootFiles = new ArrayList<IFile>();
+				byRoot.put(root, rootFiles);
+			}
+			rootFiles.add(file);
+		}
+		for (Map.Entry<HgRoot, List<IFile>> entry : byRoot.entrySet()) {
+			if (monitor.isCanceled()) {
+				return;
+			}
+			reload(entry.getKey(), entry.getValue(), monitor);
+		}
+	}
+
+	private void reload(HgRoot root, List<IFile> files, IProgressMonitor monitor)
+			throws CoreException {
+		JHgChangeSet cs = LocalChangesetCache.getInstance().getCurrentChangeSet(root);
+		MercurialStatusCache statusCache = MercurialStatusCache.getInstance();
+
+		List<IFile> outdated = new ArrayList<IFile>();
+		List<IPath> toFetch = new ArrayList<IPath>();
+		for (IFile file : files) {
+			Reference reference = getReference(file);
+			if (reference == null || !file.isSynchronized(IResource.DEPTH_ONE)) {
+				continue;
+			}
+			String key = getKey(root, cs, file);
+			synchronized (reference) {
+				if (key != null && key.equals(reference.key)) {
+					// same parent: same pristine copy
+					continue;
+				}
+			}
+			outdated.add(file);
+			if (cs != null && !statusCache.isClean(file)) {
+				toFetch.add(root.getRelativePath(file));
+			}
+		}
+		if (!toFetch.isEmpty()) {
+			HgCatClient.prefetch(root, cs.getNode(), toFetch);
+		}
+
+		for (IFile file : outdated) {
+			if (monitor.isCanceled()) {
+				return;
+			}
+			Reference reference = getReference(file);
+			if (reference != null) {
+				load(root, cs, file, reference);
+			}
+		}
+	}
+
+	private Reference getReference(IFile file) {
+		synchronized (references) {
+			return references.get(file);
+		}
+	}
+
+	private static String getKey(HgRoot root, JHgChangeSet cs, IFile file) {
+		return FileContentCache.getKey(root, cs == null ? "" : cs.getNode(), root.getRelativePath(
+				file).toString());
+	}
+
+	private static void load(HgRoot root, JHgChangeSet cs, IFile file, Reference reference)
+			throws CoreException {
+		String key = getKey(root, cs, file);
+		InputStream stream;
+		boolean fromWorkingCopy = false;
+		if (cs == null) {
+			// no changeset yet: everything is new
+			stream = new ByteArrayInputStream(new byte[0]);
+		} else if (MercurialStatusCache.getInstance().isClean(file)) {
+			// if file is unchanged, simply read the content from current version on the disk
+			stream = file.getContents();
+			fromWorkingCopy = true;
+		} else {
+			byte[] content = key == null ? null : FileContentCache.getInstance().get(key);
+			if (content != null) {
+				stream = new ByteArrayInputStream(content);
+			} else {
+				// not in the parent (added) or too large to cache
+				stream = CompareUtils.toHgFileAtCurrentRev(file).getContents();
+			}
+		}
+		if (stream == null) {
+			return;
+		}
+		String encoding = reference.encoding != null ? reference.encoding : file.getCharset();
+		String text = readContent(stream, encoding);
+		synchronized (reference) {
+			// reuse the document if the reference is identical: no quick diff recomputation
+			if (!text.equals(reference.document.get())) {
+				reference.document.set(text);
+			}
+			// the working copy is only the pristine copy if the status was up to date
+			reference.key = fromWorkingCopy ? null : key;
+		}
+	}
+
+	/**
+	 * Reads the given stream using the given encoding.
+	 *
+	 * @exception CoreException
+	 *                if the given stream can not be read
+	 */
+	private static String readContent(InputStream contentStream, String encoding)
+			throws CoreException {
+		Reader in = null;
+		try {
+			final int defaultFileSize = 15 * 1024;
+
+			in = new BufferedReader(new InputStreamReader(contentStream,
+					encoding), defaultFileSize);
+			CharArrayWriter caw = new CharArrayWriter(defaultFileSize);
+			char[] readBuffer = new char[2048];
+			int n = in.read(readBuffer);
+			while (n > 0) {
+				caw.write(readBuffer, 0, n);
+				n = in.read(readBuffer);
+			}
+			return caw.toString();
+		} catch (IOException x) {
+			throw new HgException("Failed to read file content", x); //$NON-NLS-1$
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException x) {
+					throw new HgException("Failed to close stream", x); //$NON-NLS-1$
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reloads the references of the pending files
+	 */
+	private final class ReloadJob extends Job {
+
+		public ReloadJob() {
+			super("Fetching last versioned file states"); //$NON-NLS-1$
+			setSystem(true);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			Set<IFile> files;
+			synchronized (references) {
+				files = new HashSet<IFile>(pending);
+				pending.clear();
+			}
+			try {
+				reload(files, monitor);
+			} catch (CoreException e) {
+				// continue and return ok for now. The error will be reported
+				// when the quick diff supports calls getReference() again.
+			}
+			return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+		}
+	}
+}
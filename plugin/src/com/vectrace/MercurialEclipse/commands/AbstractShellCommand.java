@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
@@ -37,13 +38,18 @@ import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.Assert;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.jobs.ISchedulingRule;
 
+import com.aragost.javahg.Repository;
 import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Loan;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
 /**
@@ -187,22 +193,159 @@ public abstract class AbstractShellCommand extends AbstractClient {
 
 		@Override
 		protected String getMessage() {
-			String msg = null;
-			if (output instanceof FileOutputStream) {
-				return null;
-			} else if (output instanceof ByteArrayOutputStream) {
-				ByteArrayOutputStream baos = (ByteArrayOutputStream) output;
+			return getOutputMessage(output);
+		}
+
+		/**
+		 * @see com.vectrace.MercurialEclipse.commands.CommandJob#checkError()
+		 */
+		@Override
+		protected void checkError() throws HgException {
+			if (exitCode != 0 && expectZeroReturnValue) {
+				IStatus result = getResult();
+				Throwable rootCause = result != null ? result.getException() : null;
+
+				throw new HgException(exitCode, getMessage(), getDebugName(), rootCause);
+			}
+		}
+	}
+
+	/**
+	 * Runs the command on a pooled command server instead of starting a hg process. Timeout,
+	 * cancellation and console logging are the same as for {@link ProzessWrapper}.
+	 */
+	class CommandServerWrapper extends CommandJob {
+
+		private final OutputStream output;
+		private final Repository repository;
+		private final List<String> args;
+		private final DefaultExecutionRule execRule;
+		private final boolean exclusive;
+		/** slots of the thread which runs the command and waits for it */
+		private final Loan loan;
+		private volatile RawCommand rawCommand;
+
+		private final String debugName;
+		private final boolean expectZeroReturnValue;
+
+		public CommandServerWrapper(String name, String debugName, Repository repository,
+				List<String> args, OutputStream output, boolean expectZeroReturnValue) {
+			super(name, false);
+
+			this.debugName = debugName;
+			execRule = getExecutionRule();
+			setRule(execRule);
+			exclusive = isChangingRepository();
+			this.repository = repository;
+			this.args = args;
+			this.output = output;
+			this.expectZeroReturnValue = expectZeroReturnValue;
+			loan = CommandServerCache.getInstance().lend();
+		}
+
+		/**
+		 * @see com.vectrace.MercurialEclipse.commands.CommandJob#doRun(org.eclipse.core.runtime.IProgressMonitor)
+		 */
+		@Override
+		protected IStatus doRun(IProgressMonitor monitor) throws Exception {
+			Slot borrowed = loan.borrow();
+			try {
+				return runOnServer(monitor);
+			} finally {
+				borrowed.release();
+			}
+		}
+
+		private IStatus runOnServer(IProgressMonitor monitor) throws Exception {
+			InputStream stream = null;
+			Slot slot;
+			try {
+				slot = CommandServerCache.getInstance().acquire(repository, exclusive, monitor);
+			} catch (OperationCanceledException e) {
+				// cancelled or timed out while waiting for a server
 				try {
-					msg = baos.toString(getEncoding());
-				} catch (UnsupportedEncodingException e) {
-					logError(e);
-					msg = baos.toString();
+					output.close();
+				} catch (IOException e1) {
+					HgClients.logError(e1);
+				}
+				return Status.CANCEL_STATUS;
+			}
+			try {
+				rawCommand = new RawCommand(repository, command);
+				if (monitor.isCanceled()) {
+					return Status.CANCEL_STATUS;
+				}
+				stream = rawCommand.execute(args);
+				int length;
+				byte[] buffer = new byte[BUFFER_SIZE];
+				while ((length = stream.read(buffer)) != -1) {
+					output.write(buffer, 0, length);
+					if(monitor.isCanceled()){
+						// lets the server skip the rest of the output
+						rawCommand.cancel();
+						break;
+					}
+				}
+				if (!monitor.isCanceled()) {
+					exitCode = rawCommand.getReturnCode();
 				}
-				if(msg != null){
-					msg = msg.trim();
+			} finally {
+				if(stream != null) {
+					try {
+						stream.close();
+					} catch (IOException e) {
+						HgClients.logError(e);
+					}
 				}
+				try {
+					output.close();
+				} catch (IOException e) {
+					HgClients.logError(e);
+				}
+				slot.release();
+			}
+			return monitor.isCanceled()? Status.CANCEL_STATUS : Status.OK_STATUS;
+		}
+
+		@Override
+		public boolean belongsTo(Object family) {
+			return AbstractShellCommand.class == family;
+		}
+
+		@Override
+		protected void canceling() {
+			super.canceling();
+			RawCommand cmd = rawCommand;
+			if(cmd != null) {
+				cmd.cancel();
 			}
-			return msg;
+			// remove exclusive lock on the hg root
+			execRule.hgRoot = null;
+		}
+
+		/**
+		 * @see com.vectrace.MercurialEclipse.commands.CommandJob#getDebugName()
+		 */
+		@Override
+		protected String getDebugName() {
+			return debugName;
+		}
+
+		/**
+		 * @return The output followed by the error output, which a process would have mixed
+		 */
+		@Override
+		protected String getMessage() {
+			String msg = getOutputMessage(output);
+			RawCommand cmd = rawCommand;
+			String error = cmd == null ? null : cmd.getErrorString();
+			if (error == null || error.trim().length() == 0) {
+				return msg;
+			}
+			if (msg == null || msg.length() == 0) {
+				return error.trim();
+			}
+			return msg + "\n" + error.trim(); //$NON-NLS-1$
 		}
 
 		/**
@@ -242,8 +385,14 @@ public abstract class AbstractShellCommand extends AbstractClient {
 	protected final File workingDir;
 
 	protected final List<String> files;
+
+	/**
+	 * Calculated file arguments, see {@link #getFileArguments()}
+	 */
+	private List<String> fileArguments;
+
 	private String timeoutConstant;
-	private ProzessWrapper processWrapper;
+	private CommandJob processWrapper;
 
 	/**
 	 * Though this command might not invoke hg, it might get encoding information from it. May be
@@ -330,19 +479,50 @@ public abstract class AbstractShellCommand extends AbstractClient {
 		return null;
 	}
 
+	/**
+	 * Executes the command and passes its output line by line to the handler while the command
+	 * runs, without buffering it. The output is decoded with the encoding of the command (see
+	 * {@link #setEncoding(String)}).
+	 *
+	 * @param expectZeroReturnValue
+	 *            false if a non zero exit code is not an error
+	 * @throws HgException
+	 *             If the command fails or the handler throws an exception
+	 */
+	public void executeToLines(ILineHandler handler, boolean expectZeroReturnValue)
+			throws HgException {
+		Charset charset;
+		try {
+			charset = Charset.forName(getEncoding());
+		} catch (IllegalArgumentException e) {
+			// unsupported or illegal charset name
+			logError(e);
+			charset = Charset.defaultCharset();
+		}
+		executeToStream(new LineOutputStream(charset, handler), getTimeOut(),
+				expectZeroReturnValue);
+	}
+
 	protected final boolean executeToStream(OutputStream output, int timeout, boolean expectZeroReturnValue)
 			throws HgException {
 
 		List<String> cmd = getCommands();
 		String jobName = obfuscateLoginData(getCommandInvoked(cmd));
 		File tmpFile = setupTmpFile(cmd);
-		ProcessBuilder builder = setupProcess(cmd);
+		Repository server = isInitialCommand || !isCommandServerEnabled() ? null
+				: getCommandServer();
 
 		try {
 
 			// I see sometimes that hg has errors if it runs in parallel
 			// using a job with exclusive rule here serializes all hg access from plugin.
-			processWrapper = createProcessWrapper(output, uiName, jobName, builder, expectZeroReturnValue);
+			if (server != null) {
+				processWrapper = new CommandServerWrapper(uiName, jobName, server,
+						getServerCommands(), output, expectZeroReturnValue);
+			} else {
+				processWrapper = createProcessWrapper(output, uiName, jobName,
+						setupProcess(cmd), expectZeroReturnValue);
+			}
 			processWrapper.setParentProgress(parentProgress);
 			processWrapper.execute(timeout);
 
@@ -354,6 +534,38 @@ public abstract class AbstractShellCommand extends AbstractClient {
 		}
 	}
 
+	/**
+	 * @return True if commands which support it should run on the command servers instead of
+	 *         starting a hg process
+	 */
+	private static boolean isCommandServerEnabled() {
+		return Boolean.valueOf(
+				HgClients.getPreference(MercurialPreferenceConstants.COMMAND_SERVER_SHELL_COMMANDS,
+						"true")).booleanValue(); //$NON-NLS-1$
+	}
+
+	/**
+	 * Template method to run the command on a command server instead of starting a process. The
+	 * server runs the command name, options and files as returned by
+	 * {@link #customizeServerCommands(List)}, without the executable and process global options.
+	 *
+	 * @return The command server to use, or null to start a process
+	 */
+	protected Repository getCommandServer() {
+		return null;
+	}
+
+	/**
+	 * Template method for commands run on a command server
+	 *
+	 * @return True if the command changes the repository or working directory, so it must run
+	 *         alone on the command servers of the root
+	 */
+	protected boolean isChangingRepository() {
+		// commands which must not run in parallel on the root change it
+		return getExecutionRule() instanceof ExclusiveExecutionRule;
+	}
+
 	protected ProzessWrapper createProcessWrapper(OutputStream output, String jobName,
 			String debugName, ProcessBuilder builder, boolean expectZeroReturnValue) {
 		return new ProzessWrapper(jobName, debugName, builder, output, expectZeroReturnValue);
@@ -457,7 +669,27 @@ public abstract class AbstractShellCommand extends AbstractClient {
 		result.add(getExecutable());
 		result.add(command);
 		result.addAll(options);
+		result.addAll(getFileArguments());
+		customizeCommands(result);
+
+		return commands = result;
+	}
+
+	/**
+	 * @return The arguments following the command name for a command server
+	 */
+	private List<String> getServerCommands() {
+		List<String> result = new ArrayList<String>(options);
+		result.addAll(getFileArguments());
+		customizeServerCommands(result);
+		return result;
+	}
 
+	private List<String> getFileArguments() {
+		if (fileArguments != null) {
+			return fileArguments;
+		}
+		List<String> result = new ArrayList<String>();
 		String listFilesFile = null;
 		if (getCommandLineLength(files) > 8000) {
 			listFilesFile = createListFilesFile(files);
@@ -470,9 +702,32 @@ public abstract class AbstractShellCommand extends AbstractClient {
 			}
 			result.addAll(files);
 		}
-		customizeCommands(result);
+		return fileArguments = result;
+	}
 
-		return commands = result;
+	/**
+	 * @return The trimmed output if it was collected in memory, the last lines if it was streamed
+	 *         line by line, otherwise null
+	 */
+	private String getOutputMessage(OutputStream output) {
+		String msg = null;
+		if (output instanceof FileOutputStream) {
+			return null;
+		} else if (output instanceof LineOutputStream) {
+			msg = ((LineOutputStream) output).getTail().trim();
+		} else if (output instanceof ByteArrayOutputStream) {
+			ByteArrayOutputStream baos = (ByteArrayOutputStream) output;
+			try {
+				msg = baos.toString(getEncoding());
+			} catch (UnsupportedEncodingException e) {
+				logError(e);
+				msg = baos.toString();
+			}
+			if(msg != null){
+				msg = msg.trim();
+			}
+		}
+		return msg;
 	}
 
 	private static String createListFilesFile(List<String> paths) {
@@ -527,6 +782,14 @@ public abstract class AbstractShellCommand extends AbstractClient {
 	protected void customizeCommands(List<String> cmd) {
 	}
 
+	/**
+	 * Template method to customize the arguments for a command server, see
+	 * {@link #getCommandServer()}
+	 * @param cmd The arguments following the command name
+	 */
+	protected void customizeServerCommands(List<String> cmd) {
+	}
+
 	protected abstract String getExecutable();
 
 	private String getRunDir() {
@@ -687,7 +950,7 @@ public abstract class AbstractShellCommand extends AbstractClient {
 		return builder.toString();
 	}
 
-	private int getTimeOut() {
+	protected int getTimeOut() {
 		int timeout;
 		if (timeoutConstant == null) {
 			timeoutConstant = MercurialPreferenceConstants.DEFAULT_TIMEOUT;
@@ -18,6 +18,8 @@ import org.eclipse.core.runtime.IProgressMonitor;
 
 import com.aragost.javahg.commands.flags.AddCommandFlags;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
 public class HgAddClient extends AbstractClient {
@@ -32,7 +34,12 @@ public class HgAddClient extends AbstractClient {
 				monitor.subTask(Messages.getString("HgAddClient.addingResourcesFrom") + hgRoot.getName()); //$NON-NLS-1$
 			}
 
-			AddCommandFlags.on(hgRoot.getRepository()).execute(toFileArray(mapEntry.getValue()));
+			Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+			try {
+				AddCommandFlags.on(hgRoot.getRepository()).execute(toFileArray(mapEntry.getValue()));
+			} finally {
+				slot.release();
+			}
 		}
 	}
 }
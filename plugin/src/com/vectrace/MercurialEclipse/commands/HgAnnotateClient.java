@@ -16,22 +16,53 @@
 package com.vectrace.MercurialEclipse.commands;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.core.resources.IResource;
 
 import com.aragost.javahg.commands.AnnotateLine;
 import com.aragost.javahg.commands.flags.AnnotateCommandFlags;
-import com.vectrace.MercurialEclipse.annotations.AnnotateBlock;
 import com.vectrace.MercurialEclipse.annotations.AnnotateBlocks;
 import com.vectrace.MercurialEclipse.exception.HgException;
+import com.vectrace.MercurialEclipse.model.ChangeSet;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.model.JHgChangeSet;
 import com.vectrace.MercurialEclipse.team.MercurialTeamProvider;
+import com.vectrace.MercurialEclipse.team.cache.AnnotationCache;
+import com.vectrace.MercurialEclipse.team.cache.AnnotationCache.Annotation;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 import com.vectrace.MercurialEclipse.team.cache.LocalChangesetCache;
+import com.vectrace.MercurialEclipse.utils.Pair;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
 public class HgAnnotateClient {
 
+	/** number of files whose last file revision is kept */
+	private static final int MAX_REVISIONS = 64;
+
+	/**
+	 * file -> the working directory parent and the node identifying the file revision at that
+	 * parent, access ordered, guarded by itself
+	 */
+	private static final Map<IResource, Pair<String, String>> REVISIONS = new LinkedHashMap<IResource, Pair<String, String>>(
+			MAX_REVISIONS, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<IResource, Pair<String, String>> eldest) {
+			return size() > MAX_REVISIONS;
+		}
+	};
+
+	/**
+	 * Annotates the working directory parent revision of the file. The result is taken from the
+	 * {@link AnnotationCache} if the same file revision was annotated before, even at another
+	 * parent or before a restart. Local edits of the file don't change it, the editor maps the
+	 * annotated lines to the edited ones using the quick diff reference.
+	 */
 	public static AnnotateBlocks execute(IResource file) throws HgException {
 
 		if (!MercurialTeamProvider.isHgTeamProviderFor(file)) {
@@ -39,23 +70,90 @@ public class HgAnnotateClient {
 		}
 
 		HgRoot root = AbstractClient.getHgRoot(file);
+		AnnotationCache cache = AnnotationCache.getInstance();
+		String key = null;
+		String revision = getRevision(root, file);
+		Annotation annotation = null;
+		if (revision != null) {
+			key = AnnotationCache.getKey(root, revision, root.getRelativePath(file).toString());
+			annotation = cache.get(key);
+		}
+
+		// usually few changesets for many lines: look up each one once
+		AnnotateBlocks blocks = new AnnotateBlocks();
+		Map<String, ChangeSet> changeSets = new HashMap<String, ChangeSet>();
+		LocalChangesetCache changesetCache = LocalChangesetCache.getInstance();
+		if (annotation != null) {
+			for (int i = 0; i < annotation.getLineCount(); i++) {
+				String node = annotation.getNode(i);
+				ChangeSet cs = changeSets.get(node);
+				if (cs == null) {
+					cs = changesetCache.get(root, node);
+					changeSets.put(node, cs);
+				}
+				blocks.add(cs, 1);
+			}
+			return blocks;
+		}
 
+		List<AnnotateLine> lines;
+		Slot slot = CommandServerCache.getInstance().acquire(root, false);
 		try {
-			AnnotateBlocks blocks = new AnnotateBlocks();
-			List<AnnotateLine> lines = AnnotateCommandFlags.on(root.getRepository()).execute(
+			lines = AnnotateCommandFlags.on(root.getRepository()).execute(
 					ResourceUtils.getPath(file).toOSString());
+		} catch (IOException e) {
+			throw new HgException("Couldn't get annotation lines", e);
+		} finally {
+			slot.release();
+		}
 
-			int i = 0;
-
-			for (AnnotateLine line : lines) {
-				blocks.add(new AnnotateBlock(LocalChangesetCache.getInstance().get(root,
-						line.getChangeset()), i, i));
-				i += 1;
+		List<String> nodes = new ArrayList<String>(lines.size());
+		for (AnnotateLine line : lines) {
+			String node = line.getChangeset().getNode();
+			ChangeSet cs = changeSets.get(node);
+			if (cs == null) {
+				cs = changesetCache.get(root, line.getChangeset());
+				changeSets.put(node, cs);
 			}
+			blocks.add(cs, 1);
+			nodes.add(node);
+		}
+		if (key != null) {
+			cache.put(key, new Annotation(nodes));
+		}
+		return blocks;
+	}
 
-			return blocks;
-		} catch (IOException e) {
-			throw new HgException("Couldn't get annotation lines", e);
+	/**
+	 * The file revision is identified by the newest changeset changing the file among the
+	 * ancestors of the working directory parent: the changeset which created the filelog
+	 * revision. Remembered per file as long as the parent doesn't change.
+	 *
+	 * @return the node of the changeset, or null if the file is not committed yet
+	 */
+	private static String getRevision(HgRoot root, IResource file) throws HgException {
+		JHgChangeSet parent = LocalChangesetCache.getInstance().getCurrentChangeSet(root);
+		if (parent == null) {
+			return null;
+		}
+		String parentNode = parent.getNode();
+		synchronized (REVISIONS) {
+			Pair<String, String> last = REVISIONS.get(file);
+			if (last != null && parentNode.equals(last.a)) {
+				return last.b;
+			}
+		}
+		AbstractShellCommand command = new HgCommand("log", "Getting file revision", root, true); //$NON-NLS-1$
+		command.addOptions("--follow", "--limit", "1", "--template", "{node}"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+		command.addFiles(file);
+		String revision = command.executeToString(false).trim();
+		if (revision.length() != 40) {
+			// not committed yet, or renamed in the working directory
+			return null;
+		}
+		synchronized (REVISIONS) {
+			REVISIONS.put(file, new Pair<String, String>(parentNode, revision));
 		}
+		return revision;
 	}
 }
@@ -19,6 +19,8 @@ import com.vectrace.MercurialEclipse.model.ChangeSet;
 import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.storage.HgCommitMessageManager;
 import com.vectrace.MercurialEclipse.team.MercurialUtilities;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 /**
  * @author bastian
@@ -48,7 +50,13 @@ public class HgBackoutClient extends AbstractClient {
 			command.merge();
 		}
 
-		BackoutConflictResolvingContext ctx = command.execute();
+		BackoutConflictResolvingContext ctx;
+		Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+		try {
+			ctx = command.execute();
+		} finally {
+			slot.release();
+		}
 
 		HgCommitMessageManager.updateDefaultCommitName(hgRoot, user);
 
@@ -25,6 +25,8 @@ import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.ChangeSet;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 /**
  * @author Stefan Chyssler
@@ -44,7 +46,7 @@ public final class HgBisectClient extends AbstractClient {
 	 */
 	public static BisectResult markGood(HgRoot repository, ChangeSet good)
 			throws HgException {
-		return mark(BisectCommandFlags.on(repository.getRepository()).good(), good);
+		return mark(repository, BisectCommandFlags.on(repository.getRepository()).good(), good);
 	}
 
 	/**
@@ -58,15 +60,20 @@ public final class HgBisectClient extends AbstractClient {
 	 */
 	public static BisectResult markBad(HgRoot repository, ChangeSet bad)
 			throws HgException {
-		return mark(BisectCommandFlags.on(repository.getRepository()).bad(), bad);
+		return mark(repository, BisectCommandFlags.on(repository.getRepository()).bad(), bad);
 	}
 
-	private static BisectResult mark(BisectCommand command, ChangeSet cs) {
-		if (cs != null) {
-			return command.execute(cs.getNode());
-		}
+	private static BisectResult mark(HgRoot repository, BisectCommand command, ChangeSet cs) {
+		Slot slot = CommandServerCache.getInstance().acquire(repository, true);
+		try {
+			if (cs != null) {
+				return command.execute(cs.getNode());
+			}
 
-		return command.execute();
+			return command.execute();
+		} finally {
+			slot.release();
+		}
 	}
 
 	/**
@@ -76,7 +83,12 @@ public final class HgBisectClient extends AbstractClient {
 	 * @throws HgException
 	 */
 	public static BisectResult reset(HgRoot repository) throws HgException {
-		return BisectCommandFlags.on(repository.getRepository()).reset().execute();
+		Slot slot = CommandServerCache.getInstance().acquire(repository, true);
+		try {
+			return BisectCommandFlags.on(repository.getRepository()).reset().execute();
+		} finally {
+			slot.release();
+		}
 	}
 
 	/**
@@ -16,6 +16,8 @@ import java.util.List;
 import com.aragost.javahg.Bookmark;
 import com.aragost.javahg.commands.flags.BookmarksCommandFlags;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 /**
  * @author bastian
@@ -30,15 +32,30 @@ public class HgBookmarkClient extends AbstractClient {
 	}
 
 	public static void create(HgRoot hgRoot, String name, String targetChangeset) {
-		BookmarksCommandFlags.on(hgRoot.getRepository()).rev(targetChangeset).create(name);
+		Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+		try {
+			BookmarksCommandFlags.on(hgRoot.getRepository()).rev(targetChangeset).create(name);
+		} finally {
+			slot.release();
+		}
 	}
 
 	public static void rename(HgRoot hgRoot, String name, String newName) {
-		BookmarksCommandFlags.on(hgRoot.getRepository()).rename(name, newName);
+		Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+		try {
+			BookmarksCommandFlags.on(hgRoot.getRepository()).rename(name, newName);
+		} finally {
+			slot.release();
+		}
 	}
 
 	public static void delete(HgRoot hgRoot, String name) {
-		BookmarksCommandFlags.on(hgRoot.getRepository()).delete(name);
+		Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+		try {
+			BookmarksCommandFlags.on(hgRoot.getRepository()).delete(name);
+		} finally {
+			slot.release();
+		}
 	}
 
 }
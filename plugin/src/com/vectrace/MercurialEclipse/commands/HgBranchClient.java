@@ -19,6 +19,8 @@ import com.aragost.javahg.commands.flags.BranchCommandFlags;
 import com.aragost.javahg.commands.flags.BranchesCommandFlags;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 public class HgBranchClient extends AbstractClient {
 
@@ -47,7 +49,12 @@ public class HgBranchClient extends AbstractClient {
 			command.force();
 		}
 
-		command.set(name);
+		Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+		try {
+			command.set(name);
+		} finally {
+			slot.release();
+		}
 	}
 
 	/**
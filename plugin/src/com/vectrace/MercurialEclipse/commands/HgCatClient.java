@@ -12,26 +12,209 @@
  *******************************************************************************/
 package com.vectrace.MercurialEclipse.commands;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.eclipse.core.runtime.IPath;
 
 import com.aragost.javahg.Repository;
 import com.aragost.javahg.commands.flags.CatCommandFlags;
+import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.ChangeSet;
 import com.vectrace.MercurialEclipse.model.HgFile;
 import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
+import com.vectrace.MercurialEclipse.team.cache.FileContentCache;
+import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
 public class HgCatClient extends AbstractClient {
 
 	/**
-	 * Get the contents of a file at a revision
+	 * Get the contents of a file at a revision. Contents are served from the
+	 * {@link FileContentCache} if possible.
 	 */
 	public static InputStream getContent(HgFile hgfile) throws IOException {
 		HgRoot hgRoot = hgfile.getHgRoot();
 		ChangeSet cs = hgfile.getChangeSet();
+		String node = cs.getNode();
+		String key = null;
+		FileContentCache cache = FileContentCache.getInstance();
+		if (node != null) {
+			key = FileContentCache.getKey(hgRoot, node, hgfile.getIPath().toString());
+		}
+		if (key != null) {
+			byte[] content = cache.get(key);
+			if (content != null) {
+				return new ByteArrayInputStream(content);
+			}
+		}
+
 		Repository repo = CommandServerCache.getInstance().get(hgRoot, cs.getBundleFile());
+		Slot slot = CommandServerCache.getInstance().acquire(repo, false);
+
+		try {
+			InputStream in = CatCommandFlags.on(repo).rev(node).decode().execute(hgfile.getIPath().toOSString());
+			if (in == null) {
+				return null;
+			}
+			// read it all before the slot is released: the output is pending on the server
+			return readContent(cache, key, in);
+		} finally {
+			slot.release();
+		}
+	}
+
+	/**
+	 * Fetches the contents of several files at the same changeset with one hg call and adds them
+	 * to the {@link FileContentCache}. Files which are already cached or which don't exist at the
+	 * changeset are skipped.
+	 *
+	 * @param node
+	 *            the full changeset node
+	 * @param paths
+	 *            root relative paths
+	 */
+	public static void prefetch(HgRoot hgRoot, String node, Collection<IPath> paths)
+			throws HgException {
+		FileContentCache cache = FileContentCache.getInstance();
+		List<IPath> missing = new ArrayList<IPath>();
+		for (IPath path : paths) {
+			String key = FileContentCache.getKey(hgRoot, node, path.toString());
+			if (key == null) {
+				// the contents can't be cached
+				return;
+			}
+			if (!cache.contains(key)) {
+				missing.add(path);
+			}
+		}
+		if (missing.isEmpty()) {
+			return;
+		}
+		File dir = ResourceUtils.createNewTempDirectory();
+		try {
+			AbstractShellCommand command = new HgCommand("cat", "Retrieving file contents",
+					hgRoot, true);
+			command.addOptions("--decode", "-r", node, "-o", dir.getAbsolutePath()
+					+ File.separator + "%p");
+			for (IPath path : missing) {
+				// hg does not create the directories of the output files
+				new File(dir, path.toOSString()).getParentFile().mkdirs();
+				command.addFile(hgRoot.getIPath().append(path).toFile());
+			}
+			// files missing at the changeset: exit code 1, the other files are written anyway
+			command.executeToBytes(command.getTimeOut(), false);
+
+			for (IPath path : missing) {
+				File file = new File(dir, path.toOSString());
+				if (file.isFile() && file.length() <= FileContentCache.MAX_CONTENT_SIZE) {
+					cache.put(FileContentCache.getKey(hgRoot, node, path.toString()), readFile(file));
+				}
+			}
+		} catch (IOException e) {
+			throw new HgException("Unable to get contents", e);
+		} finally {
+			ResourceUtils.delete(dir, true);
+		}
+	}
 
-		return CatCommandFlags.on(repo).rev(cs.getNode()).decode().execute(hgfile.getIPath().toOSString());
+	private static byte[] readFile(File file) throws IOException {
+		byte[] content = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int count = 0;
+			int read;
+			while (count < content.length
+					&& (read = in.read(content, count, content.length - count)) >= 0) {
+				count += read;
+			}
+		} finally {
+			in.close();
+		}
+		return content;
+	}
+
+	/**
+	 * Reads the stream completely and caches it, unless it is larger than
+	 * {@link FileContentCache#MAX_CONTENT_SIZE}. Larger contents are spooled to a temporary file.
+	 *
+	 * @param key
+	 *            the cache key, or null to not cache the content
+	 * @return a stream with the same content
+	 */
+	private static InputStream readContent(FileContentCache cache, String key, InputStream in)
+			throws IOException {
+		byte[] buffer = new byte[8192];
+		int count = 0;
+		int read;
+		while ((read = in.read(buffer, count, buffer.length - count)) >= 0) {
+			count += read;
+			if (count == buffer.length) {
+				if (count >= FileContentCache.MAX_CONTENT_SIZE) {
+					// too large: don't cache
+					return spool(buffer, count, in);
+				}
+				byte[] newBuffer = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, newBuffer, 0, count);
+				buffer = newBuffer;
+			}
+		}
+		in.close();
+		byte[] content = new byte[count];
+		System.arraycopy(buffer, 0, content, 0, count);
+		if (key != null) {
+			cache.put(key, content);
+		}
+		return new ByteArrayInputStream(content);
+	}
+
+	/**
+	 * Writes the already read start and the rest of the stream to a temporary file
+	 *
+	 * @return a stream of the file, which deletes it on close
+	 */
+	private static InputStream spool(byte[] start, int count, InputStream in) throws IOException {
+		final File file = File.createTempFile("hgcat", null); //$NON-NLS-1$
+		file.deleteOnExit();
+		boolean done = false;
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				out.write(start, 0, count);
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+				in.close();
+			}
+			InputStream result = new FileInputStream(file) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						file.delete();
+					}
+				}
+			};
+			done = true;
+			return result;
+		} finally {
+			if (!done) {
+				file.delete();
+			}
+		}
 	}
 }
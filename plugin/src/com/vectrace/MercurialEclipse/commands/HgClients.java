@@ -20,6 +20,7 @@ import com.aragost.javahg.ext.mq.MQExtension;
 import com.aragost.javahg.ext.rebase.RebaseExtension;
 import com.google.common.collect.Lists;
 import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
 
 /**
  * @author Stefan
@@ -53,7 +54,7 @@ public final class HgClients {
 		RepositoryConfiguration cfg = new RepositoryConfiguration();
 		String executable = HgClients.getExecutable();
 		cfg.setHgBin(executable);
-		cfg.setConcurrency(3);
+		cfg.setConcurrency(CommandServerCache.getPoolSize());
 		cfg.setCommandWaitTimeout(Integer.MAX_VALUE);
 		cfg.setServerIdleTime(30);
 		cfg.setCodingErrorAction(CodingErrorAction.REPLACE);
@@ -15,6 +15,7 @@ package com.vectrace.MercurialEclipse.commands;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -24,9 +25,11 @@ import java.util.Set;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.Assert;
 
+import com.aragost.javahg.Repository;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.storage.HgCommitMessageManager;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
 import com.vectrace.MercurialEclipse.team.MercurialUtilities;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
@@ -41,6 +44,31 @@ public class HgCommand extends AbstractShellCommand {
 				"clone", "pull", "resolve", "showconfig", "status", "unbundle"
 		)));
 
+	/**
+	 * Commands which never run on a command server: serve doesn't terminate and the merge
+	 * related commands may start merge tools, which depend on the environment of the process.
+	 * Network bound and extension commands (pulling, pushing, applying patches or bundles,
+	 * signing) may take long and change the repository: on a command server they would hold
+	 * the exclusive lane of the root and block all readers until they are done.
+	 */
+	private static final Set<String> COMMANDS_NEEDING_PROCESS =
+		Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+				"serve", "merge", "resolve", "update", "imerge",
+				"clone", "pull", "push", "fetch", "svn", "svnclone", "transplant", "unbundle",
+				"import", "sign", "rebase"
+		)));
+
+	/**
+	 * Commands which only read the repository and may share the command servers with others
+	 */
+	private static final Set<String> READ_ONLY_COMMANDS =
+		Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+				"annotate", "bundle", "cat", "diff", "export", "grep", "heads", "identify",
+				"incoming", "locate", "log", "manifest", "outgoing", "parents", "paths",
+				"qapplied", "qdiff", "qheader", "qseries", "qtop", "qunapplied", "showconfig",
+				"sigcheck", "sigs", "status", "tip"
+		)));
+
 	private String lastUserName;
 
 	private String bundleFile;
@@ -156,6 +184,51 @@ public class HgCommand extends AbstractShellCommand {
 		cmd.add(1, "-y");
 	}
 
+	/**
+	 * Commands run in the root directory, in the encoding of the command servers, may use a
+	 * command server. A bundle overlay is served by the overlay repository of the bundle.
+	 *
+	 * @see com.vectrace.MercurialEclipse.commands.AbstractShellCommand#getCommandServer()
+	 */
+	@Override
+	protected Repository getCommandServer() {
+		if (workingDir != hgRoot || COMMANDS_NEEDING_PROCESS.contains(command)) {
+			return null;
+		}
+		try {
+			if (!CommandServerCache.ENCODING.equals(Charset.forName(hgRoot.getEncoding()))) {
+				return null;
+			}
+		} catch (IllegalArgumentException e) {
+			// unsupported or illegal charset name
+			return null;
+		}
+		return CommandServerCache.getInstance().get(hgRoot,
+				bundleFile == null ? null : new File(bundleFile));
+	}
+
+	/**
+	 * Commands not known to be read-only take the exclusive lane. Long running commands which
+	 * change the repository run as processes instead, see {@link #COMMANDS_NEEDING_PROCESS}.
+	 *
+	 * @see com.vectrace.MercurialEclipse.commands.AbstractShellCommand#isChangingRepository()
+	 */
+	@Override
+	protected boolean isChangingRepository() {
+		return super.isChangingRepository() || !READ_ONLY_COMMANDS.contains(command);
+	}
+
+	/**
+	 * @see com.vectrace.MercurialEclipse.commands.AbstractShellCommand#customizeServerCommands(java.util.List)
+	 */
+	@Override
+	protected void customizeServerCommands(List<String> cmd) {
+		// same as for the process, see setupEncoding() and customizeCommands()
+		cmd.add(0, "-y");
+		cmd.add(0, "ui.fallbackencoding=" + hgRoot.getFallbackencoding().name()); //$NON-NLS-1$
+		cmd.add(0, "--config"); //$NON-NLS-1$
+	}
+
 	/**
 	 * @see com.vectrace.MercurialEclipse.commands.AbstractShellCommand#getExecutable()
 	 */
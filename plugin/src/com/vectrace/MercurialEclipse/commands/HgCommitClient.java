@@ -32,6 +32,8 @@ import com.vectrace.MercurialEclipse.extensionpoint.definition.handlers.ActionLi
 import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.storage.HgCommitMessageManager;
 import com.vectrace.MercurialEclipse.team.MercurialUtilities;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 import com.vectrace.MercurialEclipse.team.cache.RefreshRootJob;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
@@ -107,7 +109,13 @@ public class HgCommitClient extends AbstractClient {
 
 		try {
 			Changeset tipChangeSet = amend ? command.getRepository().tip() : null;
-			Changeset changeSet = command.execute(files.toArray(new File[files.size()]));
+			Changeset changeSet;
+			Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+			try {
+				changeSet = command.execute(files.toArray(new File[files.size()]));
+			} finally {
+				slot.release();
+			}
 
 			if (amend && changeSet != null) {
 				ActionListenerContributionDispatcher.onAmend(tipChangeSet == null ? Changeset.NULL_ID
@@ -133,7 +141,12 @@ public class HgCommitClient extends AbstractClient {
 		command.message(message);
 
 		try {
-			command.execute();
+			Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+			try {
+				command.execute();
+			} finally {
+				slot.release();
+			}
 			HgCommitMessageManager.updateDefaultCommitName(hgRoot, user);
 		} finally {
 			new RefreshRootJob(hgRoot, RefreshRootJob.LOCAL_AND_OUTGOING).schedule();
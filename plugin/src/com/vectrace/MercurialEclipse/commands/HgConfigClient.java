@@ -11,6 +11,7 @@
 package com.vectrace.MercurialEclipse.commands;
 
 import com.vectrace.MercurialEclipse.exception.HgException;
+import com.vectrace.MercurialEclipse.model.HgRoot;
 
 /**
  * @author bastian
@@ -23,6 +24,17 @@ public class HgConfigClient extends AbstractClient {
 		return lines[0];
 	}
 
+	/**
+	 * @return the config sections of the root which change the file contents written or read by
+	 *         the decode and encode filters
+	 */
+	public static String getDecodeConfig(HgRoot hgRoot) throws HgException {
+		AbstractShellCommand cmd = new HgCommand("showconfig", "Getting configuration information",
+				hgRoot, false);
+		cmd.addOptions("decode", "encode", "eol", "extensions");
+		return cmd.executeToString();
+	}
+
 	private static String[] getHgConfigLines(String key)
 			throws HgException {
 		AbstractShellCommand cmd = new RootlessHgCommand("showconfig", "Getting configuration information");
@@ -10,10 +10,9 @@
  *******************************************************************************/
 package com.vectrace.MercurialEclipse.commands;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -29,6 +28,25 @@ import com.vectrace.MercurialEclipse.utils.StringUtils;
  */
 public class HgGrepClient extends AbstractClient {
 
+	/**
+	 * Max number of matches passed to the listener at once
+	 */
+	private static final int BATCH_SIZE = 100;
+
+	/**
+	 * Receives the matches while hg grep is still running
+	 */
+	public interface MatchListener {
+
+		/**
+		 * Called in the order of the output, mostly from the thread reading the output of hg.
+		 *
+		 * @param matches
+		 *            The next matches, never empty
+		 */
+		void matchesFound(List<MercurialTextSearchMatchAccess> matches);
+	}
+
 	/**
 	 * Greps given Hg repo with params -lnu -all for given pattern
 	 *
@@ -41,60 +59,100 @@ public class HgGrepClient extends AbstractClient {
 	 */
 	public static List<MercurialTextSearchMatchAccess> grep(HgRoot root, String pattern, List<IResource> files, boolean all, final IProgressMonitor monitor)
 			throws HgException {
-		final AbstractShellCommand cmd = new HgCommand("grep", "Searching repository", root, true);
+		final List<MercurialTextSearchMatchAccess> result = new ArrayList<MercurialTextSearchMatchAccess>();
+
+		grep(root, pattern, files, all, monitor, new MatchListener() {
+			public void matchesFound(List<MercurialTextSearchMatchAccess> matches) {
+				result.addAll(matches);
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Greps given Hg repo with params -nuf [--all] for given pattern. The output is parsed while
+	 * hg is running and the matches are passed to the listener in batches. The command is
+	 * terminated as soon as the monitor is cancelled.
+	 *
+	 * @param monitor
+	 *            May be null
+	 * @throws HgException
+	 *             If the command fails or is cancelled
+	 */
+	public static void grep(HgRoot root, String pattern, List<IResource> files, boolean all,
+			IProgressMonitor monitor, MatchListener listener) throws HgException {
+		if (StringUtils.isEmpty(pattern)) {
+			return;
+		}
+
+		AbstractShellCommand cmd = new HgCommand("grep", "Searching repository", root, true);
 		cmd.addOptions("-nuf");
 		if (all) {
 			cmd.addOptions("--all");
 		}
-		if (StringUtils.isEmpty(pattern)) {
-			return new ArrayList<MercurialTextSearchMatchAccess>();
-		}
 
 		cmd.addOptions(pattern);
 		cmd.addFilesWithoutFolders(files);
 
-		String result = null;
-
-		if (monitor != null) {
-			Timer t = new Timer("HG GREP watcher");
-			try {
-				t.schedule(new TimerTask() {
-					@Override
-					public void run() {
-						if (monitor.isCanceled()) {
-							cmd.terminate();
-							cancel();
-						}
-					}
-				}, 100, 100);
-				result = cmd.executeToString(false);
-			} finally {
-				t.cancel();
-			}
-		} else {
-			result = cmd.executeToString(false);
-		}
+		// the command job polls the monitor while hg runs without output
+		cmd.setParentProgress(monitor);
 
-		return getSearchResults(root, result, all);
+		MatchHandler handler = new MatchHandler(cmd, root, all, monitor, listener);
+		// no matches: exit code 1
+		cmd.executeToLines(handler, false);
+		handler.flushBatch();
 	}
 
 	/**
-	 * @param root
-	 * @param result
-	 * @return
+	 * Parses the output lines into matches
 	 */
-	private static List<MercurialTextSearchMatchAccess> getSearchResults(HgRoot root,
-			String result, boolean all) {
-		String[] lines = result.split("\n");
-		List<MercurialTextSearchMatchAccess> list = new ArrayList<MercurialTextSearchMatchAccess>();
-		for (String line : lines) {
+	private static class MatchHandler implements ILineHandler {
+
+		private final AbstractShellCommand cmd;
+		private final HgRoot root;
+		private final boolean all;
+		private final IProgressMonitor monitor;
+		private final MatchListener listener;
+
+		private List<MercurialTextSearchMatchAccess> batch = new ArrayList<MercurialTextSearchMatchAccess>(
+				BATCH_SIZE);
+
+		public MatchHandler(AbstractShellCommand cmd, HgRoot root, boolean all,
+				IProgressMonitor monitor, MatchListener listener) {
+			this.cmd = cmd;
+			this.root = root;
+			this.all = all;
+			this.monitor = monitor;
+			this.listener = listener;
+		}
+
+		public void handleLine(CharSequence line) throws IOException {
+			checkCanceled();
 			try {
-				list.add(new MercurialTextSearchMatchAccess(root, line, all));
+				batch.add(new MercurialTextSearchMatchAccess(root, line.toString(), all));
 			} catch (HgException e) {
 				// skip parsing errors, add only successful matches
 			}
+			if (batch.size() >= BATCH_SIZE) {
+				flushBatch();
+			}
+		}
+
+		private void checkCanceled() throws IOException {
+			if (monitor != null && monitor.isCanceled()) {
+				cmd.terminate();
+				throw new IOException("Search cancelled");
+			}
 		}
-		return list;
-	}
 
+		void flushBatch() {
+			if (batch.isEmpty() || (monitor != null && monitor.isCanceled())) {
+				return;
+			}
+			List<MercurialTextSearchMatchAccess> matches = batch;
+			batch = new ArrayList<MercurialTextSearchMatchAccess>(BATCH_SIZE);
+			listener.matchesFound(matches);
+		}
+	}
 }
@@ -13,20 +13,44 @@
 package com.vectrace.MercurialEclipse.commands;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.aragost.javahg.Bundle;
 import com.aragost.javahg.commands.IncomingCommand;
 import com.aragost.javahg.commands.flags.IncomingCommandFlags;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.ChangeSet.Direction;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.model.IHgRepositoryLocation;
 import com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants;
 import com.vectrace.MercurialEclipse.team.cache.RemoteData;
 import com.vectrace.MercurialEclipse.team.cache.RemoteKey;
+import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
 public class HgIncomingClient extends AbstractClient {
 
+	/** folder in the plugin state location with the mirrors of the remote repositories */
+	private static final String MIRROR_FOLDER = "incoming"; //$NON-NLS-1$
+
+	/**
+	 * Changesets stripped from the remote repository stay in a mirror, so it is recreated after
+	 * this time
+	 */
+	private static final long MAX_MIRROR_AGE = 24 * 60 * 60 * 1000L;
+
+	/** file in the .hg folder of a mirror with the heads of the root when it was cloned */
+	private static final String ROOT_HEADS_FILE = ".hg/mercurialeclipse-rootheads"; //$NON-NLS-1$
+
+	/** mirror folder -> lock object, guarded by itself */
+	private static final Map<File, Object> MIRROR_LOCKS = new HashMap<File, Object>();
+
 	/**
 	 * Gets all File Revisions that are incoming and saves them in a bundle file. There can be more
 	 * than one revision per file as this method obtains all new changesets.
@@ -36,6 +60,27 @@ public class HgIncomingClient extends AbstractClient {
 	 * @throws HgException
 	 */
 	public static RemoteData getHgIncoming(RemoteKey key) throws HgException {
+		if (!isIncremental()) {
+			return getHgIncoming(key, null);
+		}
+		File mirror = getMirror(key.getRoot(), key.getRepo());
+		if (mirror == null) {
+			return getHgIncoming(key, null);
+		}
+		synchronized (getLock(mirror)) {
+			if (!updateMirror(key, mirror)) {
+				return getHgIncoming(key, null);
+			}
+			return getHgIncoming(key, mirror);
+		}
+	}
+
+	/**
+	 * @param mirror
+	 *            the local mirror of the remote repository to compare with, or null to compare
+	 *            with the remote repository itself
+	 */
+	private static RemoteData getHgIncoming(RemoteKey key, File mirror) throws HgException {
 		HgRoot hgRoot = key.getRoot();
 		final IncomingCommand command = IncomingCommandFlags.on(hgRoot.getRepository());
 
@@ -51,7 +96,8 @@ public class HgIncomingClient extends AbstractClient {
 			command.force();
 		}
 
-		final String location = setupForRemote(key.getRepo(), command);
+		final String location = mirror != null ? mirror.getAbsolutePath() : setupForRemote(
+				key.getRepo(), command);
 
 		Bundle bundle = new JavaHgCommandJob<Bundle>(command, "Calculating incoming changesets") {
 			@Override
@@ -71,4 +117,190 @@ public class HgIncomingClient extends AbstractClient {
 		// Nothing incoming
 		return new RemoteData(key, Direction.INCOMING, Collections.EMPTY_LIST, null);
 	}
+
+	// incremental incoming
+
+	private static boolean isIncremental() {
+		return Boolean.valueOf(
+				HgClients.getPreference(MercurialPreferenceConstants.SYNC_INCREMENTAL_INCOMING,
+						"true")).booleanValue(); //$NON-NLS-1$
+	}
+
+	/**
+	 * The mirror of a remote repository is a local clone of the root, which gets the changesets
+	 * of the remote repository pulled in. Once created, only the changesets which are new on the
+	 * server since the last pull are transferred, and the incoming changesets are computed
+	 * locally against the mirror. The mirrors are kept in the plugin state location, one folder
+	 * per root.
+	 *
+	 * @return the mirror folder of the remote repository, may not exist yet. Null if the plugin
+	 *         is not running
+	 */
+	private static File getMirror(HgRoot hgRoot, IHgRepositoryLocation repo) {
+		File dir = getMirrorFolder();
+		if (dir == null) {
+			return null;
+		}
+		String rootName = hgRoot.getName() + "-" //$NON-NLS-1$
+				+ Integer.toHexString(hgRoot.getAbsolutePath().hashCode());
+		String name = Integer.toHexString(repo.getLocation().hashCode());
+		return new File(new File(dir, rootName), name);
+	}
+
+	/**
+	 * @return the folder with the mirrors of all roots, null if the plugin is not running
+	 */
+	private static File getMirrorFolder() {
+		MercurialEclipsePlugin plugin = MercurialEclipsePlugin.getDefault();
+		if (plugin == null) {
+			return null;
+		}
+		return plugin.getStateLocation().append(MIRROR_FOLDER).toFile();
+	}
+
+	/**
+	 * Deletes the mirrors of all roots, e.g. after incremental incoming was disabled. Mirrors
+	 * which are in use are deleted once the running pull is done.
+	 */
+	public static void deleteMirrors() {
+		File dir = getMirrorFolder();
+		File[] roots = dir == null ? null : dir.listFiles();
+		if (roots == null) {
+			return;
+		}
+		for (File root : roots) {
+			File[] mirrors = root.listFiles();
+			if (mirrors != null) {
+				for (File mirror : mirrors) {
+					synchronized (getLock(mirror)) {
+						ResourceUtils.delete(mirror, true);
+					}
+				}
+			}
+			root.delete();
+		}
+	}
+
+	private static Object getLock(File mirror) {
+		synchronized (MIRROR_LOCKS) {
+			Object lock = MIRROR_LOCKS.get(mirror);
+			if (lock == null) {
+				lock = new Object();
+				MIRROR_LOCKS.put(mirror, lock);
+			}
+			return lock;
+		}
+	}
+
+	/**
+	 * Creates the mirror if needed, and pulls the changesets of the key from the remote repository
+	 * into it. Must be called with the lock of the mirror held.
+	 * <p>
+	 * The mirror gets the changesets of the root only when it is cloned. If some of them are
+	 * gone from the root since (rebase, strip, histedit, rollback), they would show up as
+	 * incoming, so the mirror is recreated.
+	 *
+	 * @return false if the mirror can't be created
+	 * @throws HgException
+	 *             if the pull fails
+	 */
+	private static boolean updateMirror(RemoteKey key, File mirror) throws HgException {
+		HgRoot hgRoot = key.getRoot();
+		File hgDir = new File(mirror, ".hg"); //$NON-NLS-1$
+		// written by the clone only
+		File hgrc = new File(hgDir, "hgrc"); //$NON-NLS-1$
+		if (hgDir.isDirectory()
+				&& (System.currentTimeMillis() - hgrc.lastModified() > MAX_MIRROR_AGE || hasLostChangesets(
+						hgRoot, mirror))) {
+			ResourceUtils.delete(mirror, true);
+		}
+		if (!hgDir.isDirectory()) {
+			File parent = mirror.getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs()) {
+				return false;
+			}
+			// before the clone: a changeset removed in between is detected on the next update
+			String heads = getRootHeads(hgRoot);
+			AbstractShellCommand clone = new RootlessHgCommand("clone", //$NON-NLS-1$
+					"Creating mirror for incoming changesets", parent); //$NON-NLS-1$
+			clone.addOptions("--noupdate", hgRoot.getAbsolutePath(), mirror.getName()); //$NON-NLS-1$
+			try {
+				clone.executeToBytes(Integer.MAX_VALUE);
+				setRootHeads(mirror, heads);
+			} catch (HgException e) {
+				MercurialEclipsePlugin.logError(e);
+				ResourceUtils.delete(mirror, true);
+				return false;
+			} catch (IOException e) {
+				MercurialEclipsePlugin.logError(e);
+				ResourceUtils.delete(mirror, true);
+				return false;
+			}
+		}
+
+		AbstractShellCommand pull = new RootlessHgCommand("pull", //$NON-NLS-1$
+				"Fetching incoming changesets", mirror); //$NON-NLS-1$
+		addInsecurePreference(pull);
+		if (key.getBranch() != null) {
+			pull.addOptions("--branch", key.getBranch()); //$NON-NLS-1$
+		}
+		if (key.isAllowUnrelated()) {
+			pull.addOptions("--force"); //$NON-NLS-1$
+		}
+		addRepoToHgCommand(key.getRepo(), pull);
+		pull.setUsePreferenceTimeout(MercurialPreferenceConstants.PULL_TIMEOUT);
+		pull.executeToBytes();
+		return true;
+	}
+
+	/**
+	 * @return the nodes of the heads of the root, one per line
+	 */
+	static String getRootHeads(HgRoot hgRoot) throws HgException {
+		AbstractShellCommand command = new HgCommand("log", //$NON-NLS-1$
+				"Getting heads for incoming changesets", hgRoot, false); //$NON-NLS-1$
+		command.addOptions("--rev", "heads(all())", "--template", "{node}\\n"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		return command.executeToString();
+	}
+
+	static void setRootHeads(File mirror, String heads) throws IOException {
+		Files.write(heads, new File(mirror, ROOT_HEADS_FILE), Charsets.US_ASCII);
+	}
+
+	/**
+	 * A changeset removed from the root takes all its descendants with it, so one of the heads
+	 * the mirror was cloned with is gone as well.
+	 *
+	 * @return true if a changeset the mirror was cloned with is not in the root any more, or if
+	 *         that is not known
+	 */
+	static boolean hasLostChangesets(HgRoot hgRoot, File mirror) throws HgException {
+		List<String> heads;
+		try {
+			heads = Files.readLines(new File(mirror, ROOT_HEADS_FILE), Charsets.US_ASCII);
+		} catch (IOException e) {
+			return true;
+		}
+		StringBuilder revset = new StringBuilder();
+		int count = 0;
+		for (String node : heads) {
+			node = node.trim();
+			if (node.length() == 0) {
+				continue;
+			}
+			if (count > 0) {
+				revset.append(" or "); //$NON-NLS-1$
+			}
+			// id() is empty for an unknown node, unlike the node itself
+			revset.append("id(").append(node).append(')'); //$NON-NLS-1$
+			count++;
+		}
+		if (count == 0) {
+			return false;
+		}
+		AbstractShellCommand command = new HgCommand("log", //$NON-NLS-1$
+				"Checking mirror for incoming changesets", hgRoot, false); //$NON-NLS-1$
+		command.addOptions("--rev", revset.toString(), "--template", "x"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		return command.executeToString().trim().length() < count;
+	}
 }
@@ -34,6 +34,7 @@ import com.vectrace.MercurialEclipse.model.IHgRepositoryLocation;
 import com.vectrace.MercurialEclipse.model.JHgChangeSet;
 import com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants;
 import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 import com.vectrace.MercurialEclipse.team.cache.LocalChangesetCache;
 import com.vectrace.MercurialEclipse.utils.BranchUtils;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
@@ -120,38 +121,43 @@ public class HgLogClient extends AbstractClient {
 		String sPath = path.toOSString();
 		LogCommand command = addRange(LogCommandFlags.on(root.getRepository()), startRev, limitNumber, isFile);
 		List<Changeset> c;
+		Slot slot = CommandServerCache.getInstance().acquire(root, false);
 
-		if (isFile) {
-			if (Boolean.parseBoolean(HgClients.getPreference(
-					MercurialPreferenceConstants.HISTORY_LOG_USE_REMOVED, "false"))) {
-				// Return the union of --follow and --removed. Need to show transplanted revisions on other branches
-				TreeSet<Changeset> set = new TreeSet<Changeset>(CS_COMPARATOR);
-
-				if (canFollow(root, path)) {
-					command.follow();
+		try {
+			if (isFile) {
+				if (Boolean.parseBoolean(HgClients.getPreference(
+						MercurialPreferenceConstants.HISTORY_LOG_USE_REMOVED, "false"))) {
+					// Return the union of --follow and --removed. Need to show transplanted revisions on other branches
+					TreeSet<Changeset> set = new TreeSet<Changeset>(CS_COMPARATOR);
+
+					if (canFollow(root, path)) {
+						command.follow();
+						set.addAll(command.execute(sPath));
+						command = addRange(LogCommandFlags.on(root.getRepository()), startRev, limitNumber, isFile);
+					}
+
+					command.removed();
 					set.addAll(command.execute(sPath));
-					command = addRange(LogCommandFlags.on(root.getRepository()), startRev, limitNumber, isFile);
-				}
-
-				command.removed();
-				set.addAll(command.execute(sPath));
-
-				while(set.size() > limitNumber) {
-					// Could use descendingIterator but that requires 1.6
-					set.remove(set.last());
-				}
 
-				c = new ArrayList<Changeset>(set);
-			} else {
-				if (canFollow(root, path)) {
-					command.follow();
+					while(set.size() > limitNumber) {
+						// Could use descendingIterator but that requires 1.6
+						set.remove(set.last());
+					}
+
+					c = new ArrayList<Changeset>(set);
+				} else {
+					if (canFollow(root, path)) {
+						command.follow();
+					}
+					c = command.execute(sPath);
 				}
+			}
+			else
+			{
 				c = command.execute(sPath);
 			}
-		}
-		else
-		{
-			c = command.execute(sPath);
+		} finally {
+			slot.release();
 		}
 
 		return getChangeSets(root, c);
@@ -165,9 +171,15 @@ public class HgLogClient extends AbstractClient {
 	}
 
 	public static List<JHgChangeSet> getRootLog(HgRoot root, int limitNumber, int startRev) {
-		return getChangeSets(root,
-				addRange(LogCommandFlags.on(root.getRepository()), startRev, limitNumber, false)
-						.execute());
+		List<Changeset> changesets;
+		Slot slot = CommandServerCache.getInstance().acquire(root, false);
+		try {
+			changesets = addRange(LogCommandFlags.on(root.getRepository()), startRev,
+					limitNumber, false).execute();
+		} finally {
+			slot.release();
+		}
+		return getChangeSets(root, changesets);
 	}
 
 	/**
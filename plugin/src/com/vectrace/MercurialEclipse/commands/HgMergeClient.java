@@ -18,6 +18,8 @@ import com.aragost.javahg.commands.flags.MergeCommandFlags;
 import com.aragost.javahg.merge.MergeContext;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 public class HgMergeClient extends AbstractClient {
 
@@ -33,10 +35,13 @@ public class HgMergeClient extends AbstractClient {
 			command.force();
 		}
 
+		Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
 		try {
 			return command.execute();
 		} catch (IOException e) {
 			throw new HgException(e.getLocalizedMessage(), e);
+		} finally {
+			slot.release();
 		}
 	}
 }
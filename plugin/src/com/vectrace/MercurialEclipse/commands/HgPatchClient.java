@@ -17,6 +17,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -31,6 +32,7 @@ import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.history.MercurialRevision;
 import com.vectrace.MercurialEclipse.model.ChangeSet;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
 
 /**
  * TODO: use JavaHg
@@ -102,7 +104,7 @@ public class HgPatchClient extends AbstractClient {
 		if (command == null) {
 			command = DiffCommandFlags.on(hgRoot.getRepository());
 		}
-		return command.execute(toFileArray(resources));
+		return toText(command.stream(toFileArray(resources)));
 	}
 
 	/**
@@ -116,7 +118,7 @@ public class HgPatchClient extends AbstractClient {
 	 * @throws HgException
 	 */
 	public static String exportPatch(HgRoot root, ChangeSet cs) throws HgException {
-		return ExportCommandFlags.on(root.getRepository()).execute(cs.getNode());
+		return toText(ExportCommandFlags.on(root.getRepository()).stream(cs.getNode()));
 	}
 
 	/**
@@ -155,7 +157,23 @@ public class HgPatchClient extends AbstractClient {
 	 */
 	public static String getDiff(HgRoot hgRoot, MercurialRevision entry,
 			MercurialRevision secondEntry) throws HgException {
+		return toText(getDiffCommand(hgRoot, entry, secondEntry).stream());
+	}
+
+	/**
+	 * Like {@link #getDiff(HgRoot, MercurialRevision, MercurialRevision)}, but passes the diff
+	 * line by line to the handler while hg runs, without buffering it.
+	 *
+	 * @throws HgException
+	 *             If hg fails or the handler throws an exception
+	 */
+	public static void getDiff(HgRoot hgRoot, MercurialRevision entry,
+			MercurialRevision secondEntry, ILineHandler handler) throws HgException {
+		copy(getDiffCommand(hgRoot, entry, secondEntry).stream(), handler);
+	}
 
+	private static DiffCommand getDiffCommand(HgRoot hgRoot, MercurialRevision entry,
+			MercurialRevision secondEntry) {
 		DiffCommand command = DiffCommandFlags.on(hgRoot.getRepository());
 
 		if (secondEntry == null) {
@@ -163,38 +181,66 @@ public class HgPatchClient extends AbstractClient {
 		} else {
 			command.rev(entry.getChangeSet().getNode(), secondEntry.getChangeSet().getNode());
 		}
+		return command;
+	}
 
-		return command.execute();
+	/**
+	 * @return The output of a JavaHg command, with "\n" line terminators
+	 */
+	private static String toText(InputStream in) throws HgException {
+		final StringBuilder text = new StringBuilder();
+		copy(in, new ILineHandler() {
+			public void handleLine(CharSequence line) {
+				text.append(line).append('\n');
+			}
+		});
+		return text.toString();
 	}
 
 	private static void copy(InputStream in, File patchFile) throws HgException {
-		FileOutputStream out = null;
+		OutputStream out;
 		try {
 			out = new FileOutputStream(patchFile);
-			ByteStreams.copy(in, out);
-			in = null;
 		} catch (FileNotFoundException e) {
+			consumeAll(in);
 			throw new HgException(e.getMessage(), e);
+		}
+		copy(in, out);
+	}
+
+	/**
+	 * Decodes the output of a JavaHg command with the encoding of the command servers
+	 */
+	private static void copy(InputStream in, ILineHandler handler) throws HgException {
+		copy(in, new LineOutputStream(CommandServerCache.ENCODING, handler));
+	}
+
+	/**
+	 * Copies the output of a JavaHg command and closes the target. If the copy fails, the rest of
+	 * the output is read anyway: the command server can't run the next command before.
+	 */
+	private static void copy(InputStream in, OutputStream out) throws HgException {
+		try {
+			try {
+				ByteStreams.copy(in, out);
+				in = null;
+			} finally {
+				out.close();
+			}
 		} catch (IOException e) {
 			throw new HgException(e.getMessage(), e);
 		} finally {
-			try {
-				if (out != null) {
-					try {
-						out.close();
-					} catch (IOException e) {
-						throw new HgException(e.getMessage(), e);
-					}
-				}
-			} finally {
-				if (in != null) {
-					try {
-						Utils.consumeAll(in);
-					} catch (IOException e) {
-						throw new HgException(e.getMessage(), e);
-					}
-				}
+			if (in != null) {
+				consumeAll(in);
 			}
 		}
 	}
+
+	private static void consumeAll(InputStream in) throws HgException {
+		try {
+			Utils.consumeAll(in);
+		} catch (IOException e) {
+			throw new HgException(e.getMessage(), e);
+		}
+	}
 }
@@ -83,7 +83,7 @@ public class HgPushPullClient extends AbstractClient {
 			protected List<Changeset> run() throws Exception {
 				return command.execute(remote);
 			}
-		}.setParentProgress(progress).execute(timeout);
+		}.setExclusive(true).setParentProgress(progress).execute(timeout);
 
 		new RefreshRootJob(hgRoot, RefreshRootJob.OUTGOING | RefreshRootJob.PROJECT_DECORTATIONS).schedule();
 	}
@@ -131,7 +131,7 @@ public class HgPushPullClient extends AbstractClient {
 				protected List<Changeset> run() throws Exception {
 					return command.execute(remote);
 				}
-			}.setParentProgress(progress).execute(timeout).getValue();
+			}.setExclusive(true).setParentProgress(progress).execute(timeout).getValue();
 
 			if (pulled.isEmpty()) {
 				// Nothing to do
@@ -21,6 +21,8 @@ import org.eclipse.core.runtime.IProgressMonitor;
 
 import com.aragost.javahg.commands.flags.RemoveCommandFlags;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 import com.vectrace.MercurialEclipse.team.cache.MercurialRootCache;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
@@ -37,7 +39,13 @@ public class HgRemoveClient extends AbstractClient {
 		}
 		HgRoot hgRoot = MercurialRootCache.getInstance().getHgRoot(resource);
 
-		List<File> removedFiles = RemoveCommandFlags.on(hgRoot.getRepository()).force().execute(ResourceUtils.getFileHandle(resource));
+		List<File> removedFiles;
+		Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+		try {
+			removedFiles = RemoveCommandFlags.on(hgRoot.getRepository()).force().execute(ResourceUtils.getFileHandle(resource));
+		} finally {
+			slot.release();
+		}
 
 		return !removedFiles.isEmpty();
 	}
@@ -54,7 +62,12 @@ public class HgRemoveClient extends AbstractClient {
 				files[i] = ResourceUtils.getFileHandle(res.get(i));
 			}
 
-			RemoveCommandFlags.on(hgRoot.getRepository()).execute(files);
+			Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+			try {
+				RemoveCommandFlags.on(hgRoot.getRepository()).execute(files);
+			} finally {
+				slot.release();
+			}
 		}
 	}
 
@@ -71,7 +84,12 @@ public class HgRemoveClient extends AbstractClient {
 				files[i] = ResourceUtils.getFileHandle(res.get(i));
 			}
 
-			RemoveCommandFlags.on(hgRoot.getRepository()).after().force().execute(files);
+			Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+			try {
+				RemoveCommandFlags.on(hgRoot.getRepository()).after().force().execute(files);
+			} finally {
+				slot.release();
+			}
 		}
 	}
 }
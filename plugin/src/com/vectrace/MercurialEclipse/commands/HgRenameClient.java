@@ -17,6 +17,8 @@ import org.eclipse.core.runtime.IProgressMonitor;
 import com.aragost.javahg.commands.flags.RenameCommandFlags;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
 /**
@@ -41,7 +43,12 @@ public class HgRenameClient extends AbstractClient {
 					+ dest.lastSegment());
 		}
 
-		RenameCommandFlags.on(hgRoot.getRepository()).force().execute(source.toFile(), dest.toFile());
+		Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+		try {
+			RenameCommandFlags.on(hgRoot.getRepository()).force().execute(source.toFile(), dest.toFile());
+		} finally {
+			slot.release();
+		}
 
 		// see issue 14135: not versioned (new or derived) files may left after move
 		// => move them manually (also allows "undo" in Eclipse to work properly)
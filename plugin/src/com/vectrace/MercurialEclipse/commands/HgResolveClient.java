@@ -35,6 +35,8 @@ import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.model.ResolveStatus;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 import com.vectrace.MercurialEclipse.team.cache.MercurialStatusCache;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
@@ -89,7 +91,12 @@ public class HgResolveClient extends AbstractClient {
 	public static void markResolved(HgRoot hgRoot, IFile ifile) throws HgException {
 		File file = ResourceUtils.getFileHandle(ifile);
 		try {
-			ResolveCommandFlags.on(hgRoot.getRepository()).mark(file.getCanonicalPath());
+			Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+			try {
+				ResolveCommandFlags.on(hgRoot.getRepository()).mark(file.getCanonicalPath());
+			} finally {
+				slot.release();
+			}
 			// cleanup .orig files left after merge
 			File origFile = new File(file.getAbsolutePath() + ".orig");
 			if (origFile.isFile()) {
@@ -119,7 +126,12 @@ public class HgResolveClient extends AbstractClient {
 		File file = ResourceUtils.getFileHandle(ifile);
 
 		try {
-			ResolveCommandFlags.on(hgRoot.getRepository()).unmark(file.getCanonicalPath());
+			Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+			try {
+				ResolveCommandFlags.on(hgRoot.getRepository()).unmark(file.getCanonicalPath());
+			} finally {
+				slot.release();
+			}
 			refreshStatus(ifile);
 		} catch (IOException e) {
 			throw new HgException(e.getLocalizedMessage(), e);
@@ -210,18 +222,23 @@ public class HgResolveClient extends AbstractClient {
 	 */
 	public static boolean autoResolve(HgRoot hgRoot) {
 
-		if (isUseExternalMergeTool()) {
-			ResolveCommand command = ResolveCommandFlags.on(hgRoot.getRepository()).all();
-
-			command.cmdAppend("--config", "ui.merge=");
-			command.execute();
-		} else {
-			// Do resolve one by one because we're using an invalid merge tool so only pre-merge is done.
-			for(ResolveStatusLine line : ResolveCommandFlags.on(hgRoot.getRepository()).list()) {
-				if (line.getType() == ResolveStatusLine.Type.UNRESOLVED) {
-					ResolveCommandFlags.on(hgRoot.getRepository()).tool("simplemerge").execute(line.getFileName());
+		Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+		try {
+			if (isUseExternalMergeTool()) {
+				ResolveCommand command = ResolveCommandFlags.on(hgRoot.getRepository()).all();
+
+				command.cmdAppend("--config", "ui.merge=");
+				command.execute();
+			} else {
+				// Do resolve one by one because we're using an invalid merge tool so only pre-merge is done.
+				for(ResolveStatusLine line : ResolveCommandFlags.on(hgRoot.getRepository()).list()) {
+					if (line.getType() == ResolveStatusLine.Type.UNRESOLVED) {
+						ResolveCommandFlags.on(hgRoot.getRepository()).tool("simplemerge").execute(line.getFileName());
+					}
 				}
 			}
+		} finally {
+			slot.release();
 		}
 
 		for(ResolveStatusLine line : ResolveCommandFlags.on(hgRoot.getRepository()).list()) {
@@ -28,6 +28,8 @@ import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.model.JHgChangeSet;
 import com.vectrace.MercurialEclipse.team.MercurialUtilities;
 import com.vectrace.MercurialEclipse.team.Messages;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
 /**
@@ -68,7 +70,12 @@ public class HgRevertClient extends AbstractClient {
 					IPath path = status.getAbsoluteCopySourcePath();
 					File base = path.toFile();
 
-					command.rev(node).execute(ResourceUtils.getFileHandle(firstFile), base);
+					Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+					try {
+						command.rev(node).execute(ResourceUtils.getFileHandle(firstFile), base);
+					} finally {
+						slot.release();
+					}
 
 					fileSet.add(firstFile);
 					fileSet.add(ResourceUtils.convert(base));
@@ -78,7 +85,12 @@ public class HgRevertClient extends AbstractClient {
 			}
 		}
 
-		command.rev(node).execute(toFileArray(resources));
+		Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+		try {
+			command.rev(node).execute(toFileArray(resources));
+		} finally {
+			slot.release();
+		}
 		fileSet.addAll(resources);
 		monitor.worked(1);
 
@@ -86,7 +98,12 @@ public class HgRevertClient extends AbstractClient {
 	}
 
 	public static void performRevertAll(IProgressMonitor monitor, HgRoot hgRoot) {
-		RevertCommandFlags.on(hgRoot.getRepository()).noBackup().all().execute();
+		Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+		try {
+			RevertCommandFlags.on(hgRoot.getRepository()).noBackup().all().execute();
+		} finally {
+			slot.release();
+		}
 
 		MercurialUtilities.setOfferAutoCommitMerge(true);
 	}
@@ -14,6 +14,8 @@ package com.vectrace.MercurialEclipse.commands;
 import com.aragost.javahg.commands.ExecutionException;
 import com.aragost.javahg.commands.flags.RollbackCommandFlags;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 import com.vectrace.MercurialEclipse.team.cache.RefreshRootJob;
 import com.vectrace.MercurialEclipse.team.cache.RefreshWorkspaceStatusJob;
 
@@ -22,7 +24,12 @@ public class HgRollbackClient  extends AbstractClient {
 	public static String rollback(final HgRoot hgRoot) {
 		try {
 			try {
-				RollbackCommandFlags.on(hgRoot.getRepository()).execute();
+				Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+				try {
+					RollbackCommandFlags.on(hgRoot.getRepository()).execute();
+				} finally {
+					slot.release();
+				}
 
 				return "Rollback successful";
 			} catch (ExecutionException e) {
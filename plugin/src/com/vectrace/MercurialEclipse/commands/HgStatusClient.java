@@ -22,6 +22,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.IPath;
@@ -37,6 +38,7 @@ import com.vectrace.MercurialEclipse.model.FileStatus;
 import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.model.JHgChangeSet;
 import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
 /**
@@ -53,21 +55,58 @@ public class HgStatusClient extends AbstractClient {
 		StatusCommand command = StatusCommandFlags.on(root.getRepository()).modified().added()
 				.removed().deleted().unknown().clean();
 
-		if (res.getType() == IResource.FILE) {
-			return command.lines(ResourceUtils.getFileHandle(res));
-		}
+		Slot slot = CommandServerCache.getInstance().acquire(root, false);
+		try {
+			if (res.getType() == IResource.FILE) {
+				return command.lines(ResourceUtils.getFileHandle(res));
+			}
 
-		return command.lines();
+			return command.lines();
+		} finally {
+			slot.release();
+		}
 	}
 
 	public static List<StatusLine> getStatusWithoutIgnored(HgRoot root) {
-		return StatusCommandFlags.on(root.getRepository()).modified().added().removed()
-				.deleted().unknown().clean().lines();
+		Slot slot = CommandServerCache.getInstance().acquire(root, false);
+		try {
+			return StatusCommandFlags.on(root.getRepository()).modified().added().removed()
+					.deleted().unknown().clean().lines();
+		} finally {
+			slot.release();
+		}
+	}
+
+	/**
+	 * Gets the status of several roots (e.g. a root and its subrepositories) in parallel.
+	 *
+	 * @param res
+	 *            the resource to get the status of in each root, null for the whole roots
+	 * @return the status of each root, in the order of the roots
+	 */
+	public static List<List<StatusLine>> getStatusWithoutIgnored(List<HgRoot> roots,
+			final IResource res) throws HgException {
+		List<Callable<List<StatusLine>>> tasks = new ArrayList<Callable<List<StatusLine>>>(
+				roots.size());
+		for (final HgRoot root : roots) {
+			tasks.add(new Callable<List<StatusLine>>() {
+				public List<StatusLine> call() {
+					return res == null ? getStatusWithoutIgnored(root) : getStatusWithoutIgnored(
+							root, res);
+				}
+			});
+		}
+		return MultiRootExecutor.invokeAll(tasks);
 	}
 
 	public static List<StatusLine> getStatusWithoutIgnored(HgRoot root, List<IResource> files) {
-		return StatusCommandFlags.on(root.getRepository()).modified().added().removed()
-				.deleted().unknown().clean().lines(toFileArray(files));
+		Slot slot = CommandServerCache.getInstance().acquire(root, false);
+		try {
+			return StatusCommandFlags.on(root.getRepository()).modified().added().removed()
+					.deleted().unknown().clean().lines(toFileArray(files));
+		} finally {
+			slot.release();
+		}
 	}
 
 	public static List<StatusLine> getStatusMARDU(HgRoot root, String revision, String inPattern) {
@@ -14,36 +14,105 @@ package com.vectrace.MercurialEclipse.commands;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.Path;
 
 import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
+import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.utils.IniFile;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
 /**
+ * Finds the subrepositories of a repository.
+ * <p>
+ * The subrepositories declared in the .hgsub file of each root are cached, and parsed again only
+ * if .hgsub or .hgsubstate changed, or a subrepository was cloned or removed since. Nested
+ * subrepositories are discovered level by level, the roots of a level in parallel.
+ *
  * @author lordofthepigs
  *
  */
 public class HgSubreposClient extends AbstractClient {
 
 	private static final String HGSUB = ".hgsub";
+	private static final String HGSUBSTATE = ".hgsubstate";
 	private static final String HGDIR = ".hg";
 
+	/** root -> its direct subrepositories */
+	private static final ConcurrentMap<HgRoot, Topology> TOPOLOGY = new ConcurrentHashMap<HgRoot, Topology>();
+
+	/**
+	 * The subrepositories declared by a root and the state of the files they were computed from.
+	 * Immutable
+	 */
+	private static final class Topology {
+		final long hgsubModified;
+		final long hgsubLength;
+		final long hgsubstateModified;
+
+		/** .hg directories of the declared subrepositories */
+		final File[] hgDirs;
+
+		/** which of the {@link #hgDirs} existed */
+		final boolean[] cloned;
+
+		/** the cloned subrepositories */
+		final Set<HgRoot> subrepos;
+
+		Topology(HgRoot root, File[] hgDirs, boolean[] cloned, Set<HgRoot> subrepos) {
+			File hgsub = new File(root, HGSUB);
+			hgsubModified = hgsub.lastModified();
+			hgsubLength = hgsub.length();
+			hgsubstateModified = new File(root, HGSUBSTATE).lastModified();
+			this.hgDirs = hgDirs;
+			this.cloned = cloned;
+			this.subrepos = subrepos;
+		}
+
+		boolean isValid(HgRoot root) {
+			File hgsub = new File(root, HGSUB);
+			if (hgsub.lastModified() != hgsubModified || hgsub.length() != hgsubLength
+					|| new File(root, HGSUBSTATE).lastModified() != hgsubstateModified) {
+				return false;
+			}
+			for (int i = 0; i < hgDirs.length; i++) {
+				if (hgDirs[i].isDirectory() != cloned[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
 	/**
 	 * Returns the list of the subrepositories of the specified Hg repository that are cloned inside the working copy.
 	 */
 	public static Set<HgRoot> findSubrepositories(HgRoot hgRoot){
+		Topology topology = TOPOLOGY.get(hgRoot);
+		if (topology == null || !topology.isValid(hgRoot)) {
+			topology = readTopology(hgRoot);
+			TOPOLOGY.put(hgRoot, topology);
+		}
+		return new HashSet<HgRoot>(topology.subrepos);
+	}
+
+	private static Topology readTopology(HgRoot hgRoot) {
 		File hgsub = new File(hgRoot, HGSUB);
+		Set<HgRoot> result = new HashSet<HgRoot>();
 
 		if(!hgsub.isFile()){
-			return new HashSet<HgRoot>();
+			return new Topology(hgRoot, new File[0], new boolean[0], result);
 		}
 
 		Map<String, String> subrepos;
@@ -54,21 +123,22 @@ public class HgSubreposClient extends AbstractClient {
 			// this shouldn't happen because we checked for existence of the file before, but who knows,
 			// bad timing happens...
 			MercurialEclipsePlugin.logError(e);
-			return new HashSet<HgRoot>();
+			return new Topology(hgRoot, new File[0], new boolean[0], result);
 		}
 
 		if(subrepos == null || subrepos.isEmpty()){
-			return new HashSet<HgRoot>();
+			return new Topology(hgRoot, new File[0], new boolean[0], result);
 		}
-		Set<HgRoot> result = new HashSet<HgRoot>();
+		File[] hgDirs = new File[subrepos.size()];
+		boolean[] cloned = new boolean[hgDirs.length];
+		int i = 0;
 		for(String subReposRootPath : subrepos.keySet()){
 			File subReposRootDir = new File(hgRoot, subReposRootPath);
-			if(!subReposRootDir.isDirectory()){
-				// for some reason the subrepos was not cloned or disappeared, just ignore it
-				continue;
-			}
 			File subRepoHg = new File(subReposRootDir, HGDIR);
-			if(subRepoHg.isDirectory()){
+			hgDirs[i] = subRepoHg;
+			// if the subrepos was not cloned or disappeared, just ignore it
+			cloned[i] = subRepoHg.isDirectory();
+			if(cloned[i]){
 				// we are reasonably sure that an HgRoot really exists in subReposRootDir
 				try{
 					result.add(HgRoot.get(subReposRootDir));
@@ -76,9 +146,10 @@ public class HgSubreposClient extends AbstractClient {
 					MercurialEclipsePlugin.logError(ioe);
 				}
 			}
+			i++;
 		}
 
-		return result;
+		return new Topology(hgRoot, hgDirs, cloned, result);
 	}
 
 	public static Set<HgRoot> findSubrepositoriesRecursively(HgRoot root){
@@ -102,16 +173,40 @@ public class HgSubreposClient extends AbstractClient {
 	 * recursively finds all the subrepositories under the specified HgRoot and stores all the
 	 * discovered subrepos in the specified set. An IPath can optionally be specified, in which
 	 * case, all the returned subrepos will be children of that IPath.
+	 * <p>
+	 * The subrepos of one level are searched in parallel.
 	 *
 	 * @param containerPath
 	 *            non null. Use {@link Path#EMPTY} if the containerPath should be not used
 	 */
 	private static void doFindSubrepositoriesRecursively(HgRoot root, Set<HgRoot> found, IPath containerPath){
-		Set<HgRoot> subs = findSubrepositories(root);
-		for(HgRoot sub : subs){
-			if(containerPath.isEmpty() || containerPath.isPrefixOf(sub.getIPath())) {
-				found.add(sub);
-				doFindSubrepositoriesRecursively(sub, found, containerPath);
+		List<HgRoot> level = new ArrayList<HgRoot>();
+		level.add(root);
+		while (!level.isEmpty()) {
+			List<Callable<Set<HgRoot>>> tasks = new ArrayList<Callable<Set<HgRoot>>>(level.size());
+			for (final HgRoot repo : level) {
+				tasks.add(new Callable<Set<HgRoot>>() {
+					public Set<HgRoot> call() {
+						return findSubrepositories(repo);
+					}
+				});
+			}
+			List<Set<HgRoot>> results;
+			try {
+				results = MultiRootExecutor.invokeAll(tasks);
+			} catch (HgException e) {
+				// the tasks don't throw checked exceptions
+				MercurialEclipsePlugin.logError(e);
+				return;
+			}
+			level = new ArrayList<HgRoot>();
+			for (Set<HgRoot> subs : results) {
+				for(HgRoot sub : subs){
+					if((containerPath.isEmpty() || containerPath.isPrefixOf(sub.getIPath()))
+							&& found.add(sub)) {
+						level.add(sub);
+					}
+				}
 			}
 		}
 	}
@@ -27,6 +27,8 @@ import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.model.Tag;
 import com.vectrace.MercurialEclipse.storage.HgCommitMessageManager;
 import com.vectrace.MercurialEclipse.team.MercurialUtilities;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 public class HgTagClient extends AbstractClient {
 
@@ -104,10 +106,15 @@ public class HgTagClient extends AbstractClient {
 			command.user(user);
 		}
 
+		Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
 		try {
-			command.execute(name);
-		} catch (ExecutionException ee) {
-			throw new HgException(command.getErrorString(), ee);
+			try {
+				command.execute(name);
+			} catch (ExecutionException ee) {
+				throw new HgException(command.getErrorString(), ee);
+			}
+		} finally {
+			slot.release();
 		}
 
 		HgCommitMessageManager.updateDefaultCommitName(hgRoot, user);
@@ -124,10 +131,15 @@ public class HgTagClient extends AbstractClient {
 
 		command = command.remove();
 
+		Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
 		try {
-			command.execute(tag.getName());
-		} catch (ExecutionException ee) {
-			throw new HgException(command.getErrorString(), ee);
+			try {
+				command.execute(tag.getName());
+			} catch (ExecutionException ee) {
+				throw new HgException(command.getErrorString(), ee);
+			}
+		} finally {
+			slot.release();
 		}
 
 		HgCommitMessageManager.updateDefaultCommitName(hgRoot, user);
@@ -107,7 +107,8 @@ public class HgUpdateClient extends AbstractClient {
 					throw e;
 				}
 			}
-		}.execute(HgClients.getTimeOut(MercurialPreferenceConstants.UPDATE_TIMEOUT)).getValue();
+		}.setExclusive(true).execute(HgClients.getTimeOut(MercurialPreferenceConstants.UPDATE_TIMEOUT))
+				.getValue();
 	}
 
 	private static String makeDescription(String revision, boolean clean) {
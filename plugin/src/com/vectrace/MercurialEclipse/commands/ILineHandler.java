@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.commands;
+
+import java.io.IOException;
+
+/**
+ * Receives the output of a command line by line while the command runs, see
+ * {@link AbstractShellCommand#executeToLines(ILineHandler, boolean)}
+ */
+public interface ILineHandler {
+
+	/**
+	 * Called from the thread reading the output. The command can't write more output until the
+	 * call returns.
+	 *
+	 * @param line
+	 *            The line without the line terminator. Reused for the next line, so it is only
+	 *            valid during the call
+	 * @throws IOException
+	 *             To stop reading the output, the command fails then
+	 */
+	void handleLine(CharSequence line) throws IOException;
+}
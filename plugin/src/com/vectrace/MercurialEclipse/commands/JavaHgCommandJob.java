@@ -16,11 +16,17 @@ import org.eclipse.core.runtime.Status;
 
 import com.aragost.javahg.internals.AbstractCommand;
 import com.vectrace.MercurialEclipse.exception.HgException;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Loan;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 public abstract class JavaHgCommandJob<T> extends CommandJob {
 
 	private final AbstractCommand command;
 	private T value;
+	private boolean exclusive;
+	/** slots of the thread which runs the job and waits for it */
+	private final Loan loan;
 
 	public JavaHgCommandJob(com.aragost.javahg.internals.AbstractCommand command, String sUIName) {
 		this(command, sUIName, false);
@@ -31,6 +37,7 @@ public abstract class JavaHgCommandJob<T> extends CommandJob {
 		super(sUIName, isInitialCommand);
 
 		this.command = command;
+		this.loan = CommandServerCache.getInstance().lend();
 	}
 
 	// operations
@@ -40,7 +47,18 @@ public abstract class JavaHgCommandJob<T> extends CommandJob {
 	 */
 	@Override
 	protected final IStatus doRun(IProgressMonitor monitor) throws Exception {
-		value = run();
+		Slot borrowed = loan.borrow();
+		try {
+			Slot slot = CommandServerCache.getInstance().acquire(command.getRepository(),
+					exclusive, monitor);
+			try {
+				value = run();
+			} finally {
+				slot.release();
+			}
+		} finally {
+			borrowed.release();
+		}
 		return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
 	}
 
@@ -88,6 +106,16 @@ public abstract class JavaHgCommandJob<T> extends CommandJob {
 		return this;
 	}
 
+	/**
+	 * @param exclusive
+	 *            true if the command changes the repository or working directory. It will wait
+	 *            until no other command runs on the root and block new ones until it's done.
+	 */
+	public JavaHgCommandJob<T> setExclusive(boolean exclusive) {
+		this.exclusive = exclusive;
+		return this;
+	}
+
 	/**
 	 * @return The value returned by {@link #run()}
 	 */
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.commands;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes the bytes written to it directly from the written arrays and passes them line by line
+ * to a {@link ILineHandler}. The decoder, the character buffer and the line are reused, so the
+ * memory used doesn't depend on the amount of output but only on the longest line.
+ * <p>
+ * Both "\n" and "\r\n" terminate a line. Malformed input is replaced. Once the handler threw an
+ * exception the stream is closed.
+ * <p>
+ * The last {@link #TAIL_LINES} lines are kept for the console and error messages, see
+ * {@link #getTail()}.
+ */
+class LineOutputStream extends OutputStream {
+
+	private static final int CHAR_BUFFER_SIZE = 8192;
+
+	static final int TAIL_LINES = 100;
+
+	private final ILineHandler handler;
+
+	private final CharsetDecoder decoder;
+
+	private final CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+
+	/** bytes of a character split between two writes */
+	private final ByteBuffer pending = ByteBuffer.allocate(16);
+
+	private final StringBuilder line = new StringBuilder(256);
+
+	private boolean closed;
+
+	/** ring buffer with the last lines */
+	private final String[] tail = new String[TAIL_LINES];
+
+	private int lineCount;
+
+	public LineOutputStream(Charset charset, ILineHandler handler) {
+		this.handler = handler;
+		this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		ByteBuffer in = ByteBuffer.wrap(b, off, len);
+
+		// complete a character started by the last write
+		while (pending.position() > 0 && in.hasRemaining()) {
+			pending.put(in.get());
+			pending.flip();
+			decode(pending, false);
+			pending.compact();
+		}
+		decode(in, false);
+		if (in.hasRemaining()) {
+			pending.put(in);
+		}
+	}
+
+	/**
+	 * Decodes the rest of the input and passes the last line, if it isn't terminated
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		pending.flip();
+		decode(pending, true);
+		decoder.flush(chars);
+		handleChars();
+		if (line.length() > 0) {
+			handleLine();
+		}
+	}
+
+	/**
+	 * @return The last lines of the output, separated by new lines
+	 */
+	public String getTail() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = Math.max(0, lineCount - TAIL_LINES); i < lineCount; i++) {
+			if (sb.length() > 0) {
+				sb.append('\n');
+			}
+			sb.append(tail[i % TAIL_LINES]);
+		}
+		return sb.toString();
+	}
+
+	private void decode(ByteBuffer in, boolean endOfInput) throws IOException {
+		while (decoder.decode(in, chars, endOfInput).isOverflow()) {
+			handleChars();
+		}
+		handleChars();
+	}
+
+	private void handleChars() throws IOException {
+		chars.flip();
+		char[] array = chars.array();
+		int start = chars.position();
+		int end = chars.limit();
+		for (int i = start; i < end; i++) {
+			if (array[i] == '\n') {
+				line.append(array, start, i - start);
+				handleLine();
+				start = i + 1;
+			}
+		}
+		line.append(array, start, end - start);
+		chars.clear();
+	}
+
+	private void handleLine() throws IOException {
+		int length = line.length();
+		if (length > 0 && line.charAt(length - 1) == '\r') {
+			line.setLength(length - 1);
+		}
+		tail[lineCount++ % TAIL_LINES] = line.toString();
+		try {
+			handler.handleLine(line);
+		} catch (IOException e) {
+			// the handler gave up: ignore the rest, also on close
+			closed = true;
+			throw e;
+		}
+		line.setLength(0);
+	}
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vectrace.MercurialEclipse.exception.HgException;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Loan;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
+
+/**
+ * Runs read only work on several hg roots (e.g. a repository and its subrepositories) in
+ * parallel, on a small pool of daemon threads shared by all callers.
+ * <p>
+ * The calling thread waits for all tasks. A single task, or tasks submitted from a pool thread,
+ * run in the calling thread, so nested calls can't exhaust the pool. The pool threads borrow the
+ * command server slots of the calling thread, see {@link CommandServerCache#lend()}.
+ */
+final class MultiRootExecutor {
+
+	private static final int MAX_THREADS = 4;
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+	private static ExecutorService pool;
+
+	/**
+	 * Marks the threads of the pool
+	 */
+	private static final class Worker extends Thread {
+		Worker(Runnable runnable) {
+			super(runnable, "Mercurial root worker " + THREAD_COUNT.incrementAndGet()); //$NON-NLS-1$
+			setDaemon(true);
+		}
+	}
+
+	private MultiRootExecutor() {
+		// static only
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(MAX_THREADS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					return new Worker(r);
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * Runs the tasks and waits until all are done
+	 *
+	 * @return the results, in the order of the tasks
+	 * @throws HgException
+	 *             the failure of the first failed task in the list, after all tasks are done
+	 */
+	static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws HgException {
+		List<T> results = new ArrayList<T>(tasks.size());
+		if (tasks.size() < 2 || Thread.currentThread() instanceof Worker) {
+			for (Callable<T> task : tasks) {
+				results.add(call(task));
+			}
+			return results;
+		}
+
+		final Loan loan = CommandServerCache.getInstance().lend();
+		List<Callable<T>> borrowing = new ArrayList<Callable<T>>(tasks.size());
+		for (final Callable<T> task : tasks) {
+			borrowing.add(new Callable<T>() {
+				public T call() throws Exception {
+					Slot borrowed = loan.borrow();
+					try {
+						return task.call();
+					} finally {
+						borrowed.release();
+					}
+				}
+			});
+		}
+
+		List<Future<T>> futures;
+		try {
+			futures = getPool().invokeAll(borrowing);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HgException("Interrupted", e); //$NON-NLS-1$
+		}
+		HgException failure = null;
+		for (Future<T> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (InterruptedException e) {
+				// not possible, all tasks are done
+				Thread.currentThread().interrupt();
+				throw new HgException("Interrupted", e); //$NON-NLS-1$
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				if (failure == null) {
+					failure = toHgException(cause);
+				}
+				results.add(null);
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return results;
+	}
+
+	private static <T> T call(Callable<T> task) throws HgException {
+		try {
+			return task.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw toHgException(e);
+		}
+	}
+
+	private static HgException toHgException(Throwable t) {
+		return t instanceof HgException ? (HgException) t : new HgException(t.getMessage(), t);
+	}
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.commands;
+
+import java.io.InputStream;
+import java.util.List;
+
+import com.aragost.javahg.Repository;
+import com.aragost.javahg.internals.AbstractCommand;
+
+/**
+ * Runs an arbitrary hg command line on a command server and gives access to the unparsed output.
+ * Used by {@link AbstractShellCommand} instead of starting a hg process.
+ */
+class RawCommand extends AbstractCommand {
+
+	private final String commandName;
+
+	public RawCommand(Repository repository, String commandName) {
+		super(repository);
+		this.commandName = commandName;
+	}
+
+	/**
+	 * @see com.aragost.javahg.internals.AbstractCommand#getCommandName()
+	 */
+	@Override
+	public String getCommandName() {
+		return commandName;
+	}
+
+	/**
+	 * @param args
+	 *            The arguments following the command name
+	 * @return The output channel of the command. The exit code is available after the stream is
+	 *         consumed
+	 */
+	public InputStream execute(List<String> args) {
+		return launchStream(args.toArray(new String[args.size()]));
+	}
+
+	/**
+	 * Exit codes are checked by the caller, like for hg processes
+	 *
+	 * @see com.aragost.javahg.internals.AbstractCommand#isSuccessful()
+	 */
+	@Override
+	protected boolean isSuccessful() {
+		return true;
+	}
+}
@@ -24,6 +24,8 @@ import com.vectrace.MercurialEclipse.extensionpoint.definition.handlers.ActionLi
 import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants;
 import com.vectrace.MercurialEclipse.team.MercurialUtilities;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 import com.vectrace.MercurialEclipse.team.cache.RefreshRootJob;
 import com.vectrace.MercurialEclipse.team.cache.RefreshWorkspaceStatusJob;
 
@@ -131,7 +133,8 @@ public class HgRebaseClient extends AbstractClient {
 
 				return result;
 			}
-		}.execute(HgClients.getTimeOut(MercurialPreferenceConstants.PULL_TIMEOUT)).getValue();
+		}.setExclusive(true).execute(HgClients.getTimeOut(MercurialPreferenceConstants.PULL_TIMEOUT))
+				.getValue();
 	}
 
 	/**
@@ -144,7 +147,12 @@ public class HgRebaseClient extends AbstractClient {
 	 */
 	public static void abortRebase(HgRoot hgRoot) throws HgException {
 		try {
-			RebaseCommandFlags.on(hgRoot.getRepository()).abort();
+			Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+			try {
+				RebaseCommandFlags.on(hgRoot.getRepository()).abort();
+			} finally {
+				slot.release();
+			}
 		} finally {
 			new RefreshWorkspaceStatusJob(hgRoot, RefreshRootJob.ALL).schedule();
 		}
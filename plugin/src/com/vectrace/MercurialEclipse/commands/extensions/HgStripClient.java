@@ -16,6 +16,8 @@ import com.aragost.javahg.ext.mq.flags.StripCommandFlags;
 import com.vectrace.MercurialEclipse.extensionpoint.definition.handlers.ActionListenerContributionDispatcher;
 import com.vectrace.MercurialEclipse.model.ChangeSet;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 import com.vectrace.MercurialEclipse.team.cache.LocalChangesetCache;
 import com.vectrace.MercurialEclipse.team.cache.RefreshRootJob;
 import com.vectrace.MercurialEclipse.team.cache.RefreshWorkspaceStatusJob;
@@ -60,7 +62,12 @@ public final class HgStripClient {
 		String result;
 
 		try {
-			result = command.execute();
+			Slot slot = CommandServerCache.getInstance().acquire(hgRoot, true);
+			try {
+				result = command.execute();
+			} finally {
+				slot.release();
+			}
 
 			ActionListenerContributionDispatcher.onStrip(changeset);
 		} finally {
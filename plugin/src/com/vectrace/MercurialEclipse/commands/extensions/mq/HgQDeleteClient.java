@@ -24,6 +24,8 @@ import com.vectrace.MercurialEclipse.commands.AbstractClient;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.ChangeSet;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 /**
  * @author bastian
@@ -61,10 +63,13 @@ public class HgQDeleteClient extends AbstractClient {
 			patches = Collections.EMPTY_LIST;
 		}
 
+		Slot slot = CommandServerCache.getInstance().acquire(root, true);
 		try {
 			command.execute(patches.toArray(new String[patches.size()]));
 		} catch (ExecutionException ex) {
 			throw new HgException(ex.getLocalizedMessage(), ex);
+		} finally {
+			slot.release();
 		}
 	}
 }
@@ -20,6 +20,8 @@ import com.aragost.javahg.ext.mq.flags.QFinishCommandFlags;
 import com.vectrace.MercurialEclipse.commands.AbstractClient;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 /**
  * @author bastian
@@ -38,10 +40,13 @@ public class HgQFinishClient extends AbstractClient {
 			patches[i++] = p.getName();
 		}
 
+		Slot slot = CommandServerCache.getInstance().acquire(root, true);
 		try {
 			QFinishCommandFlags.on(root.getRepository()).execute(patches);
 		} catch (ExecutionException ex) {
 			throw new HgException(ex.getLocalizedMessage(), ex);
+		} finally {
+			slot.release();
 		}
 	}
 
@@ -49,10 +54,13 @@ public class HgQFinishClient extends AbstractClient {
 	 * Calls qfinish -a
 	 */
 	public static void finishAllApplied(HgRoot root) throws HgException {
+		Slot slot = CommandServerCache.getInstance().acquire(root, true);
 		try {
 			QFinishCommandFlags.on(root.getRepository()).applied().execute();
 		} catch (ExecutionException ex) {
 			throw new HgException(ex.getLocalizedMessage(), ex);
+		} finally {
+			slot.release();
 		}
 	}
 }
@@ -22,6 +22,8 @@ import com.aragost.javahg.ext.mq.flags.QFoldCommandFlags;
 import com.vectrace.MercurialEclipse.commands.AbstractClient;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 /**
  * @author bastian
@@ -65,10 +67,13 @@ public class HgQFoldClient extends AbstractClient {
 			command.message(message);
 		}
 
+		Slot slot = CommandServerCache.getInstance().acquire(root, true);
 		try {
 			command.execute(patches.toArray(new String[patches.size()]));
 		} catch (ExecutionException ex) {
 			throw new HgException(ex.getLocalizedMessage(), ex);
+		} finally {
+			slot.release();
 		}
 	}
 
@@ -21,6 +21,8 @@ import com.vectrace.MercurialEclipse.commands.AbstractClient;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.ChangeSet;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 /**
  * @author bastian
@@ -55,6 +57,7 @@ public class HgQImportClient extends AbstractClient {
 			command.name(name);
 		}
 
+		Slot slot = CommandServerCache.getInstance().acquire(root, true);
 		try {
 			if (changesets != null && changesets.length > 0) {
 				command.rev(changesets[changesets.length - 1].getNode() + ":"
@@ -69,6 +72,8 @@ public class HgQImportClient extends AbstractClient {
 			}
 		} catch (ExecutionException ee) {
 			throw new HgException(ee.getLocalizedMessage(), ee);
+		} finally {
+			slot.release();
 		}
 	}
 }
@@ -21,6 +21,8 @@ import com.aragost.javahg.ext.mq.flags.QNewCommandFlags;
 import com.vectrace.MercurialEclipse.commands.AbstractClient;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 /**
  * @author bastian
@@ -66,10 +68,13 @@ public class HgQNewClient extends AbstractClient {
 			resources = Collections.EMPTY_LIST;
 		}
 
+		Slot slot = CommandServerCache.getInstance().acquire(root, true);
 		try {
 			command.execute(patchName, toFileArray(resources));
 		} catch (ExecutionException ex) {
 			throw new HgException(ex.getLocalizedMessage(), ex);
+		} finally {
+			slot.release();
 		}
 	}
 }
@@ -17,6 +17,8 @@ import com.vectrace.MercurialEclipse.commands.AbstractClient;
 import com.vectrace.MercurialEclipse.commands.HgPatchClient;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 /**
  * @author bastian
@@ -32,10 +34,13 @@ public class HgQPushClient extends AbstractClient {
 			command.force();
 		}
 
+		Slot slot = CommandServerCache.getInstance().acquire(root, true);
 		try {
 			command.execute();
 		} catch (ExecutionException ee) {
 			throw new HgException(ee.getLocalizedMessage(), ee);
+		} finally {
+			slot.release();
 		}
 	}
 
@@ -46,6 +51,7 @@ public class HgQPushClient extends AbstractClient {
 			command.force();
 		}
 
+		Slot slot = CommandServerCache.getInstance().acquire(root, true);
 		try {
 			if (!"".equals(patchName)) { //$NON-NLS-1$
 				command.execute(patchName);
@@ -54,6 +60,8 @@ public class HgQPushClient extends AbstractClient {
 			}
 		} catch (ExecutionException ee) {
 			throw new HgException(ee.getLocalizedMessage(), ee);
+		} finally {
+			slot.release();
 		}
 	}
 
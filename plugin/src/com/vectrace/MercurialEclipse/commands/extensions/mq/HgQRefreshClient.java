@@ -20,6 +20,8 @@ import com.aragost.javahg.ext.mq.flags.QRefreshCommandFlags;
 import com.vectrace.MercurialEclipse.commands.AbstractClient;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache.Slot;
 
 /**
  * @author bastian
@@ -72,10 +74,13 @@ public class HgQRefreshClient extends AbstractClient {
 	}
 
 	private static void execute(QRefreshCommand command, List<IResource> files) throws HgException {
+		Slot slot = CommandServerCache.getInstance().acquire(command.getRepository(), true);
 		try {
 			command.execute(toFileArray(files));
 		} catch (ExecutionException ex) {
 			throw new HgException(ex.getLocalizedMessage(), ex);
+		} finally {
+			slot.release();
 		}
 	}
 }
@@ -14,6 +14,8 @@ package com.vectrace.MercurialEclipse.history;
 
 import static com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants.*;
 
+import java.io.IOException;
+
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
@@ -59,6 +61,7 @@ import org.eclipse.ui.texteditor.ITextEditorActionConstants;
 
 import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
 import com.vectrace.MercurialEclipse.commands.HgPatchClient;
+import com.vectrace.MercurialEclipse.commands.ILineHandler;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.FileStatus;
 import com.vectrace.MercurialEclipse.model.HgRoot;
@@ -593,14 +596,26 @@ public class ChangedPathsPage {
 		}
 
 		@Override
-		protected IStatus run(IProgressMonitor monitor) {
+		protected IStatus run(final IProgressMonitor monitor) {
+			final StringBuilder diff = new StringBuilder();
 			try {
-				String diff = HgPatchClient.getDiff(hgRoot, entry, secondEntry);
+				HgPatchClient.getDiff(hgRoot, entry, secondEntry, new ILineHandler() {
+					public void handleLine(CharSequence line) throws IOException {
+						if (monitor.isCanceled()) {
+							// stop reading a large diff nobody waits for
+							throw new IOException("Canceled"); //$NON-NLS-1$
+						}
+						diff.append(line).append('\n');
+					}
+				});
 				if (!monitor.isCanceled() && diffTextViewer.getControl() != null
 						&& !diffTextViewer.getControl().isDisposed()) {
-					getHistoryPage().scheduleInPage(new UpdateDiffViewerJob(diff));
+					getHistoryPage().scheduleInPage(new UpdateDiffViewerJob(diff.toString()));
 				}
 			} catch (HgException e) {
+				if (monitor.isCanceled()) {
+					return Status.CANCEL_STATUS;
+				}
 				MercurialEclipsePlugin.logError(e);
 				return e.getStatus();
 			}
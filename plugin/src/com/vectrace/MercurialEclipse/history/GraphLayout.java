@@ -16,7 +16,6 @@ import java.util.List;
 
 import com.aragost.javahg.Changeset;
 import com.aragost.javahg.Phase;
-import com.google.common.base.Function;
 import com.vectrace.MercurialEclipse.HgFeatures;
 import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
 
@@ -53,10 +52,15 @@ public class GraphLayout {
 		}
 	};
 
+	private static final RowAccessor EMPTY_ROW = new RowAccessor(new long[0]);
+
+	private static final int INITIAL_ROWS = 256;
+
 	/**
-	 * cellBits[rowIndex][column]
+	 * The cells of all rows, row after row. Row i has the columns
+	 * <code>rowOffsets[i] .. rowOffsets[i + 1] - 1</code>.
 	 *
-	 * cellBits is in the following format
+	 * Usually each column is one long in the following format
 	 *
 	 * <pre>
 	 * DPPPIIIIIIIIIIIIIIIIIIIIIIIIIICCCCCCCCCCSSSSSSSSSSSSssssssssssss
@@ -68,9 +72,38 @@ public class GraphLayout {
 	 * s is the second successor index in the row below (parent 2) - 12 bits
 	 * </pre>
 	 *
-	 * See the {@link RowAccessor}.
+	 * If a revision or a column index doesn't fit, the layout switches to the wide format where
+	 * each column takes two longs: <code>cells[2 * column]</code> has the dot and the phase at
+	 * the same positions, the color in bits 32 to 47 and the revision number in the lower 32 bits;
+	 * <code>cells[2 * column + 1]</code> has the successor indexes of parent 1 and 2 in the lower
+	 * and upper 32 bits, -1 if there is no such parent.
+	 *
+	 * See the {@link RowAccessor}. Both arrays grow geometrically as rows are appended, so adding
+	 * a page of history doesn't copy or revisit the rows laid out before.
+	 * <p>
+	 * The array and its format are replaced together, so that the rows read by the UI thread
+	 * while a page is laid out never combine the array of one format with the other format.
 	 */
-	protected long[][] graph;
+	private volatile Cells cells = new Cells(new long[INITIAL_ROWS * 2], false);
+
+	private int[] rowOffsets = new int[INITIAL_ROWS + 1];
+
+	private int numRows;
+
+	/**
+	 * The changeset of the last row, the parents of it are resolved by the next added row
+	 */
+	private Changeset lastChangeset;
+
+	// scratch space of LayoutRowOperation, reused for all rows
+
+	private boolean[] lastHandled = new boolean[16];
+
+	private boolean[] currentHandled = new boolean[16];
+
+	private boolean[] currentsChildren = new boolean[16];
+
+	private int[] reorderDeltas = new int[16];
 
 	/**
 	 * The current color index
@@ -90,27 +123,131 @@ public class GraphLayout {
 
 	// operations
 
-	protected void add(Changeset[] changesets, Changeset lastCs) {
+	/**
+	 * Append rows for the given changesets, continuing the rows added before.
+	 *
+	 * @param changesets
+	 *            The changesets in log order, after the last added changeset
+	 */
+	public void add(Changeset[] changesets) {
+		add(changesets, lastChangeset);
+	}
+
+	/**
+	 * Append a row for the given changeset, continuing the rows added before.
+	 *
+	 * @param cs
+	 *            The changeset after the last added changeset in log order
+	 */
+	public void add(Changeset cs) {
+		boolean phasesEnabled = HgFeatures.PHASES.isEnabled();
 
-		int oldGraphLen = (graph == null) ? 0 : graph.length;
-		long[][] newGraph = new long[oldGraphLen + changesets.length][];
-		RowAccessor last = new RowAccessor((graph == null) ? new long[0]
-				: graph[graph.length - 1]);
+		new LayoutRowOperation(getLastRow(), cs, getParents(parentProvider, lastChangeset),
+				phasesEnabled).run();
+		lastChangeset = cs;
+	}
 
-		if (graph != null) {
-			System.arraycopy(graph, 0, newGraph, 0, graph.length);
-		}
+	protected void add(Changeset[] changesets, Changeset lastCs) {
+		boolean phasesEnabled = HgFeatures.PHASES.isEnabled();
+
+		lastChangeset = lastCs;
 
 		for (int batchIndex = 0; batchIndex < changesets.length; batchIndex++) {
 			Changeset curCs = changesets[batchIndex];
-			LayoutRowOperation s = new LayoutRowOperation(last, curCs, getParents(parentProvider, lastCs));
 
-			last = s.run();
-			newGraph[oldGraphLen + batchIndex] = last.row;
-			lastCs = curCs;
+			new LayoutRowOperation(getLastRow(), curCs, getParents(parentProvider, lastChangeset),
+					phasesEnabled).run();
+			lastChangeset = curCs;
 		}
+	}
+
+	private RowAccessor getLastRow() {
+		return numRows == 0 ? EMPTY_ROW : new GraphRow(numRows - 1);
+	}
 
-		graph = newGraph;
+	/**
+	 * Append a new row with the given number of columns. Some fields are initialized
+	 */
+	private GraphRow appendRow(int numCols, boolean phasesEnabled) {
+		int start = rowOffsets[numRows];
+		int end = start + numCols;
+		Cells current = cells;
+		int cellsPerColumn = current.wide ? 2 : 1;
+
+		if (end * cellsPerColumn > current.array.length) {
+			long[] newCells = new long[Math.max(end * cellsPerColumn,
+					current.array.length + (current.array.length >> 1))];
+			System.arraycopy(current.array, 0, newCells, 0, start * cellsPerColumn);
+			cells = new Cells(newCells, current.wide);
+		}
+
+		if (numRows + 2 > rowOffsets.length) {
+			int[] newOffsets = new int[rowOffsets.length + (rowOffsets.length >> 1)];
+			System.arraycopy(rowOffsets, 0, newOffsets, 0, numRows + 1);
+			rowOffsets = newOffsets;
+		}
+
+		rowOffsets[numRows + 1] = end;
+		numRows++;
+
+		GraphRow row = new GraphRow(numRows - 1);
+
+		for (int i = 0; i < numCols; i++) {
+			row.init(i, phasesEnabled ? RowAccessor.NO_PHASE : RowAccessor.PHASE_PUBLIC);
+		}
+
+		return row;
+	}
+
+	/**
+	 * Convert all cells to the wide format. Rows keep their column offsets.
+	 */
+	private void switchToWide() {
+		int end = rowOffsets[numRows];
+		long[] array = cells.array;
+		RowAccessor from = new RowAccessor(array, 0, end, false);
+		RowAccessor to = new RowAccessor(new long[Math.max(2 * end, 2 * array.length)], 0, end,
+				true);
+
+		for (int col = 0; col < end; col++) {
+			to.init(col, from.getPhaseInt(col));
+			to.setDot(col, from.isDot(col));
+			to.setColor(col, from.getColor(col));
+
+			int rev = from.getRevision(col);
+			to.setRevision(col, rev == RowAccessor.NULL_REV_INDEX ? RowAccessor.WIDE_NULL_REV_INDEX
+					: rev);
+
+			for (int p = 0, n = from.numParents(col); p < n; p++) {
+				to.setParentIndex(col, p, from.getParentIndex(col, p));
+			}
+		}
+
+		cells = to.getCells();
+	}
+
+	/**
+	 * @return True if the cells are in the wide format
+	 */
+	public boolean isWide() {
+		return cells.wide;
+	}
+
+	/**
+	 * @return The revision to store for the given changeset in the current format
+	 */
+	private int getRevision(Changeset cs) {
+		if (cs == NULL_CHANGESET) {
+			return cells.wide ? RowAccessor.WIDE_NULL_REV_INDEX : RowAccessor.NULL_REV_INDEX;
+		}
+		return cs.getRevision();
+	}
+
+	/**
+	 * @return True if the revision of the given changeset doesn't fit the compact format
+	 */
+	private static boolean isTooLarge(Changeset cs) {
+		return cs != NULL_CHANGESET && cs.getRevision() >= RowAccessor.NULL_REV_INDEX;
 	}
 
 	protected ParentProvider getParentProvider() {
@@ -124,10 +261,14 @@ public class GraphLayout {
 
 		Changeset[] ar = parentProvider.getParents(cs);
 
-		if (ar == null) {
+		if (ar == null || ar.length == 0) {
 			return NULL_CHANGESETS;
 		}
 
+		if (ar.length == 1 || (ar.length == 2 && !ar[0].equals(ar[1]))) {
+			return ar;
+		}
+
 		// Retain order but de-duplicate
 		List<Changeset> s = new ArrayList<Changeset>(Arrays.asList(ar));
 
@@ -158,7 +299,7 @@ public class GraphLayout {
 	}
 
 	public int numRows() {
-		return graph.length;
+		return numRows;
 	}
 
 	/**
@@ -183,7 +324,7 @@ public class GraphLayout {
 	}
 
 	/**
-	 * Sets last's successors and creates current with no successors set
+	 * Sets last's successors and appends current with no successors set
 	 */
 	private class LayoutRowOperation {
 
@@ -192,14 +333,14 @@ public class GraphLayout {
 		private final Changeset currentCs;
 
 		/**
-		 * Whether successor has been set in last per column
+		 * Number of columns of last
 		 */
-		private final boolean[] lastHandled;
+		private final int numLast;
 
 		/**
-		 * Whether node, color has been set in current per column
+		 * Number of columns of current
 		 */
-		private final boolean[] currentHandled;
+		private final int numCur;
 
 		/**
 		 * Index in last of it's change set
@@ -213,28 +354,42 @@ public class GraphLayout {
 
 		private final Changeset[] lastsParents;
 
-		/**
-		 * True if the corresponding column in last is a child of the current revision
-		 */
-		private final boolean[] currentsChildren;
+		// Per column scratch arrays, see ensureScratch():
+		// lastHandled - whether successor has been set in last per column
+		// currentHandled - whether node, color has been set in current per column
+		// currentsChildren - true if the corresponding column in last is a child of the current
+		// revision
 
 		public LayoutRowOperation(RowAccessor last, Changeset currentCs,
-				Changeset[] lastsParents) {
+				Changeset[] lastsParents, boolean phasesEnabled) {
 			this.last = last;
-			this.lastHandled = new boolean[last.numColumns()];
+			this.numLast = last.numColumns();
 			this.currentCs = currentCs;
 			this.lastsParents = lastsParents;
 			this.lastsIndex = last.getDot();
 
+			// current has at most numLast + lastsParents.length columns
+			if (!isWide() && (numLast + lastsParents.length >= RowAccessor.NO_PARENT
+					|| isTooLarge(currentCs))) {
+				switchToWide();
+			}
+			for (int i = 0; !isWide() && i < lastsParents.length; i++) {
+				if (isTooLarge(lastsParents[i])) {
+					switchToWide();
+				}
+			}
+
+			ensureScratch(numLast + lastsParents.length + 1);
+
 			// Find the children of the current change set in last
 			// Future: let column reordering chose currentsIndex
-			currentsChildren = new boolean[last.numColumns()];
+			int currentRev = getRevision(currentCs);
 			currentsIndex = -1;
 			int numForks = 0;
 
 			// Find the locations of the children of the current revision in last
-			for (int i = 0; i < last.numColumns(); i++) {
-				if (last.getRevision(i) == currentCs.getRevision()) {
+			for (int i = 0; i < numLast; i++) {
+				if (last.getRevision(i) == currentRev) {
 
 					if (currentsIndex == -1) {
 						currentsIndex = i;
@@ -246,9 +401,9 @@ public class GraphLayout {
 			}
 
 			for (int i = lastsParents.length - 1; i >= 0; i--) {
-				int curParentRev = lastsParents[i].getRevision();
+				int curParentRev = getRevision(lastsParents[i]);
 
-				if (curParentRev == currentCs.getRevision()) {
+				if (curParentRev == currentRev) {
 					if (currentsIndex == -1 || lastsIndex < currentsIndex) {
 						currentsIndex = lastsIndex + i;
 					}
@@ -256,7 +411,7 @@ public class GraphLayout {
 					currentsChildren[lastsIndex] = true;
 					numForks++;
 				} else {
-					for (int j = 0; j < last.numColumns(); j++) {
+					for (int j = 0; j < numLast; j++) {
 						if (last.getRevision(j) == curParentRev) {
 							numForks++;
 						}
@@ -267,8 +422,8 @@ public class GraphLayout {
 			// Calculate the number of columns
 			int numCols = lastsParents.length;
 
-			if (last.numColumns() > 0) {
-				numCols += last.numColumns() - 1;
+			if (numLast > 0) {
+				numCols += numLast - 1;
 			}
 
 			numCols += 1 - numForks;
@@ -278,8 +433,26 @@ public class GraphLayout {
 				currentsIndex = numCols - 1;
 			}
 
-			current = new RowAccessor(numCols);
-			currentHandled = new boolean[current.numColumns()];
+			numCur = numCols;
+			current = appendRow(numCols, phasesEnabled);
+		}
+
+		/**
+		 * Grow and clear the scratch arrays shared by all rows of the layout
+		 */
+		private void ensureScratch(int len) {
+			if (lastHandled.length < len) {
+				int newLen = Math.max(len, lastHandled.length * 2);
+
+				lastHandled = new boolean[newLen];
+				currentHandled = new boolean[newLen];
+				currentsChildren = new boolean[newLen];
+				reorderDeltas = new int[newLen];
+			} else {
+				Arrays.fill(lastHandled, 0, len, false);
+				Arrays.fill(currentHandled, 0, len, false);
+				Arrays.fill(currentsChildren, 0, len, false);
+			}
 		}
 
 		public RowAccessor run() {
@@ -287,14 +460,14 @@ public class GraphLayout {
 			// Handle the current rev and apply forks from it - current corresponds to zero or more
 			// cells in last
 			{
-				for (int li = 0; li < currentsChildren.length; li++) {
+				for (int li = 0; li < numLast; li++) {
 					if (currentsChildren[li]) {
 						last.setParentIndex(li, 0, currentsIndex);
 						lastHandled[li] = true;
 					}
 				}
 
-				current.setRevision(currentsIndex, currentCs.getRevision());
+				current.setRevision(currentsIndex, getRevision(currentCs));
 				current.setDot(currentsIndex, true);
 				currentHandled[currentsIndex] = true;
 			}
@@ -302,19 +475,20 @@ public class GraphLayout {
 			// Do simple 1-1 copies
 			// Each unhandled cell in current corresponds to one or two cells in last
 			// All those that correspond to two in last are handled again in the next section
-			outer:
-			for (int li = 0; li < lastHandled.length; li++) {
-				for (int ci = 0; ci < currentHandled.length; ci++) {
-					if (!lastHandled[li] && !currentHandled[ci] && li != lastsIndex) {
-
-						last.setParentIndex(li, 0, ci);
-						current.setRevision(ci, last.getRevision(li));
-						lastHandled[li] = true;
-						currentHandled[ci] = true;
-
+			// The first unhandled cell in current only moves right, so one pass is enough
+			for (int li = 0, ci = 0; li < numLast; li++) {
+				if (!lastHandled[li] && li != lastsIndex) {
+					while (ci < numCur && currentHandled[ci]) {
 						ci++;
-						continue outer;
 					}
+					if (ci == numCur) {
+						break;
+					}
+
+					last.setParentIndex(li, 0, ci);
+					current.setRevision(ci, last.getRevision(li));
+					lastHandled[li] = true;
+					currentHandled[ci] = true;
 				}
 			}
 
@@ -322,11 +496,11 @@ public class GraphLayout {
 			// May or may not be handled depending on whether currentCs is a parent
 			// of lastCs.
 			for (int p = 0; p < lastsParents.length; p++) {
-				int parentRev = lastsParents[p].getRevision();
+				int parentRev = getRevision(lastsParents[p]);
 				int parentIndexInCur = -1;
 
 				// Look for existing cells that this parent is already assigned to
-				for (int ci = 0; ci < currentHandled.length; ci++) {
+				for (int ci = 0; ci < numCur; ci++) {
 					if (currentHandled[ci]) {
 						if (current.getRevision(ci) == parentRev) {
 							parentIndexInCur = ci;
@@ -337,7 +511,7 @@ public class GraphLayout {
 
 				// Insert new cells for this parent
 				if (parentIndexInCur < 0) {
-					for (int ci = 0; ci < currentHandled.length; ci++) {
+					for (int ci = 0; ci < numCur; ci++) {
 						if (!currentHandled[ci]) {
 							current.setRevision(ci, parentRev);
 							currentHandled[ci] = true;
@@ -351,8 +525,8 @@ public class GraphLayout {
 				lastHandled[lastsIndex] = true;
 			}
 
-			assert nextFalse(currentHandled) < 0;
-			assert nextFalse(lastHandled) < 0;
+			assert nextFalse(currentHandled, numCur) < 0;
+			assert nextFalse(lastHandled, numLast) < 0;
 
 			reorder();
 			setColors();
@@ -363,9 +537,9 @@ public class GraphLayout {
 
 		private void setColors() {
 			// Copy colors
-			for (int li = 0; li < lastHandled.length; li++) {
-				int ci = last.getParentIndex(li, 0);
-				if (ci != RowAccessor.NO_PARENT) {
+			for (int li = 0; li < numLast; li++) {
+				if (last.numParents(li) > 0) {
+					int ci = last.getParentIndex(li, 0);
 					if (current.getColor(ci) == RowAccessor.NO_COLOR) {
 						current.setColor(ci, last.getColor(li));
 					}
@@ -373,7 +547,7 @@ public class GraphLayout {
 			}
 
 			// New heads and 2nd merge parents
-			for (int ci = 0, n = currentHandled.length; ci < n; ci++) {
+			for (int ci = 0, n = numCur; ci < n; ci++) {
 				if (current.getColor(ci) == RowAccessor.NO_COLOR) {
 					int color = nextColor();
 
@@ -397,7 +571,7 @@ public class GraphLayout {
 		 * same or lesser phase. Also if necessary fetch the phase of the current changeset.
 		 */
 		private void setPhases() {
-			for (int li = 0; li < lastHandled.length; li++) {
+			for (int li = 0; li < numLast; li++) {
 				for (int lpi = 0, n = last.numParents(li); lpi < n; lpi++) {
 					int ci = last.getParentIndex(li, lpi);
 
@@ -426,51 +600,50 @@ public class GraphLayout {
 		 * TODO: per batch reordering needs to be done. This is not sufficient.
 		 */
 		private void reorder() {
-			ReorderCandidate[] reorder = getReorderCandidates();
+			int[] reorder = reorderDeltas;
 			int lastScore = Integer.MAX_VALUE;
-			int score = score(reorder);
+			int score = fillReorderCandidates(reorder);
 
 			while (score < lastScore && score != 0) {
-				final ReorderCandidate best = best(reorder);
-				final int newCi = best.ci - best.delta;
-
-				current.shiftRight(best.ci, newCi);
+				int ci = best(reorder);
+				int newCi = ci - reorder[ci];
 
-				mapIndexes(new Function<Integer, Integer>(){
-					public Integer apply(Integer index) {
-						if (index == best.ci) {
-							index = newCi;
-						} else if (newCi <= index && index < best.ci) {
-							index = index + 1;
-						}
-						return index;
-					}
-				});
+				current.shiftRight(ci, newCi);
+				mapIndexes(ci, newCi);
 
 				lastScore = score;
-				reorder = getReorderCandidates();
-				score = score(reorder);
+				score = fillReorderCandidates(reorder);
 			}
 		}
 
-		private void mapIndexes(Function<Integer, Integer> fun) {
-			for (int li = 0; li < lastHandled.length; li++) {
+		/**
+		 * Update the indexes into current after the cell at fromCi moved to toCi and the cells in
+		 * between shifted right.
+		 */
+		private void mapIndexes(int fromCi, int toCi) {
+			for (int li = 0; li < numLast; li++) {
 				for (int p = 0; p < last.numParents(li); p++) {
 					int ci = last.getParentIndex(li, p);
 
-					last.setParentIndex(li, p, fun.apply(ci));
+					last.setParentIndex(li, p, mapIndex(ci, fromCi, toCi));
 				}
 			}
-			currentsIndex = fun.apply(currentsIndex);
+			currentsIndex = mapIndex(currentsIndex, fromCi, toCi);
 		}
 
-		private ReorderCandidate[] getReorderCandidates() {
-			ReorderCandidate[] reorder = new ReorderCandidate[currentHandled.length];
+		/**
+		 * Fill in the minimal distance each cell of current should move left, or -1 for cells
+		 * that are no reorder candidates.
+		 *
+		 * @return The score, the sum of the distances
+		 */
+		private int fillReorderCandidates(int[] reorder) {
+			Arrays.fill(reorder, 0, numCur, -1);
 
-			for (int li = 0; li < lastHandled.length; li++) {
+			for (int li = 0; li < numLast; li++) {
 				for (int p = 0; p < last.numParents(li); p++) {
 					int index = last.getParentIndex(li, p);
-					int target = Math.min(li, currentHandled.length - 1);
+					int target = Math.min(li, numCur - 1);
 
 					if (p > 0) {
 						int otherParentIndex = last.getParentIndex(li, p - 1);
@@ -484,63 +657,84 @@ public class GraphLayout {
 						target = index;
 					}
 
-					reorder[index] = new ReorderCandidate(index, index - target).min(reorder[index]);
+					int delta = index - target;
+
+					if (reorder[index] < 0 || delta <= reorder[index]) {
+						reorder[index] = delta;
+					}
 				}
 			}
 
-			return reorder;
-		}
-
-		private int score(ReorderCandidate[] ar) {
 			int sum = 0;
 
-			for (int i = 0; i < ar.length; i++) {
-				if (ar[i] != null) {
-					sum += ar[i].delta;
+			for (int i = 0; i < numCur; i++) {
+				if (reorder[i] > 0) {
+					sum += reorder[i];
 				}
 			}
 
 			return sum;
 		}
 
-		private ReorderCandidate best(ReorderCandidate[] ar) {
+		/**
+		 * @return The index of the cell with the largest distance
+		 */
+		private int best(int[] reorder) {
 			int max = 0;
 			int maxIndex = -1;
 
-			for (int i = 0; i < ar.length; i++) {
-				if (ar[i] != null && ar[i].delta > max) {
-					max = ar[i].delta;
+			for (int i = 0; i < numCur; i++) {
+				if (reorder[i] > max) {
+					max = reorder[i];
 					maxIndex = i;
 				}
 			}
 
-			return ar[maxIndex];
+			return maxIndex;
 		}
+	}
 
-		private int nextFalse(boolean[] ar) {
-			for (int i = 0; i < ar.length; i++) {
-				if (!ar[i]) {
-					return i;
-				}
+	private static int mapIndex(int index, int fromIndex, int toIndex) {
+		if (index == fromIndex) {
+			return toIndex;
+		} else if (toIndex <= index && index < fromIndex) {
+			return index + 1;
+		}
+		return index;
+	}
+
+	private static int nextFalse(boolean[] ar, int len) {
+		for (int i = 0; i < len; i++) {
+			if (!ar[i]) {
+				return i;
 			}
-			return -1;
 		}
+		return -1;
 	}
 
 	public class GraphRow extends RowAccessor {
 		private final int index;
 
 		public GraphRow(int index) {
-			super(graph[index]);
+			super(null, rowOffsets[index], rowOffsets[index + 1] - rowOffsets[index]);
 			this.index = index;
 		}
 
+		/**
+		 * @see com.vectrace.MercurialEclipse.history.GraphLayout.RowAccessor#getCells()
+		 */
+		@Override
+		protected Cells getCells() {
+			// the buffer is replaced when it grows and when the whole layout switches to wide
+			return GraphLayout.this.cells;
+		}
+
 		public GraphRow getPrevious() {
 			return (index > 0) ? new GraphRow(index - 1) : null;
 		}
 
 		public int getParentColor(int col, int parentNum) {
-			RowAccessor la = new RowAccessor(graph[index + 1]);
+			RowAccessor la = new GraphRow(index + 1);
 
 			return la.getColor(getParentIndex(col, parentNum));
 		}
@@ -559,6 +753,24 @@ public class GraphLayout {
 		}
 	}
 
+	/**
+	 * The array holding the cells of the rows together with its format
+	 */
+	protected static final class Cells {
+
+		protected final long[] array;
+
+		/**
+		 * True if the cells are in the wide format with two longs per column
+		 */
+		protected final boolean wide;
+
+		protected Cells(long[] array, boolean wide) {
+			this.array = array;
+			this.wide = wide;
+		}
+	}
+
 	/**
 	 * Bit twiddling functions for a row
 	 */
@@ -568,37 +780,92 @@ public class GraphLayout {
 		protected static final int NO_PARENT = 0xfff;
 		protected static final int NO_COLOR = 0x3FF;
 
+		/**
+		 * The revision of the null changeset in the wide format
+		 */
+		protected static final int WIDE_NULL_REV_INDEX = Integer.MAX_VALUE;
+
+		/**
+		 * No parent in the wide format
+		 */
+		protected static final int WIDE_NO_PARENT = -1;
+
 		protected static final int NO_PHASE = 0x7;
 		protected static final int PHASE_PUBLIC = 0;
 		protected static final int PHASE_DRAFT = 1;
 		protected static final int PHASE_SECRET = 2;
 
-		private final long[] row;
+		private final Cells cells;
+
+		/**
+		 * Index of the first column in {@link #getCells()}
+		 */
+		private final int offset;
+
+		private final int length;
 
 		public RowAccessor(long[] row) {
-			this.row = row;
+			this(row, 0, row.length, false);
 		}
 
 		/**
-		 * Constructor for new row - some fields are initialized
+		 * @param wide
+		 *            True if the cells are in the wide format with two longs per column
 		 */
-		public RowAccessor(int len) {
-			boolean phasesEnabled = HgFeatures.PHASES.isEnabled();
-
-			this.row = new long[len];
+		protected RowAccessor(long[] row, int offset, int length, boolean wide) {
+			this(new Cells(row, wide), offset, length);
+		}
 
-			for (int i = 0; i < len; i++) {
-				setPhase(i, phasesEnabled ? NO_PHASE : PHASE_PUBLIC);
-				setColor(i, NO_COLOR);
-				setParentIndex(i, 0, NO_PARENT);
-				setParentIndex(i, 1, NO_PARENT);
-			}
+		protected RowAccessor(Cells cells, int offset, int length) {
+			this.cells = cells;
+			this.offset = offset;
+			this.length = length;
 		}
 
 		// operations
 
+		/**
+		 * Each operation reads this once, so the array and the format it uses always belong
+		 * together.
+		 *
+		 * @return The cells of this row starting at offset
+		 */
+		protected Cells getCells() {
+			return cells;
+		}
+
+		/**
+		 * @return Index of the long holding the dot, phase, color and revision of the column
+		 */
+		private int index(Cells c, int col) {
+			return c.wide ? 2 * (offset + col) : offset + col;
+		}
+
+		/**
+		 * Initialize the cell of a new row
+		 */
+		protected void init(int col, int phase) {
+			Cells c = getCells();
+			long[] cells = c.array;
+
+			if (c.wide) {
+				int i = 2 * (offset + col);
+
+				cells[i] = ((phase & 0x7l) << 60) | ((NO_COLOR & 0xFFFFl) << 32);
+				cells[i + 1] = -1l;
+			} else {
+				cells[offset + col] = ((phase & 0x7l) << 60) | ((NO_COLOR & 0x3FFl) << 24)
+						| (mask12(NO_PARENT) << 12) | mask12(NO_PARENT);
+			}
+		}
+
 		protected int getRevision(int col) {
-			return (int) ((row[col] << 4) >>> (34 + 4));
+			Cells c = getCells();
+
+			if (c.wide) {
+				return (int) c.array[2 * (offset + col)];
+			}
+			return (int) ((c.array[offset + col] << 4) >>> (34 + 4));
 		}
 
 		protected void setRevision(int col, int index) {
@@ -606,37 +873,60 @@ public class GraphLayout {
 				throw new IllegalStateException();
 			}
 
-			long val = row[col];
+			Cells c = getCells();
+			long[] cells = c.array;
+
+			if (c.wide) {
+				int i = 2 * (offset + col);
+
+				cells[i] = (cells[i] & 0xFFFFFFFF00000000l) | index;
+				return;
+			}
+
+			if (index > NULL_REV_INDEX) {
+				throw new IllegalStateException("Revision too large for compact cell: " + index);
+			}
+
+			long val = cells[offset + col];
 
 			val &= 0xF0000003FFFFFFFFl;
 			val |= (index & 0x3FFFFFFl) << 34;
 
-			row[col] = val;
+			cells[offset + col] = val;
 		}
 
 		protected boolean isDot(int col) {
-			return (row[col] & 0x8000000000000000l) != 0;
+			Cells c = getCells();
+
+			return (c.array[index(c, col)] & 0x8000000000000000l) != 0;
 		}
 
 		protected void setDot(int col, boolean set) {
+			Cells c = getCells();
+
 			if (set) {
-				row[col] |= 0x8000000000000000l;
+				c.array[index(c, col)] |= 0x8000000000000000l;
 			} else {
-				row[col] &= 0x7fffffffffffffffl;
+				c.array[index(c, col)] &= 0x7fffffffffffffffl;
 			}
 		}
 
 		protected int getPhaseInt(int col) {
-			return (int)((row[col] & 0x7000000000000000l) >>> 60);
+			Cells c = getCells();
+
+			return (int)((c.array[index(c, col)] & 0x7000000000000000l) >>> 60);
 		}
 
 		protected void setPhase(int col, int phase) {
-			long val = row[col];
+			Cells c = getCells();
+			long[] cells = c.array;
+			int i = index(c, col);
+			long val = cells[i];
 
 			val &= 0x8FFFFFFFFFFFFFFFl;
 			val |= (phase & 0x7l) << 60;
 
-			row[col] = val;
+			cells[i] = val;
 		}
 
 		protected void setPhase(int col, Phase phase) {
@@ -668,37 +958,80 @@ public class GraphLayout {
 		 *            Index in the row below of the successor of this (parent)
 		 */
 		protected void setParentIndex(int col, int parentNum, int parentIndex) {
-			switch (parentNum) {
-			case 0:
-				row[col] &= 0xFFFFFFFFFFFFF000l;
-				row[col] |= mask12(parentIndex);
-				break;
-			case 1:
-				row[col] &= 0xFFFFFFFFFF000FFFl;
-				row[col] |= mask12(parentIndex) << 12;
-				break;
-			default:
-				throw new IllegalStateException("Unexpected parent ordinal: " + parentNum + " col=" + col +" parentIndex=" + parentIndex);
+			Cells c = getCells();
+			long[] cells = c.array;
+
+			if (c.wide) {
+				int i = 2 * (offset + col) + 1;
+
+				switch (parentNum) {
+				case 0:
+					cells[i] = (cells[i] & 0xFFFFFFFF00000000l) | (parentIndex & 0xFFFFFFFFl);
+					return;
+				case 1:
+					cells[i] = (cells[i] & 0x00000000FFFFFFFFl) | ((long) parentIndex << 32);
+					return;
+				}
+			} else {
+				switch (parentNum) {
+				case 0:
+					cells[offset + col] &= 0xFFFFFFFFFFFFF000l;
+					cells[offset + col] |= mask12(parentIndex);
+					return;
+				case 1:
+					cells[offset + col] &= 0xFFFFFFFFFF000FFFl;
+					cells[offset + col] |= mask12(parentIndex) << 12;
+					return;
+				}
 			}
+			throw new IllegalStateException("Unexpected parent ordinal: " + parentNum + " col=" + col +" parentIndex=" + parentIndex);
 		}
 
 		protected int getParentIndex(int col, int parentNum) {
-			switch (parentNum) {
-			case 0:
-				return (int) (row[col] & 0x0000000000000FFFl);
-			case 1:
-				return (int) ((row[col] & 0x0000000000FFF000l) >>> 12);
+			Cells c = getCells();
+
+			if (c.wide) {
+				long val = c.array[2 * (offset + col) + 1];
+
+				switch (parentNum) {
+				case 0:
+					return (int) val;
+				case 1:
+					return (int) (val >>> 32);
+				}
+			} else {
+				switch (parentNum) {
+				case 0:
+					return (int) (c.array[offset + col] & 0x0000000000000FFFl);
+				case 1:
+					return (int) ((c.array[offset + col] & 0x0000000000FFF000l) >>> 12);
+				}
 			}
 			throw new IllegalStateException();
 		}
 
 		protected void setColor(int col, int color) {
-			row[col] &= 0xFFFFFFFC00FFFFFFl;
-			row[col] |= (color & 0x3FFl) << 24;
+			Cells c = getCells();
+			long[] cells = c.array;
+
+			if (c.wide) {
+				int i = 2 * (offset + col);
+
+				cells[i] &= 0xFFFF0000FFFFFFFFl;
+				cells[i] |= (color & 0xFFFFl) << 32;
+			} else {
+				cells[offset + col] &= 0xFFFFFFFC00FFFFFFl;
+				cells[offset + col] |= (color & 0x3FFl) << 24;
+			}
 		}
 
 		protected int getColor(int col) {
-			return (int) ((row[col] & 0x00000003FF000000l) >>> 24);
+			Cells c = getCells();
+
+			if (c.wide) {
+				return (int) ((c.array[2 * (offset + col)] & 0x0000FFFF00000000l) >>> 32);
+			}
+			return (int) ((c.array[offset + col] & 0x00000003FF000000l) >>> 24);
 		}
 
 		private static long mask12(long val) {
@@ -706,27 +1039,42 @@ public class GraphLayout {
 		}
 
 		public int numColumns() {
-			return row.length;
+			return length;
 		}
 
 		public int numParents(int col) {
-			if (getParentIndex(col, 0) == NO_PARENT) {
-				return 0;
+			Cells c = getCells();
+			long val;
+
+			if (c.wide) {
+				val = c.array[2 * (offset + col) + 1];
+				if ((int) val == WIDE_NO_PARENT) {
+					return 0;
+				}
+				return (int) (val >>> 32) == WIDE_NO_PARENT ? 1 : 2;
 			}
-			if (getParentIndex(col, 1) == NO_PARENT) {
-				return 1;
+			val = c.array[offset + col];
+			if ((val & 0xFFFl) == NO_PARENT) {
+				return 0;
 			}
-			return 2;
+			return ((val >>> 12) & 0xFFFl) == NO_PARENT ? 1 : 2;
 		}
 
 		protected void shiftLeft(int col) {
-			long cur = row[col];
-
-			for (col = col + 1; col < row.length; col++) {
-				row [col - 1] = row[col];
+			Cells c = getCells();
+			long[] cells = c.array;
+			int width = c.wide ? 2 : 1;
+			int start = index(c, col);
+			long cur = cells[start];
+			long cur2 = width == 2 ? cells[start + 1] : 0;
+			int end = index(c, length - 1);
+
+			System.arraycopy(cells, start + width, cells, start, end - start);
+
+			cells[end] = cur;
+			if (width == 2) {
+				cells[end + 1] = cur2;
 			}
-
-			row[row.length - 1] = cur;
 		}
 
 		/**
@@ -735,13 +1083,22 @@ public class GraphLayout {
 		protected void shiftRight(int fromCol, int toCol) {
 			assert toCol <= fromCol;
 
-			long from = row[fromCol];
+			Cells c = getCells();
+			long[] cells = c.array;
+			int from = index(c, fromCol);
+			int to = index(c, toCol);
+			long fromVal = cells[from];
+
+			if (c.wide) {
+				long fromVal2 = cells[from + 1];
 
-			for (int i = fromCol - 1; i >= toCol; i--) {
-				row[i + 1] = row[i];
+				System.arraycopy(cells, to, cells, to + 2, from - to);
+				cells[to + 1] = fromVal2;
+			} else {
+				System.arraycopy(cells, to, cells, to + 1, from - to);
 			}
 
-			row[toCol] = from;
+			cells[to] = fromVal;
 		}
 
 		/**
@@ -766,7 +1123,7 @@ public class GraphLayout {
 
 			buf.append('[');
 
-			for (int i = 0; i < row.length; i++) {
+			for (int i = 0; i < length; i++) {
 				if (i != 0) {
 					buf.append(", ");
 				}
@@ -781,10 +1138,12 @@ public class GraphLayout {
 					buf.append(')');
 				}
 
-				if (getParentIndex(i, 0) != NO_PARENT) {
+				int numParents = numParents(i);
+
+				if (numParents > 0) {
 					buf.append('>');
 					buf.append(getParentIndex(i, 0));
-					if (getParentIndex(i, 1) != NO_PARENT) {
+					if (numParents > 1) {
 						buf.append('&');
 						buf.append(getParentIndex(i, 1));
 					}
@@ -796,31 +1155,4 @@ public class GraphLayout {
 			return buf.toString();
 		}
 	}
-
-	private static class ReorderCandidate {
-
-		public final int delta;
-		public final int ci;
-
-		public ReorderCandidate(int ci, int delta) {
-			this.ci = ci;
-			this.delta = delta;
-		}
-
-		public ReorderCandidate min(ReorderCandidate other) {
-			if (other != null && other.delta < this.delta) {
-				return other;
-			}
-
-			return this;
-		}
-
-		/**
-		 * @see java.lang.Object#toString()
-		 */
-		@Override
-		public String toString() {
-			return ci + "-" + delta;
-		}
-	}
 }
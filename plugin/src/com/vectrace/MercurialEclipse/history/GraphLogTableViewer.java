@@ -92,6 +92,10 @@ public class GraphLogTableViewer extends TableViewer {
 
 		MercurialRevision rev = (MercurialRevision) tableItem.getData();
 		MercurialHistory data = mhp.getMercurialHistory();
+		if (rev == null || data == null) {
+			// virtual table row which is not materialized yet
+			return;
+		}
 
 		paintRow(event, rev.getGraphRow());
 
@@ -99,7 +103,8 @@ public class GraphLogTableViewer extends TableViewer {
 		int from = rev.getRevision() - 1;
 		int lastReqVersion = data.getLastRequestedVersion();
 		if (from != lastReqVersion && from >= 0 && data.getLastVersion() > 0) {
-			if (tableItem.equals(table.getItems()[table.getItemCount() - 1])) {
+			// don't use getItems() here, it creates all items of the virtual table
+			if (table.indexOf(tableItem) == table.getItemCount() - 1) {
 				MercurialHistoryPage.LoadMercurialHistoryJob refreshJob = mhp.new LoadMercurialHistoryJob(
 						from);
 				refreshJob.addJobChangeListener(new JobChangeAdapter() {
@@ -76,12 +76,25 @@ public class MercurialHistory extends FileHistory {
 		}
 	};
 
+	/** max number of materialized pages of the virtual mode, see {@link #setVirtual(boolean)} */
+	private static final int VIRTUAL_MAX_PAGES = 4;
+
 	private final IResource resource;
 	private final HgRoot hgRoot;
-	private final List<MercurialRevision> revisions = new ArrayList<MercurialRevision>();
+	/** null until the first load */
+	private RevisionWindow<MercurialRevision> rows;
+	/** the location of the resource the rows belong to */
+	private IPath rowsLocation;
+	/** the rows if a page of them didn't match the history any more, not loaded again */
+	private volatile RevisionWindow<MercurialRevision> staleRows;
+	/** row -> tags assigned to the row of a file history */
+	private Map<Integer, List<Tag>> rowTags = Collections.emptyMap();
+	/** revision -> path of the file, if it differs from the path of the resource (renames) */
+	private final Map<Integer, IPath> renamedPaths = new HashMap<Integer, IPath>();
 	private Tag[] tags;
 	private int lastReqRevision;
 	private boolean showTags;
+	private boolean virtual;
 	private boolean bisectStarted;
 	private GraphLayout layout;
 
@@ -148,22 +161,60 @@ public class MercurialHistory extends FileHistory {
 	}
 
 	public int getLastVersion() {
-		if(revisions.isEmpty()) {
+		int count = getRowCount();
+		if(count == 0) {
 			return 0;
 		}
-		return revisions.get(revisions.size() - 1).getRevision();
+		return rows.getRevision(count - 1);
+	}
+
+	/**
+	 * @return the number of loaded revisions, including the ones not materialized in the virtual
+	 *         mode
+	 */
+	public int getRowCount() {
+		RevisionWindow<MercurialRevision> current = rows;
+		return current == null ? 0 : current.getRowCount();
+	}
+
+	/**
+	 * @param row
+	 *            index of a loaded revision, smaller than {@link #getRowCount()}
+	 * @return the revision, or null if it is not materialized (virtual mode only), see
+	 *         {@link #loadRows(IProgressMonitor, int)}
+	 */
+	public MercurialRevision getRow(int row) {
+		return rows.get(row);
+	}
+
+	/**
+	 * @return the index of the revision in the loaded revisions, or -1 if it isn't loaded
+	 */
+	public int getRowOf(int revision) {
+		RevisionWindow<MercurialRevision> current = rows;
+		return current == null ? -1 : current.findRow(revision);
+	}
+
+	/**
+	 * @return the number of a loaded changeset revision
+	 */
+	public int getRevisionAt(int row) {
+		return rows.getRevision(row);
 	}
 
 	public IFileRevision[] getContributors(IFileRevision revision) {
 		return null;
 	}
 
+	/**
+	 * In the virtual mode, only the materialized revisions are searched
+	 */
 	public IFileRevision getFileRevision(String id) {
-		if (revisions.isEmpty()) {
+		if (getRowCount() == 0) {
 			return null;
 		}
 
-		for (MercurialRevision rev : revisions) {
+		for (MercurialRevision rev : rows.getMaterialized()) {
 			if (rev.getContentIdentifier().equals(id)) {
 				return rev;
 			}
@@ -171,16 +222,23 @@ public class MercurialHistory extends FileHistory {
 		return null;
 	}
 
+	/**
+	 * @return the loaded revisions, in the virtual mode only the materialized ones
+	 */
 	public IFileRevision[] getFileRevisions() {
-		if (!revisions.isEmpty()) {
+		if (getRowCount() > 0) {
+			List<MercurialRevision> revisions = rows.getMaterialized();
 			return revisions.toArray(new MercurialRevision[revisions.size()]);
 		}
 		return new IFileRevision[0];
 	}
 
+	/**
+	 * @return the loaded revisions, in the virtual mode only the materialized ones
+	 */
 	public List<MercurialRevision> getRevisions() {
-		if (!revisions.isEmpty()) {
-			return new ArrayList<MercurialRevision>(revisions);
+		if (getRowCount() > 0) {
+			return rows.getMaterialized();
 		}
 		return Collections.emptyList();
 	}
@@ -233,24 +291,20 @@ public class MercurialHistory extends FileHistory {
 			return;
 		}
 
-		if (revisions.size() < changeSets.size()
+		if (rows == null || rows.getRowCount() < changeSets.size()
 				// ^ ????
-				|| !(location.equals(ResourceUtils.getPath(revisions.get(0).getResource())))) {
+				|| !location.equals(rowsLocation)) {
 			clear();
+			rows = new RevisionWindow<MercurialRevision>(logBatchSize,
+					virtual ? VIRTUAL_MAX_PAGES : Integer.MAX_VALUE);
+			rowsLocation = location;
 		}
 
 		List<MercurialRevision> batch = createMercurialRevisions(changeSets);
 
-		loadGraphData(batch, revisions.isEmpty() ? null : revisions.get(revisions.size() - 1));
+		loadGraphData(batch);
 
-		if(!revisions.isEmpty()){
-			// in case of a particular data fetch before, we may still have some
-			// temporary tags assigned to the last visible revision => cleanup it now
-			MercurialRevision lastOne = revisions.get(revisions.size() - 1);
-			lastOne.cleanupExtraTags();
-		}
-
-		int i = revisions.size();
+		int i = rows.getRowCount();
 
 		for (MercurialRevision rev : batch) {
 
@@ -258,7 +312,8 @@ public class MercurialHistory extends FileHistory {
 				rev.setGraphRow(layout.getRow(i));
 			}
 
-			revisions.add(rev);
+			ChangeSet cs = rev.getChangeSet();
+			rows.add(rev, cs.getIndex(), cs.getBranch());
 			i += 1;
 		}
 
@@ -274,6 +329,96 @@ public class MercurialHistory extends FileHistory {
 		}
 	}
 
+	/**
+	 * Materializes an evicted page of loaded revisions again (virtual mode only): fetches the
+	 * changesets of the page from its first revision on and restores the graph rows, renames and
+	 * tags computed when the page was loaded first.
+	 *
+	 * @param row
+	 *            any row of the page
+	 * @return false if the page can't be restored because the history has changed, in this case
+	 *         the history should be reloaded. The evicted pages of these rows aren't fetched again
+	 *         until then.
+	 * @throws CoreException
+	 */
+	public boolean loadRows(IProgressMonitor monitor, int row) throws CoreException {
+		RevisionWindow<MercurialRevision> current = rows;
+		if (current == null || row < 0 || row >= current.getRowCount()) {
+			return true;
+		}
+		if (current == staleRows) {
+			return false;
+		}
+		int page = current.getPage(row);
+		if (current.isMaterialized(page)) {
+			return true;
+		}
+		int start = current.getPageStart(page);
+		int length = current.getPageLength(page);
+		int from = current.getRevision(start);
+
+		SortedSet<JHgChangeSet> changeSets = new TreeSet<JHgChangeSet>(CS_COMPARATOR);
+		if(!isRootHistory()) {
+			changeSets.addAll(HgLogClient.getResourceLog(hgRoot, resource, length, from));
+		} else {
+			changeSets.addAll(HgLogClient.getRootLog(hgRoot, length, from));
+		}
+		if (monitor != null && monitor.isCanceled()) {
+			return true;
+		}
+
+		List<MercurialRevision> batch = createMercurialRevisions(changeSets);
+		if (batch.size() != length) {
+			staleRows = current;
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			MercurialRevision rev = batch.get(i);
+			if (rev.getRevision() != current.getRevision(start + i)) {
+				staleRows = current;
+				return false;
+			}
+			if (layout != null) {
+				rev.setGraphRow(layout.getRow(start + i));
+			}
+			IPath path = renamedPaths.get(Integer.valueOf(rev.getRevision()));
+			if (path != null) {
+				rev.setIPath(path);
+			}
+			List<Tag> assigned = rowTags.get(Integer.valueOf(start + i));
+			if (assigned != null) {
+				for (Tag tag : assigned) {
+					rev.addTag(tag);
+				}
+			}
+		}
+		if (current == rows) {
+			current.setPage(page, batch);
+		}
+		return true;
+	}
+
+	/**
+	 * @param row
+	 *            the requested row
+	 * @param distance
+	 *            number of rows before and after the row which should be materialized
+	 * @return any row of each page which should be loaded with
+	 *         {@link #loadRows(IProgressMonitor, int)}, nearest first. Empty if the rows don't
+	 *         match the history any more.
+	 */
+	public List<Integer> getRowsToLoad(int row, int distance) {
+		RevisionWindow<MercurialRevision> current = rows;
+		if (current == null || current == staleRows || row < 0 || row >= current.getRowCount()) {
+			return Collections.emptyList();
+		}
+		List<Integer> result = new ArrayList<Integer>();
+		for (Integer page : current.getMissingPages(row, distance)) {
+			result.add(Integer.valueOf(current.getPageStart(page.intValue())));
+		}
+		return result;
+	}
+
 	private List<MercurialRevision> createMercurialRevisions(SortedSet<JHgChangeSet> changeSets) throws CoreException {
 		IResource revisionResource = isRootHistory() ? hgRoot.getResource() : resource;
 		Map<String, Signature> sigMap = getSignatures();
@@ -289,7 +434,7 @@ public class MercurialHistory extends FileHistory {
 		return batch;
 	}
 
-	private void loadGraphData(List<MercurialRevision> newRevs, MercurialRevision lastRev) {
+	private void loadGraphData(List<MercurialRevision> newRevs) {
 		if (isRootHistory() || resource.getType() == IResource.FILE) {
 			ParentProvider parentProvider;
 
@@ -319,7 +464,8 @@ public class MercurialHistory extends FileHistory {
 				((FileParentProvider) parentProvider).prime(newRevs);
 			}
 
-			layout.add(changesets, lastRev == null ? null : lastRev.getChangeSet().getData());
+			// rows are appended to the rows of the previous batches
+			layout.add(changesets);
 		}
 	}
 
@@ -327,7 +473,11 @@ public class MercurialHistory extends FileHistory {
 	 * Clear data
 	 */
 	private void clear() {
-		revisions.clear();
+		rows = null;
+		rowsLocation = null;
+		staleRows = null;
+		rowTags = Collections.emptyMap();
+		renamedPaths.clear();
 		layout = null;
 		// TODO: tags?
 	}
@@ -363,56 +513,72 @@ public class MercurialHistory extends FileHistory {
 		tags = sorted.toArray(new Tag[sorted.size()]);
 	}
 
+	/**
+	 * Assigns the tags to the loaded rows. The assignment is computed on the row index only and
+	 * remembered per row, so pages materialized again later get the same tags.
+	 */
 	private void assignTagsToRevisions() {
 		if(tags == null || tags.length == 0){
 			return;
 		}
+		Map<Integer, List<Tag>> assigned = new HashMap<Integer, List<Tag>>();
 		int start = 0;
 		// sorted ascending by revision
 		for (Tag tag : tags) {
 			int matchingRevision = getFirstMatchingRevision(tag, start);
 			if(matchingRevision >= 0){
 				start = matchingRevision;
-				revisions.get(matchingRevision).addTag(tag);
+				Integer key = Integer.valueOf(matchingRevision);
+				List<Tag> list = assigned.get(key);
+				if (list == null) {
+					list = new ArrayList<Tag>(2);
+					assigned.put(key, list);
+				}
+				list.add(tag);
+			}
+		}
+
+		// in case of a particular data fetch before, we may still have some
+		// temporary tags assigned to the previously last revision => cleanup it now
+		for (Integer row : rowTags.keySet()) {
+			MercurialRevision rev = rows.peek(row.intValue());
+			if (rev != null && !assigned.containsKey(row)) {
+				rev.cleanupExtraTags();
 			}
 		}
+		for (Map.Entry<Integer, List<Tag>> entry : assigned.entrySet()) {
+			MercurialRevision rev = rows.peek(entry.getKey().intValue());
+			if (rev != null) {
+				rev.cleanupExtraTags();
+				for (Tag tag : entry.getValue()) {
+					rev.addTag(tag);
+				}
+			}
+		}
+		rowTags = assigned;
 	}
 
 	/**
 	 * TODO: rewrite so this is correct with non-linear graphs
+	 * <p>
+	 * The matching row is the first row (from start on) of the tag branch which is not newer than
+	 * the tagged changeset: either the tagged changeset itself, or the last version created
+	 * before the tag, which was the current one at the time the tag was created. If the tag is
+	 * older than all rows of its branch there is no match (fix for bug 10830).
 	 *
 	 * @param tag
 	 *            tag to search for
 	 * @param start
-	 *            start index in the revisions array
-	 * @return first matching revision index in the revisions array, or -1 if no one
-	 *         revision matches given tag
+	 *            start index in the rows
+	 * @return first matching row index, or -1 if no one revision matches given tag
 	 */
 	private int getFirstMatchingRevision(Tag tag, int start) {
 		String tagBranch = tag.getChangeset().getBranch();
 		int tagRev = tag.getChangeset().getRevision();
-		// revisions are sorted descending by cs revision
-		int lastRev = getLastRevision(tagBranch);
-		for (int i = start; i <= lastRev; i++) {
-			i = getNextRevision(i, tagBranch);
-			int revision = revisions.get(i).getRevision();
-			// perfect match
-			if(revision == tagRev){
-				return i;
-			}
-			// if tag rev is greater as greatest (first) revision, return the version,
-			// because the last file version was created before the tag => so it
-			// was the current one at the time the tag was created
-			if(i == 0 && tagRev > revision){
-				return i;
-			}
-			// if tag rev is smaller as smallest (last) revision, return
-			if(i == lastRev && tagRev < revision){
-				// fix for bug 10830
-				return -1;
-			}
-			// if tag rev is greater as current rev, return the version
-			if(tagRev > revision){
+		int count = rows.getRowCount();
+		// rows are sorted descending by cs revision
+		for (int i = Math.max(start, rows.findFirstRowAtOrBelow(tagRev)); i < count; i++) {
+			if (BranchUtils.same(rows.getBranch(i), tagBranch)) {
 				return i;
 			}
 		}
@@ -420,37 +586,16 @@ public class MercurialHistory extends FileHistory {
 	}
 
 	/**
-	 * @param branch
-	 *            may be null
-	 * @return <b>internal index</b> of the latest revision known for this branch, or -1 if there
-	 *         are no matches
+	 * @param virtual
+	 *            true to keep only a window of the loaded revisions in memory, see
+	 *            {@link #getRow(int)}. Takes effect with the next reload
 	 */
-	private int getLastRevision(String branch) {
-		for (int i = revisions.size() - 1; i >= 0; i--) {
-			MercurialRevision rev = revisions.get(i);
-			if(BranchUtils.same(rev.getChangeSet().getBranch(), branch)){
-				return i;
-			}
-		}
-		return -1;
+	public void setVirtual(boolean virtual) {
+		this.virtual = virtual;
 	}
 
-	/**
-	 * @param from
-	 *            the first revision to start looking for
-	 * @param branch
-	 *            may be null
-	 * @return <b>internal index</b> of the next revision (starting from given one) known for this
-	 *         branch, or -1 if there are no matches
-	 */
-	private int getNextRevision(int from, String branch) {
-		for (int i = from; i < revisions.size(); i++) {
-			MercurialRevision rev = revisions.get(i);
-			if(BranchUtils.same(rev.getChangeSet().getBranch(), branch)){
-				return i;
-			}
-		}
-		return -1;
+	public boolean isVirtual() {
+		return virtual;
 	}
 
 	/**
@@ -482,12 +627,15 @@ public class MercurialHistory extends FileHistory {
 
 		private List<MercurialRevision> unknownPathRevs;
 
+		private IPath relativePath;
+
 		// operations
 
 		public void prime(final List<MercurialRevision> changesets) {
 			unknownPathRevs = new LinkedList<MercurialRevision>(changesets);
 
 			final IPath relativePath = hgRoot.getRelativePath(resource);
+			this.relativePath = relativePath;
 			String sRelativePath = relativePath.toString();
 
 			knownPaths.add(relativePath);
@@ -545,6 +693,9 @@ public class MercurialHistory extends FileHistory {
 
 				if (newChangeset.getRevision() == rev.getRevision()) {
 					rev.setIPath(newPath);
+					if (!newPath.equals(relativePath)) {
+						renamedPaths.put(Integer.valueOf(rev.getRevision()), newPath);
+					}
 					it.remove();
 					return;
 				}
@@ -19,6 +19,9 @@ package com.vectrace.MercurialEclipse.history;
 import static com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants.*;
 
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
@@ -53,6 +56,7 @@ import org.eclipse.jface.text.revisions.Revision;
 import org.eclipse.jface.viewers.ColumnWeightData;
 import org.eclipse.jface.viewers.DoubleClickEvent;
 import org.eclipse.jface.viewers.IDoubleClickListener;
+import org.eclipse.jface.viewers.ILazyContentProvider;
 import org.eclipse.jface.viewers.ISelectionChangedListener;
 import org.eclipse.jface.viewers.ISelectionProvider;
 import org.eclipse.jface.viewers.IStructuredContentProvider;
@@ -135,10 +139,15 @@ public class MercurialHistoryPage extends HistoryPage {
 	private static final boolean ECLISPE_BEFORE_38 = HgFeatures.doCompare(
 			Platform.getBundle("org.eclipse.ui.ide").getVersion(), new Version(3, 8, 0)) < 0;
 
+	/** rows before and after a requested row which are materialized in the virtual table mode */
+	private static final int PREFETCH_ROWS = 100;
+
 	// attributes
 
 	private boolean showTags;
 	protected boolean showGoTo;
+	/** true if only a window of the history is materialized, see {@link LazyChangeLogContentProvider} */
+	private boolean virtualTable;
 
 	IResource resource;
 	private HgRoot hgRoot;
@@ -149,6 +158,12 @@ public class MercurialHistoryPage extends HistoryPage {
 	private RevisionAnnotationController rulerSelectionListener;
 	private Job refreshFileHistoryJob;
 	private Job fetchAllJob;
+	private LoadRowsJob loadRowsJob;
+	/**
+	 * True if the history was reloaded because evicted rows didn't match it any more. It is
+	 * reloaded once only, then the rows are kept until the next refresh. Accessed in the UI thread.
+	 */
+	private boolean reloadedStaleRows;
 
 	// .. actions
 
@@ -252,8 +267,7 @@ public class MercurialHistoryPage extends HistoryPage {
 				ctrl.getDisplay().syncExec(new Runnable() {
 					public void run() {
 						if (!ctrl.isDisposed()) {
-							viewer.setInput(mercurialHistory);
-							viewer.refresh();
+							setViewerInput();
 							// refresh the proposal list with new data.
 							// code below works only if the gotoText is not empty
 							Listener[] listeners2 = gotoText.getListeners(SWT.KeyDown);
@@ -290,6 +304,7 @@ public class MercurialHistoryPage extends HistoryPage {
 				return Status.OK_STATUS;
 			}
 			mercurialHistory.setEnableExtraTags(showTags);
+			mercurialHistory.setVirtual(virtualTable);
 			try {
 				mercurialHistory.load(monitor, from);
 				if(resource != null) {
@@ -305,8 +320,7 @@ public class MercurialHistoryPage extends HistoryPage {
 			final Runnable runnable = new Runnable() {
 				public void run() {
 					clearSelection();
-					viewer.setInput(mercurialHistory);
-					viewer.refresh();
+					setViewerInput();
 				}
 			};
 
@@ -355,6 +369,111 @@ public class MercurialHistoryPage extends HistoryPage {
 		}
 	}
 
+	/**
+	 * Content of the virtual table mode: only the revisions of the rows shown are materialized.
+	 * Rows of evicted pages are loaded in the background together with the neighbour pages in
+	 * both directions, so scrolling doesn't wait for hg in the common case.
+	 */
+	private final class LazyChangeLogContentProvider implements ILazyContentProvider {
+
+		public void updateElement(int index) {
+			MercurialHistory history = mercurialHistory;
+			if (history == null || index >= history.getRowCount()) {
+				return;
+			}
+			MercurialRevision rev = history.getRow(index);
+			if (rev != null) {
+				viewer.replace(rev, index);
+			}
+			List<Integer> missing = history.getRowsToLoad(index, PREFETCH_ROWS);
+			if (!missing.isEmpty()) {
+				loadRowsJob.add(history, missing);
+			}
+		}
+
+		public void inputChanged(Viewer v, Object oldInput, Object newInput) {
+			// nothing to do
+		}
+
+		public void dispose() {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * Materializes pages of the virtual table mode, then lets the table ask for its rows again
+	 */
+	private final class LoadRowsJob extends Job {
+
+		/** guarded by this */
+		private final Set<Integer> rows = new LinkedHashSet<Integer>();
+
+		/** guarded by this */
+		private MercurialHistory history;
+
+		LoadRowsJob() {
+			super("Retrieving Mercurial revisions..."); //$NON-NLS-1$
+			setRule(new ExclusiveHistoryRule());
+			setSystem(true);
+		}
+
+		synchronized void add(MercurialHistory newHistory, List<Integer> newRows) {
+			if (history != newHistory) {
+				history = newHistory;
+				rows.clear();
+			}
+			if (rows.addAll(newRows)) {
+				schedule();
+			}
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			boolean reload = false;
+			while (!monitor.isCanceled()) {
+				MercurialHistory current;
+				Integer row;
+				synchronized (this) {
+					if (rows.isEmpty()) {
+						break;
+					}
+					current = history;
+					row = rows.iterator().next();
+				}
+				try {
+					reload |= !current.loadRows(monitor, row.intValue());
+				} catch (CoreException e) {
+					MercurialEclipsePlugin.logError(e);
+				}
+				synchronized (this) {
+					if (current == history) {
+						rows.remove(row);
+					}
+				}
+			}
+			final boolean refresh = reload;
+			final Control ctrl = viewer.getControl();
+			if (ctrl != null && !ctrl.isDisposed()) {
+				ctrl.getDisplay().asyncExec(new Runnable() {
+					public void run() {
+						if (ctrl.isDisposed()) {
+							return;
+						}
+						if (refresh && !reloadedStaleRows) {
+							// the history has changed since the rows were loaded
+							reloadedStaleRows = true;
+							reload();
+						} else {
+							// evicted rows are released, visible rows are asked for again
+							viewer.getTable().clearAll();
+						}
+					}
+				});
+			}
+			return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+		}
+	}
+
 	static class ChangeSetLabelProvider extends LabelProvider implements
 			ITableLabelProvider {
 
@@ -674,7 +793,14 @@ public class MercurialHistoryPage extends HistoryPage {
 		layout.addColumnData(new ColumnWeightData(25, true));
 
 		viewer.setLabelProvider(new ChangeSetLabelProvider());
-		viewer.setContentProvider(new ChangeLogContentProvider());
+		virtualTable = MercurialEclipsePlugin.getDefault().getPreferenceStore().getBoolean(
+				HISTORY_VIRTUAL_TABLE);
+		if (virtualTable) {
+			loadRowsJob = new LoadRowsJob();
+			viewer.setContentProvider(new LazyChangeLogContentProvider());
+		} else {
+			viewer.setContentProvider(new ChangeLogContentProvider());
+		}
 		viewer.addDoubleClickListener(new IDoubleClickListener() {
 			public void doubleClick(DoubleClickEvent event) {
 				getCompareWithPreviousAction();
@@ -782,6 +908,17 @@ public class MercurialHistoryPage extends HistoryPage {
 		viewer.setSelection(StructuredSelection.EMPTY);
 	}
 
+	/**
+	 * Shows the loaded revisions of the current history
+	 */
+	private void setViewerInput() {
+		viewer.setInput(mercurialHistory);
+		if (virtualTable) {
+			viewer.setItemCount(mercurialHistory == null ? 0 : mercurialHistory.getRowCount());
+		}
+		viewer.refresh();
+	}
+
 	public MercurialRevision[] getSelectedRevisions() {
 		Object[] obj = getSelection().toArray();
 		if (obj != null && obj.length > 0) {
@@ -1171,6 +1308,11 @@ public class MercurialHistoryPage extends HistoryPage {
 	 * @see org.eclipse.team.ui.history.IHistoryPage#refresh()
 	 */
 	public void refresh() {
+		reloadedStaleRows = false;
+		reload();
+	}
+
+	private void reload() {
 		if (refreshFileHistoryJob == null) {
 			refreshFileHistoryJob = new LoadMercurialHistoryJob(Integer.MAX_VALUE);
 		}
@@ -1311,6 +1453,21 @@ public class MercurialHistoryPage extends HistoryPage {
 		RevisionContentProposal revProposal = (RevisionContentProposal) proposal;
 		MercurialRevision revision = revProposal.getRevision();
 		viewer.getControl().setFocus();
+		if (virtualTable) {
+			// select by index, selecting by element would materialize all rows before it
+			int row = mercurialHistory == null ? -1 : mercurialHistory.getRowOf(revision
+					.getRevision());
+			if (row < 0) {
+				return;
+			}
+			Table table = viewer.getTable();
+			table.setSelection(row);
+			table.showSelection();
+			Event event = new Event();
+			event.item = table.getItem(row);
+			table.notifyListeners(SWT.Selection, event);
+			return;
+		}
 		viewer.setSelection(new StructuredSelection(revision));
 		viewer.reveal(revision);
 	}
@@ -1355,6 +1512,9 @@ public class MercurialHistoryPage extends HistoryPage {
 		super.dispose();
 
 		mercurialHistory = null;
+		if (loadRowsJob != null) {
+			loadRowsJob.cancel();
+		}
 
 		if (rulerSelectionListener != null) {
 			rulerSelectionListener.dispose();
@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.history;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The rows of a history: a compact index of all loaded rows and a window of materialized ones.
+ * <p>
+ * For each row the index keeps the revision number and the branch (as an index in a table of
+ * distinct branch names), so the number of rows, the row of a revision and the tag assignment
+ * don't need the row objects. The row objects are kept in pages of a fixed size, aligned to the
+ * page size. If there are more than the max number of materialized pages, the pages farthest
+ * from the last requested row are dropped and have to be set again with
+ * {@link #setPage(int, List)} before their rows are available.
+ * <p>
+ * Rows are ordered descending by revision. Thread safe.
+ */
+final class RevisionWindow<T> {
+
+	private final int pageSize;
+
+	private final int maxPages;
+
+	/** revision of each row */
+	private int[] revisions = new int[256];
+
+	/** index in {@link #branchNames} of the branch of each row */
+	private int[] branches = new int[256];
+
+	private final List<String> branchNames = new ArrayList<String>();
+
+	private final Map<String, Integer> branchIndexes = new HashMap<String, Integer>();
+
+	private int rowCount;
+
+	/** page number -> rows of the page */
+	private final Map<Integer, List<T>> pages = new HashMap<Integer, List<T>>();
+
+	/** the last requested row, the pages around it are kept */
+	private int focus;
+
+	/**
+	 * @param pageSize
+	 *            the number of rows of a page, at least 1
+	 * @param maxPages
+	 *            the max number of materialized pages, at least 1
+	 */
+	RevisionWindow(int pageSize, int maxPages) {
+		this.pageSize = Math.max(1, pageSize);
+		this.maxPages = Math.max(1, maxPages);
+	}
+
+	/**
+	 * Appends a row. The page of the row is materialized, and it becomes the focus
+	 *
+	 * @param revision
+	 *            must be smaller than the revision of the last row
+	 * @param branch
+	 *            may be null
+	 */
+	synchronized void add(T element, int revision, String branch) {
+		if (rowCount == revisions.length) {
+			revisions = grow(revisions);
+			branches = grow(branches);
+		}
+		revisions[rowCount] = revision;
+		branches[rowCount] = intern(branch);
+		int page = rowCount / pageSize;
+		List<T> rows = pages.get(Integer.valueOf(page));
+		if (rows == null && rowCount % pageSize == 0) {
+			rows = new ArrayList<T>(Math.min(pageSize, 1024));
+			pages.put(Integer.valueOf(page), rows);
+		}
+		// if the start of the page was dropped, the page is set again as a whole
+		if (rows != null) {
+			rows.add(element);
+		}
+		rowCount++;
+		focus = rowCount - 1;
+		trim();
+	}
+
+	private int intern(String branch) {
+		Integer index = branchIndexes.get(branch);
+		if (index == null) {
+			index = Integer.valueOf(branchNames.size());
+			branchNames.add(branch);
+			branchIndexes.put(branch, index);
+		}
+		return index.intValue();
+	}
+
+	private static int[] grow(int[] array) {
+		int[] result = new int[array.length * 2];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	synchronized int getRowCount() {
+		return rowCount;
+	}
+
+	synchronized int getRevision(int row) {
+		checkRow(row);
+		return revisions[row];
+	}
+
+	/**
+	 * @return the branch of the row, may be null
+	 */
+	synchronized String getBranch(int row) {
+		checkRow(row);
+		return branchNames.get(branches[row]);
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= rowCount) {
+			throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
+
+	/**
+	 * @return the row of the revision, or -1 if the revision is not in the index
+	 */
+	synchronized int findRow(int revision) {
+		int row = findFirstRowAtOrBelow(revision);
+		return row < rowCount && revisions[row] == revision ? row : -1;
+	}
+
+	/**
+	 * @return the first row with a revision smaller than or equal to the given revision, or the
+	 *         row count if there is none
+	 */
+	synchronized int findFirstRowAtOrBelow(int revision) {
+		int low = 0;
+		int high = rowCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (revisions[mid] > revision) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the row object and makes the row the focus of the window
+	 *
+	 * @return the row object, or null if the page of the row is not materialized
+	 */
+	synchronized T get(int row) {
+		checkRow(row);
+		focus = row;
+		return peek(row);
+	}
+
+	/**
+	 * @return the row object, or null if the page of the row is not materialized. Doesn't change
+	 *         the focus
+	 */
+	synchronized T peek(int row) {
+		List<T> rows = pages.get(Integer.valueOf(row / pageSize));
+		if (rows == null) {
+			return null;
+		}
+		int index = row % pageSize;
+		return index < rows.size() ? rows.get(index) : null;
+	}
+
+	/**
+	 * @return a new list with the materialized rows, in row order
+	 */
+	synchronized List<T> getMaterialized() {
+		List<T> result = new ArrayList<T>();
+		for (List<T> rows : new TreeMap<Integer, List<T>>(pages).values()) {
+			result.addAll(rows);
+		}
+		return result;
+	}
+
+	int getPageSize() {
+		return pageSize;
+	}
+
+	int getPage(int row) {
+		return row / pageSize;
+	}
+
+	int getPageStart(int page) {
+		return page * pageSize;
+	}
+
+	/**
+	 * @return the number of rows of the page, 0 if the page is out of range
+	 */
+	synchronized int getPageLength(int page) {
+		int start = page * pageSize;
+		if (page < 0 || start >= rowCount) {
+			return 0;
+		}
+		return Math.min(pageSize, rowCount - start);
+	}
+
+	synchronized boolean isMaterialized(int page) {
+		List<T> rows = pages.get(Integer.valueOf(page));
+		return rows != null && rows.size() == getPageLength(page);
+	}
+
+	/**
+	 * Materializes a page again
+	 *
+	 * @param rows
+	 *            the row objects of the page, all rows of the page
+	 */
+	synchronized void setPage(int page, List<T> rows) {
+		if (rows.size() != getPageLength(page)) {
+			throw new IllegalArgumentException("Page " + page + " has " + getPageLength(page) //$NON-NLS-1$ //$NON-NLS-2$
+					+ " rows, got " + rows.size()); //$NON-NLS-1$
+		}
+		pages.put(Integer.valueOf(page), new ArrayList<T>(rows));
+		trim();
+	}
+
+	/**
+	 * @param row
+	 *            the requested row
+	 * @param distance
+	 *            the number of rows before and after the requested row which should be available
+	 * @return the pages to materialize for the row and its neighbours in both directions, nearest
+	 *         first. Empty if all are materialized
+	 */
+	synchronized List<Integer> getMissingPages(int row, int distance) {
+		List<Integer> missing = new ArrayList<Integer>(3);
+		int page = row / pageSize;
+		addIfMissing(missing, page);
+		int before = Math.max(0, row - distance) / pageSize;
+		int after = Math.min(rowCount - 1, row + distance) / pageSize;
+		for (int i = 1; page - i >= before || page + i <= after; i++) {
+			if (page + i <= after) {
+				addIfMissing(missing, page + i);
+			}
+			if (page - i >= before) {
+				addIfMissing(missing, page - i);
+			}
+		}
+		// never more than can be kept at once
+		while (missing.size() > maxPages) {
+			missing.remove(missing.size() - 1);
+		}
+		return missing;
+	}
+
+	private void addIfMissing(List<Integer> missing, int page) {
+		if (getPageLength(page) > 0 && !isMaterialized(page)) {
+			missing.add(Integer.valueOf(page));
+		}
+	}
+
+	/**
+	 * @return the number of materialized pages
+	 */
+	synchronized int getMaterializedPageCount() {
+		return pages.size();
+	}
+
+	/**
+	 * Drops the pages farthest from the focus until there are at most the max number of pages
+	 */
+	private void trim() {
+		int focusPage = focus / pageSize;
+		while (pages.size() > maxPages) {
+			Integer farthest = null;
+			int maxDistance = -1;
+			for (Integer page : pages.keySet()) {
+				int distance = Math.abs(page.intValue() - focusPage);
+				if (distance > maxDistance) {
+					maxDistance = distance;
+					farthest = page;
+				}
+			}
+			pages.remove(farthest);
+		}
+	}
+}
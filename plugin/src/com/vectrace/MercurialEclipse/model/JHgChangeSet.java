@@ -28,21 +28,42 @@ import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
 import com.vectrace.MercurialEclipse.commands.HgStatusClient;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.properties.DoNotDisplayMe;
+import com.vectrace.MercurialEclipse.team.cache.ChangesetIndex;
 import com.vectrace.MercurialEclipse.team.cache.LocalChangesetCache;
 import com.vectrace.MercurialEclipse.utils.BranchUtils;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
 /**
- * Changeset backed by a JavaHg changeset
+ * Changeset backed by a JavaHg changeset.
+ * <p>
+ * Local changesets may also be backed by a {@link ChangesetIndex}: the metadata available there
+ * is read from the index and the JavaHg changeset is only requested from the command server
+ * when other data (message, tags, ...) is needed.
  */
 public class JHgChangeSet extends ChangeSet {
 
 	public final static String NULL_ID = Changeset.NULL_ID;
 
 	/**
-	 * Not null
+	 * Not null, unless this changeset is backed by an {@link #index} and wasn't loaded yet
 	 */
-	private final Changeset changeset;
+	private volatile Changeset changeset;
+
+	/**
+	 * May be null
+	 */
+	private final ChangesetIndex index;
+
+	/**
+	 * The revision in the {@link #index}, -1 if there is no index
+	 */
+	private final int rev;
+
+	/**
+	 * The node of the index backed changeset, null if there is no index. Kept in case the
+	 * revision number is reused in the index (strip).
+	 */
+	private final String node;
 
 	/**
 	 * Not null
@@ -81,12 +102,36 @@ public class JHgChangeSet extends ChangeSet {
 		this.remote = remote;
 		this.direction = direction;
 		this.bundle = bundle;
+		this.index = null;
+		this.rev = -1;
+		this.node = null;
 
 		setName(getIndex() + ":" + getNodeShort());
 
 		Assert.isLegal(hgRoot != null && changeset != null && direction != null);
 	}
 
+	/**
+	 * Constructor for a local changeset backed by the index
+	 *
+	 * @param index
+	 *            Not null. Must contain the given revision
+	 */
+	public JHgChangeSet(HgRoot hgRoot, ChangesetIndex index, int rev) {
+		this.changeset = null;
+		this.hgRoot = hgRoot;
+		this.remote = null;
+		this.direction = Direction.LOCAL;
+		this.bundle = null;
+		this.index = index;
+		this.rev = rev;
+		this.node = index.getNode(rev);
+
+		setName(getIndex() + ":" + getNodeShort());
+
+		Assert.isLegal(hgRoot != null && node != null);
+	}
+
 	public JHgChangeSet(HgRoot hgRoot, Changeset changeset) {
 		this(hgRoot, changeset, null, Direction.LOCAL, null);
 	}
@@ -100,6 +145,9 @@ public class JHgChangeSet extends ChangeSet {
 		this.remote = null;
 		this.direction = Direction.LOCAL;
 		this.bundle = null;
+		this.index = null;
+		this.rev = -1;
+		this.node = null;
 
 		setName(getIndex() + ":" + getNodeShort());
 
@@ -121,6 +169,9 @@ public class JHgChangeSet extends ChangeSet {
 	 */
 	@Override
 	public int getIndex() {
+		if (index != null) {
+			return rev;
+		}
 		return changeset.getRevision();
 	}
 
@@ -129,6 +180,9 @@ public class JHgChangeSet extends ChangeSet {
 	 */
 	@Override
 	public String getNode() {
+		if (node != null) {
+			return node;
+		}
 		return changeset.getNode();
 	}
 
@@ -137,7 +191,13 @@ public class JHgChangeSet extends ChangeSet {
 	 */
 	@Override
 	public String getBranch() {
-		return changeset.getBranch();
+		if (index != null) {
+			String branch = index.getBranch(rev);
+			if (isIndexed()) {
+				return branch;
+			}
+		}
+		return getData().getBranch();
 	}
 
 	/**
@@ -177,15 +237,17 @@ public class JHgChangeSet extends ChangeSet {
 	 */
 	@Override
 	public String[] getParents() {
-		if (changeset.getParent1() == null) {
+		String parent1 = getParentNode(0);
+		if (parent1 == null) {
 			return new String[0];
 		}
 
-		if (changeset.getParent2() == null) {
-			return new String[] { changeset.getParent1().getNode() };
+		String parent2 = getParentNode(1);
+		if (parent2 == null) {
+			return new String[] { parent1 };
 		}
 
-		return new String[] { changeset.getParent1().getNode(), changeset.getParent2().getNode() };
+		return new String[] { parent1, parent2 };
 	}
 
 	/**
@@ -197,14 +259,24 @@ public class JHgChangeSet extends ChangeSet {
 	}
 
 	public String getParentNode(int i) {
-		Changeset cs;
-		if (i == 0) {
-			cs = changeset.getParent1();
-		} else if (i == 1) {
-			cs = changeset.getParent2();
-		} else {
+		if (i != 0 && i != 1) {
 			return null;
 		}
+		if (index != null) {
+			int parent = index.getParent(rev, i);
+			String parentNode = parent == ChangesetIndex.NO_PARENT ? null : index.getNode(parent);
+			if (isIndexed()) {
+				if (parent == ChangesetIndex.NO_PARENT) {
+					return null;
+				}
+				if (parentNode != null) {
+					return parentNode;
+				}
+				// parent wasn't fetched yet
+			}
+		}
+
+		Changeset cs = i == 0 ? getData().getParent1() : getData().getParent2();
 
 		if (cs == null) {
 			return null;
@@ -234,14 +306,14 @@ public class JHgChangeSet extends ChangeSet {
 			tags = new Tag[tagNames.size()];
 
 			for (int i = 0; i < tags.length; i++) {
-				tags[i] = Tag.makeLight(tagNames.get(i), changeset);
+				tags[i] = Tag.makeLight(tagNames.get(i), getData());
 			}
 		}
 		return tags;
 	}
 
 	protected List<String> fetchTags() {
-		return changeset.tags();
+		return getData().tags();
 	}
 
 	/**
@@ -249,7 +321,13 @@ public class JHgChangeSet extends ChangeSet {
 	 */
 	@Override
 	public String getAuthor() {
-		return changeset.getUser();
+		if (index != null) {
+			String author = index.getAuthor(rev);
+			if (isIndexed()) {
+				return author;
+			}
+		}
+		return getData().getUser();
 	}
 
 	/**
@@ -257,7 +335,13 @@ public class JHgChangeSet extends ChangeSet {
 	 */
 	@Override
 	public Date getDate() {
-		return changeset.getTimestamp().getDate();
+		if (index != null) {
+			long date = index.getDate(rev);
+			if (isIndexed()) {
+				return new Date(date);
+			}
+		}
+		return getData().getTimestamp().getDate();
 	}
 
 	/**
@@ -265,7 +349,7 @@ public class JHgChangeSet extends ChangeSet {
 	 */
 	@Override
 	public String getComment() {
-		return changeset.getMessage();
+		return getData().getMessage();
 	}
 
 	/**
@@ -317,8 +401,25 @@ public class JHgChangeSet extends ChangeSet {
 	}
 
 	@DoNotDisplayMe
+	/**
+	 * The revision number of an index backed changeset may be reused in the index by another
+	 * changeset (strip, rebase...). Values read from the index are only valid if this is still
+	 * true after reading them.
+	 *
+	 * @return true if the revision in the index still has the node of this changeset
+	 */
+	private boolean isIndexed() {
+		return node.equals(index.getNode(rev));
+	}
+
 	public Changeset getData() {
-		return changeset;
+		Changeset cs = changeset;
+		if (cs == null) {
+			// index backed: load on demand
+			cs = hgRoot.getRepository().changeset(getNode());
+			changeset = cs;
+		}
+		return cs;
 	}
 
 	/**
@@ -327,8 +428,8 @@ public class JHgChangeSet extends ChangeSet {
 	@Override
 	public boolean isCurrent() {
 		try {
-			return getData().equals(
-					LocalChangesetCache.getInstance().getCurrentChangeSet(hgRoot).getData());
+			return getNode().equals(
+					LocalChangesetCache.getInstance().getCurrentChangeSet(hgRoot).getNode());
 		} catch (HgException e) {
 			MercurialEclipsePlugin.logError(e);
 		}
@@ -343,6 +444,15 @@ public class JHgChangeSet extends ChangeSet {
 	 */
 	public Phase getPhase() {
 		try {
+			if (index != null && isIndexed()) {
+				int phase = index.getPhase(rev);
+				if (phase == ChangesetIndex.PHASE_UNKNOWN) {
+					Phase result = getData().phase();
+					index.setPhase(rev, result.ordinal());
+					return result;
+				}
+				return Phase.values()[phase];
+			}
 			return getData().phase();
 		} catch (Throwable t) {
 			MercurialEclipsePlugin.logWarning("Error getting changeset phase", t);
@@ -352,6 +462,9 @@ public class JHgChangeSet extends ChangeSet {
 
 	public void setDraft() {
 		PhaseCommandFlags.on(hgRoot.getRepository()).draft().rev(getNode()).force().execute();
+		if (index != null && isIndexed()) {
+			index.setPhase(rev, Phase.DRAFT.ordinal());
+		}
 	}
 
 	/**
@@ -372,7 +485,7 @@ public class JHgChangeSet extends ChangeSet {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + ((bundle == null) ? 0 : bundle.hashCode());
-		result = prime * result + ((changeset == null) ? 0 : changeset.hashCode());
+		result = prime * result + getNode().hashCode();
 		result = prime * result + ((direction == null) ? 0 : direction.hashCode());
 		result = prime * result + ((hgRoot == null) ? 0 : hgRoot.hashCode());
 		result = prime * result + ((remote == null) ? 0 : remote.hashCode());
@@ -401,11 +514,7 @@ public class JHgChangeSet extends ChangeSet {
 		} else if (!bundle.equals(other.bundle)) {
 			return false;
 		}
-		if (changeset == null) {
-			if (other.changeset != null) {
-				return false;
-			}
-		} else if (!changeset.equals(other.changeset)) {
+		if (!getNode().equals(other.getNode())) {
 			return false;
 		}
 		if (direction != other.direction) {
@@ -70,9 +70,30 @@ public final class MercurialPreferenceConstants {
 	public static final String LOG_BATCH_SIZE = "hg.batchsize.log"; //$NON-NLS-1$
 	public static final String COMMIT_MESSAGE_BATCH_SIZE = "hg.batchsize.commitmessage"; //$NON-NLS-1$
 
+	/** number of command servers started per repository root */
+	public static final String COMMAND_SERVER_POOL_SIZE = "hg.commandserver.poolsize"; //$NON-NLS-1$
+
+	/** run command line based hg calls on the command servers too */
+	public static final String COMMAND_SERVER_SHELL_COMMANDS = "hg.commandserver.shellcommands"; //$NON-NLS-1$
+
+	/** keep a trigram index of the history for text search */
+	public static final String SEARCH_INDEX_ENABLED = "hg.search.index"; //$NON-NLS-1$
+
+	/** minutes between background refreshes of the incoming/outgoing changesets, 0 to disable */
+	public static final String REMOTE_REFRESH_INTERVAL = "hg.remote.refreshInterval"; //$NON-NLS-1$
+
+	/** keep the annotations on disk, so they survive a restart */
+	public static final String ANNOTATION_DISK_CACHE = "hg.annotation.diskCache"; //$NON-NLS-1$
+
+	/** keep only a window of the loaded revisions of the history view in memory */
+	public static final String HISTORY_VIRTUAL_TABLE = "hg.history.virtualTable"; //$NON-NLS-1$
+
 	// remote performance: for incoming/outgoing, compute add/remove/modified status on changeset files
 	public static final String SYNC_COMPUTE_FULL_REMOTE_FILE_STATUS = "hg.computeFullRemoteFileStatus"; //$NON-NLS-1$
 
+	/** keep local mirrors of the remote repositories to transfer only new incoming changesets */
+	public static final String SYNC_INCREMENTAL_INCOMING = "hg.incrementalIncoming"; //$NON-NLS-1$
+
 	// console
 	public static final String PREF_CONSOLE_SHOW_ON_MESSAGE = "hg.console.showOnMessage"; //$NON-NLS-1$
 	public static final String PREF_CONSOLE_WRAP = "hg.console.wrap"; //$NON-NLS-1$
@@ -62,6 +62,17 @@ implements IWorkbenchPreferencePage {
 		addField(batchLogRevisionEditor);
 		batchLogRevisionEditor.setValidRange(1, Integer.MAX_VALUE);
 
+		IntegerFieldEditor poolSizeEditor = new IntegerFieldEditor(
+				COMMAND_SERVER_POOL_SIZE,
+				Messages.getString("PerformancePreferencePage.field.commandServerPoolSize"), getFieldEditorParent()); //$NON-NLS-1$
+		addField(poolSizeEditor);
+		poolSizeEditor.setValidRange(1, 16);
+
+		addField(new BooleanFieldEditor(
+				COMMAND_SERVER_SHELL_COMMANDS,
+				Messages.getString("PerformancePreferencePage.field.commandServerShellCommands"), //$NON-NLS-1$
+				getFieldEditorParent()));
+
 		addField(new BooleanFieldEditor(
 				PREF_ENABLE_SUBREPO_SUPPORT,
 				Messages.getString("PerformancePreferencePage.field.enableSubrepo"), //$NON-NLS-1$
@@ -95,6 +106,27 @@ implements IWorkbenchPreferencePage {
 				getFieldEditorParent());
 		addField(showIncomingInfo);
 
+		addField(new BooleanFieldEditor(
+				SYNC_INCREMENTAL_INCOMING,
+				Messages.getString("PerformancePreferencePage.field.incrementalIncoming"), //$NON-NLS-1$
+				getFieldEditorParent()));
+
+		IntegerFieldEditor remoteRefreshEditor = new IntegerFieldEditor(
+				REMOTE_REFRESH_INTERVAL,
+				Messages.getString("PerformancePreferencePage.field.remoteRefreshInterval"), getFieldEditorParent()); //$NON-NLS-1$
+		addField(remoteRefreshEditor);
+		remoteRefreshEditor.setValidRange(0, 24 * 60);
+
+		addField(new BooleanFieldEditor(
+				ANNOTATION_DISK_CACHE,
+				Messages.getString("PerformancePreferencePage.field.annotationDiskCache"), //$NON-NLS-1$
+				getFieldEditorParent()));
+
+		addField(new BooleanFieldEditor(
+				HISTORY_VIRTUAL_TABLE,
+				Messages.getString("PerformancePreferencePage.field.historyVirtualTable"), //$NON-NLS-1$
+				getFieldEditorParent()));
+
 		addField(new BooleanFieldEditor(
 				RESOURCE_DECORATOR_SHOW_SUMMARY,
 				Messages.getString("PerformancePreferencePage.field.showSummary"), //$NON-NLS-1$
@@ -104,6 +136,11 @@ implements IWorkbenchPreferencePage {
 				HISTORY_LOG_USE_REMOVED,
 				Messages.getString("PerformancePreferencePage.field.historyLogUseRemoved"), //$NON-NLS-1$
 				getFieldEditorParent()));
+
+		addField(new BooleanFieldEditor(
+				SEARCH_INDEX_ENABLED,
+				Messages.getString("PerformancePreferencePage.field.searchIndex"), //$NON-NLS-1$
+				getFieldEditorParent()));
 	}
 
 	public void init(IWorkbench workbench) {
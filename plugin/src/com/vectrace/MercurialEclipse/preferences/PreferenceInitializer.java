@@ -78,9 +78,16 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 		store.setDefault(RESOURCE_DECORATOR_SHOW_SUMMARY, true);
 
 		store.setDefault(SYNC_COMPUTE_FULL_REMOTE_FILE_STATUS, true);
+		store.setDefault(SYNC_INCREMENTAL_INCOMING, true);
 
 		store.setDefault(LOG_BATCH_SIZE, 500);
 		store.setDefault(COMMIT_MESSAGE_BATCH_SIZE, 10);
+		store.setDefault(COMMAND_SERVER_POOL_SIZE, 3);
+		store.setDefault(COMMAND_SERVER_SHELL_COMMANDS, true);
+		store.setDefault(SEARCH_INDEX_ENABLED, false);
+		store.setDefault(REMOTE_REFRESH_INTERVAL, 0);
+		store.setDefault(ANNOTATION_DISK_CACHE, true);
+		store.setDefault(HISTORY_VIRTUAL_TABLE, false);
 
 		// blue
 		store.setDefault(PREF_CONSOLE_COMMAND_COLOR, "0,0,255");
@@ -104,28 +104,35 @@ public class MercurialTextSearchVisitor {
 	 * @param all
 	 * @throws CoreException
 	 */
-	private IStatus search(HgRoot root, List<IResource> resources, IProgressMonitor monitor, boolean all)
+	private IStatus search(HgRoot root, List<IResource> resources, final IProgressMonitor monitor, boolean all)
 			throws CoreException {
 		try {
 			requestor.beginReporting();
-			monitor.subTask("Calling Mercurial grep command...");
-			List<MercurialTextSearchMatchAccess> result = HgGrepClient.grep(root,
-					pattern.pattern(), resources, all, monitor);
-			monitor.worked(1);
-			monitor.subTask("Processing Mercurial grep results...");
-			for (MercurialTextSearchMatchAccess sr : result) {
-				if (monitor.isCanceled()){
-					break;
-				}
-				if (sr.getFile() != null) {
-					monitor.subTask("Found match in: " + sr.getFile().getName());
-					requestor.acceptFile(sr.getFile());
-					monitor.worked(1);
-					requestor.acceptPatternMatch(sr);
-					monitor.worked(1);
+			List<IResource> files = SearchIndexManager.getInstance().getCandidates(root, pattern,
+					resources);
+			if (files != null) {
+				if (files.isEmpty()) {
+					// the index knows no file with all the literals of the pattern
+					requestor.endReporting();
+					return new Status(IStatus.OK, MercurialEclipsePlugin.ID,
+							"Mercurial search completed successfully.");
 				}
+				resources = files;
 			}
+			monitor.subTask("Calling Mercurial grep command...");
+			// matches are reported while hg is still searching
+			HgGrepClient.grep(root, pattern.pattern(), resources, all, monitor,
+					new HgGrepClient.MatchListener() {
+						public void matchesFound(List<MercurialTextSearchMatchAccess> matches) {
+							report(matches, monitor);
+						}
+					});
+			monitor.worked(1);
 		} catch (HgException e) {
+			if (monitor.isCanceled()) {
+				requestor.endReporting();
+				return Status.CANCEL_STATUS;
+			}
 			MercurialEclipsePlugin.logError(e);
 			return new Status(IStatus.ERROR, MercurialEclipsePlugin.ID, e.getLocalizedMessage(), e);
 		}
@@ -134,6 +141,25 @@ public class MercurialTextSearchVisitor {
 				"Mercurial search completed successfully.");
 	}
 
+	private void report(List<MercurialTextSearchMatchAccess> matches, IProgressMonitor monitor) {
+		for (MercurialTextSearchMatchAccess sr : matches) {
+			if (monitor.isCanceled()){
+				break;
+			}
+			if (sr.getFile() != null) {
+				monitor.subTask("Found match in: " + sr.getFile().getName());
+				try {
+					requestor.acceptFile(sr.getFile());
+					monitor.worked(1);
+					requestor.acceptPatternMatch(sr);
+					monitor.worked(1);
+				} catch (CoreException e) {
+					MercurialEclipsePlugin.logError(e);
+				}
+			}
+		}
+	}
+
 	/**
 	 * @param scope
 	 * @param monitor
@@ -0,0 +1,361 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
+import com.vectrace.MercurialEclipse.commands.HgCatClient;
+import com.vectrace.MercurialEclipse.commands.HgClients;
+import com.vectrace.MercurialEclipse.commands.HgLogClient;
+import com.vectrace.MercurialEclipse.exception.HgException;
+import com.vectrace.MercurialEclipse.model.FileStatus;
+import com.vectrace.MercurialEclipse.model.HgFile;
+import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.model.JHgChangeSet;
+import com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants;
+import com.vectrace.MercurialEclipse.team.cache.LocalChangesetCache;
+import com.vectrace.MercurialEclipse.utils.ResourceUtils;
+
+/**
+ * Keeps a {@link TrigramIndex} per root up to date in the background and uses it to narrow the
+ * files searched by hg grep. Enabled with
+ * {@link MercurialPreferenceConstants#SEARCH_INDEX_ENABLED}.
+ * <p>
+ * The indexes are extended whenever the {@link LocalChangesetCache} sees new changesets, and
+ * before a search if they are behind the tip. They are stored in the plugin state location.
+ */
+public final class SearchIndexManager implements LocalChangesetCache.RevisionListener {
+
+	/** folder in the plugin state location with the persistent indexes */
+	private static final String STORE_FOLDER = "searchindex"; //$NON-NLS-1$
+
+	/** number of changesets indexed between two saves */
+	private static final int BATCH_SIZE = 50;
+
+	/** more candidates would make the hg grep command line too long */
+	private static final int MAX_CANDIDATES = 500;
+
+	/** delay to collect the notifications of one log request */
+	private static final long UPDATE_DELAY = 2000;
+
+	private static SearchIndexManager instance;
+
+	/** guarded by itself */
+	private final Map<HgRoot, TrigramIndex> indexes = new HashMap<HgRoot, TrigramIndex>();
+
+	/** guarded by {@link #indexes} */
+	private final Map<HgRoot, UpdateJob> jobs = new HashMap<HgRoot, UpdateJob>();
+
+	private SearchIndexManager() {
+	}
+
+	public static synchronized SearchIndexManager getInstance() {
+		if (instance == null) {
+			instance = new SearchIndexManager();
+		}
+		return instance;
+	}
+
+	public static boolean isEnabled() {
+		return Boolean.valueOf(
+				HgClients.getPreference(MercurialPreferenceConstants.SEARCH_INDEX_ENABLED,
+						"false")).booleanValue(); //$NON-NLS-1$
+	}
+
+	public void start() {
+		LocalChangesetCache.getInstance().addRevisionListener(this);
+	}
+
+	public void stop() {
+		LocalChangesetCache.getInstance().removeRevisionListener(this);
+		List<UpdateJob> running;
+		synchronized (indexes) {
+			running = new ArrayList<UpdateJob>(jobs.values());
+		}
+		for (UpdateJob job : running) {
+			job.cancel();
+		}
+	}
+
+	/**
+	 * @see com.vectrace.MercurialEclipse.team.cache.LocalChangesetCache.RevisionListener#revisionsAdded(com.vectrace.MercurialEclipse.model.HgRoot,
+	 *      int[], int)
+	 */
+	public void revisionsAdded(HgRoot root, int[] revisions, int count) {
+		if (isEnabled()) {
+			scheduleUpdate(root);
+		}
+	}
+
+	/**
+	 * Returns the files which may contain matches of the pattern in any revision, if the index of
+	 * the root is complete. Otherwise an update of the index is scheduled.
+	 *
+	 * @param scope
+	 *            The resources searched
+	 * @return The files to search, or null if all files in the scope have to be searched
+	 */
+	public List<IResource> getCandidates(HgRoot root, Pattern pattern, List<IResource> scope) {
+		if (!isEnabled()) {
+			return null;
+		}
+		List<String> literals = TrigramIndex.getLiterals(pattern.pattern());
+		if (literals.isEmpty()) {
+			return null;
+		}
+		TrigramIndex index = getIndex(root);
+		List<JHgChangeSet> tip = HgLogClient.getRootLog(root, 1, -1);
+		Set<String> paths;
+		synchronized (index) {
+			if (!tip.isEmpty()
+					&& (index.getRevision() != tip.get(0).getIndex() || !index.getNode().equals(
+							tip.get(0).getNode()))) {
+				scheduleUpdate(root);
+				return null;
+			}
+			try {
+				paths = index.getCandidates(literals, root.getEncoding());
+			} catch (IOException e) {
+				MercurialEclipsePlugin.logError(e);
+				return null;
+			}
+		}
+		if (paths == null || paths.size() > MAX_CANDIDATES) {
+			return null;
+		}
+
+		List<IPath> scopePaths = new ArrayList<IPath>(scope.size());
+		for (IResource resource : scope) {
+			scopePaths.add(ResourceUtils.getPath(resource));
+		}
+		List<IResource> files = new ArrayList<IResource>();
+		for (String path : paths) {
+			IPath location = root.getIPath().append(path);
+			for (IPath scopePath : scopePaths) {
+				if (!scopePath.isEmpty() && scopePath.isPrefixOf(location)) {
+					IFile file = ResourceUtils.getFileHandle(location);
+					if (file != null) {
+						files.add(file);
+					}
+					break;
+				}
+			}
+		}
+		return files;
+	}
+
+	private void scheduleUpdate(HgRoot root) {
+		synchronized (indexes) {
+			UpdateJob job = jobs.get(root);
+			if (job == null) {
+				job = new UpdateJob(root);
+				jobs.put(root, job);
+			}
+			job.schedule(UPDATE_DELAY);
+		}
+	}
+
+	/**
+	 * @return The index of the root, loaded from the plugin state location on first access
+	 */
+	private TrigramIndex getIndex(HgRoot root) {
+		synchronized (indexes) {
+			TrigramIndex index = indexes.get(root);
+			if (index == null) {
+				File file = getStore(root);
+				if (file != null) {
+					try {
+						index = TrigramIndex.read(file);
+					} catch (IOException e) {
+						MercurialEclipsePlugin.logWarning("Dropping search index " + file, e);
+						file.delete();
+					}
+				}
+				if (index == null) {
+					index = new TrigramIndex();
+				}
+				indexes.put(root, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * @return The file of the index of the root, null if the plugin is not running
+	 */
+	private static File getStore(HgRoot root) {
+		MercurialEclipsePlugin plugin = MercurialEclipsePlugin.getDefault();
+		if (plugin == null) {
+			return null;
+		}
+		String name = root.getName() + "-"
+				+ Integer.toHexString(root.getAbsolutePath().hashCode()) + ".tri";
+		return plugin.getStateLocation().append(STORE_FOLDER).append(name).toFile();
+	}
+
+	private static void save(HgRoot root, TrigramIndex index) {
+		File file = getStore(root);
+		if (file == null) {
+			return;
+		}
+		synchronized (index) {
+			try {
+				index.write(file);
+			} catch (IOException e) {
+				MercurialEclipsePlugin.logError(e);
+			}
+		}
+	}
+
+	/**
+	 * @return The content of the file, null if it can't be read, or the first
+	 *         {@link TrigramIndex#MAX_FILE_SIZE} + 1 bytes if it is larger
+	 */
+	private static byte[] readContent(HgFile file, int[] length) {
+		try {
+			InputStream in = HgCatClient.getContent(file);
+			if (in == null) {
+				return null;
+			}
+			try {
+				byte[] content = new byte[8192];
+				int count = 0;
+				int read;
+				while (count <= TrigramIndex.MAX_FILE_SIZE
+						&& (read = in.read(content, count, content.length - count)) >= 0) {
+					count += read;
+					if (count == content.length) {
+						byte[] newContent = new byte[content.length * 2];
+						System.arraycopy(content, 0, newContent, 0, count);
+						content = newContent;
+					}
+				}
+				length[0] = count;
+				return content;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// JavaHg reports command failures as runtime exceptions
+			return null;
+		}
+	}
+
+	/**
+	 * Indexes all the revisions of a root after the highest indexed one
+	 */
+	private final class UpdateJob extends Job {
+
+		private final HgRoot root;
+
+		public UpdateJob(HgRoot root) {
+			super("Indexing history of " + root.getName() + " for search");
+			this.root = root;
+			setSystem(true);
+			setPriority(DECORATE);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			if (!isEnabled()) {
+				return Status.OK_STATUS;
+			}
+			TrigramIndex index = getIndex(root);
+			try {
+				List<JHgChangeSet> tipLog = HgLogClient.getRootLog(root, 1, -1);
+				if (tipLog.isEmpty()) {
+					return Status.OK_STATUS;
+				}
+				int tip = tipLog.get(0).getIndex();
+				validate(index, tip);
+
+				monitor.beginTask(getName(), tip - index.getRevision());
+				while (index.getRevision() < tip && !monitor.isCanceled()) {
+					int to = Math.min(tip, index.getRevision() + BATCH_SIZE);
+					List<JHgChangeSet> batch = HgLogClient.getRootLog(root,
+							to - index.getRevision(), to);
+					if (batch.isEmpty()) {
+						break;
+					}
+					// the log starts with the highest revision
+					for (int i = batch.size() - 1; i >= 0 && !monitor.isCanceled(); i--) {
+						add(index, batch.get(i));
+						monitor.worked(1);
+					}
+					save(root, index);
+				}
+			} catch (HgException e) {
+				MercurialEclipsePlugin.logError(e);
+			} finally {
+				monitor.done();
+			}
+			return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+		}
+
+		/**
+		 * Drops the index if the highest indexed revision was stripped
+		 */
+		private void validate(TrigramIndex index, int tip) throws HgException {
+			int rev;
+			String node;
+			synchronized (index) {
+				rev = index.getRevision();
+				node = index.getNode();
+			}
+			if (rev < 0) {
+				return;
+			}
+			if (rev > tip || !HgLogClient.getChangeSet(root, rev).getNode().equals(node)) {
+				synchronized (index) {
+					index.clear();
+				}
+			}
+		}
+
+		private void add(TrigramIndex index, JHgChangeSet cs) {
+			int[] length = new int[1];
+			for (FileStatus status : cs.getChangedFiles()) {
+				if (status.getAction() == FileStatus.Action.REMOVED) {
+					continue;
+				}
+				IPath path = status.getRootRelativePath();
+				byte[] content = readContent(new HgFile(root, cs, path), length);
+				synchronized (index) {
+					index.add(path.toString(), content, length[0]);
+				}
+			}
+			synchronized (index) {
+				if (index.getRevision() == cs.getIndex() - 1) {
+					index.setRevision(cs.getIndex(), cs.getNode());
+				}
+			}
+		}
+	}
+}
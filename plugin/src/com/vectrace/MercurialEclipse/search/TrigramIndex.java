@@ -0,0 +1,611 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Trigram index over all file versions of the history of one root, used to find the files
+ * which may match a regular expression without running hg grep over the whole history.
+ * <p>
+ * For every path the index records the union of the (ASCII lower cased) byte trigrams of all its
+ * indexed versions. A query extracts the literal strings every match must contain (see
+ * {@link #getLiterals(String)}) and returns the paths which contain all of their trigrams. The
+ * result is a superset of the paths hg grep would report, as long as all revisions up to
+ * {@link #getRevision()} were indexed.
+ * <p>
+ * Binary versions are skipped like hg grep does. Paths with a version larger than
+ * {@link #MAX_FILE_SIZE} or which couldn't be read are always candidates.
+ * <p>
+ * Not thread safe.
+ */
+public class TrigramIndex {
+
+	private static final int MAGIC = 0x48475452; // "HGTR"
+
+	private static final int VERSION = 1;
+
+	/** larger file versions are not indexed */
+	public static final int MAX_FILE_SIZE = 1 << 20;
+
+	/** hg considers data with a NUL byte as binary */
+	private static final int BINARY_CHECK_LENGTH = 8000;
+
+	private static final int[] EMPTY = new int[0];
+
+	private final List<String> paths = new ArrayList<String>();
+
+	private final Map<String, Integer> pathIds = new HashMap<String, Integer>();
+
+	/** ids of the paths which are always candidates */
+	private final BitSet unindexed = new BitSet();
+
+	/** open addressing table: trigram + 1, 0 for a free slot */
+	private int[] keys = new int[1024];
+
+	/** sorted path ids of each trigram in {@link #keys} */
+	private int[][] postings = new int[1024][];
+
+	private int[] postingSizes = new int[1024];
+
+	private int numKeys;
+
+	/** highest revision indexed, -1 if none */
+	private int revision = -1;
+
+	/** node of {@link #revision} */
+	private String node = "";
+
+	/** trigrams of the file version currently added */
+	private int[] scratch = new int[1024];
+
+	/**
+	 * @return The highest indexed revision, -1 if none. All lower revisions are indexed too
+	 */
+	public int getRevision() {
+		return revision;
+	}
+
+	/**
+	 * @return The node of {@link #getRevision()}, to detect a strip of the revision
+	 */
+	public String getNode() {
+		return node;
+	}
+
+	public void setRevision(int revision, String node) {
+		this.revision = revision;
+		this.node = node;
+	}
+
+	/**
+	 * @return Number of known paths
+	 */
+	public int size() {
+		return paths.size();
+	}
+
+	public void clear() {
+		paths.clear();
+		pathIds.clear();
+		unindexed.clear();
+		keys = new int[1024];
+		postings = new int[1024][];
+		postingSizes = new int[1024];
+		numKeys = 0;
+		revision = -1;
+		node = "";
+	}
+
+	/**
+	 * Indexes a version of a file
+	 *
+	 * @param path
+	 *            Root relative path
+	 * @param content
+	 *            The content, null if it is not known or too large. The path is a candidate for
+	 *            every query then
+	 * @param length
+	 *            Number of valid bytes of the content
+	 */
+	public void add(String path, byte[] content, int length) {
+		int pathId = getPathId(path);
+		if (content == null || length > MAX_FILE_SIZE) {
+			unindexed.set(pathId);
+			return;
+		}
+		if (unindexed.get(pathId) || isBinary(content, length)) {
+			return;
+		}
+		int count = 0;
+		if (scratch.length < length) {
+			scratch = new int[Math.max(length, scratch.length * 2)];
+		}
+		int trigram = 0;
+		int valid = 0;
+		for (int i = 0; i < length; i++) {
+			int b = content[i];
+			if (b == '\n') {
+				// hg grep matches lines
+				valid = 0;
+				continue;
+			}
+			trigram = ((trigram << 8) | lower(b)) & 0xffffff;
+			if (++valid >= 3) {
+				scratch[count++] = trigram;
+			}
+		}
+		Arrays.sort(scratch, 0, count);
+		for (int i = 0; i < count; i++) {
+			if (i == 0 || scratch[i] != scratch[i - 1]) {
+				addPosting(scratch[i], pathId);
+			}
+		}
+	}
+
+	/**
+	 * @param literals
+	 *            Strings each match must contain, see {@link #getLiterals(String)}
+	 * @param encoding
+	 *            Encoding of the files in the repository
+	 * @return The root relative paths which may contain a match, or null if the literals are too
+	 *         short to narrow the search
+	 */
+	public Set<String> getCandidates(List<String> literals, String encoding)
+			throws UnsupportedEncodingException {
+		int[] trigrams = new int[16];
+		int count = 0;
+		for (String literal : literals) {
+			byte[] bytes = literal.getBytes(encoding);
+			int trigram = 0;
+			int valid = 0;
+			for (int i = 0; i < bytes.length; i++) {
+				if (bytes[i] == '\n') {
+					valid = 0;
+					continue;
+				}
+				trigram = ((trigram << 8) | lower(bytes[i])) & 0xffffff;
+				if (++valid >= 3) {
+					if (count == trigrams.length) {
+						int[] newTrigrams = new int[count * 2];
+						System.arraycopy(trigrams, 0, newTrigrams, 0, count);
+						trigrams = newTrigrams;
+					}
+					trigrams[count++] = trigram;
+				}
+			}
+		}
+		if (count == 0) {
+			return null;
+		}
+
+		// intersect starting with the shortest posting list
+		int[][] lists = new int[count][];
+		int[] sizes = new int[count];
+		int shortest = 0;
+		for (int i = 0; i < count; i++) {
+			int slot = find(trigrams[i]);
+			lists[i] = slot < 0 ? EMPTY : postings[slot];
+			sizes[i] = slot < 0 ? 0 : postingSizes[slot];
+			if (sizes[i] < sizes[shortest]) {
+				shortest = i;
+			}
+		}
+		int[] result = new int[sizes[shortest]];
+		System.arraycopy(lists[shortest], 0, result, 0, result.length);
+		int resultSize = result.length;
+		for (int i = 0; i < count && resultSize > 0; i++) {
+			if (i != shortest) {
+				resultSize = intersect(result, resultSize, lists[i], sizes[i]);
+			}
+		}
+
+		Set<String> candidates = new LinkedHashSet<String>();
+		for (int i = 0; i < resultSize; i++) {
+			candidates.add(paths.get(result[i]));
+		}
+		for (int id = unindexed.nextSetBit(0); id >= 0; id = unindexed.nextSetBit(id + 1)) {
+			candidates.add(paths.get(id));
+		}
+		return candidates;
+	}
+
+	/**
+	 * Extracts the literal strings of at least three characters which every match of the given
+	 * regular expression must contain. The analysis is conservative: constructs which are not
+	 * understood only end the current literal.
+	 *
+	 * @return The literals, empty if the expression can't be narrowed (alternations, flags)
+	 */
+	public static List<String> getLiterals(String regex) {
+		List<String> none = new ArrayList<String>();
+		if (regex.indexOf('|') >= 0 || regex.indexOf("(?") >= 0) {
+			return none;
+		}
+		// literals of the enclosing groups, the current group is the last one
+		List<List<String>> groups = new ArrayList<List<String>>();
+		groups.add(new ArrayList<String>());
+		StringBuilder run = new StringBuilder();
+		int n = regex.length();
+		int i = 0;
+		while (i < n) {
+			char c = regex.charAt(i++);
+			List<String> group = groups.get(groups.size() - 1);
+			switch (c) {
+			case '\\':
+				if (i == n) {
+					return none;
+				}
+				char next = regex.charAt(i++);
+				if (next == 'Q') {
+					int end = regex.indexOf("\\E", i);
+					if (end < 0) {
+						end = n;
+					}
+					run.append(regex, i, end);
+					i = Math.min(n, end + 2);
+				} else if (Character.isLetterOrDigit(next)) {
+					// character class, back reference, anchor or control character
+					endRun(run, group);
+				} else {
+					run.append(next);
+				}
+				break;
+			case '[':
+				endRun(run, group);
+				i = skipClass(regex, i);
+				break;
+			case '*':
+			case '?':
+			case '{':
+				// the previous character is optional
+				if (run.length() > 0) {
+					run.setLength(run.length() - 1);
+				}
+				endRun(run, group);
+				if (c == '{') {
+					int end = regex.indexOf('}', i);
+					i = end < 0 ? n : end + 1;
+				}
+				break;
+			case '+':
+				endRun(run, group);
+				break;
+			case '(':
+				endRun(run, group);
+				groups.add(new ArrayList<String>());
+				break;
+			case ')':
+				endRun(run, group);
+				if (groups.size() > 1) {
+					groups.remove(groups.size() - 1);
+					char quantifier = i < n ? regex.charAt(i) : 0;
+					if (quantifier != '*' && quantifier != '?' && quantifier != '{') {
+						groups.get(groups.size() - 1).addAll(group);
+					}
+				}
+				break;
+			case '.':
+			case '^':
+			case '$':
+				endRun(run, group);
+				break;
+			default:
+				run.append(c);
+			}
+		}
+		List<String> literals = groups.get(groups.size() - 1);
+		endRun(run, literals);
+		if (groups.size() > 1) {
+			// unbalanced
+			return none;
+		}
+		return literals;
+	}
+
+	/**
+	 * @return The index, or null if the file doesn't exist or isn't a valid index
+	 */
+	public static TrigramIndex read(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				file), 64 * 1024));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			TrigramIndex index = new TrigramIndex();
+			index.revision = in.readInt();
+			index.node = in.readUTF();
+			int numPaths = in.readInt();
+			for (int i = 0; i < numPaths; i++) {
+				index.getPathId(in.readUTF());
+			}
+			for (int i = in.readInt(); i > 0; i--) {
+				index.unindexed.set(in.readInt());
+			}
+			for (int k = in.readInt(); k > 0; k--) {
+				int trigram = in.readInt();
+				int size = in.readInt();
+				int[] ids = new int[size];
+				int id = 0;
+				for (int i = 0; i < size; i++) {
+					id += readVarInt(in);
+					ids[i] = id;
+				}
+				int slot = index.findSlot(trigram);
+				index.keys[slot] = trigram + 1;
+				index.postings[slot] = ids;
+				index.postingSizes[slot] = size;
+				index.numKeys++;
+				index.ensureCapacity();
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the index to a temporary file first and replaces the given file with it
+	 */
+	public void write(File file) throws IOException {
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 64 * 1024));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(revision);
+			out.writeUTF(node);
+			out.writeInt(paths.size());
+			for (String path : paths) {
+				out.writeUTF(path);
+			}
+			out.writeInt(unindexed.cardinality());
+			for (int id = unindexed.nextSetBit(0); id >= 0; id = unindexed.nextSetBit(id + 1)) {
+				out.writeInt(id);
+			}
+			out.writeInt(numKeys);
+			for (int slot = 0; slot < keys.length; slot++) {
+				if (keys[slot] == 0) {
+					continue;
+				}
+				out.writeInt(keys[slot] - 1);
+				int size = postingSizes[slot];
+				int[] ids = postings[slot];
+				out.writeInt(size);
+				int last = 0;
+				for (int i = 0; i < size; i++) {
+					writeVarInt(out, ids[i] - last);
+					last = ids[i];
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Failed to write " + file);
+			}
+		}
+	}
+
+	private int getPathId(String path) {
+		Integer id = pathIds.get(path);
+		if (id == null) {
+			id = Integer.valueOf(paths.size());
+			paths.add(path);
+			pathIds.put(path, id);
+		}
+		return id.intValue();
+	}
+
+	private void addPosting(int trigram, int pathId) {
+		int slot = findSlot(trigram);
+		if (keys[slot] == 0) {
+			keys[slot] = trigram + 1;
+			postings[slot] = new int[] { pathId };
+			postingSizes[slot] = 1;
+			numKeys++;
+			ensureCapacity();
+			return;
+		}
+		int[] ids = postings[slot];
+		int size = postingSizes[slot];
+		// new paths get the highest id, so this is usually an append
+		int pos = size > 0 && ids[size - 1] < pathId ? size : lowerBound(ids, size, pathId);
+		if (pos < size && ids[pos] == pathId) {
+			return;
+		}
+		if (size == ids.length) {
+			int[] newIds = new int[size + (size >> 1) + 1];
+			System.arraycopy(ids, 0, newIds, 0, size);
+			ids = newIds;
+			postings[slot] = ids;
+		}
+		System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+		ids[pos] = pathId;
+		postingSizes[slot] = size + 1;
+	}
+
+	/**
+	 * @return index of the first of the first size ids which is not less than the given id, or
+	 *         size if there is none
+	 */
+	private static int lowerBound(int[] ids, int size, int id) {
+		// Arrays.binarySearch with a range needs Java 6
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (ids[mid] < id) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return The slot of the trigram or -1
+	 */
+	private int find(int trigram) {
+		int slot = findSlot(trigram);
+		return keys[slot] == 0 ? -1 : slot;
+	}
+
+	/**
+	 * @return The slot of the trigram or the free slot it would go to
+	 */
+	private int findSlot(int trigram) {
+		int mask = keys.length - 1;
+		int slot = (trigram * 0x9E3779B9 >>> 8) & mask;
+		while (keys[slot] != 0 && keys[slot] != trigram + 1) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Doubles the table if it is more than half full
+	 */
+	private void ensureCapacity() {
+		if (numKeys * 2 <= keys.length) {
+			return;
+		}
+		int[] oldKeys = keys;
+		int[][] oldPostings = postings;
+		int[] oldSizes = postingSizes;
+		keys = new int[oldKeys.length * 2];
+		postings = new int[keys.length][];
+		postingSizes = new int[keys.length];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int slot = findSlot(oldKeys[i] - 1);
+				keys[slot] = oldKeys[i];
+				postings[slot] = oldPostings[i];
+				postingSizes[slot] = oldSizes[i];
+			}
+		}
+	}
+
+	/**
+	 * Removes the ids from result which are not in ids
+	 *
+	 * @return The new size of result
+	 */
+	private static int intersect(int[] result, int resultSize, int[] ids, int size) {
+		int count = 0;
+		int j = 0;
+		for (int i = 0; i < resultSize && j < size; i++) {
+			int id = result[i];
+			while (j < size && ids[j] < id) {
+				j++;
+			}
+			if (j < size && ids[j] == id) {
+				result[count++] = id;
+			}
+		}
+		return count;
+	}
+
+	private static void endRun(StringBuilder run, List<String> literals) {
+		if (run.length() >= 3) {
+			literals.add(run.toString());
+		}
+		run.setLength(0);
+	}
+
+	/**
+	 * @param start
+	 *            Index after the opening bracket
+	 * @return The index after the closing bracket
+	 */
+	private static int skipClass(String regex, int start) {
+		int i = start;
+		int n = regex.length();
+		// a leading ] (after an optional ^) is a literal
+		if (i < n && regex.charAt(i) == '^') {
+			i++;
+		}
+		if (i < n && regex.charAt(i) == ']') {
+			i++;
+		}
+		while (i < n) {
+			char c = regex.charAt(i++);
+			if (c == '\\') {
+				i++;
+			} else if (c == '[') {
+				i = skipClass(regex, i);
+			} else if (c == ']') {
+				return i;
+			}
+		}
+		return n;
+	}
+
+	private static boolean isBinary(byte[] content, int length) {
+		for (int i = Math.min(length, BINARY_CHECK_LENGTH) - 1; i >= 0; i--) {
+			if (content[i] == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int lower(int b) {
+		b &= 0xff;
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed index");
+	}
+}
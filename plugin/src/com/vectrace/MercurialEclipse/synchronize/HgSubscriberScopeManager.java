@@ -15,7 +15,6 @@ import java.util.Observable;
 import java.util.Observer;
 import java.util.Set;
 
-import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.mapping.ResourceMapping;
 import org.eclipse.core.runtime.CoreException;
@@ -32,6 +31,7 @@ import org.eclipse.ui.IPropertyListener;
 import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
 import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.team.MercurialTeamProvider;
+import com.vectrace.MercurialEclipse.team.cache.CacheChangeEvent;
 import com.vectrace.MercurialEclipse.team.cache.IncomingChangesetCache;
 import com.vectrace.MercurialEclipse.team.cache.LocalChangesetCache;
 import com.vectrace.MercurialEclipse.team.cache.MercurialStatusCache;
@@ -80,19 +80,16 @@ public class HgSubscriberScopeManager extends SubscriberScopeManager implements
 	}
 
 	public void update(Observable o, Object arg) {
-		if(!(arg instanceof Set<?>)){
+		if(!(arg instanceof CacheChangeEvent)){
 			return;
 		}
 		Set<ISubscriberChangeEvent> changeEvents = new HashSet<ISubscriberChangeEvent>();
-		Set<?> resources = (Set<?>) arg;
+		CacheChangeEvent event = (CacheChangeEvent) arg;
+		Set<IResource> resources = event.getResources();
 		IResource[] roots = getSubscriber().roots();
 		boolean projectRefresh = false;
 		int flags = ISubscriberChangeEvent.SYNC_CHANGED;
-		for (Object res : resources) {
-			if(!(res instanceof IResource)) {
-				continue;
-			}
-			IResource resource = (IResource) res;
+		for (IResource resource : resources) {
 			for (IResource root : roots) {
 				if(root.contains(resource)) {
 					if(!projectRefresh && resource.contains(root)){
@@ -112,7 +109,7 @@ public class HgSubscriberScopeManager extends SubscriberScopeManager implements
 
 		// XXX check the usage of the arguments set. Now it may contain more then one project
 		// in the set. Hovewer, we may refresh too much here...
-		if(projectRefresh && (resources.size() == 1 || containsOnlyProjects(resources))){
+		if(projectRefresh && (resources.size() == 1 || event.containsOnlyProjects())){
 			// we must sync the data for the project
 
 			if(MercurialEclipsePlugin.getDefault().isDebugging()) {
@@ -139,15 +136,6 @@ public class HgSubscriberScopeManager extends SubscriberScopeManager implements
 		}
 	}
 
-	private static boolean containsOnlyProjects(Set<?> resources) {
-		for (Object object : resources) {
-			if(!(object instanceof IProject)) {
-				return false;
-			}
-		}
-		return true;
-	}
-
 	@Override
 	public void dispose() {
 		if(disposed){
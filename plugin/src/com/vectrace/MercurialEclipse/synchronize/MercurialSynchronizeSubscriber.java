@@ -17,10 +17,10 @@ import static com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConst
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -62,6 +62,7 @@ import com.vectrace.MercurialEclipse.team.cache.MercurialStatusCache;
 import com.vectrace.MercurialEclipse.team.cache.OutgoingChangesetCache;
 import com.vectrace.MercurialEclipse.utils.Bits;
 import com.vectrace.MercurialEclipse.utils.BranchUtils;
+import com.vectrace.MercurialEclipse.utils.Pair;
 import com.vectrace.MercurialEclipse.utils.ResourceUtils;
 
 public class MercurialSynchronizeSubscriber extends Subscriber /*implements Observer*/ {
@@ -139,7 +140,8 @@ public class MercurialSynchronizeSubscriber extends Subscriber /*implements Obse
 	}
 
 	static SyncInfo getSyncInfo(IFile file, HgRoot root, String currentBranch, IHgRepositoryLocation repo) {
-		JHgChangeSet csOutgoing = getNewestOutgoing(file, currentBranch, repo);
+		SyncStateTable.Entry entry = SyncStateTable.get(root, repo, currentBranch).get(root, file);
+		JHgChangeSet csOutgoing = entry != null ? entry.getNewestOutgoing() : null;
 		HgFile outgoingIStorage;
 		IResourceVariant outgoing;
 		// determine outgoing revision
@@ -183,7 +185,7 @@ public class MercurialSynchronizeSubscriber extends Subscriber /*implements Obse
 		}
 
 		// determine incoming revision get newest incoming changeset
-		JHgChangeSet csIncoming = getNewestIncoming(file, currentBranch, repo);
+		JHgChangeSet csIncoming = entry != null ? entry.getNewestIncoming() : null;
 		HgFile incomingIStorage;
 		int syncMode = -1;
 		if (csIncoming != null) {
@@ -210,15 +212,14 @@ public class MercurialSynchronizeSubscriber extends Subscriber /*implements Obse
 
 			// TODO validate if code below fixes the issue 10486
 			try {
-				SortedSet<JHgChangeSet> sets = OUTGOING_CACHE.hasChangeSets(file, repo, currentBranch);
-				int size = sets.size();
+				int size = entry != null ? entry.getOutgoingCount() : 0;
 
 				// case where we have one outgoung changeset AND one not committed change
 				if(size == 1 && !Bits.contains(sMask, MercurialStatusCache.BIT_CLEAN)){
 					size++;
 				}
 				if(size > 1){
-					ChangeSet first = sets.first();
+					ChangeSet first = entry.getFirstOutgoing();
 					String[] parents = first.getParents();
 					String parentCs = null;
 					if(parents.length > 0){
@@ -281,28 +282,6 @@ public class MercurialSynchronizeSubscriber extends Subscriber /*implements Obse
 		}
 	}
 
-	private static JHgChangeSet getNewestOutgoing(IFile file, String currentBranch,
-			IHgRepositoryLocation repo) {
-		JHgChangeSet csOutgoing = null;
-
-		SortedSet<JHgChangeSet> changeSets = OUTGOING_CACHE.hasChangeSets(file, repo, currentBranch);
-		if (!changeSets.isEmpty()) {
-			csOutgoing = changeSets.last();
-		}
-
-		return csOutgoing;
-	}
-
-	private static JHgChangeSet getNewestIncoming(IFile file, String currentBranch,
-			IHgRepositoryLocation repo) {
-		JHgChangeSet csIncoming = null;
-		SortedSet<JHgChangeSet> changeSets = INCOMING_CACHE.hasChangeSets(file, repo, currentBranch);
-		if (!changeSets.isEmpty()) {
-			csIncoming = changeSets.last();
-		}
-		return csIncoming;
-	}
-
 	/**
 	 * Avoid calculation of added/removed states, as this costs us a HUGE performance
 	 * overhead for bigger repositories of many changesets (>1000) at once (see issue #10646).
@@ -318,15 +297,12 @@ public class MercurialSynchronizeSubscriber extends Subscriber /*implements Obse
 		Integer status = STATUS_CACHE.getStatus(file);
 		int sMask = status != null? status.intValue() : 0;
 		boolean changedLocal = !Bits.contains(sMask, MercurialStatusCache.BIT_CLEAN);
-		SortedSet<JHgChangeSet> changeSets = null;
+		SyncStateTable.Entry entry = SyncStateTable.get(root, repo, currentBranch).get(root, file);
 		if(!changedLocal){
-			changeSets = OUTGOING_CACHE.hasChangeSets(file, repo, currentBranch);
-			changedLocal = hasChanges(file, changeSets);
+			changedLocal = entry != null && entry.getNewestOutgoing() != null;
 		}
 
-		changeSets = INCOMING_CACHE.hasChangeSets(file, repo, currentBranch);
-
-		boolean changedRemote = hasChanges(file, changeSets);
+		boolean changedRemote = entry != null && entry.getNewestIncoming() != null;
 		if(!changedLocal && !changedRemote){
 			return null;
 		}
@@ -353,18 +329,6 @@ public class MercurialSynchronizeSubscriber extends Subscriber /*implements Obse
 		return ((DelayedSyncInfo) info).getDiff();
 	}
 
-	private static boolean hasChanges(IFile file, SortedSet<JHgChangeSet> changeSets) {
-		if(changeSets == null || changeSets.isEmpty()){
-			return false;
-		}
-		for (ChangeSet cs : changeSets) {
-			if(cs.contains(file)){
-				return true;
-			}
-		}
-		return false;
-	}
-
 	private boolean isInteresting(IResource resource) {
 		return resource instanceof IFile
 				&& MercurialTeamProvider.isHgTeamProviderFor(resource.getProject())
@@ -457,6 +421,8 @@ public class MercurialSynchronizeSubscriber extends Subscriber /*implements Obse
 			CACHE_SEMA.release();
 		}
 
+		// one task per root and remote location, with all projects of the root
+		Map<Pair<HgRoot, IHgRepositoryLocation>, RemoteRefreshTask> tasks = new LinkedHashMap<Pair<HgRoot, IHgRepositoryLocation>, RemoteRefreshTask>();
 		for (IProject project : projects) {
 			IHgRepositoryLocation repositoryLocation = getScope().getRepositoryLocation(project);
 
@@ -469,42 +435,48 @@ public class MercurialSynchronizeSubscriber extends Subscriber /*implements Obse
 			if(repositoryLocation.isLocal() && hgRoot.equals(repositoryLocation)) {
 				continue;
 			}
-			monitor.beginTask(getName(), 2);
-			boolean forceRefresh = project.exists();
-			String syncBranch = getSyncBranch(hgRoot);
+			Pair<HgRoot, IHgRepositoryLocation> key = new Pair<HgRoot, IHgRepositoryLocation>(hgRoot, repositoryLocation);
+			RemoteRefreshTask task = tasks.get(key);
+			if(task == null) {
+				task = new RemoteRefreshTask(hgRoot, repositoryLocation, getSyncBranch(hgRoot), flag,
+						resourcesToRefresh != null);
+				tasks.put(key, task);
+			}
+			task.projects.add(project);
+		}
+		if(tasks.isEmpty()) {
+			return;
+		}
 
+		monitor.beginTask(getName(), tasks.size() + 2);
+		try {
+			CACHE_SEMA.acquire();
 			try {
-				CACHE_SEMA.acquire();
-				if(DEBUG) {
-					System.out.println("going to refresh local/in/out: " + project + ", depth: " + flag);
-				}
-				if (monitor.isCanceled()) {
-					return;
-				}
-				monitor.subTask(Messages.getString("MercurialSynchronizeSubscriber.refreshingOutgoing")); //$NON-NLS-1$
-				refreshOutgoing(flag, resourcesToRefresh, project, repositoryLocation, forceRefresh, syncBranch);
-				monitor.worked(1);
-				if (monitor.isCanceled()) {
-					return;
-				}
-				monitor.subTask(Messages.getString("MercurialSynchronizeSubscriber.refreshingIncoming")); //$NON-NLS-1$
-				refreshIncoming(flag, resourcesToRefresh, project, repositoryLocation, forceRefresh, syncBranch);
-				monitor.worked(1);
 				if (monitor.isCanceled()) {
 					return;
 				}
-			} catch (HgException e) {
-				throw new TeamException(new Status(IStatus.INFO, MercurialEclipsePlugin.ID,
-						Messages.getString("MercurialSynchronizeSubscriber.connectError")));
-			} catch (InterruptedException e) {
-				MercurialEclipsePlugin.logError(e);
+				RootTaskRunner.run(new ArrayList<RemoteRefreshTask>(tasks.values()), monitor,
+						Messages.getString("MercurialSynchronizeSubscriber.refreshingRemote")); //$NON-NLS-1$
 			} finally {
 				CACHE_SEMA.release();
 			}
+		} catch (HgException e) {
+			throw new TeamException(new Status(IStatus.INFO, MercurialEclipsePlugin.ID,
+					Messages.getString("MercurialSynchronizeSubscriber.connectError")));
+		} catch (InterruptedException e) {
+			MercurialEclipsePlugin.logError(e);
+		}
+		if (monitor.isCanceled()) {
+			return;
+		}
 
 		// we need to send events only if WE trigger status update, not if the refresh
 		// is called from the framework (like F5 hit by user)
 		if(resourcesToRefresh != null){
+			// merged in the order of the projects, not in the order the tasks finished
+			for (RemoteRefreshTask task : tasks.values()) {
+				resourcesToRefresh.addAll(task.members);
+			}
 			List<ISubscriberChangeEvent> changeEvents = createEvents(resources, resourcesToRefresh);
 			monitor.worked(1);
 			if (monitor.isCanceled()) {
@@ -517,6 +489,42 @@ public class MercurialSynchronizeSubscriber extends Subscriber /*implements Obse
 			monitor.worked(1);
 		}
 		monitor.done();
+	}
+
+	/**
+	 * Fetches the incoming and outgoing changesets of all projects of a root from one remote
+	 * location
+	 */
+	private static final class RemoteRefreshTask extends RootTaskRunner.RootTask {
+		private final IHgRepositoryLocation repo;
+		private final String branch;
+		private final int flag;
+		private final List<IProject> projects = new ArrayList<IProject>();
+
+		/** the changed members, null if not needed */
+		private final Set<IResource> members;
+
+		RemoteRefreshTask(HgRoot root, IHgRepositoryLocation repo, String branch, int flag,
+				boolean collectMembers) {
+			super(root);
+			this.repo = repo;
+			this.branch = branch;
+			this.flag = flag;
+			members = collectMembers ? new HashSet<IResource>() : null;
+		}
+
+		@Override
+		void run() throws HgException {
+			for (IProject project : projects) {
+				if(DEBUG) {
+					System.out.println("going to refresh local/in/out: " + project + ", depth: " + flag);
+				}
+				boolean forceRefresh = project.exists();
+				refreshOutgoing(flag, members, project, repo, forceRefresh, branch);
+				refreshIncoming(flag, members, project, repo, forceRefresh, branch);
+			}
+			// build the sync state once, before the view asks for the files
+			SyncStateTable.get(getRoot(), repo, branch);
 		}
 	}
 
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.synchronize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.jobs.IJobManager;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.Job;
+
+import com.vectrace.MercurialEclipse.exception.HgException;
+import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.team.cache.HgRootRule;
+
+/**
+ * Runs tasks on several hg roots in parallel, e.g. the requests to the remote repositories of a
+ * synchronize refresh, so the refresh takes about the time of the slowest repository instead of
+ * the sum of all.
+ * <p>
+ * At most {@link #MAX_THREADS} tasks run at the same time. Each task runs with the
+ * {@link HgRootRule} of its root, so tasks of the same root run one after another and never in
+ * parallel with other jobs on the root. The progress is reported from the calling thread only,
+ * and failures are reported in the order of the tasks, independent of the order they finish.
+ */
+final class RootTaskRunner {
+
+	private static final int MAX_THREADS = 4;
+
+	/** interval to check the monitor while waiting for the tasks */
+	private static final long POLL_INTERVAL = 100;
+
+	/**
+	 * Work on one hg root
+	 */
+	abstract static class RootTask {
+		private final HgRoot root;
+
+		RootTask(HgRoot root) {
+			this.root = root;
+		}
+
+		HgRoot getRoot() {
+			return root;
+		}
+
+		/**
+		 * Runs in a worker thread, with the rule of the root
+		 */
+		abstract void run() throws HgException;
+	}
+
+	private RootTaskRunner() {
+		// static only
+	}
+
+	/**
+	 * Runs all tasks and waits until they are done. Reports one unit of work per task to the
+	 * monitor. If the monitor is cancelled, tasks not started yet are skipped, and the running
+	 * ones are interrupted, which cancels their hg commands. The method returns only after all
+	 * tasks have stopped, so the caller can release the resources the tasks use.
+	 *
+	 * @throws HgException
+	 *             the failure of the first failed task in the list, after all tasks are done
+	 */
+	static void run(List<? extends RootTask> tasks, IProgressMonitor monitor, String taskName)
+			throws HgException {
+		if (tasks.size() < 2 || holdsConflictingRule(tasks)) {
+			// nothing to win, or the workers would wait for the rule held by the caller
+			for (RootTask task : tasks) {
+				if (monitor.isCanceled()) {
+					return;
+				}
+				task.run();
+				monitor.worked(1);
+			}
+			return;
+		}
+
+		final AtomicInteger done = new AtomicInteger();
+		final AtomicBoolean canceled = new AtomicBoolean();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_THREADS,
+				tasks.size()));
+		try {
+			List<Future<Object>> futures = new ArrayList<Future<Object>>(tasks.size());
+			for (final RootTask task : tasks) {
+				futures.add(executor.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						try {
+							runWithRule(task, canceled);
+						} finally {
+							done.incrementAndGet();
+						}
+						return null;
+					}
+				}));
+			}
+
+			int reported = 0;
+			HgException failure = null;
+			for (Future<Object> future : futures) {
+				while (true) {
+					reported = report(monitor, taskName, done.get(), reported, tasks.size());
+					if (monitor.isCanceled()) {
+						cancel(executor, canceled);
+						return;
+					}
+					try {
+						future.get(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+						break;
+					} catch (TimeoutException e) {
+						// check the monitor again
+					} catch (InterruptedException e) {
+						cancel(executor, canceled);
+						Thread.currentThread().interrupt();
+						return;
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						if (cause instanceof RuntimeException) {
+							throw (RuntimeException) cause;
+						}
+						if (cause instanceof Error) {
+							throw (Error) cause;
+						}
+						if (failure == null) {
+							failure = cause instanceof HgException ? (HgException) cause
+									: new HgException(cause.getMessage(), cause);
+						}
+						break;
+					}
+				}
+			}
+			report(monitor, taskName, done.get(), reported, tasks.size());
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Skips the tasks not started yet, interrupts the running ones and waits until they are done
+	 */
+	private static void cancel(ExecutorService executor, AtomicBoolean canceled) {
+		canceled.set(true);
+		// an interrupted command job cancels its hg command
+		executor.shutdownNow();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (executor.awaitTermination(POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void runWithRule(RootTask task, final AtomicBoolean canceled)
+			throws HgException {
+		if (canceled.get()) {
+			return;
+		}
+		IJobManager jobManager = Job.getJobManager();
+		ISchedulingRule rule = new HgRootRule(task.getRoot());
+		try {
+			// stop waiting for the rule on cancel
+			jobManager.beginRule(rule, new NullProgressMonitor() {
+				@Override
+				public boolean isCanceled() {
+					return canceled.get();
+				}
+			});
+			if (!canceled.get()) {
+				task.run();
+			}
+		} finally {
+			jobManager.endRule(rule);
+		}
+	}
+
+	private static boolean holdsConflictingRule(List<? extends RootTask> tasks) {
+		ISchedulingRule current = Job.getJobManager().currentRule();
+		if (current == null) {
+			return false;
+		}
+		for (RootTask task : tasks) {
+			ISchedulingRule rule = new HgRootRule(task.getRoot());
+			if (rule.isConflicting(current) || current.isConflicting(rule)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of tasks reported as done
+	 */
+	private static int report(IProgressMonitor monitor, String taskName, int done, int reported,
+			int total) {
+		if (done > reported) {
+			monitor.subTask(taskName + " (" + done + "/" + total + ")");
+			monitor.worked(done - reported);
+		}
+		return Math.max(done, reported);
+	}
+}
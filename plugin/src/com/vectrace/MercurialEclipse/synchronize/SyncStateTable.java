@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.synchronize;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.IPath;
+
+import com.vectrace.MercurialEclipse.model.FileStatus;
+import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.model.IHgRepositoryLocation;
+import com.vectrace.MercurialEclipse.model.JHgChangeSet;
+import com.vectrace.MercurialEclipse.team.cache.IncomingChangesetCache;
+import com.vectrace.MercurialEclipse.team.cache.OutgoingChangesetCache;
+import com.vectrace.MercurialEclipse.team.cache.RemoteData;
+import com.vectrace.MercurialEclipse.team.cache.RemoteKey;
+
+/**
+ * The incoming and outgoing changesets of each file of a root, for one repository and branch.
+ * <p>
+ * Computed in one pass over the changesets cached by the {@link IncomingChangesetCache} and the
+ * {@link OutgoingChangesetCache}, so looking up the changesets of a file doesn't have to walk all
+ * changesets again. A table is immutable and replaced as soon as the cached data it was built
+ * from is replaced, so it can be used by concurrent callers without locking. Tables built from
+ * data the caches don't hold any more are dropped on the next change of the caches.
+ */
+final class SyncStateTable {
+
+	private static final SyncStateTable EMPTY = new SyncStateTable(null, null);
+
+	/** the last table built for each key */
+	private static final ConcurrentMap<RemoteKey, SyncStateTable> TABLES = new ConcurrentHashMap<RemoteKey, SyncStateTable>();
+
+	static {
+		Observer pruner = new Observer() {
+			public void update(Observable o, Object arg) {
+				prune();
+			}
+		};
+		IncomingChangesetCache.getInstance().addObserver(pruner);
+		OutgoingChangesetCache.getInstance().addObserver(pruner);
+	}
+
+	/** the data the table was built from, may be null */
+	private final RemoteData incoming;
+	private final RemoteData outgoing;
+
+	/** root relative path -> entry */
+	private final Map<IPath, Entry> entries;
+
+	/**
+	 * The changesets of one file
+	 */
+	static final class Entry {
+		private JHgChangeSet newestIncoming;
+		private JHgChangeSet firstOutgoing;
+		private JHgChangeSet newestOutgoing;
+		private int outgoingCount;
+
+		/**
+		 * @return the newest incoming changeset changing the file, may be null
+		 */
+		JHgChangeSet getNewestIncoming() {
+			return newestIncoming;
+		}
+
+		/**
+		 * @return the oldest outgoing changeset changing the file, may be null
+		 */
+		JHgChangeSet getFirstOutgoing() {
+			return firstOutgoing;
+		}
+
+		/**
+		 * @return the newest outgoing changeset changing the file, may be null
+		 */
+		JHgChangeSet getNewestOutgoing() {
+			return newestOutgoing;
+		}
+
+		/**
+		 * @return the number of outgoing changesets changing the file
+		 */
+		int getOutgoingCount() {
+			return outgoingCount;
+		}
+	}
+
+	private SyncStateTable(RemoteData incoming, RemoteData outgoing) {
+		this.incoming = incoming;
+		this.outgoing = outgoing;
+		if (incoming == null && outgoing == null) {
+			entries = Collections.emptyMap();
+			return;
+		}
+		entries = new HashMap<IPath, Entry>();
+		if (outgoing != null) {
+			// ascending order: the last one is the newest
+			for (JHgChangeSet cs : outgoing.getChangeSets()) {
+				for (FileStatus fs : cs.getChangedFiles()) {
+					Entry entry = getOrCreate(fs.getRootRelativePath());
+					if (entry.firstOutgoing == null) {
+						entry.firstOutgoing = cs;
+					}
+					entry.newestOutgoing = cs;
+					entry.outgoingCount++;
+				}
+			}
+		}
+		if (incoming != null) {
+			for (JHgChangeSet cs : incoming.getChangeSets()) {
+				for (FileStatus fs : cs.getChangedFiles()) {
+					getOrCreate(fs.getRootRelativePath()).newestIncoming = cs;
+				}
+			}
+		}
+	}
+
+	private Entry getOrCreate(IPath path) {
+		Entry entry = entries.get(path);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(path, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the table for the currently cached data, building it if the data has changed since
+	 * the last call. Never fetches data and never waits for the caches.
+	 *
+	 * @param branch
+	 *            the synchronized branch, or null for all branches
+	 * @return never null
+	 */
+	static SyncStateTable get(HgRoot root, IHgRepositoryLocation repo, String branch) {
+		RemoteKey key = new RemoteKey(root, repo, branch);
+		RemoteData in = IncomingChangesetCache.getInstance().getCachedData(key);
+		RemoteData out = OutgoingChangesetCache.getInstance().getCachedData(key);
+		if (in == null && out == null) {
+			TABLES.remove(key);
+			return EMPTY;
+		}
+		SyncStateTable table = TABLES.get(key);
+		if (table == null || table.incoming != in || table.outgoing != out) {
+			// concurrent builders compute the same table, the last one wins
+			table = new SyncStateTable(in, out);
+			TABLES.put(key, table);
+			// the caches may have been cleared without a notification
+			prune();
+		}
+		return table;
+	}
+
+	/**
+	 * Removes the tables which are not built from the currently cached data
+	 */
+	private static void prune() {
+		for (Iterator<Map.Entry<RemoteKey, SyncStateTable>> it = TABLES.entrySet().iterator(); it
+				.hasNext();) {
+			Map.Entry<RemoteKey, SyncStateTable> mapEntry = it.next();
+			RemoteKey key = mapEntry.getKey();
+			SyncStateTable table = mapEntry.getValue();
+			if (table.incoming != IncomingChangesetCache.getInstance().getCachedData(key)
+					|| table.outgoing != OutgoingChangesetCache.getInstance().getCachedData(key)) {
+				// not if it was replaced in between
+				TABLES.remove(key, table);
+			}
+		}
+	}
+
+	/**
+	 * @return the changesets of the file, or null if there are no incoming or outgoing changesets
+	 *         changing it
+	 */
+	Entry get(HgRoot root, IFile file) {
+		if (entries.isEmpty()) {
+			return null;
+		}
+		return entries.get(root.getRelativePath(file));
+	}
+}
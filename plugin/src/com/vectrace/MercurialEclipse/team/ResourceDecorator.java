@@ -21,6 +21,9 @@ import java.util.HashSet;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IProject;
@@ -35,6 +38,7 @@ import org.eclipse.jface.viewers.ILightweightLabelDecorator;
 import org.eclipse.jface.viewers.LabelProvider;
 import org.eclipse.jface.viewers.LabelProviderChangedEvent;
 import org.eclipse.swt.widgets.Display;
+import org.eclipse.ui.IPropertyListener;
 import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.themes.ITheme;
 import org.eclipse.ui.themes.IThemeManager;
@@ -49,6 +53,7 @@ import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.ChangeSet;
 import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants;
+import com.vectrace.MercurialEclipse.team.cache.CacheChangeEvent;
 import com.vectrace.MercurialEclipse.team.cache.IncomingChangesetCache;
 import com.vectrace.MercurialEclipse.team.cache.LocalChangesetCache;
 import com.vectrace.MercurialEclipse.team.cache.MercurialStatusCache;
@@ -61,7 +66,8 @@ import com.vectrace.MercurialEclipse.utils.StringUtils;
 /**
  * @author zingo
  */
-public class ResourceDecorator extends LabelProvider implements ILightweightLabelDecorator, Observer {
+public class ResourceDecorator extends LabelProvider implements ILightweightLabelDecorator, Observer,
+		LocalChangesetCache.RevisionListener {
 	private static final MercurialStatusCache STATUS_CACHE = MercurialStatusCache.getInstance();
 	private static final IncomingChangesetCache INCOMING_CACHE = IncomingChangesetCache.getInstance();
 	private static final LocalChangesetCache LOCAL_CACHE = LocalChangesetCache.getInstance();
@@ -111,12 +117,25 @@ public class ResourceDecorator extends LabelProvider implements ILightweightLabe
 	private boolean disposed;
 	private final IPropertyChangeListener themeListener;
 	private final IPropertyChangeListener prefsListener;
+	private final IPropertyListener branchListener;
 	private boolean showSummary;
 
+	/**
+	 * The root information shown on containers, computed once per {@link #generation} and shared
+	 * by all the containers of a root
+	 */
+	private final ConcurrentMap<HgRoot, RootSnapshot> snapshots = new ConcurrentHashMap<HgRoot, RootSnapshot>();
+
+	/**
+	 * Incremented whenever the caches report changes, invalidates all {@link #snapshots}
+	 */
+	private final AtomicInteger generation = new AtomicInteger();
+
 	public ResourceDecorator() {
 		configureFromPreferences();
 		STATUS_CACHE.addObserver(this);
 		INCOMING_CACHE.addObserver(this);
+		LOCAL_CACHE.addRevisionListener(this);
 		theme = PlatformUI.getWorkbench().getThemeManager().getCurrentTheme();
 		ensureFontAndColorsCreated(FONTS, COLORS);
 
@@ -140,6 +159,13 @@ public class ResourceDecorator extends LabelProvider implements ILightweightLabe
 			}
 		};
 		MercurialEclipsePlugin.getDefault().getPreferenceStore().addPropertyChangeListener(prefsListener);
+
+		branchListener = new IPropertyListener() {
+			public void propertyChanged(Object source, int propId) {
+				generation.incrementAndGet();
+			}
+		};
+		MercurialTeamProvider.addBranchListener(branchListener);
 	}
 
 
@@ -174,6 +200,9 @@ public class ResourceDecorator extends LabelProvider implements ILightweightLabe
 		disposed = true;
 		STATUS_CACHE.deleteObserver(this);
 		INCOMING_CACHE.deleteObserver(this);
+		LOCAL_CACHE.removeRevisionListener(this);
+		MercurialTeamProvider.removeBranchListener(branchListener);
+		snapshots.clear();
 		PlatformUI.getWorkbench().getThemeManager().removePropertyChangeListener(themeListener);
 		MercurialEclipsePlugin.getDefault().getPreferenceStore().removePropertyChangeListener(prefsListener);
 		super.dispose();
@@ -190,6 +219,7 @@ public class ResourceDecorator extends LabelProvider implements ILightweightLabe
 		showIncomingChangeset = store.getBoolean(RESOURCE_DECORATOR_SHOW_INCOMING_CHANGESET);
 		showSummary = store.getBoolean(RESOURCE_DECORATOR_SHOW_SUMMARY);
 		enableSubrepos = store.getBoolean(MercurialPreferenceConstants.PREF_ENABLE_SUBREPO_SUPPORT);
+		generation.incrementAndGet();
 	}
 
 	public void decorate(Object element, IDecoration d) {
@@ -421,22 +451,17 @@ public class ResourceDecorator extends LabelProvider implements ILightweightLabe
 	}
 
 	private String getSuffixForContainer(IContainer container) throws CoreException {
-		ChangeSet changeSet = null;
-
 		HgRoot root;
 		if(container instanceof IProject){
 			root = MercurialTeamProvider.getHgRoot(container);
-			if(root == null) {
-				return "";
-			}
-			changeSet = LOCAL_CACHE.getCurrentChangeSet(container);
 		}else{
 			root = AbstractClient.isHgRoot(container);
-			if(root == null) {
-				return "";
-			}
-			changeSet = LOCAL_CACHE.getCurrentChangeSet(root);
 		}
+		if(root == null) {
+			return "";
+		}
+		RootSnapshot snapshot = getSnapshot(root);
+		ChangeSet changeSet = snapshot.changeSet;
 
 		StringBuilder suffix = new StringBuilder();
 		if (changeSet == null) {
@@ -446,44 +471,27 @@ public class ResourceDecorator extends LabelProvider implements ILightweightLabe
 			String hex = changeSet.getNodeShort();
 			String tags = ChangeSetUtils.getPrintableTagsString(changeSet);
 			boolean merging = !StringUtils.isEmpty(STATUS_CACHE.getMergeChangesetId(container));
-			boolean bisecting = false;
-
-			// XXX should use map, as there can be 100 projects under the same root
-			if (HgBisectClient.isBisecting(root)) {
-				bisecting = true;
-			}
 
 			// branch
-			String branch = MercurialTeamProvider.getCurrentBranch(root);
-			if (branch.length() == 0) {
-				branch = BranchUtils.DEFAULT;
-			}
-			suffix.append(branch);
+			suffix.append(snapshot.branch);
 
 			// tags
 			if (tags.length() > 0) {
 				suffix.append('(').append(tags).append(')');
 			}
 
-			if (showSummary) {
+			if (snapshot.summary) {
 				boolean bDraftShown = false;
-				int n;
-				if (HgFeatures.PHASES.isEnabled()) {
-					n = HgLogClient.countChangesets(root, "draft()");
-
-					if (n > 0) {
-						bDraftShown = true;
-						suffix.append(" \u2191").append(n);
-					}
+				if (snapshot.drafts > 0) {
+					bDraftShown = true;
+					suffix.append(" \u2191").append(snapshot.drafts);
 				}
 
-				n = HgLogClient.numHeadsInBranch(root, branch);
-
-				if (n > 1) {
+				if (snapshot.heads > 1) {
 					if (bDraftShown) {
 						suffix.append(',');
 					}
-					suffix.append(' ').append(n).append(" heads");
+					suffix.append(' ').append(snapshot.heads).append(" heads");
 				}
 			}
 
@@ -494,8 +502,7 @@ public class ResourceDecorator extends LabelProvider implements ILightweightLabe
 
 			// merge flag
 			if (merging) {
-				// XXX should use map, as there can be 100 projects under the same root
-				if(HgRebaseClient.isRebasing(root)) {
+				if(snapshot.isRebasing()) {
 					suffix.append(Messages.getString("ResourceDecorator.rebasing"));
 				} else {
 					suffix.append(Messages.getString("ResourceDecorator.merging"));
@@ -503,7 +510,7 @@ public class ResourceDecorator extends LabelProvider implements ILightweightLabe
 			}
 
 			// bisect information
-			if (bisecting) {
+			if (snapshot.bisecting) {
 				suffix.append(" BISECTING");
 			}
 			suffix.append(']');
@@ -511,20 +518,46 @@ public class ResourceDecorator extends LabelProvider implements ILightweightLabe
 		return suffix.toString();
 	}
 
+	/**
+	 * @return The information about the root for the current cache generation, computed if the
+	 *         root wasn't decorated since the last change
+	 */
+	private RootSnapshot getSnapshot(HgRoot root) throws HgException {
+		int current = generation.get();
+		RootSnapshot snapshot = snapshots.get(root);
+		if (snapshot == null || snapshot.generation != current) {
+			// concurrent decorations of the same root may both compute it, that's harmless
+			snapshot = new RootSnapshot(root, current, showSummary);
+			snapshots.put(root, snapshot);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @see com.vectrace.MercurialEclipse.team.cache.LocalChangesetCache.RevisionListener#revisionsAdded(com.vectrace.MercurialEclipse.model.HgRoot,
+	 *      int[], int)
+	 */
+	public void revisionsAdded(HgRoot root, int[] revisions, int count) {
+		// number of drafts and heads may have changed
+		generation.incrementAndGet();
+	}
+
 	public static String getDecoratorId() {
 		String decoratorId = ResourceDecorator.class.getName();
 		return decoratorId;
 	}
 
-	@SuppressWarnings("unchecked")
 	public void update(Observable o, Object updatedObject) {
-		if (updatedObject instanceof Set<?>) {
-			Set<IResource> changed = (Set<IResource>) updatedObject;
-			if(changed.isEmpty()){
+		if (updatedObject instanceof CacheChangeEvent) {
+			CacheChangeEvent event = (CacheChangeEvent) updatedObject;
+			if(event.isEmpty()){
 				return;
 			}
-			if (changed.size() < 10) {
-				fireNotification(changed);
+			if (o == STATUS_CACHE) {
+				generation.incrementAndGet();
+			}
+			if (event.size() < 10) {
+				fireNotification(event.getResources());
 			} else {
 				// if we have a lot of updates, it's easier (faster) to ask clients to update themselves
 				// otherwise unneeded decorator updates may cause Eclipse to be busy for minutes, see issue #11928
@@ -536,7 +569,6 @@ public class ResourceDecorator extends LabelProvider implements ILightweightLabe
 	private void fireNotification(Set<IResource> notification) {
 		LabelProviderChangedEvent event = new LabelProviderChangedEvent(this, notification.toArray());
 		fireLabelProviderChanged(event);
-		notification.clear();
 	}
 
 	/**
@@ -554,4 +586,62 @@ public class ResourceDecorator extends LabelProvider implements ILightweightLabe
 		};
 		Display.getDefault().asyncExec(decoratorUpdate);
 	}
+
+	/**
+	 * The information shown on the containers of a root. Computing it takes several hg calls,
+	 * so it is shared by all the projects under the root.
+	 */
+	private static final class RootSnapshot {
+
+		final int generation;
+
+		/** working directory parent, null for a new repository */
+		final ChangeSet changeSet;
+
+		final String branch;
+
+		final boolean bisecting;
+
+		final boolean summary;
+
+		/** number of draft changesets, only computed for the summary */
+		final int drafts;
+
+		/** number of heads of the branch, only computed for the summary */
+		final int heads;
+
+		private final HgRoot root;
+
+		/** null until needed: only asked if a merge is in progress */
+		private volatile Boolean rebasing;
+
+		RootSnapshot(HgRoot root, int generation, boolean summary) throws HgException {
+			this.root = root;
+			this.generation = generation;
+			this.summary = summary;
+			changeSet = LOCAL_CACHE.getCurrentChangeSet(root);
+			bisecting = HgBisectClient.isBisecting(root);
+
+			String currentBranch = MercurialTeamProvider.getCurrentBranch(root);
+			branch = currentBranch.length() == 0 ? BranchUtils.DEFAULT : currentBranch;
+
+			if (summary && changeSet != null) {
+				drafts = HgFeatures.PHASES.isEnabled() ? HgLogClient.countChangesets(root,
+						"draft()") : 0;
+				heads = HgLogClient.numHeadsInBranch(root, branch);
+			} else {
+				drafts = 0;
+				heads = 0;
+			}
+		}
+
+		boolean isRebasing() {
+			Boolean result = rebasing;
+			if (result == null) {
+				result = Boolean.valueOf(HgRebaseClient.isRebasing(root));
+				rebasing = result;
+			}
+			return result.booleanValue();
+		}
+	}
 }
@@ -60,8 +60,27 @@ public abstract class AbstractCache extends Observable {
 
 	protected static final SortedSet<JHgChangeSet> EMPTY_SET = Collections.unmodifiableSortedSet(new TreeSet<JHgChangeSet>());
 
+	/** minimal time between two notifications of the observers, in milliseconds */
+	private static final long NOTIFY_INTERVAL = 250;
+
 	protected final boolean debug;
 
+	private final Object pendingLock = new Object();
+
+	/** resources changed since the last notification, guarded by {@link #pendingLock} */
+	private Set<IResource> pending = new HashSet<IResource>();
+
+	/** resources to notify with all members, guarded by {@link #pendingLock} */
+	private Set<IResource> pendingExpand = new HashSet<IResource>();
+
+	/** guarded by {@link #pendingLock} */
+	private boolean notifyScheduled;
+
+	/** guarded by {@link #pendingLock} */
+	private long lastNotify;
+
+	private final Job notifyJob = new NotifyJob();
+
 	public AbstractCache() {
 		super();
 		debug = MercurialEclipsePlugin.getDefault().isDebugging();
@@ -124,50 +143,104 @@ public abstract class AbstractCache extends Observable {
 	 */
 	protected void notifyChanged(final IResource resource, boolean expandMembers) {
 		final Set<IResource> resources = new HashSet<IResource>();
-		if(!expandMembers) {
-			resources.add(resource);
-		}
+		resources.add(resource);
 		notifyChanged(resources, expandMembers);
 	}
 
 	/**
-	 * Spawns an update job to notify all the clients about given resource changes
+	 * Spawns an update job to notify all the clients about given resource changes. The changes
+	 * are collected and passed to the observers as one {@link CacheChangeEvent}, at most once per
+	 * {@link #NOTIFY_INTERVAL}.
+	 *
 	 * @param resources non null
+	 * @param expandMembers true to notify about all the members of the given resources too
 	 */
 	protected void notifyChanged(final Set<IResource> resources, final boolean expandMembers) {
-		class ExclusiveRule implements ISchedulingRule {
-			public boolean contains(ISchedulingRule rule) {
-				return isConflicting(rule) || rule instanceof IResource || rule instanceof HgRootRule;
+		long delay;
+		synchronized (pendingLock) {
+			if (expandMembers) {
+				pendingExpand.addAll(resources);
+			} else {
+				pending.addAll(resources);
 			}
-			public boolean isConflicting(ISchedulingRule rule) {
-				return rule instanceof ExclusiveRule;
+			if (notifyScheduled) {
+				return;
 			}
+			notifyScheduled = true;
+			delay = Math.max(0, lastNotify + NOTIFY_INTERVAL - System.currentTimeMillis());
+		}
+		notifyJob.schedule(delay);
+	}
+
+	/**
+	 * Creates the event for the resources changed since the last notification. The default
+	 * reports all of them with {@link CacheChangeEvent#UNKNOWN} status, caches which know the
+	 * status of the resources should override it and drop unchanged ones.
+	 *
+	 * @param resources
+	 *            non null, the resources to report
+	 * @param expanded
+	 *            non null, the members of the resources notified with expandMembers = true
+	 * @return non null
+	 */
+	protected CacheChangeEvent createEvent(Set<IResource> resources, Set<IResource> expanded) {
+		CacheChangeEvent event = new CacheChangeEvent();
+		for (IResource resource : resources) {
+			event.add(resource, CacheChangeEvent.UNKNOWN, CacheChangeEvent.UNKNOWN);
 		}
-		Job job = new Job("hg cache clients update..."){
-			@Override
-			protected IStatus run(IProgressMonitor monitor) {
-				Set<IResource> set;
-				if(!expandMembers){
-					set = resources;
-				} else {
-					set = new HashSet<IResource>(resources);
-					for (IResource r : resources) {
-						if(monitor.isCanceled()){
-							return Status.CANCEL_STATUS;
-						}
-						set.addAll(ResourceUtils.getMembers(r));
-					}
+		for (IResource resource : expanded) {
+			event.add(resource, CacheChangeEvent.UNKNOWN, CacheChangeEvent.UNKNOWN);
+		}
+		return event;
+	}
+
+	/**
+	 * Passes the collected changes to the observers
+	 */
+	private class NotifyJob extends Job {
+
+		public NotifyJob() {
+			super("hg cache clients update...");
+			setRule(new ExclusiveRule());
+			setSystem(true);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			Set<IResource> resources;
+			Set<IResource> expand;
+			synchronized (pendingLock) {
+				resources = pending;
+				expand = pendingExpand;
+				pending = new HashSet<IResource>();
+				pendingExpand = new HashSet<IResource>();
+				notifyScheduled = false;
+				lastNotify = System.currentTimeMillis();
+			}
+			Set<IResource> expanded = new HashSet<IResource>();
+			for (IResource r : expand) {
+				if(monitor.isCanceled()){
+					return Status.CANCEL_STATUS;
 				}
+				expanded.addAll(ResourceUtils.getMembers(r));
+			}
+			CacheChangeEvent event = createEvent(resources, expanded);
+			if(!event.isEmpty()) {
 				setChanged();
-				notifyObservers(set);
-				return Status.OK_STATUS;
+				notifyObservers(event);
 			}
-		};
-		job.setRule(new ExclusiveRule());
-		job.setSystem(true);
-		job.schedule();
+			return Status.OK_STATUS;
+		}
 	}
 
+	private static class ExclusiveRule implements ISchedulingRule {
+		public boolean contains(ISchedulingRule rule) {
+			return isConflicting(rule) || rule instanceof IResource || rule instanceof HgRootRule;
+		}
+		public boolean isConflicting(ISchedulingRule rule) {
+			return rule instanceof ExclusiveRule;
+		}
+	}
 
 	@Override
 	public String toString() {
@@ -10,7 +10,12 @@
  *******************************************************************************/
 package com.vectrace.MercurialEclipse.team.cache;
 
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -18,6 +23,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
@@ -71,17 +77,44 @@ public abstract class AbstractRemoteCache extends AbstractCache {
 	 * Map hg root -> branch -> repo -> projects -> changeset
 	 */
 	protected final Map<HgRoot, Set<RemoteData>> repoDatas;
+
+	/** modified with the {@link #repoDatas} lock held only, but may be read without it */
 	protected final Map<RemoteKey, RemoteData> fastRepoMap;
 
 	protected final Direction direction;
 
+	/** incremented by each clear, guarded by {@link #repoDatas} */
+	private int clearCount;
+
+	/** key -> lock object held while the data of the key is loaded, guarded by itself */
+	private final Map<RemoteKey, Object> loadLocks = new HashMap<RemoteKey, Object>();
+
+	/**
+	 * Bundle files of replaced data, enqueued once the file object is collected. The file object
+	 * is shared by the data and all its changesets, so no client can use the bundle anymore then.
+	 */
+	private static final ReferenceQueue<File> RELEASED_BUNDLES = new ReferenceQueue<File>();
+
+	/** keeps the references of the released bundles until they are enqueued */
+	private static final Set<BundleReference> PENDING_BUNDLES = Collections
+			.synchronizedSet(new HashSet<BundleReference>());
+
+	private static final class BundleReference extends WeakReference<File> {
+		final String path;
+
+		BundleReference(File file) {
+			super(file, RELEASED_BUNDLES);
+			path = file.getPath();
+		}
+	}
+
 	/**
 	 * @param direction non null
 	 */
 	public AbstractRemoteCache(Direction direction) {
 		this.direction = direction;
 		repoDatas = new HashMap<HgRoot, Set<RemoteData>>();
-		fastRepoMap = new HashMap<RemoteKey, RemoteData>();
+		fastRepoMap = new ConcurrentHashMap<RemoteKey, RemoteData>();
 	}
 
 	/**
@@ -105,6 +138,7 @@ public abstract class AbstractRemoteCache extends AbstractCache {
 					}
 				}
 			}
+			clearCount++;
 			notifyChanged(repo, false);
 		}
 	}
@@ -119,6 +153,7 @@ public abstract class AbstractRemoteCache extends AbstractCache {
 				fastRepoMap.remove(data.getKey());
 			}
 			set.clear();
+			clearCount++;
 		}
 		if(notify) {
 			notifyChanged(root, false);
@@ -150,6 +185,7 @@ public abstract class AbstractRemoteCache extends AbstractCache {
 					fastRepoMap.remove(data.getKey());
 				}
 			}
+			clearCount++;
 		}
 		if(notify) {
 			notifyChanged(repo, false);
@@ -181,22 +217,7 @@ public abstract class AbstractRemoteCache extends AbstractCache {
 			return EMPTY_SET;
 		}
 		RemoteKey key = new RemoteKey(hgRoot, repository, branch);
-		synchronized (repoDatas){
-			RemoteData data = fastRepoMap.get(key);
-			if(data == null){
-				// lazy loading: refresh cache on demand only.
-				// lock the cache till update is complete
-				addResourcesToCache(key);
-				// XXX not sure if the full repo refresh event need to be sent here
-//				notifyChanged(key.getRepo(), true);
-				notifyChanged(hgRoot, true);
-			}
-			RemoteData remoteData = fastRepoMap.get(key);
-			if(remoteData != null) {
-				return remoteData.getChangeSets(resource);
-			}
-		}
-		return EMPTY_SET;
+		return load(key).getChangeSets(resource);
 	}
 
 	/**
@@ -225,6 +246,16 @@ public abstract class AbstractRemoteCache extends AbstractCache {
 		}
 	}
 
+	/**
+	 * Doesn't wait for the cache lock, so it never blocks while data is fetched from hg.
+	 *
+	 * @return the cached data of the given key, or null if it is not loaded. Never triggers a
+	 *         fetch
+	 */
+	public RemoteData getCachedData(RemoteKey key) {
+		return fastRepoMap.get(key);
+	}
+
 	/**
 	 * Gets all (in or out) changesets of the given hg root
 	 *
@@ -246,20 +277,7 @@ public abstract class AbstractRemoteCache extends AbstractCache {
 	public SortedSet<JHgChangeSet> getChangeSets(HgRoot hgRoot, IHgRepositoryLocation repository,
 			String branch, boolean allowUnrelated) throws HgException {
 		RemoteKey key = new RemoteKey(hgRoot, repository, branch, allowUnrelated);
-		synchronized (repoDatas){
-			RemoteData data = fastRepoMap.get(key);
-			if(data == null){
-				// lazy loading: refresh cache on demand only.
-				// lock the cache till update is complete
-				addResourcesToCache(key);
-				notifyChanged(hgRoot, true);
-			}
-			RemoteData remoteData = fastRepoMap.get(key);
-			if(remoteData != null) {
-				return remoteData.getChangeSets();
-			}
-		}
-		return EMPTY_SET;
+		return load(key).getChangeSets();
 	}
 
 	/**
@@ -312,12 +330,9 @@ public abstract class AbstractRemoteCache extends AbstractCache {
 	 */
 	public Set<IResource> getMembers(IResource resource,
 			IHgRepositoryLocation repository, String branch) throws HgException {
-		SortedSet<JHgChangeSet> changeSets;
-		synchronized (repoDatas){
-			// make sure data is there: will refresh (in or out) changesets if needed
-			changeSets = getChangeSets(resource, repository, branch);
-			return getMembers(resource, changeSets);
-		}
+		// make sure data is there: will refresh (in or out) changesets if needed
+		SortedSet<JHgChangeSet> changeSets = getChangeSets(resource, repository, branch);
+		return getMembers(resource, changeSets);
 	}
 
 	/**
@@ -335,13 +350,61 @@ public abstract class AbstractRemoteCache extends AbstractCache {
 		return members;
 	}
 
-	private void addResourcesToCache(RemoteKey key) throws HgException {
+	/**
+	 * Lazy loading: returns the cached data of the key, and fetches it from hg on demand only.
+	 * <p>
+	 * hg runs without the cache lock held, so clients of other keys, clear and refresh are not
+	 * blocked by a slow server. Concurrent requests for the same key wait for one fetch. If the
+	 * cache is cleared while hg runs, the fetched data is returned but not cached, as it may
+	 * already be outdated.
+	 *
+	 * @return never null
+	 */
+	private RemoteData load(RemoteKey key) throws HgException {
+		RemoteData data = fastRepoMap.get(key);
+		if(data != null) {
+			return data;
+		}
+		synchronized (getLoadLock(key)) {
+			int count;
+			synchronized (repoDatas) {
+				data = fastRepoMap.get(key);
+				if(data != null) {
+					return data;
+				}
+				count = clearCount;
+			}
+			data = fetch(key);
+			synchronized (repoDatas) {
+				if(count != clearCount) {
+					return data;
+				}
+				put(key, data);
+			}
+		}
+		notifyChanged(key.getRoot(), true);
+		return data;
+	}
+
+	private Object getLoadLock(RemoteKey key) {
+		synchronized (loadLocks) {
+			Object lock = loadLocks.get(key);
+			if(lock == null) {
+				lock = new Object();
+				loadLocks.put(key, lock);
+			}
+			return lock;
+		}
+	}
+
+	/**
+	 * Gets the changesets of the key from hg. Doesn't touch the cache.
+	 */
+	private RemoteData fetch(RemoteKey key) throws HgException {
 		if(debug) {
 			System.out.println("!fetch " + direction + " for " + key);
 		}
 
-		fastRepoMap.remove(key);
-
 		// get changesets from hg
 		RemoteData data = null;
 		if (direction == Direction.OUTGOING) {
@@ -353,16 +416,104 @@ public abstract class AbstractRemoteCache extends AbstractCache {
 		if(debug) {
 			System.out.println("!got " + data.getChangeSets().size() + " " + direction + " changesets");
 		}
-		fastRepoMap.put(key, data);
+		return data;
+	}
+
+	/**
+	 * Replaces the data of the key. Must be called with the {@link #repoDatas} lock held
+	 */
+	private void put(RemoteKey key, RemoteData data) {
+		RemoteData old = fastRepoMap.put(key, data);
 
 		Set<RemoteData> set = repoDatas.get(key.getRoot());
 		if(set == null){
 			set = new HashSet<RemoteData>();
 			repoDatas.put(key.getRoot(), set);
 		}
+		if(old != null) {
+			set.remove(old);
+		}
 		set.add(data);
 	}
 
+	/**
+	 * @return the keys of all data currently in the cache, never null
+	 */
+	public Set<RemoteKey> getKeys() {
+		synchronized (repoDatas) {
+			return new HashSet<RemoteKey>(fastRepoMap.keySet());
+		}
+	}
+
+	/**
+	 * Fetches the changesets of the given key again and replaces the cached data with them.
+	 * <p>
+	 * Unlike the lazy loading on client request, the cache is not locked while hg runs: clients
+	 * keep getting the previous data until the new data is swapped in. If the cache is cleared
+	 * while hg runs, the fetched data is dropped, as it may already be outdated (e.g. after a
+	 * pull). If the changesets have not changed, the previous data is kept, so the bundle
+	 * overlay repository already opened for it stays in use, and no notification is sent.
+	 * Otherwise the overlay repository of the previous data is closed, and its bundle is deleted
+	 * once the clients still holding its changesets are gone.
+	 *
+	 * @return true if the cached changesets have changed
+	 */
+	public boolean refresh(RemoteKey key) throws HgException {
+		int count;
+		synchronized (repoDatas) {
+			count = clearCount;
+		}
+		RemoteData data = fetch(key);
+		synchronized (repoDatas) {
+			RemoteData old = fastRepoMap.get(key);
+			if(count != clearCount
+					|| (old != null && isSame(old.getChangeSets(), data.getChangeSets()))) {
+				releaseBundle(data);
+				return false;
+			}
+			put(key, data);
+			if(old != null) {
+				releaseBundle(old);
+			}
+		}
+		notifyChanged(key.getRoot(), true);
+		return true;
+	}
+
+	/**
+	 * Closes the overlay repository of the bundle of the given data, which is not cached anymore,
+	 * and deletes the bundle once its clients are gone
+	 */
+	private static void releaseBundle(RemoteData data) {
+		deleteReleasedBundles();
+		File file = data.getBundleFile();
+		if(file != null) {
+			CommandServerCache.getInstance().invalidate(data.getKey().getRoot(), file);
+			PENDING_BUNDLES.add(new BundleReference(file));
+		}
+	}
+
+	private static void deleteReleasedBundles() {
+		Reference<? extends File> ref;
+		while((ref = RELEASED_BUNDLES.poll()) != null) {
+			PENDING_BUNDLES.remove(ref);
+			new File(((BundleReference) ref).path).delete();
+		}
+	}
+
+	private static boolean isSame(SortedSet<JHgChangeSet> set1, SortedSet<JHgChangeSet> set2) {
+		if(set1.size() != set2.size()) {
+			return false;
+		}
+		Iterator<JHgChangeSet> it2 = set2.iterator();
+		for (JHgChangeSet cs : set1) {
+			if(!cs.getNode().equals(it2.next().getNode())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Get newest revision of resource on given branch
 	 * @param resource Eclipse resource (e.g. a file) to find latest changeset for
@@ -372,13 +523,11 @@ public abstract class AbstractRemoteCache extends AbstractCache {
 			IHgRepositoryLocation repository, String branch) throws HgException {
 
 		if (MercurialStatusCache.getInstance().isSupervised(resource) || !resource.exists()) {
-			synchronized (repoDatas){
-				// make sure data is there: will refresh (in or out) changesets if needed
-				SortedSet<JHgChangeSet> changeSets = getChangeSets(resource, repository, branch);
+			// make sure data is there: will refresh (in or out) changesets if needed
+			SortedSet<JHgChangeSet> changeSets = getChangeSets(resource, repository, branch);
 
-				if (changeSets != null && changeSets.size() > 0) {
-					return changeSets.last();
-				}
+			if (changeSets != null && changeSets.size() > 0) {
+				return changeSets.last();
 			}
 		}
 		return null;
@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
+import com.vectrace.MercurialEclipse.commands.HgClients;
+import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants;
+
+/**
+ * Bounded cache for the results of hg annotate.
+ * <p>
+ * The annotation of a file revision never changes, so the entries are addressed by the root, the
+ * revision of the file and its path, and are never invalidated. All editors annotating the same
+ * file revision share one entry, even if their working directory parents differ. The annotations
+ * are kept as the changeset node of each line, the changesets are resolved by the caller.
+ * <p>
+ * Recently used annotations are kept in memory, limited by their total number of lines. If
+ * {@link MercurialPreferenceConstants#ANNOTATION_DISK_CACHE} is enabled, every annotation is also
+ * written to a folder in the plugin state location, so annotations evicted from memory (or asked
+ * for again after a restart) are read from disk instead of asking hg.
+ * <p>
+ * Thread safe.
+ */
+public class AnnotationCache {
+
+	/** folder in the plugin state location with the stored annotations */
+	private static final String STORE_FOLDER = "annotations"; //$NON-NLS-1$
+
+	private static final int DEFAULT_MAX_LINES = 500000;
+
+	private static final long DEFAULT_DISK_LIMIT = 32 * 1024 * 1024;
+
+	/** format version of the stored annotations */
+	private static final int VERSION = 1;
+
+	private static AnnotationCache instance;
+
+	/** null if the annotations are kept in memory only */
+	private final FileContentCache store;
+
+	private final int maxLines;
+
+	private volatile boolean persistent;
+
+	/** access ordered, guarded by itself */
+	private final LinkedHashMap<String, Annotation> memory = new LinkedHashMap<String, Annotation>(
+			64, 0.75f, true);
+
+	/** guarded by {@link #memory} */
+	private long memoryLines;
+
+	private final AtomicLong memoryHits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * The annotation of a file revision: the changeset node of each line. Immutable
+	 */
+	public static final class Annotation {
+
+		/** distinct nodes */
+		private final String[] nodes;
+
+		/** index in {@link #nodes} of each line */
+		private final int[] lines;
+
+		/**
+		 * @param lineNodes
+		 *            the changeset node of each line
+		 */
+		public Annotation(List<String> lineNodes) {
+			List<String> distinct = new ArrayList<String>();
+			Map<String, Integer> indexes = new HashMap<String, Integer>();
+			lines = new int[lineNodes.size()];
+			for (int i = 0; i < lines.length; i++) {
+				String node = lineNodes.get(i);
+				Integer index = indexes.get(node);
+				if (index == null) {
+					index = Integer.valueOf(distinct.size());
+					distinct.add(node);
+					indexes.put(node, index);
+				}
+				lines[i] = index.intValue();
+			}
+			nodes = distinct.toArray(new String[distinct.size()]);
+		}
+
+		private Annotation(String[] nodes, int[] lines) {
+			this.nodes = nodes;
+			this.lines = lines;
+		}
+
+		public int getLineCount() {
+			return lines.length;
+		}
+
+		/**
+		 * @param line
+		 *            zero based line number
+		 * @return the node of the changeset which last changed the line
+		 */
+		public String getNode(int line) {
+			return nodes[lines[line]];
+		}
+
+		/**
+		 * @return the number of distinct nodes
+		 */
+		public int getNodeCount() {
+			return nodes.length;
+		}
+
+		/**
+		 * @return the weight counted against the memory limit
+		 */
+		int getWeight() {
+			return lines.length + nodes.length;
+		}
+
+		byte[] toBytes() {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + nodes.length * 42
+					+ lines.length * 4);
+			DataOutputStream out = new DataOutputStream(bytes);
+			try {
+				out.writeInt(VERSION);
+				out.writeInt(nodes.length);
+				for (String node : nodes) {
+					out.writeUTF(node);
+				}
+				out.writeInt(lines.length);
+				for (int line : lines) {
+					out.writeInt(line);
+				}
+				out.flush();
+			} catch (IOException e) {
+				// not possible with an in-memory stream
+				throw new IllegalStateException(e);
+			}
+			return bytes.toByteArray();
+		}
+
+		/**
+		 * @return the annotation, or null if the data is not a valid annotation
+		 */
+		static Annotation fromBytes(byte[] data) {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			try {
+				if (in.readInt() != VERSION) {
+					return null;
+				}
+				int nodeCount = in.readInt();
+				if (nodeCount < 0 || nodeCount > data.length) {
+					return null;
+				}
+				String[] nodes = new String[nodeCount];
+				for (int i = 0; i < nodeCount; i++) {
+					nodes[i] = in.readUTF();
+				}
+				int lineCount = in.readInt();
+				if (lineCount < 0 || lineCount > data.length / 4) {
+					return null;
+				}
+				int[] lines = new int[lineCount];
+				for (int i = 0; i < lineCount; i++) {
+					lines[i] = in.readInt();
+					if (lines[i] < 0 || lines[i] >= nodeCount) {
+						return null;
+					}
+				}
+				return new Annotation(nodes, lines);
+			} catch (IOException e) {
+				// truncated
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @param store
+	 *            the disk tier, null to keep the annotations in memory only
+	 * @param maxLines
+	 *            the max total number of lines kept in memory
+	 */
+	AnnotationCache(FileContentCache store, int maxLines) {
+		this.store = store;
+		this.maxLines = maxLines;
+		this.persistent = store != null;
+	}
+
+	public static synchronized AnnotationCache getInstance() {
+		if (instance == null) {
+			FileContentCache store = null;
+			MercurialEclipsePlugin plugin = MercurialEclipsePlugin.getDefault();
+			if (plugin != null) {
+				File dir = plugin.getStateLocation().append(STORE_FOLDER).toFile();
+				// the memory tier of this class keeps the decoded annotations
+				store = new FileContentCache(dir, 0, DEFAULT_DISK_LIMIT);
+			}
+			instance = new AnnotationCache(store, DEFAULT_MAX_LINES);
+		}
+		instance.setPersistent(Boolean.valueOf(
+				HgClients.getPreference(MercurialPreferenceConstants.ANNOTATION_DISK_CACHE, "true")) //$NON-NLS-1$
+				.booleanValue());
+		return instance;
+	}
+
+	/**
+	 * @param revision
+	 *            the node identifying the revision of the file, see
+	 *            {@link com.vectrace.MercurialEclipse.commands.HgAnnotateClient}
+	 * @param path
+	 *            the root relative path
+	 * @return the key of the annotation of the file revision
+	 */
+	public static String getKey(HgRoot root, String revision, String path) {
+		return root.getAbsolutePath() + ':' + revision + ':' + path;
+	}
+
+	/**
+	 * Enables or disables the disk tier. Annotations stored before stay on disk
+	 */
+	void setPersistent(boolean persistent) {
+		this.persistent = persistent && store != null;
+	}
+
+	/**
+	 * @return the cached annotation, or null if it is not cached
+	 */
+	public Annotation get(String key) {
+		synchronized (memory) {
+			Annotation annotation = memory.get(key);
+			if (annotation != null) {
+				memoryHits.incrementAndGet();
+				return annotation;
+			}
+		}
+		if (persistent) {
+			byte[] data = store.get(key);
+			Annotation annotation = data == null ? null : Annotation.fromBytes(data);
+			if (annotation != null) {
+				diskHits.incrementAndGet();
+				putInMemory(key, annotation);
+				return annotation;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(String key, Annotation annotation) {
+		putInMemory(key, annotation);
+		if (persistent) {
+			store.put(key, annotation.toBytes());
+		}
+	}
+
+	private void putInMemory(String key, Annotation annotation) {
+		if (annotation.getWeight() > maxLines) {
+			return;
+		}
+		synchronized (memory) {
+			Annotation old = memory.put(key, annotation);
+			if (old != null) {
+				memoryLines -= old.getWeight();
+			}
+			memoryLines += annotation.getWeight();
+			Iterator<Annotation> it = memory.values().iterator();
+			while (memoryLines > maxLines && it.hasNext()) {
+				Annotation eldest = it.next();
+				it.remove();
+				memoryLines -= eldest.getWeight();
+			}
+		}
+	}
+
+	/**
+	 * Forgets all cached annotations, including the disk tier
+	 */
+	public void clear() {
+		synchronized (memory) {
+			memory.clear();
+			memoryLines = 0;
+		}
+		if (store != null) {
+			store.clear();
+		}
+	}
+
+	// statistics
+
+	public long getMemoryHits() {
+		return memoryHits.get();
+	}
+
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the weight of the annotations kept in memory
+	 */
+	public long getMemorySize() {
+		synchronized (memory) {
+			return memoryLines;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AnnotationCache [memoryHits=" + memoryHits + ", diskHits=" + diskHits
+				+ ", misses=" + misses + ", memory=" + getMemorySize() + "]";
+	}
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+
+/**
+ * The resources changed in a cache since the last notification of its observers. Passed as
+ * argument to {@link java.util.Observer#update(java.util.Observable, Object)} by all caches
+ * derived from {@link AbstractCache}.
+ * <p>
+ * The changes of several {@link AbstractCache#notifyChanged(Set, boolean)} calls are coalesced in
+ * one event. Caches which know the status of the resources report the status before and after
+ * the change and drop resources which end up in the same state.
+ */
+public final class CacheChangeEvent {
+
+	/**
+	 * Status of a resource which is not tracked by the cache, or which has changed in some other
+	 * way (e.g. the incoming changesets of a resource)
+	 */
+	public static final int UNKNOWN = -1;
+
+	private final Map<IResource, Change> changes = new LinkedHashMap<IResource, Change>();
+
+	/**
+	 * The change of a single resource
+	 */
+	public static final class Change {
+		private final IResource resource;
+		private final int oldStatus;
+		private final int newStatus;
+
+		Change(IResource resource, int oldStatus, int newStatus) {
+			this.resource = resource;
+			this.oldStatus = oldStatus;
+			this.newStatus = newStatus;
+		}
+
+		public IResource getResource() {
+			return resource;
+		}
+
+		/**
+		 * @return the status bits before the change, 0 if the status was not known yet, or
+		 *         {@link CacheChangeEvent#UNKNOWN}
+		 */
+		public int getOldStatus() {
+			return oldStatus;
+		}
+
+		/**
+		 * @return the status bits after the change, 0 if the status is not known any more, or
+		 *         {@link CacheChangeEvent#UNKNOWN}
+		 */
+		public int getNewStatus() {
+			return newStatus;
+		}
+
+		/**
+		 * @return true if the status bits are known and have changed
+		 */
+		public boolean isStatusChange() {
+			return oldStatus != UNKNOWN && newStatus != UNKNOWN && oldStatus != newStatus;
+		}
+
+		@Override
+		public String toString() {
+			return resource + ": " + oldStatus + " -> " + newStatus;
+		}
+	}
+
+	/**
+	 * Adds a change. If the resource is already contained, the old status of the first change is
+	 * kept and the new status is replaced.
+	 */
+	void add(IResource resource, int oldStatus, int newStatus) {
+		Change previous = changes.get(resource);
+		if (previous != null) {
+			oldStatus = previous.oldStatus;
+		}
+		changes.put(resource, new Change(resource, oldStatus, newStatus));
+	}
+
+	/**
+	 * @return the changed resources, never null
+	 */
+	public Set<IResource> getResources() {
+		return Collections.unmodifiableSet(changes.keySet());
+	}
+
+	/**
+	 * @return the changes, never null
+	 */
+	public Collection<Change> getChanges() {
+		return Collections.unmodifiableCollection(changes.values());
+	}
+
+	/**
+	 * @return the change of the given resource, or null if it is not changed
+	 */
+	public Change getChange(IResource resource) {
+		return changes.get(resource);
+	}
+
+	/**
+	 * @return true if the event only reports changes of projects, e.g. after the cache data of a
+	 *         whole project was reloaded
+	 */
+	public boolean containsOnlyProjects() {
+		for (IResource resource : changes.keySet()) {
+			if (!(resource instanceof IProject)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int size() {
+		return changes.size();
+	}
+
+	public boolean isEmpty() {
+		return changes.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "CacheChangeEvent [" + changes.size() + " changes]";
+	}
+}
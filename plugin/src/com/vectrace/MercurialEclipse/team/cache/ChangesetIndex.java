@@ -0,0 +1,486 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Columnar store of the changeset metadata of one repository, indexed by revision number.
+ * <p>
+ * Every column is a primitive array: the binary node id, the parent revisions, the date, and ids
+ * into shared tables of author and branch names. A revision costs about 60 bytes, regardless of
+ * how many resource histories refer to it. Commit messages and tags are not stored, they are read
+ * from the command server when a changeset is materialized and asked for them.
+ * <p>
+ * Revisions don't need to be contiguous: only the revisions actually fetched are known.
+ */
+public class ChangesetIndex {
+
+	/** Parent value for "no parent" (null revision) */
+	public static final int NO_PARENT = -1;
+
+	/** Phase value if the phase of a revision is not known yet */
+	public static final int PHASE_UNKNOWN = -1;
+
+	private static final int NODE_LENGTH = 20;
+
+	/** marks unknown revisions in the {@link #authors} column */
+	private static final int ABSENT = -1;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private byte[] nodes;
+	private int[] parents1;
+	private int[] parents2;
+	private int[] authors;
+	private long[] dates;
+	private int[] branches;
+	private byte[] phases;
+
+	/** open addressing table from node hash to revision + 1, 0 is an empty slot */
+	private int[] nodeTable;
+
+	private final StringTable authorNames = new StringTable();
+	private final StringTable branchNames = new StringTable();
+
+	private int size;
+
+	public ChangesetIndex(int initialCapacity) {
+		int capacity = Math.max(16, initialCapacity);
+		nodes = new byte[capacity * NODE_LENGTH];
+		parents1 = new int[capacity];
+		parents2 = new int[capacity];
+		authors = new int[capacity];
+		dates = new long[capacity];
+		branches = new int[capacity];
+		phases = new byte[capacity];
+		Arrays.fill(authors, ABSENT);
+		nodeTable = new int[tableSize(capacity)];
+	}
+
+	// operations
+
+	/**
+	 * Adds or replaces the metadata of a revision.
+	 *
+	 * @param rev
+	 *            revision number, not negative
+	 * @param node
+	 *            full hex node id
+	 * @param parent1
+	 *            first parent revision or {@link #NO_PARENT}
+	 * @param parent2
+	 *            second parent revision or {@link #NO_PARENT}
+	 * @param author
+	 *            not null
+	 * @param date
+	 *            commit date in milliseconds
+	 * @param branch
+	 *            not null
+	 * @param phase
+	 *            phase ordinal or {@link #PHASE_UNKNOWN}
+	 * @return true if the revision was not known before or had another node
+	 */
+	public boolean add(int rev, String node, int parent1, int parent2, String author, long date,
+			String branch, int phase) {
+		if (rev < 0) {
+			throw new IllegalArgumentException("Invalid revision: " + rev);
+		}
+		byte[] binary = toBinary(node);
+		lock.writeLock().lock();
+		try {
+			ensureCapacity(rev + 1);
+			boolean known = authors[rev] != ABSENT;
+			if (known && !equalsNode(rev, binary)) {
+				// revision number was reused (strip, rebase...): forget the old node
+				removeNode(rev);
+				known = false;
+			}
+			System.arraycopy(binary, 0, nodes, rev * NODE_LENGTH, NODE_LENGTH);
+			parents1[rev] = parent1;
+			parents2[rev] = parent2;
+			authors[rev] = authorNames.intern(author);
+			dates[rev] = date;
+			branches[rev] = branchNames.intern(branch);
+			phases[rev] = (byte) phase;
+			if (!known) {
+				size++;
+				if (size * 2 > nodeTable.length) {
+					// also inserts the new revision
+					rehash(nodeTable.length * 2);
+				} else {
+					insertNode(rev);
+				}
+			}
+			return !known;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if the metadata of the given revision is known
+	 */
+	public boolean contains(int rev) {
+		lock.readLock().lock();
+		try {
+			return isKnown(rev);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param node
+	 *            full hex node id
+	 * @return the revision of the given node, or -1 if not known
+	 */
+	public int indexOf(String node) {
+		if (node == null || node.length() != NODE_LENGTH * 2) {
+			return -1;
+		}
+		byte[] binary;
+		try {
+			binary = toBinary(node);
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+		lock.readLock().lock();
+		try {
+			int mask = nodeTable.length - 1;
+			for (int i = hash(binary, 0) & mask;; i = (i + 1) & mask) {
+				int entry = nodeTable[i];
+				if (entry == 0) {
+					return -1;
+				}
+				if (equalsNode(entry - 1, binary)) {
+					return entry - 1;
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param prefix
+	 *            hex node prefix, for example the 12 character short node
+	 * @return the highest known revision whose node starts with the given prefix, or -1
+	 */
+	public int indexOfPrefix(String prefix) {
+		if (prefix.length() == NODE_LENGTH * 2) {
+			return indexOf(prefix);
+		}
+		lock.readLock().lock();
+		try {
+			for (int rev = authors.length - 1; rev >= 0; rev--) {
+				if (authors[rev] != ABSENT && startsWith(rev, prefix)) {
+					return rev;
+				}
+			}
+			return -1;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the full hex node id, or null if the revision is not known
+	 */
+	public String getNode(int rev) {
+		lock.readLock().lock();
+		try {
+			if (!isKnown(rev)) {
+				return null;
+			}
+			return toHex(nodes, rev * NODE_LENGTH);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param i
+	 *            0 for the first, 1 for the second parent
+	 * @return the parent revision or {@link #NO_PARENT}
+	 */
+	public int getParent(int rev, int i) {
+		lock.readLock().lock();
+		try {
+			checkKnown(rev);
+			return i == 0 ? parents1[rev] : parents2[rev];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getAuthor(int rev) {
+		lock.readLock().lock();
+		try {
+			checkKnown(rev);
+			return authorNames.get(authors[rev]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the commit date in milliseconds
+	 */
+	public long getDate(int rev) {
+		lock.readLock().lock();
+		try {
+			checkKnown(rev);
+			return dates[rev];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public String getBranch(int rev) {
+		lock.readLock().lock();
+		try {
+			checkKnown(rev);
+			return branchNames.get(branches[rev]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the phase ordinal or {@link #PHASE_UNKNOWN}
+	 */
+	public int getPhase(int rev) {
+		lock.readLock().lock();
+		try {
+			checkKnown(rev);
+			return phases[rev];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param phase
+	 *            phase ordinal or {@link #PHASE_UNKNOWN}
+	 */
+	public void setPhase(int rev, int phase) {
+		lock.writeLock().lock();
+		try {
+			if (isKnown(rev)) {
+				phases[rev] = (byte) phase;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forgets the phases of all revisions, for example after a push
+	 */
+	public void clearPhases() {
+		lock.writeLock().lock();
+		try {
+			Arrays.fill(phases, (byte) PHASE_UNKNOWN);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of known revisions
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return approximate memory used by the columns in bytes, without the name tables
+	 */
+	public long getMemoryFootprint() {
+		lock.readLock().lock();
+		try {
+			long capacity = authors.length;
+			return nodes.length + capacity * (4 + 4 + 4 + 8 + 4 + 1) + nodeTable.length * 4L;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ChangesetIndex [size=" + size() + ", bytes=" + getMemoryFootprint() + "]";
+	}
+
+	// helpers
+
+	private boolean isKnown(int rev) {
+		return rev >= 0 && rev < authors.length && authors[rev] != ABSENT;
+	}
+
+	private void checkKnown(int rev) {
+		if (!isKnown(rev)) {
+			throw new IllegalArgumentException("Unknown revision: " + rev);
+		}
+	}
+
+	private void ensureCapacity(int required) {
+		int capacity = authors.length;
+		if (required <= capacity) {
+			return;
+		}
+		int grown = Math.max(required, capacity + (capacity >> 1));
+		byte[] newNodes = new byte[grown * NODE_LENGTH];
+		System.arraycopy(nodes, 0, newNodes, 0, nodes.length);
+		nodes = newNodes;
+		parents1 = grow(parents1, grown);
+		parents2 = grow(parents2, grown);
+		int[] newAuthors = new int[grown];
+		Arrays.fill(newAuthors, capacity, grown, ABSENT);
+		System.arraycopy(authors, 0, newAuthors, 0, capacity);
+		authors = newAuthors;
+		long[] newDates = new long[grown];
+		System.arraycopy(dates, 0, newDates, 0, capacity);
+		dates = newDates;
+		branches = grow(branches, grown);
+		byte[] newPhases = new byte[grown];
+		System.arraycopy(phases, 0, newPhases, 0, capacity);
+		phases = newPhases;
+	}
+
+	private void insertNode(int rev) {
+		int mask = nodeTable.length - 1;
+		int i = hash(nodes, rev * NODE_LENGTH) & mask;
+		while (nodeTable[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		nodeTable[i] = rev + 1;
+	}
+
+	private void removeNode(int rev) {
+		// rebuild instead of deleting from the probe sequence, strips are rare
+		authors[rev] = ABSENT;
+		size--;
+		rehash(nodeTable.length);
+	}
+
+	private void rehash(int tableLength) {
+		nodeTable = new int[tableLength];
+		for (int rev = 0; rev < authors.length; rev++) {
+			if (authors[rev] != ABSENT) {
+				insertNode(rev);
+			}
+		}
+	}
+
+	private boolean equalsNode(int rev, byte[] binary) {
+		int offset = rev * NODE_LENGTH;
+		for (int i = 0; i < NODE_LENGTH; i++) {
+			if (nodes[offset + i] != binary[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean startsWith(int rev, String prefix) {
+		int offset = rev * NODE_LENGTH;
+		for (int i = 0, n = Math.min(prefix.length(), NODE_LENGTH * 2); i < n; i++) {
+			int b = nodes[offset + i / 2];
+			int digit = (i & 1) == 0 ? (b >> 4) & 0xf : b & 0xf;
+			if (Character.forDigit(digit, 16) != Character.toLowerCase(prefix.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(byte[] bytes, int offset) {
+		// node ids are SHA-1 hashes: the first bytes are well distributed
+		return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+				| ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+	}
+
+	private static int tableSize(int capacity) {
+		int size = 16;
+		while (size < capacity * 2) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	private static byte[] toBinary(String node) {
+		if (node == null || node.length() != NODE_LENGTH * 2) {
+			throw new IllegalArgumentException("Invalid node: " + node);
+		}
+		byte[] result = new byte[NODE_LENGTH];
+		for (int i = 0; i < NODE_LENGTH; i++) {
+			int high = Character.digit(node.charAt(2 * i), 16);
+			int low = Character.digit(node.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new IllegalArgumentException("Invalid node: " + node);
+			}
+			result[i] = (byte) ((high << 4) | low);
+		}
+		return result;
+	}
+
+	private static String toHex(byte[] bytes, int offset) {
+		char[] chars = new char[NODE_LENGTH * 2];
+		for (int i = 0; i < NODE_LENGTH; i++) {
+			int b = bytes[offset + i];
+			chars[2 * i] = Character.forDigit((b >> 4) & 0xf, 16);
+			chars[2 * i + 1] = Character.forDigit(b & 0xf, 16);
+		}
+		return new String(chars);
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] result = new int[capacity];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	// inner types
+
+	/**
+	 * Interned strings, referenced by their int id
+	 */
+	private static final class StringTable {
+		private final List<String> values = new ArrayList<String>();
+		private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+		int intern(String value) {
+			Integer id = ids.get(value);
+			if (id == null) {
+				id = Integer.valueOf(values.size());
+				values.add(value);
+				ids.put(value, id);
+			}
+			return id.intValue();
+		}
+
+		String get(int id) {
+			return values.get(id);
+		}
+	}
+}
@@ -0,0 +1,346 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Append-only file with the contents of a {@link ChangesetIndex}, so the changeset metadata of a
+ * root survives restarts.
+ * <p>
+ * The header records the size and modification time of the changelog (
+ * <code>.hg/store/00changelog.i</code>) and the highest stored revision with its node. The file
+ * is still valid if the changelog is unchanged, or if it only grew and the stored highest revision
+ * still has the same node (the changelog is append-only unless it is stripped). Otherwise the
+ * file is deleted.
+ * <p>
+ * Layout: fixed header (see {@link #HEADER_LENGTH}) followed by records of: int rev, 20 bytes
+ * node, int parent 1, int parent 2, long date, UTF author, UTF branch. Phases are not stored.
+ * <p>
+ * Not thread safe.
+ */
+public class ChangesetIndexStore {
+
+	private static final int MAGIC = 0x48474c43; // "HGLC"
+
+	private static final int VERSION = 1;
+
+	/** magic, version, changelog length, changelog mtime, max rev, max node, data length */
+	private static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 4 + 20 + 8;
+
+	/** length of a revlog v1 index entry */
+	private static final int REVLOG_ENTRY_LENGTH = 64;
+
+	/** offset of the node id in a revlog v1 index entry */
+	private static final int REVLOG_NODE_OFFSET = 32;
+
+	private static final int REVLOG_INLINE_FLAG = 1 << 16;
+
+	private static final int NODE_LENGTH = 20;
+
+	private final File file;
+
+	private final File changelog;
+
+	/** changelog state covered by the file */
+	private long changelogLength = -1;
+	private long changelogModified = -1;
+
+	/** highest revision stored, -1 if none */
+	private int maxRevision = -1;
+
+	/** end of the valid records */
+	private long dataLength = HEADER_LENGTH;
+
+	/**
+	 * @param file
+	 *            the cache file, may not exist yet
+	 * @param changelog
+	 *            the changelog index of the repository, see {@link #getChangelog(File)}
+	 */
+	public ChangesetIndexStore(File file, File changelog) {
+		this.file = file;
+		this.changelog = changelog;
+	}
+
+	// operations
+
+	/**
+	 * @param root
+	 *            the repository root directory
+	 * @return the changelog index file of the repository, may not exist
+	 */
+	public static File getChangelog(File root) {
+		File hg = new File(root, ".hg");
+		File store = new File(new File(hg, "store"), "00changelog.i");
+		if (store.isFile()) {
+			return store;
+		}
+		return new File(hg, "00changelog.i");
+	}
+
+	/**
+	 * Reads the stored index. Deletes the file if it is out of date or corrupt.
+	 *
+	 * @return the stored index, or null if there is no valid file
+	 */
+	public ChangesetIndex load(int initialCapacity) {
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			ChangesetIndex index = read(initialCapacity);
+			if (index != null && isValid(index)) {
+				return index;
+			}
+		} catch (IOException e) {
+			// corrupt or unreadable: start over
+		}
+		delete();
+		return null;
+	}
+
+	/**
+	 * Cheap check whether the given index (loaded from or appended to this file) still matches
+	 * the changelog of the repository.
+	 */
+	public boolean isValid(ChangesetIndex index) {
+		long length = changelog.length();
+		long modified = changelog.lastModified();
+		if (length == changelogLength && modified == changelogModified) {
+			return true;
+		}
+		if (length < changelogLength || maxRevision < 0) {
+			// stripped or rolled back
+			return maxRevision < 0;
+		}
+		String node = index.getNode(maxRevision);
+		if (node == null || !node.equals(readChangelogNode(maxRevision))) {
+			return false;
+		}
+		// remember, so the next check is cheap again. The header is updated on the next append
+		changelogLength = length;
+		changelogModified = modified;
+		return true;
+	}
+
+	/**
+	 * @return the tip revision according to the size of the changelog, or -1 if it can't be
+	 *         computed cheaply (inline changelog of small repositories)
+	 */
+	public int getTipRevision() {
+		if (readChangelogFlags() != 0) {
+			return -1;
+		}
+		return (int) (changelog.length() / REVLOG_ENTRY_LENGTH) - 1;
+	}
+
+	/**
+	 * Appends the given revisions of the index to the file and marks the file as valid for the
+	 * current changelog.
+	 *
+	 * @param revisions
+	 *            revisions of the index not stored yet
+	 */
+	public void append(ChangesetIndex index, int[] revisions, int count) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(count * 80);
+		DataOutputStream out = new DataOutputStream(bytes);
+		int max = maxRevision;
+		for (int i = 0; i < count; i++) {
+			int rev = revisions[i];
+			String node = index.getNode(rev);
+			if (node == null) {
+				continue;
+			}
+			out.writeInt(rev);
+			out.write(toBinary(node));
+			out.writeInt(index.getParent(rev, 0));
+			out.writeInt(index.getParent(rev, 1));
+			out.writeLong(index.getDate(rev));
+			out.writeUTF(index.getAuthor(rev));
+			out.writeUTF(index.getBranch(rev));
+			max = Math.max(max, rev);
+		}
+		out.flush();
+
+		file.getParentFile().mkdirs();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// records after dataLength are garbage of an interrupted append
+			raf.seek(dataLength);
+			raf.write(bytes.toByteArray());
+			dataLength += bytes.size();
+			maxRevision = max;
+			changelogLength = changelog.length();
+			changelogModified = changelog.lastModified();
+			raf.seek(0);
+			raf.write(header(index));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Deletes the file
+	 */
+	public void delete() {
+		file.delete();
+		changelogLength = -1;
+		changelogModified = -1;
+		maxRevision = -1;
+		dataLength = HEADER_LENGTH;
+	}
+
+	@Override
+	public String toString() {
+		return "ChangesetIndexStore [file=" + file + ", maxRevision=" + maxRevision + "]";
+	}
+
+	// helpers
+
+	private ChangesetIndex read(int initialCapacity) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+				64 * 1024));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			long length = in.readLong();
+			long modified = in.readLong();
+			int max = in.readInt();
+			byte[] node = new byte[NODE_LENGTH];
+			in.readFully(node);
+			long end = in.readLong();
+
+			ChangesetIndex index = new ChangesetIndex(Math.max(initialCapacity, max + 1));
+			long position = HEADER_LENGTH;
+			while (position < end) {
+				int rev = in.readInt();
+				in.readFully(node);
+				int parent1 = in.readInt();
+				int parent2 = in.readInt();
+				long date = in.readLong();
+				String author = in.readUTF();
+				String branch = in.readUTF();
+				index.add(rev, toHex(node), parent1, parent2, author, date, branch,
+						ChangesetIndex.PHASE_UNKNOWN);
+				position += 4 + NODE_LENGTH + 4 + 4 + 8 + utfLength(author) + utfLength(branch);
+			}
+			changelogLength = length;
+			changelogModified = modified;
+			maxRevision = max;
+			dataLength = end;
+			return index;
+		} catch (EOFException e) {
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	private byte[] header(ChangesetIndex index) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_LENGTH);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(changelogLength);
+		out.writeLong(changelogModified);
+		out.writeInt(maxRevision);
+		String node = maxRevision < 0 ? null : index.getNode(maxRevision);
+		out.write(node == null ? new byte[NODE_LENGTH] : toBinary(node));
+		out.writeLong(dataLength);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return the revlog flags of the changelog, or -1 if it can't be read
+	 */
+	private int readChangelogFlags() {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(changelog, "r");
+			try {
+				return raf.readInt() & REVLOG_INLINE_FLAG;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the node of the given revision read from the changelog index, or null if it can't
+	 *         be read cheaply
+	 */
+	private String readChangelogNode(int rev) {
+		if (readChangelogFlags() != 0) {
+			return null;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(changelog, "r");
+			try {
+				long offset = (long) rev * REVLOG_ENTRY_LENGTH + REVLOG_NODE_OFFSET;
+				if (offset + NODE_LENGTH > raf.length()) {
+					return null;
+				}
+				byte[] node = new byte[NODE_LENGTH];
+				raf.seek(offset);
+				raf.readFully(node);
+				return toHex(node);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static int utfLength(String s) {
+		int length = 2;
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				length++;
+			} else if (c > 0x07FF) {
+				length += 3;
+			} else {
+				length += 2;
+			}
+		}
+		return length;
+	}
+
+	private static byte[] toBinary(String node) {
+		byte[] result = new byte[NODE_LENGTH];
+		for (int i = 0; i < NODE_LENGTH; i++) {
+			result[i] = (byte) Integer.parseInt(node.substring(2 * i, 2 * i + 2), 16);
+		}
+		return result;
+	}
+
+	private static String toHex(byte[] node) {
+		StringBuilder sb = new StringBuilder(node.length * 2);
+		for (byte b : node) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
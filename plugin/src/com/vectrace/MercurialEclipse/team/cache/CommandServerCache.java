@@ -11,7 +11,22 @@
 package com.vectrace.MercurialEclipse.team.cache;
 
 import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 
 import com.aragost.javahg.BaseRepository;
 import com.aragost.javahg.Bundle;
@@ -24,6 +39,7 @@ import com.google.common.cache.RemovalNotification;
 import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
 import com.vectrace.MercurialEclipse.commands.HgClients;
 import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants;
 import com.vectrace.MercurialEclipse.utils.Pair;
 
 /**
@@ -38,9 +54,25 @@ import com.vectrace.MercurialEclipse.utils.Pair;
  * overlay repositories are cached by {@link AbstractRemoteCache} but they seem to be cleaned up
  * quite eagerly.
  * </ul>
+ * Each base repository runs a pool of command servers (see {@link #getPoolSize()}). Callers
+ * bracket their commands with {@link #acquire(Repository, boolean)} and {@link Slot#release()}:
+ * read-only commands share the pool, each one taking whichever server slot becomes idle first,
+ * while mutating commands wait until the pool is drained and then run alone. The wait and busy
+ * times are recorded per root and can be printed with {@link #getStatistics()}.
+ * <p>
+ * A slot is a permit, not a particular server: JavaHg picks the server of each command itself,
+ * the pool only limits how many commands run at once. Slots belong to the thread which acquired
+ * them. Helper threads working for a slot holder while it waits (command jobs, parallel root
+ * tasks) must borrow its slots with {@link #lend()}, otherwise they queue like any other thread
+ * and may wait forever behind a writer which waits for the holder.
  */
 public class CommandServerCache {
 
+	/**
+	 * Encoding of the command servers: JavaHg starts them with HGENCODING=UTF-8
+	 */
+	public static final Charset ENCODING = Charset.forName("UTF-8"); //$NON-NLS-1$
+
 	private static final CommandServerCache instance = new CommandServerCache();
 
 	/**
@@ -57,6 +89,12 @@ public class CommandServerCache {
 			.newBuilder().weakValues().removalListener(new OverlayCacheListener())
 			.build(new OverlayCacheLoader());
 
+	/**
+	 * Note: weak references to the BaseRepository, so the lanes live as long as the servers.
+	 */
+	private final LoadingCache<BaseRepository, Lanes> lanesCache = CacheBuilder.newBuilder()
+			.weakKeys().build(new LanesLoader());
+
 	private CommandServerCache() {
 	}
 
@@ -103,6 +141,17 @@ public class CommandServerCache {
 		}
 	}
 
+	/**
+	 * Forgets the overlay repository of the given bundle, if one is open. Clients which still use
+	 * it can finish, later clients open a new one.
+	 *
+	 * @param bundleFile
+	 *            non null
+	 */
+	public void invalidate(HgRoot hgRoot, File bundleFile) {
+		overlayCache.invalidate(new Pair<HgRoot, File>(hgRoot, bundleFile));
+	}
+
 	/**
 	 * Stop all command servers
 	 */
@@ -111,6 +160,101 @@ public class CommandServerCache {
 		baseCache.invalidateAll();
 	}
 
+	/**
+	 * Waits for a command server slot of the given repository. Must be followed by
+	 * {@link Slot#release()} in a finally block.
+	 * <p>
+	 * Nested calls from a thread which already holds a slot of the same repository return
+	 * immediately, so commands may call other commands. A read-only command can't call a
+	 * mutating one: the shared slot can't be turned into the exclusive lane.
+	 *
+	 * @param repo
+	 *            the repository the command will run on, may be an overlay repository
+	 * @param exclusive
+	 *            true for commands changing the repository or working directory. They wait
+	 *            until no other command runs, and no other command starts until they are done
+	 * @return the slot, never null
+	 * @throws OperationCanceledException
+	 *             if the thread is interrupted while waiting
+	 * @throws IllegalStateException
+	 *             if an exclusive slot is requested by a thread holding a shared one
+	 */
+	public Slot acquire(Repository repo, boolean exclusive) {
+		return acquire(repo, exclusive, null);
+	}
+
+	/**
+	 * Like {@link #acquire(Repository, boolean)}, but gives up waiting if the monitor is
+	 * cancelled (e.g. by the timeout of a command job) or the thread is interrupted
+	 *
+	 * @param monitor
+	 *            may be null
+	 * @throws OperationCanceledException
+	 *             if the wait was cancelled
+	 */
+	public Slot acquire(Repository repo, boolean exclusive, IProgressMonitor monitor) {
+		Lanes lanes = lanesCache.getUnchecked(repo.getBaseRepository());
+		return exclusive ? lanes.acquireExclusive(monitor) : lanes.acquireShared(monitor);
+	}
+
+	/**
+	 * @see #acquire(Repository, boolean)
+	 */
+	public Slot acquire(HgRoot hgRoot, boolean exclusive) {
+		return acquire(get(hgRoot), exclusive);
+	}
+
+	/**
+	 * Lends the slots held by the calling thread to helper threads. The calling thread must keep
+	 * its slots (wait for the helpers) until the helpers are done.
+	 *
+	 * @return the slots held by the calling thread, possibly none
+	 */
+	public Loan lend() {
+		List<Lanes> held = null;
+		List<Slot> slots = null;
+		for (Lanes lanes : lanesCache.asMap().values()) {
+			Slot slot = lanes.current.get();
+			if (slot != null) {
+				if (held == null) {
+					held = new ArrayList<Lanes>(2);
+					slots = new ArrayList<Slot>(2);
+				}
+				held.add(lanes);
+				slots.add(slot);
+			}
+		}
+		return held == null ? Loan.NONE : new Loan(held, slots);
+	}
+
+	/**
+	 * @return human readable statistics of all running command server pools, one line per root
+	 */
+	public String getStatistics() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<BaseRepository, Lanes> entry : lanesCache.asMap().entrySet()) {
+			sb.append(entry.getKey().getDirectory()).append(": ");
+			entry.getValue().appendStatistics(sb);
+			sb.append('\n');
+		}
+		if (sb.length() == 0) {
+			sb.append("No command servers running\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the configured number of command servers per root, at least 1
+	 */
+	public static int getPoolSize() {
+		try {
+			return Math.max(1, Integer.parseInt(HgClients.getPreference(
+					MercurialPreferenceConstants.COMMAND_SERVER_POOL_SIZE, "3"))); //$NON-NLS-1$
+		} catch (NumberFormatException e) {
+			return 3;
+		}
+	}
+
 	public static CommandServerCache getInstance() {
 		return instance;
 	}
@@ -131,6 +275,13 @@ public class CommandServerCache {
 		}
 	}
 
+	private static final class LanesLoader extends CacheLoader<BaseRepository, Lanes> {
+		@Override
+		public Lanes load(BaseRepository repo) throws Exception {
+			return new Lanes(getPoolSize());
+		}
+	}
+
 	private final class BaseCacheListener implements RemovalListener<Object, Repository> {
 		public void onRemoval(RemovalNotification<Object, Repository> notification) {
 			notification.getValue().close();
@@ -141,8 +292,8 @@ public class CommandServerCache {
 			RemovalListener<Pair<HgRoot, File>, Repository> {
 		public void onRemoval(RemovalNotification<Pair<HgRoot, File>, Repository> notification) {
 			try {
-				// NOTE: The repository has been GC'd so we can't close it.
-				// See com.aragost.javahg.Repository.close()
+				// NOTE: The repository has been GC'd or may still be used by a client after
+				// invalidate(), so we can't close it. See com.aragost.javahg.Repository.close()
 				// Assumes there is no finalize() on OverlayRepository.
 				baseCache.get(notification.getKey().a).getServerPool().decrementRefCount();
 			} catch (ExecutionException e) {
@@ -151,4 +302,247 @@ public class CommandServerCache {
 			}
 		}
 	}
+
+	/**
+	 * A held command server slot
+	 */
+	public static final class Slot {
+
+		/** slot index, or -1 for the exclusive lane */
+		private final int index;
+		private final Lanes lanes;
+		private final long start;
+		/** lanes entered by a borrowing thread, null for an acquired slot */
+		private final List<Lanes> borrowed;
+		private boolean released;
+
+		private Slot(Lanes lanes, int index) {
+			this.lanes = lanes;
+			this.index = index;
+			this.start = lanes == null ? 0 : System.nanoTime();
+			this.borrowed = null;
+		}
+
+		private Slot(List<Lanes> borrowed) {
+			this.lanes = null;
+			this.index = -1;
+			this.start = 0;
+			this.borrowed = borrowed;
+		}
+
+		/**
+		 * Returns the slot to the pool. Subsequent calls have no effect.
+		 */
+		public void release() {
+			if (released) {
+				return;
+			}
+			released = true;
+			if (borrowed != null) {
+				for (Lanes l : borrowed) {
+					l.current.remove();
+				}
+			} else if (lanes != null) {
+				lanes.release(this, System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Slots lent by a holder thread to its helper threads, see {@link CommandServerCache#lend()}
+	 */
+	public static final class Loan {
+
+		static final Loan NONE = new Loan(Collections.<Lanes>emptyList(), Collections
+				.<Slot>emptyList());
+
+		private final List<Lanes> lanes;
+
+		/** the slot of the lender in each of the lanes */
+		private final List<Slot> slots;
+
+		private Loan(List<Lanes> lanes, List<Slot> slots) {
+			this.lanes = lanes;
+			this.slots = slots;
+		}
+
+		/**
+		 * Lets the calling thread run commands with the lent slots: acquiring one of them returns
+		 * immediately. Must be followed by {@link Slot#release()} in a finally block, which ends
+		 * the borrowing but doesn't release the slots of the lender. The borrower gets the
+		 * kind of slot the lender holds.
+		 *
+		 * @return the borrowed slots, never null
+		 */
+		public Slot borrow() {
+			List<Lanes> entered = new ArrayList<Lanes>(lanes.size());
+			for (int i = 0; i < lanes.size(); i++) {
+				Lanes l = lanes.get(i);
+				if (l.current.get() == null) {
+					l.current.set(Lanes.nested(slots.get(i)));
+					entered.add(l);
+				}
+			}
+			return new Slot(entered);
+		}
+	}
+
+	/**
+	 * The shared and exclusive lanes of one command server pool.
+	 */
+	private static final class Lanes {
+
+		/** returned to threads which already hold (or borrowed) a shared slot */
+		private static final Slot NESTED_SHARED = new Slot(null, 0);
+
+		/** returned to threads which already hold (or borrowed) the exclusive lane */
+		private static final Slot NESTED_EXCLUSIVE = new Slot(null, -1);
+
+		/** how often waiting threads check for cancellation */
+		private static final long POLL_MILLIS = 100;
+
+		private final int size;
+
+		/** readers share, the exclusive lane writes. Fair so readers can't starve writers */
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+
+		/** idle slot indexes: the first free server takes the next waiting command */
+		private final BlockingQueue<Integer> idle;
+
+		/** slot held by the current thread, a nested slot if borrowed, or null */
+		private final ThreadLocal<Slot> current = new ThreadLocal<Slot>();
+
+		private final AtomicInteger waiting = new AtomicInteger();
+		private final AtomicInteger maxWaiting = new AtomicInteger();
+		private final AtomicLong sharedCount = new AtomicLong();
+		private final AtomicLong exclusiveCount = new AtomicLong();
+		private final AtomicLong waitNanos = new AtomicLong();
+		private final AtomicLong exclusiveNanos = new AtomicLong();
+		/** busy time of each slot (not of a particular server) */
+		private final AtomicLongArray busyNanos;
+		private final long created = System.nanoTime();
+
+		Lanes(int size) {
+			this.size = size;
+			idle = new LinkedBlockingQueue<Integer>();
+			busyNanos = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++) {
+				idle.add(Integer.valueOf(i));
+			}
+		}
+
+		/**
+		 * @return a slot of the same kind as the given one, which does nothing on release
+		 */
+		static Slot nested(Slot held) {
+			return held.index < 0 ? NESTED_EXCLUSIVE : NESTED_SHARED;
+		}
+
+		Slot acquireShared(IProgressMonitor monitor) {
+			Slot held = current.get();
+			if (held != null) {
+				return nested(held);
+			}
+			long start = beginWait();
+			boolean locked = false;
+			Integer index = null;
+			try {
+				// timed tryLock respects the fairness, unlike tryLock()
+				while (!lock.readLock().tryLock(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					checkCanceled(monitor);
+				}
+				locked = true;
+				while ((index = idle.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+					checkCanceled(monitor);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new OperationCanceledException();
+			} finally {
+				if (index == null && locked) {
+					lock.readLock().unlock();
+				}
+				endWait(start);
+			}
+			sharedCount.incrementAndGet();
+			Slot slot = new Slot(this, index.intValue());
+			current.set(slot);
+			return slot;
+		}
+
+		Slot acquireExclusive(IProgressMonitor monitor) {
+			Slot held = current.get();
+			if (held != null) {
+				if (held.index >= 0) {
+					// the read lock can't be upgraded, waiting for the write lock would deadlock
+					throw new IllegalStateException(
+							"Mutating command called while holding a read-only command server slot"); //$NON-NLS-1$
+				}
+				return NESTED_EXCLUSIVE;
+			}
+			long start = beginWait();
+			try {
+				while (!lock.writeLock().tryLock(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					checkCanceled(monitor);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new OperationCanceledException();
+			} finally {
+				endWait(start);
+			}
+			exclusiveCount.incrementAndGet();
+			Slot slot = new Slot(this, -1);
+			current.set(slot);
+			return slot;
+		}
+
+		private static void checkCanceled(IProgressMonitor monitor) {
+			if (monitor != null && monitor.isCanceled()) {
+				throw new OperationCanceledException();
+			}
+		}
+
+		void release(Slot slot, long busy) {
+			current.remove();
+			if (slot.index < 0) {
+				exclusiveNanos.addAndGet(busy);
+				lock.writeLock().unlock();
+			} else {
+				busyNanos.addAndGet(slot.index, busy);
+				idle.add(Integer.valueOf(slot.index));
+				lock.readLock().unlock();
+			}
+		}
+
+		private long beginWait() {
+			int depth = waiting.incrementAndGet();
+			int max = maxWaiting.get();
+			while (depth > max && !maxWaiting.compareAndSet(max, depth)) {
+				max = maxWaiting.get();
+			}
+			return System.nanoTime();
+		}
+
+		private void endWait(long start) {
+			waitNanos.addAndGet(System.nanoTime() - start);
+			waiting.decrementAndGet();
+		}
+
+		void appendStatistics(StringBuilder sb) {
+			long shared = sharedCount.get();
+			long total = shared + exclusiveCount.get();
+			long uptime = Math.max(1, System.nanoTime() - created);
+			sb.append(size).append(" servers, queue ").append(waiting.get());
+			sb.append(" (max ").append(maxWaiting.get()).append("), ");
+			sb.append(shared).append(" read-only, ").append(total - shared).append(" exclusive");
+			sb.append(", avg wait ");
+			sb.append(total == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitNanos.get() / total));
+			sb.append(" ms, exclusive ").append(exclusiveNanos.get() * 100 / uptime).append("%");
+			sb.append(", slot utilization");
+			for (int i = 0; i < size; i++) {
+				sb.append(i == 0 ? " " : "/").append(busyNanos.get(i) * 100 / uptime).append('%');
+			}
+		}
+	}
 }
@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.vectrace.MercurialEclipse.model.HgRoot;
+
+/**
+ * Read-only view of the Mercurial dirstate file (<code>.hg/dirstate</code>, format version 1).
+ * <p>
+ * The dirstate records for each tracked file its state and the size and modification time it
+ * had when Mercurial last saw it clean. Comparing these with the file system allows to tell
+ * which files are certainly unchanged without asking the command server, which is how
+ * <code>hg status</code> itself avoids reading file contents.
+ * <p>
+ * Layout: 20 bytes parent 1, 20 bytes parent 2, followed by entries of: state byte, int mode,
+ * int size, int mtime, int name length, name bytes (name may contain "\0copy-source"). All ints
+ * are big-endian.
+ */
+public class Dirstate {
+
+	public static final char STATE_NORMAL = 'n';
+	public static final char STATE_ADDED = 'a';
+	public static final char STATE_REMOVED = 'r';
+	public static final char STATE_MERGED = 'm';
+
+	/** size value for files which must be looked up */
+	private static final int SIZE_LOOKUP = -1;
+
+	/** mtime value for files which must be looked up */
+	private static final int MTIME_LOOKUP = -1;
+
+	private static final int S_IFMT = 0170000;
+	private static final int S_IFLNK = 0120000;
+
+	private static final int NODE_LENGTH = 20;
+
+	private static final int MAX_31_BITS = 0x7fffffff;
+
+	private final String parent1;
+	private final String parent2;
+
+	private final Map<String, Integer> index;
+	private final byte[] states;
+	private final int[] modes;
+	private final int[] sizes;
+	private final int[] mtimes;
+	private final int size;
+
+	/** modification time (seconds) and length of the dirstate file itself */
+	private final long sourceModified;
+	private final long sourceLength;
+
+	private Dirstate(String parent1, String parent2, Map<String, Integer> index, byte[] states,
+			int[] modes, int[] sizes, int[] mtimes, int size, long sourceModified, long sourceLength) {
+		this.parent1 = parent1;
+		this.parent2 = parent2;
+		this.index = index;
+		this.states = states;
+		this.modes = modes;
+		this.sizes = sizes;
+		this.mtimes = mtimes;
+		this.size = size;
+		this.sourceModified = sourceModified;
+		this.sourceLength = sourceLength;
+	}
+
+	// operations
+
+	/**
+	 * @return the dirstate file of the given root, never null (but may not exist)
+	 */
+	public static File getFile(HgRoot root) {
+		return new File(new File(root, ".hg"), "dirstate");
+	}
+
+	/**
+	 * @return the parsed dirstate of the given root, or null if it does not exist or has an
+	 *         unsupported format
+	 */
+	public static Dirstate read(HgRoot root) throws IOException {
+		return read(getFile(root));
+	}
+
+	/**
+	 * @return the parsed dirstate, or null if the file does not exist or has an unsupported
+	 *         format
+	 */
+	public static Dirstate read(File file) throws IOException {
+		long modified = file.lastModified();
+		long length = file.length();
+		if (modified == 0L) {
+			return null;
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			return read(in, (int) length, modified / 1000, length);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param expectedLength
+	 *            expected length of the stream, used to size the tables. May be 0
+	 * @return the parsed dirstate, or null if the stream has an unsupported format
+	 */
+	public static Dirstate read(InputStream stream, int expectedLength) throws IOException {
+		return read(stream, expectedLength, Long.MAX_VALUE, -1);
+	}
+
+	private static Dirstate read(InputStream stream, int expectedLength, long sourceModified,
+			long sourceLength) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+		byte[] node = new byte[NODE_LENGTH];
+		try {
+			in.readFully(node);
+		} catch (EOFException e) {
+			// empty dirstate of a new repository
+			return new Dirstate(null, null, new HashMap<String, Integer>(), new byte[0],
+					new int[0], new int[0], new int[0], 0, sourceModified, sourceLength);
+		}
+		if (startsWith(node, "dirstate-v2")) {
+			// the v2 docket format is not supported
+			return null;
+		}
+		String p1 = toHex(node);
+		in.readFully(node);
+		String p2 = toHex(node);
+
+		// an entry takes at least 17 bytes header and a short name
+		int capacity = Math.max(16, expectedLength / 64);
+		byte[] states = new byte[capacity];
+		int[] modes = new int[capacity];
+		int[] sizes = new int[capacity];
+		int[] mtimes = new int[capacity];
+		Map<String, Integer> index = new HashMap<String, Integer>(capacity * 4 / 3 + 1);
+		byte[] name = new byte[256];
+		int count = 0;
+		while (true) {
+			int state = in.read();
+			if (state < 0) {
+				break;
+			}
+			if (count == states.length) {
+				int grown = count + (count >> 1);
+				states = grow(states, grown);
+				modes = grow(modes, grown);
+				sizes = grow(sizes, grown);
+				mtimes = grow(mtimes, grown);
+			}
+			states[count] = (byte) state;
+			modes[count] = in.readInt();
+			sizes[count] = in.readInt();
+			mtimes[count] = in.readInt();
+			int length = in.readInt();
+			if (length < 0) {
+				throw new IOException("Corrupt dirstate entry " + count);
+			}
+			if (length > name.length) {
+				name = new byte[length];
+			}
+			in.readFully(name, 0, length);
+			int nameLength = length;
+			for (int i = 0; i < length; i++) {
+				if (name[i] == 0) {
+					// followed by copy source
+					nameLength = i;
+					break;
+				}
+			}
+			index.put(new String(name, 0, nameLength, "UTF-8"), Integer.valueOf(count));
+			count++;
+		}
+		return new Dirstate(p1, isNull(p2) ? null : p2, index, states, modes, sizes, mtimes,
+				count, sourceModified, sourceLength);
+	}
+
+	/**
+	 * @return true if this dirstate still reflects the given file
+	 */
+	public boolean isCurrent(File file) {
+		return file.length() == sourceLength && file.lastModified() / 1000 == sourceModified;
+	}
+
+	/**
+	 * @return number of tracked files
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return full hex node of the first working directory parent, may be null
+	 */
+	public String getParent1() {
+		return parent1;
+	}
+
+	/**
+	 * @return full hex node of the second working directory parent, null if no merge is in
+	 *         progress
+	 */
+	public String getParent2() {
+		return parent2;
+	}
+
+	/**
+	 * @param path
+	 *            root relative path with '/' separators
+	 * @return true if the dirstate contains an entry for the given path
+	 */
+	public boolean isTracked(String path) {
+		return index.containsKey(path);
+	}
+
+	/**
+	 * @param path
+	 *            root relative path with '/' separators
+	 * @return the state character ({@link #STATE_NORMAL} etc) or 0 if the path is not tracked
+	 */
+	public char getState(String path) {
+		Integer i = index.get(path);
+		return i == null ? 0 : (char) states[i.intValue()];
+	}
+
+	/**
+	 * @param path
+	 *            root relative path with '/' separators
+	 * @return the recorded size, or -1 if the path is not tracked or must be looked up
+	 */
+	public int getSize(String path) {
+		Integer i = index.get(path);
+		return i == null ? SIZE_LOOKUP : sizes[i.intValue()];
+	}
+
+	/**
+	 * @param path
+	 *            root relative path with '/' separators
+	 * @return the recorded modification time in seconds, or -1 if the path is not tracked or
+	 *         must be looked up
+	 */
+	public int getModificationTime(String path) {
+		Integer i = index.get(path);
+		return i == null ? MTIME_LOOKUP : mtimes[i.intValue()];
+	}
+
+	/**
+	 * Checks the file system against the recorded state, the same way <code>hg status</code>
+	 * does before it compares contents. A false result does not mean the file is modified, only
+	 * that Mercurial has to check it.
+	 * <p>
+	 * Note: changes of the executable bit can't be detected here (Java 5), so they are only
+	 * reported by the next full status refresh.
+	 *
+	 * @param path
+	 *            root relative path with '/' separators
+	 * @param file
+	 *            the file in the working directory
+	 * @return true if the file is tracked, in normal state and has the recorded size and
+	 *         modification time
+	 */
+	public boolean isUnchanged(String path, File file) {
+		Integer boxed = index.get(path);
+		if (boxed == null) {
+			return false;
+		}
+		int i = boxed.intValue();
+		if (states[i] != STATE_NORMAL || sizes[i] < 0 || mtimes[i] == MTIME_LOOKUP
+				|| (modes[i] & S_IFMT) == S_IFLNK) {
+			return false;
+		}
+		if (mtimes[i] >= sourceModified) {
+			// written in the same second as the dirstate: content may have changed unnoticed
+			return false;
+		}
+		long lastModified = file.lastModified();
+		if (lastModified == 0L) {
+			// missing
+			return false;
+		}
+		return (file.length() & MAX_31_BITS) == sizes[i]
+				&& ((lastModified / 1000) & MAX_31_BITS) == mtimes[i];
+	}
+
+	@Override
+	public String toString() {
+		return "Dirstate [parent1=" + parent1 + ", parent2=" + parent2 + ", size=" + size + "]";
+	}
+
+	// helpers
+
+	private static boolean startsWith(byte[] bytes, String prefix) {
+		for (int i = 0; i < prefix.length(); i++) {
+			if (i >= bytes.length || bytes[i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isNull(String node) {
+		for (int i = 0; i < node.length(); i++) {
+			if (node.charAt(i) != '0') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String toHex(byte[] node) {
+		StringBuilder sb = new StringBuilder(node.length * 2);
+		for (byte b : node) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	private static byte[] grow(byte[] array, int capacity) {
+		byte[] result = new byte[capacity];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] result = new int[capacity];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+}
@@ -0,0 +1,481 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
+import com.vectrace.MercurialEclipse.commands.HgConfigClient;
+import com.vectrace.MercurialEclipse.exception.HgException;
+import com.vectrace.MercurialEclipse.model.HgRoot;
+
+/**
+ * Bounded cache for the contents of files at a revision, as returned by hg cat.
+ * <p>
+ * The contents are decoded by the decode filters of the root (hg cat --decode), so the entries are
+ * addressed by the root, a digest of its decode settings, the changeset node and the path. The
+ * contents of such a key never change, so the entries are never invalidated. Recently used contents are kept in memory,
+ * softly referenced so they don't compete with the rest of the workbench. Every cached content is
+ * also written to a folder in the plugin state location, so contents evicted from memory (or
+ * asked for again after a restart) are read from disk instead of asking hg. Both tiers drop the
+ * least recently used entries once their limits are reached.
+ * <p>
+ * Thread safe.
+ */
+public class FileContentCache {
+
+	/** folder in the plugin state location with the spilled contents */
+	private static final String STORE_FOLDER = "contents"; //$NON-NLS-1$
+
+	private static final long DEFAULT_MEMORY_LIMIT = 16 * 1024 * 1024;
+
+	private static final long DEFAULT_DISK_LIMIT = 128 * 1024 * 1024;
+
+	/** larger contents are not cached at all */
+	public static final int MAX_CONTENT_SIZE = 4 * 1024 * 1024;
+
+	/** fraction of the disk limit kept when the disk tier is trimmed */
+	private static final double TRIM_RATIO = 0.75;
+
+	private static FileContentCache instance;
+
+	/** digest of the decode settings per root, see {@link #getSettings(HgRoot)} */
+	private static final Map<HgRoot, Settings> SETTINGS = new ConcurrentHashMap<HgRoot, Settings>();
+
+	/** null if the contents are not spilled to disk */
+	private final File dir;
+
+	private final long memoryLimit;
+
+	private final long diskLimit;
+
+	/** access ordered, guarded by itself */
+	private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(64, 0.75f,
+			true);
+
+	/** guarded by {@link #memory} */
+	private long memorySize;
+
+	/** -1 until the disk tier is scanned */
+	private final AtomicLong diskSize = new AtomicLong(-1);
+
+	private final Object trimLock = new Object();
+
+	private final AtomicLong memoryHits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private static final class Entry {
+		final SoftReference<byte[]> content;
+		final int length;
+
+		Entry(byte[] content) {
+			this.content = new SoftReference<byte[]>(content);
+			this.length = content.length;
+		}
+	}
+
+	private static final class Settings {
+		/** modification stamp of the config files the digest was computed from */
+		final long stamp;
+		final String digest;
+
+		Settings(long stamp, String digest) {
+			this.stamp = stamp;
+			this.digest = digest;
+		}
+	}
+
+	/**
+	 * @param dir
+	 *            the folder for the disk tier, null to keep the contents in memory only
+	 */
+	FileContentCache(File dir, long memoryLimit, long diskLimit) {
+		this.dir = dir;
+		this.memoryLimit = memoryLimit;
+		this.diskLimit = diskLimit;
+	}
+
+	public static synchronized FileContentCache getInstance() {
+		if (instance == null) {
+			File dir = null;
+			MercurialEclipsePlugin plugin = MercurialEclipsePlugin.getDefault();
+			if (plugin != null) {
+				dir = plugin.getStateLocation().append(STORE_FOLDER).toFile();
+			}
+			instance = new FileContentCache(dir, DEFAULT_MEMORY_LIMIT, DEFAULT_DISK_LIMIT);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param root
+	 *            the root the content is read from
+	 * @param node
+	 *            the full changeset node
+	 * @param path
+	 *            the root relative path
+	 * @return the key of the content of the path at the changeset, as decoded with the current
+	 *         decode settings of the root. Null if the settings can't be read: the content must
+	 *         not be cached then
+	 */
+	public static String getKey(HgRoot root, String node, String path) {
+		String settings = getSettings(root);
+		if (settings == null) {
+			return null;
+		}
+		return getKey(root.getAbsolutePath() + ':' + settings, node, path);
+	}
+
+	static String getKey(String settings, String node, String path) {
+		return settings + ':' + node + ':' + path;
+	}
+
+	/**
+	 * @return the digest of the settings changing the output of hg cat --decode in the root,
+	 *         null if they can't be read
+	 */
+	private static String getSettings(HgRoot root) {
+		long stamp = getSettingsStamp(root);
+		Settings settings = SETTINGS.get(root);
+		if (settings != null && settings.stamp == stamp) {
+			return settings.digest;
+		}
+		try {
+			String digest = toHex(digest(HgConfigClient.getDecodeConfig(root)));
+			SETTINGS.put(root, new Settings(stamp, digest));
+			return digest;
+		} catch (HgException e) {
+			MercurialEclipsePlugin.logError(e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return a stamp which changes if the repository or the user config files are modified
+	 */
+	private static long getSettingsStamp(HgRoot root) {
+		String home = System.getProperty("user.home"); //$NON-NLS-1$
+		long stamp = new File(root, ".hg/hgrc").lastModified(); //$NON-NLS-1$
+		stamp = 31 * stamp + new File(home, ".hgrc").lastModified(); //$NON-NLS-1$
+		stamp = 31 * stamp + new File(home, "mercurial.ini").lastModified(); //$NON-NLS-1$
+		return stamp;
+	}
+
+	/**
+	 * @return the cached content, or null if it is not cached. The returned array must not be
+	 *         modified
+	 */
+	public byte[] get(String key) {
+		synchronized (memory) {
+			Entry entry = memory.get(key);
+			if (entry != null) {
+				byte[] content = entry.content.get();
+				if (content != null) {
+					memoryHits.incrementAndGet();
+					return content;
+				}
+				memory.remove(key);
+				memorySize -= entry.length;
+			}
+		}
+		byte[] content = readFromDisk(key);
+		if (content != null) {
+			diskHits.incrementAndGet();
+			putInMemory(key, content);
+			return content;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * @return true if the content of the key is cached in memory or on disk. Doesn't count as a
+	 *         request for the statistics
+	 */
+	public boolean contains(String key) {
+		synchronized (memory) {
+			Entry entry = memory.get(key);
+			if (entry != null && entry.content.get() != null) {
+				return true;
+			}
+		}
+		return dir != null && getFile(key).isFile();
+	}
+
+	/**
+	 * Caches the content of the given key. Contents larger than {@link #MAX_CONTENT_SIZE} are
+	 * ignored.
+	 *
+	 * @param content
+	 *            must not be modified afterwards
+	 */
+	public void put(String key, byte[] content) {
+		if (content.length > MAX_CONTENT_SIZE) {
+			return;
+		}
+		putInMemory(key, content);
+		writeToDisk(key, content);
+	}
+
+	private void putInMemory(String key, byte[] content) {
+		if (content.length > memoryLimit) {
+			return;
+		}
+		synchronized (memory) {
+			Entry old = memory.put(key, new Entry(content));
+			if (old != null) {
+				memorySize -= old.length;
+			}
+			memorySize += content.length;
+			Iterator<Entry> it = memory.values().iterator();
+			while (memorySize > memoryLimit && it.hasNext()) {
+				Entry eldest = it.next();
+				it.remove();
+				memorySize -= eldest.length;
+			}
+		}
+	}
+
+	// disk tier
+
+	private File getFile(String key) {
+		return new File(dir, toHex(digest(key)));
+	}
+
+	private byte[] readFromDisk(String key) {
+		if (dir == null) {
+			return null;
+		}
+		File file = getFile(key);
+		long length = file.length();
+		if (length <= 0 || length > MAX_CONTENT_SIZE) {
+			return null;
+		}
+		byte[] content = new byte[(int) length];
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				int count = 0;
+				int read;
+				while (count < content.length
+						&& (read = in.read(content, count, content.length - count)) >= 0) {
+					count += read;
+				}
+				if (count != content.length) {
+					return null;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// deleted by a concurrent trim
+			return null;
+		}
+		// least recently used order for the trim
+		file.setLastModified(System.currentTimeMillis());
+		return content;
+	}
+
+	private void writeToDisk(String key, byte[] content) {
+		// empty contents are cached in memory only: a zero length file is not a valid entry
+		if (dir == null || content.length == 0) {
+			return;
+		}
+		File file = getFile(key);
+		if (file.isFile()) {
+			return;
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			return;
+		}
+		File tmp = new File(dir, file.getName() + '.' + Thread.currentThread().getId() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(content);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				return;
+			}
+		} catch (IOException e) {
+			MercurialEclipsePlugin.logError(e);
+			tmp.delete();
+			return;
+		}
+		if (addDiskSize(content.length) > diskLimit) {
+			trim();
+		}
+	}
+
+	/**
+	 * @return the new size of the disk tier
+	 */
+	private long addDiskSize(long delta) {
+		if (diskSize.get() < 0) {
+			synchronized (trimLock) {
+				if (diskSize.get() < 0) {
+					long size = 0;
+					for (File file : listFiles()) {
+						size += file.length();
+					}
+					// the new file is already listed
+					diskSize.set(size - delta);
+				}
+			}
+		}
+		return diskSize.addAndGet(delta);
+	}
+
+	/**
+	 * Deletes the least recently used files of the disk tier
+	 */
+	private void trim() {
+		synchronized (trimLock) {
+			if (diskSize.get() <= diskLimit) {
+				return;
+			}
+			File[] files = listFiles();
+			final Map<File, Long> modified = new HashMap<File, Long>(files.length * 2);
+			long size = 0;
+			for (File file : files) {
+				modified.put(file, Long.valueOf(file.lastModified()));
+				size += file.length();
+			}
+			Arrays.sort(files, new Comparator<File>() {
+				public int compare(File f1, File f2) {
+					return modified.get(f1).compareTo(modified.get(f2));
+				}
+			});
+			long target = (long) (diskLimit * TRIM_RATIO);
+			for (int i = 0; i < files.length && size > target; i++) {
+				long length = files[i].length();
+				if (files[i].delete()) {
+					size -= length;
+				}
+			}
+			diskSize.set(size);
+		}
+	}
+
+	private File[] listFiles() {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		int count = 0;
+		for (File file : files) {
+			if (!file.getName().endsWith(".tmp")) {
+				files[count++] = file;
+			}
+		}
+		File[] result = new File[count];
+		System.arraycopy(files, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * Forgets all cached contents, including the disk tier
+	 */
+	public void clear() {
+		synchronized (memory) {
+			memory.clear();
+			memorySize = 0;
+		}
+		if (dir != null) {
+			synchronized (trimLock) {
+				for (File file : listFiles()) {
+					file.delete();
+				}
+				diskSize.set(0);
+			}
+		}
+	}
+
+	// statistics
+
+	public long getMemoryHits() {
+		return memoryHits.get();
+	}
+
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the fraction of the requests served from memory or disk, 0 if there were no requests
+	 */
+	public double getHitRate() {
+		long hits = memoryHits.get() + diskHits.get();
+		long total = hits + misses.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * @return the size of the contents kept in memory, including the ones already collected
+	 */
+	public long getMemorySize() {
+		synchronized (memory) {
+			return memorySize;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "FileContentCache [memoryHits=" + memoryHits + ", diskHits=" + diskHits
+				+ ", misses=" + misses + ", hitRate=" + Math.round(getHitRate() * 100)
+				+ "%, memory=" + getMemorySize() + ", disk=" + Math.max(0, diskSize.get()) + "]";
+	}
+
+	// helpers
+
+	private static byte[] digest(String key) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] digits = "0123456789abcdef".toCharArray();
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = digits[(bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = digits[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+}
@@ -16,13 +16,20 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 
 import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.preference.IPreferenceStore;
 
 import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
+import com.vectrace.MercurialEclipse.commands.HgIncomingClient;
 import com.vectrace.MercurialEclipse.exception.HgException;
 import com.vectrace.MercurialEclipse.model.ChangeSet;
 import com.vectrace.MercurialEclipse.model.ChangeSet.Direction;
 import com.vectrace.MercurialEclipse.model.HgRoot;
 import com.vectrace.MercurialEclipse.model.IHgRepositoryLocation;
+import com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants;
 import com.vectrace.MercurialEclipse.storage.HgRepositoryLocationManager;
 import com.vectrace.MercurialEclipse.team.MercurialTeamProvider;
 
@@ -33,6 +40,12 @@ public final class IncomingChangesetCache extends AbstractRemoteCache {
 
 	private static IncomingChangesetCache instance;
 
+	/**
+	 * true if the mirrors were deleted since incremental incoming was disabled. Not initialized
+	 * explicitly: set by the super constructor already
+	 */
+	private boolean mirrorsDeleted;
+
 	private IncomingChangesetCache() {
 		super(Direction.INCOMING);
 	}
@@ -44,6 +57,30 @@ public final class IncomingChangesetCache extends AbstractRemoteCache {
 		return instance;
 	}
 
+	/**
+	 * Deletes the mirrors of the remote repositories once incremental incoming is disabled
+	 */
+	@Override
+	protected void configureFromPreferences(IPreferenceStore store) {
+		if (store.getBoolean(MercurialPreferenceConstants.SYNC_INCREMENTAL_INCOMING)) {
+			mirrorsDeleted = false;
+			return;
+		}
+		if (mirrorsDeleted) {
+			return;
+		}
+		mirrorsDeleted = true;
+		Job job = new Job("Deleting mirrors for incoming changesets") {
+			@Override
+			protected IStatus run(IProgressMonitor monitor) {
+				HgIncomingClient.deleteMirrors();
+				return Status.OK_STATUS;
+			}
+		};
+		job.setSystem(true);
+		job.schedule();
+	}
+
 	/**
 	 * Gets the newest incoming changeset of the default repository. In case no default
 	 * repository is set, <b>all repositories</b> are considered.
@@ -11,16 +11,23 @@
  *******************************************************************************/
 package com.vectrace.MercurialEclipse.team.cache;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Observer;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
@@ -53,6 +60,11 @@ import com.vectrace.MercurialEclipse.utils.ResourceUtils;
  * observing clients.
  * <p>
  * <b>Implementation note 1</b> the cache does not send any notifications...
+ * <p>
+ * <b>Implementation note 2</b> the metadata of all fetched changesets is kept once per root in a
+ * {@link ChangesetIndex}, the log of a path is only a sorted array of revisions. The
+ * {@link JHgChangeSet} objects are created on demand when the returned sets are iterated, and are
+ * only weakly cached.
  *
  * @author bastian
  * @author Andrei Loskutov
@@ -61,15 +73,48 @@ public final class LocalChangesetCache extends AbstractCache {
 
 	private static final MercurialStatusCache STATUS_CACHE = MercurialStatusCache.getInstance();
 
+	/** folder in the plugin state location with the persistent indexes */
+	private static final String STORE_FOLDER = "logcache"; //$NON-NLS-1$
+
 	private static LocalChangesetCache instance;
 
+	/**
+	 * Is told about the changesets the cache learns about. Unlike observers these listeners
+	 * must not cause cache updates.
+	 */
+	public interface RevisionListener {
+
+		/**
+		 * Called while the cache is locked: implementations should only schedule work.
+		 *
+		 * @param revisions
+		 *            The revisions of the changesets new to the index of the root
+		 * @param count
+		 *            Number of valid entries in revisions
+		 */
+		void revisionsAdded(HgRoot root, int[] revisions, int count);
+	}
+
+	private final List<RevisionListener> revisionListeners = new CopyOnWriteArrayList<RevisionListener>();
+
 	private final ConcurrentMap<JHgChangeSet, JHgChangeSet> changesetCache = new MapMaker()
 			.weakValues().weakKeys().makeMap();
 
 	/**
-	 * Contains all the loaded changesets for each of the paths (resources)
+	 * Contains the revisions of all the loaded changesets for each of the paths (resources).
+	 * Guards also {@link #indexes}
+	 */
+	private final Map<IPath, PathLog> logByPath = new HashMap<IPath, PathLog>();
+
+	/**
+	 * Metadata of all the loaded changesets for each root
 	 */
-	private final Map<IPath, SortedSet<JHgChangeSet>> logByPath = new HashMap<IPath, SortedSet<JHgChangeSet>>();
+	private final Map<HgRoot, ChangesetIndex> indexes = new HashMap<HgRoot, ChangesetIndex>();
+
+	/**
+	 * Persistent copies of the {@link #indexes}. Guarded by {@link #logByPath}
+	 */
+	private final Map<HgRoot, ChangesetIndexStore> stores = new HashMap<HgRoot, ChangesetIndexStore>();
 
 	/**
 	 * Stores the latest changeset for each root
@@ -115,12 +160,27 @@ public final class LocalChangesetCache extends AbstractCache {
 		return oldCS != null ? oldCS : newCS;
 	}
 
+	/**
+	 * Get the {@link JHgChangeSet} for a revision of the index, creating one if necessary
+	 */
+	private JHgChangeSet get(HgRoot root, ChangesetIndex index, int rev) {
+		JHgChangeSet newCS = new JHgChangeSet(root, index, rev);
+		JHgChangeSet oldCS = changesetCache.putIfAbsent(newCS, newCS);
+
+		return oldCS != null ? oldCS : newCS;
+	}
+
 	public void clear(HgRoot root) {
 		synchronized (workingDirectoryParentMap) {
 			workingDirectoryParentMap.remove(root);
 		}
 		synchronized (logByPath) {
 			logByPath.remove(root.getIPath());
+			ChangesetIndex index = indexes.get(root);
+			if (index != null) {
+				// metadata is immutable and checked against the changelog, but phases may change
+				index.clearPhases();
+			}
 		}
 		Set<IProject> projects = ResourceUtils.getProjects(root);
 		for (IProject project : projects) {
@@ -162,7 +222,7 @@ public final class LocalChangesetCache extends AbstractCache {
 			return EMPTY_SET;
 		}
 
-		SortedSet<JHgChangeSet> revisions;
+		PathLog revisions;
 		synchronized(logByPath){
 			revisions = logByPath.get(location);
 			if (revisions == null) {
@@ -180,7 +240,7 @@ public final class LocalChangesetCache extends AbstractCache {
 			}
 		}
 		if (revisions != null) {
-			return Collections.unmodifiableSortedSet(revisions);
+			return revisions.getChangeSets();
 		}
 		return EMPTY_SET;
 	}
@@ -192,7 +252,7 @@ public final class LocalChangesetCache extends AbstractCache {
 	public SortedSet<JHgChangeSet> getOrFetchChangeSets(HgRoot hgRoot) throws HgException {
 		IPath location = hgRoot.getIPath();
 
-		SortedSet<JHgChangeSet> revisions;
+		PathLog revisions;
 		synchronized(logByPath){
 			revisions = logByPath.get(location);
 			if (revisions == null) {
@@ -203,7 +263,7 @@ public final class LocalChangesetCache extends AbstractCache {
 			}
 		}
 		if (revisions != null) {
-			return Collections.unmodifiableSortedSet(revisions);
+			return revisions.getChangeSets();
 		}
 		return EMPTY_SET;
 	}
@@ -251,12 +311,12 @@ public final class LocalChangesetCache extends AbstractCache {
 	public JHgChangeSet get(HgRoot hgRoot, String nodeId) throws HgException {
 		Assert.isNotNull(hgRoot);
 		Assert.isNotNull(nodeId);
-		SortedSet<JHgChangeSet> sets = getOrFetchChangeSets(hgRoot);
-		for (JHgChangeSet changeSet : sets) {
-			if(nodeId.equals(changeSet.getNode())
-					|| nodeId.equals(changeSet.toString())
-					|| nodeId.equals(changeSet.getName())){
-				return changeSet;
+		getOrFetchChangeSets(hgRoot);
+		ChangesetIndex index = getIndex(hgRoot, false);
+		if (index != null) {
+			int rev = findRevision(index, nodeId);
+			if (rev >= 0) {
+				return get(hgRoot, index, rev);
 			}
 		}
 
@@ -267,11 +327,10 @@ public final class LocalChangesetCache extends AbstractCache {
 	public JHgChangeSet get(HgRoot root, int rev) throws HgException {
 		Assert.isNotNull(root);
 		Assert.isLegal(rev >= 0);
-		SortedSet<JHgChangeSet> sets = getOrFetchChangeSets(root);
-		for (JHgChangeSet changeSet : sets) {
-			if (changeSet.getIndex() == rev) {
-				return changeSet;
-			}
+		getOrFetchChangeSets(root);
+		ChangesetIndex index = getIndex(root, false);
+		if (index != null && index.contains(rev)) {
+			return get(root, index, rev);
 		}
 
 		// TODO: Cache by root?
@@ -378,9 +437,7 @@ public final class LocalChangesetCache extends AbstractCache {
 
 			IPath path = ResourceUtils.getPath(res);
 
-			addChangesToLocalCache(path, revisions);
-
-			return logByPath.get(path);
+			return addChangesToLocalCache(root, path, revisions).getChangeSets();
 		}
 	}
 
@@ -408,6 +465,10 @@ public final class LocalChangesetCache extends AbstractCache {
 		List<JHgChangeSet> revisions;
 		// now we may change cache state, so lock
 		synchronized(logByPath){
+			int[] cached = limit ? getRootLogFromIndex(hgRoot, limitNumber, startRev) : null;
+			if (cached != null) {
+				return addChangesToLocalCache(hgRoot, hgRoot.getIPath(), cached).getChangeSets();
+			}
 			if (limit) {
 				revisions = HgLogClient.getRootLog(hgRoot, limitNumber, startRev);
 			} else {
@@ -419,9 +480,7 @@ public final class LocalChangesetCache extends AbstractCache {
 
 			IPath path = hgRoot.getIPath();
 
-			addChangesToLocalCache(path, revisions);
-
-			return logByPath.get(path);
+			return addChangesToLocalCache(hgRoot, path, revisions).getChangeSets();
 		}
 	}
 
@@ -447,6 +506,14 @@ public final class LocalChangesetCache extends AbstractCache {
 		return fetchRevisions(root, false, 0, 0);
 	}
 
+	public void addRevisionListener(RevisionListener listener) {
+		revisionListeners.add(listener);
+	}
+
+	public void removeRevisionListener(RevisionListener listener) {
+		revisionListeners.remove(listener);
+	}
+
 	@Override
 	public synchronized void addObserver(Observer o) {
 		// last implementation was very inefficient: the only listener was
@@ -483,31 +550,365 @@ public final class LocalChangesetCache extends AbstractCache {
 	}
 
 	/**
+	 * Records the given changesets in the index of the root and adds their revisions to the log
+	 * of the path. Must be called under the {@link #logByPath} lock.
+	 *
 	 * @param path absolute file path
-	 * @param changes may be null
+	 * @param changes not empty
+	 * @return the updated log of the path, never null
+	 */
+	private PathLog addChangesToLocalCache(HgRoot root, IPath path, Collection<JHgChangeSet> changes) {
+		return addChangesToLocalCache(root, path, addToIndex(root, changes));
+	}
+
+	/**
+	 * Adds the given revisions of the index to the log of the path. Must be called under the
+	 * {@link #logByPath} lock.
+	 *
+	 * @param path absolute file path
+	 * @param revisions revisions known to the index of the root
+	 * @return the updated log of the path, never null
+	 */
+	private PathLog addChangesToLocalCache(HgRoot root, IPath path, int[] revisions) {
+		ChangesetIndex index = getIndex(root, true);
+		PathLog existing = logByPath.get(path);
+		if (existing == null || existing.index != index) {
+			existing = new PathLog(root, index, new int[0]);
+		}
+		PathLog merged = existing.merge(revisions);
+		logByPath.put(path, merged);
+		return merged;
+	}
+
+	/**
+	 * Records the given changesets in the index of the root and appends the new ones to the
+	 * persistent copy. Must be called under the {@link #logByPath} lock.
+	 *
+	 * @return the revisions of the changesets
+	 */
+	private int[] addToIndex(HgRoot root, Collection<JHgChangeSet> changes) {
+		ChangesetIndex index = getIndex(root, true);
+		int[] revisions = new int[changes.size()];
+		int[] added = new int[changes.size()];
+		int count = 0;
+		int addedCount = 0;
+		for (JHgChangeSet cs : changes) {
+			Changeset data = cs.getData();
+			if (index.add(cs.getIndex(), cs.getNode(), revisionOf(data.getParent1()),
+					revisionOf(data.getParent2()), cs.getAuthor(), cs.getDate().getTime(),
+					cs.getBranch(), ChangesetIndex.PHASE_UNKNOWN)) {
+				added[addedCount++] = cs.getIndex();
+			}
+			revisions[count++] = cs.getIndex();
+		}
+
+		ChangesetIndexStore store = getStore(root);
+		if (store != null && addedCount > 0) {
+			try {
+				store.append(index, added, addedCount);
+			} catch (IOException e) {
+				MercurialEclipsePlugin.logError(e);
+				store.delete();
+			}
+		}
+		if (addedCount > 0) {
+			for (RevisionListener listener : revisionListeners) {
+				listener.revisionsAdded(root, added, addedCount);
+			}
+		}
+		return revisions;
+	}
+
+	/**
+	 * Serves a batch of the root log from the index, if the index knows all its revisions. Only
+	 * the revisions committed since the index was last extended are fetched from hg. Must be
+	 * called under the {@link #logByPath} lock.
+	 *
+	 * @return the revisions of the batch, or null if the batch has to be fetched from hg
+	 */
+	private int[] getRootLogFromIndex(HgRoot root, int limitNumber, int startRev) {
+		ChangesetIndexStore store = getStore(root);
+		if (store == null || limitNumber <= 0) {
+			return null;
+		}
+		int tip = store.getTipRevision();
+		if (tip < 0) {
+			return null;
+		}
+		int start = startRev < 0 || startRev > tip ? tip : startRev;
+		int end = Math.max(0, start - limitNumber + 1);
+		ChangesetIndex index = getIndex(root, true);
+
+		int known = start;
+		while (known >= end && !index.contains(known)) {
+			known--;
+		}
+		if (known < end) {
+			// nothing of this batch is known yet
+			return null;
+		}
+		if (known < start) {
+			// new revisions on top of the cached ones: fetch only these
+			addToIndex(root, HgLogClient.getRootLog(root, start - known, start));
+		}
+
+		int[] revisions = new int[start - end + 1];
+		for (int rev = end; rev <= start; rev++) {
+			if (!index.contains(rev)) {
+				return null;
+			}
+			revisions[rev - end] = rev;
+		}
+		return revisions;
+	}
+
+	/**
+	 * Returns the index of the root, loading its persistent copy on first access. An index
+	 * which doesn't match the changelog anymore (strip, rollback) is dropped.
+	 *
+	 * @param create true to create a missing index
+	 * @return the index of the root, may be null if create is false
+	 */
+	private ChangesetIndex getIndex(HgRoot root, boolean create) {
+		synchronized (logByPath) {
+			ChangesetIndex index = indexes.get(root);
+			ChangesetIndexStore store = getStore(root);
+			if (index != null && store != null && !store.isValid(index)) {
+				store.delete();
+				indexes.remove(root);
+				logByPath.remove(root.getIPath());
+				index = null;
+			}
+			if (index == null && create) {
+				if (store != null) {
+					index = store.load(getLogBatchSize());
+				}
+				if (index == null) {
+					index = new ChangesetIndex(getLogBatchSize());
+				}
+				indexes.put(root, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * @return the persistent copy of the index of the root, null if the plugin is not running
 	 */
-	private void addChangesToLocalCache(IPath path, Collection<JHgChangeSet> changes) {
-		if (changes != null && changes.size() > 0) {
-			SortedSet<JHgChangeSet> existing = logByPath.get(path);
-			if (existing == null) {
-				existing = new TreeSet<JHgChangeSet>();
+	private ChangesetIndexStore getStore(HgRoot root) {
+		synchronized (logByPath) {
+			ChangesetIndexStore store = stores.get(root);
+			if (store == null) {
+				MercurialEclipsePlugin plugin = MercurialEclipsePlugin.getDefault();
+				if (plugin == null) {
+					return null;
+				}
+				String name = root.getName() + "-"
+						+ Integer.toHexString(root.getAbsolutePath().hashCode()) + ".idx";
+				File file = plugin.getStateLocation().append(STORE_FOLDER).append(name).toFile();
+				store = new ChangesetIndexStore(file, ChangesetIndexStore.getChangelog(root));
+				stores.put(root, store);
 			}
-			logByPath.put(path, existing);
-			existing.addAll(changes);
+			return store;
 		}
 	}
 
+	/**
+	 * @param nodeId full or short node, or "rev:shortnode"
+	 * @return the revision or -1 if not known
+	 */
+	private static int findRevision(ChangesetIndex index, String nodeId) {
+		int colon = nodeId.indexOf(':');
+		if (colon < 0) {
+			return nodeId.length() >= 12 ? index.indexOfPrefix(nodeId) : -1;
+		}
+		try {
+			int rev = Integer.parseInt(nodeId.substring(0, colon));
+			String node = index.getNode(rev);
+			if (node != null && node.startsWith(nodeId.substring(colon + 1))) {
+				return rev;
+			}
+		} catch (NumberFormatException e) {
+			// not a changeset name
+		}
+		return -1;
+	}
+
+	private static int revisionOf(Changeset parent) {
+		return parent == null ? ChangesetIndex.NO_PARENT : parent.getRevision();
+	}
+
 	public SortedSet<JHgChangeSet> getOrFetchChangeSetsByBranch(HgRoot hgRoot, String branchName)
 			throws HgException {
 
-		SortedSet<JHgChangeSet> changes = getOrFetchChangeSets(hgRoot);
-		SortedSet<JHgChangeSet> branchChangeSets = new TreeSet<JHgChangeSet>();
-		for (JHgChangeSet changeSet : changes) {
-			String changesetBranch = changeSet.getBranch();
-			if (BranchUtils.same(branchName, changesetBranch)) {
-				branchChangeSets.add(changeSet);
+		getOrFetchChangeSets(hgRoot);
+		PathLog log;
+		synchronized (logByPath) {
+			log = logByPath.get(hgRoot.getIPath());
+		}
+		if (log == null) {
+			return new TreeSet<JHgChangeSet>();
+		}
+		// use the index, so no changeset needs to be created for other branches
+		ChangesetIndex index = log.index;
+		int[] matches = new int[log.revisions.length];
+		int count = 0;
+		for (int rev : log.revisions) {
+			if (BranchUtils.same(branchName, index.getBranch(rev))) {
+				matches[count++] = rev;
+			}
+		}
+		return new IndexedChangeSets(hgRoot, index, matches, 0, count);
+	}
+
+	// inner types
+
+	/**
+	 * Immutable log of a path: sorted, distinct revisions of the index
+	 */
+	private final class PathLog {
+		final HgRoot root;
+		final ChangesetIndex index;
+		final int[] revisions;
+
+		PathLog(HgRoot root, ChangesetIndex index, int[] revisions) {
+			this.root = root;
+			this.index = index;
+			this.revisions = revisions;
+		}
+
+		/**
+		 * @return a new log containing the revisions of this log and the given ones
+		 */
+		PathLog merge(int[] added) {
+			int[] all = new int[revisions.length + added.length];
+			System.arraycopy(revisions, 0, all, 0, revisions.length);
+			System.arraycopy(added, 0, all, revisions.length, added.length);
+			Arrays.sort(all);
+			int count = 0;
+			for (int i = 0; i < all.length; i++) {
+				if (count == 0 || all[count - 1] != all[i]) {
+					all[count++] = all[i];
+				}
+			}
+			int[] result = new int[count];
+			System.arraycopy(all, 0, result, 0, count);
+			return new PathLog(root, index, result);
+		}
+
+		SortedSet<JHgChangeSet> getChangeSets() {
+			return new IndexedChangeSets(root, index, revisions, 0, revisions.length);
+		}
+	}
+
+	/**
+	 * Read only sorted set view of a revision array. Changesets are created while iterating.
+	 */
+	private final class IndexedChangeSets extends AbstractSet<JHgChangeSet> implements
+			SortedSet<JHgChangeSet> {
+		private final HgRoot root;
+		private final ChangesetIndex index;
+		private final int[] revisions;
+		private final int from;
+		private final int to;
+
+		IndexedChangeSets(HgRoot root, ChangesetIndex index, int[] revisions, int from, int to) {
+			this.root = root;
+			this.index = index;
+			this.revisions = revisions;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public Iterator<JHgChangeSet> iterator() {
+			return new Iterator<JHgChangeSet>() {
+				private int next = from;
+
+				public boolean hasNext() {
+					return next < to;
+				}
+
+				public JHgChangeSet next() {
+					if (next >= to) {
+						throw new NoSuchElementException();
+					}
+					return get(root, index, revisions[next++]);
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return to - from;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof JHgChangeSet)) {
+				return false;
+			}
+			JHgChangeSet cs = (JHgChangeSet) o;
+			int i = position(cs);
+			return i < to && revisions[i] == cs.getIndex() && cs.getNode().equals(index.getNode(revisions[i]))
+					&& cs.getDirection() == JHgChangeSet.Direction.LOCAL
+					&& root.equals(cs.getHgRoot());
+		}
+
+		public Comparator<? super JHgChangeSet> comparator() {
+			// natural ordering: by revision
+			return null;
+		}
+
+		public JHgChangeSet first() {
+			if (from == to) {
+				throw new NoSuchElementException();
+			}
+			return get(root, index, revisions[from]);
+		}
+
+		public JHgChangeSet last() {
+			if (from == to) {
+				throw new NoSuchElementException();
+			}
+			return get(root, index, revisions[to - 1]);
+		}
+
+		public SortedSet<JHgChangeSet> headSet(JHgChangeSet toElement) {
+			return new IndexedChangeSets(root, index, revisions, from, position(toElement));
+		}
+
+		public SortedSet<JHgChangeSet> tailSet(JHgChangeSet fromElement) {
+			return new IndexedChangeSets(root, index, revisions, position(fromElement), to);
+		}
+
+		public SortedSet<JHgChangeSet> subSet(JHgChangeSet fromElement, JHgChangeSet toElement) {
+			int start = position(fromElement);
+			return new IndexedChangeSets(root, index, revisions, start, Math.max(start,
+					position(toElement)));
+		}
+
+		/**
+		 * @return index of the first revision not less than the revision of the given changeset
+		 */
+		private int position(JHgChangeSet cs) {
+			// Arrays.binarySearch with a range needs Java 6
+			int revision = cs.getIndex();
+			int low = from;
+			int high = to;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (revisions[mid] < revision) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
 			}
+			return low;
 		}
-		return branchChangeSets;
 	}
 }
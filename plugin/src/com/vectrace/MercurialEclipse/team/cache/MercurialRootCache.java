@@ -15,14 +15,12 @@ package com.vectrace.MercurialEclipse.team.cache;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
@@ -32,6 +30,7 @@ import org.eclipse.core.resources.IWorkspaceRoot;
 import org.eclipse.core.runtime.Assert;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.QualifiedName;
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.team.core.RepositoryProvider;
@@ -65,32 +64,28 @@ public class MercurialRootCache extends AbstractCache {
 			16, 0.75f, 4);
 
 	/**
-	 * Tracks known non-canonical forms of paths.
-	 *
-	 * There is a concurrent tree map in Java 1.6+ only.
+	 * Tracks known non-canonical forms of paths: canonical root path -> project locations below
+	 * it. Looked up without locking, see {@link #uncanonicalize(IPath)}.
 	 */
-	private final TreeMap<IPath, Set<IPath>> canonicalMap = new TreeMap<IPath, Set<IPath>>(
-			new Comparator<IPath>() {
-				public int compare(IPath o1, IPath o2) {
-					for (int i = 0, n = Math.max(o1.segmentCount(), o2.segmentCount()); i < n; i++) {
-						String a = o1.segment(i), b = o2.segment(i);
-						int res;
-
-						if (a == null) {
-							res = b == null ? 0 : -1;
-						} else if (b == null) {
-							res = 1;
-						} else {
-							res = a.compareTo(b);
-						}
+	private final PathTrie<Set<IPath>> canonicalMap = new PathTrie<Set<IPath>>();
 
-						if (res != 0) {
-							return res;
-						}
-					}
-					return 0;
-				}
-			});
+	/**
+	 * The max number of entries of {@link #directoryRoots}. It is cleared when more are added
+	 */
+	private static final int MAX_DIRECTORY_ROOTS = 10000;
+
+	/**
+	 * Directory location -> its root, or the {@link #noRoot} sentinel current at the time of the
+	 * lookup. Answers the lookups of resources which can't keep the result in a session property
+	 * (e.g. deleted resources) without searching the file system again.
+	 */
+	private final PathTrie<Object> directoryRoots = new PathTrie<Object>();
+
+	/**
+	 * The number of entries added to {@link #directoryRoots} since it was cleared. Removed
+	 * entries are not subtracted, so it may be too high
+	 */
+	private final AtomicInteger directoryRootCount = new AtomicInteger();
 
 	private MercurialRootCache() {
 	}
@@ -205,12 +200,12 @@ public class MercurialRootCache extends AbstractCache {
 			boolean projectIsOpen = project.isOpen();
 			if(!projectIsOpen) {
 				IPath path = ResourceUtils.getPath(project);
-				if(canonicalMap.containsKey(path)) {
+				if(canonicalMap.get(path) != null) {
 					return knownRoots.get(path.toFile());
 				} else if(path.segmentCount() > 1) {
 					// last try: the root directory of the project?
 					path = path.removeLastSegments(1);
-					if(canonicalMap.containsKey(path)) {
+					if(canonicalMap.get(path) != null) {
 						return knownRoots.get(path.toFile());
 					}
 				}
@@ -267,25 +262,35 @@ public class MercurialRootCache extends AbstractCache {
 		if(fileHandle.getPath().length() == 0) {
 			return null;
 		}
+		IPath location = new Path(fileHandle.getPath());
+		Object known = directoryRoots.get(location);
+		if (known instanceof HgRoot) {
+			return (HgRoot) known;
+		}
+		if (known == noRoot) {
+			return null;
+		}
 		HgRoot root = calculateHgRoot(fileHandle, reportNotFoundRoot);
 		if (cacheResult) {
 			try {
 				markAsCached(resource, root);
 
 				if (root != null) {
-					synchronized (canonicalMap) {
-						Set<IPath> s = canonicalMap.get(root.getIPath());
-						if (s == null) {
-							canonicalMap.put(root.getIPath(), s = new HashSet<IPath>());
-						}
-						IPath projectPath = project.getLocation();
-						if (!resource.isLinked(IResource.CHECK_ANCESTORS)
-								&& !root.getIPath().equals(projectPath)
-								&& !root.getIPath().isPrefixOf(projectPath)) {
-							// only add paths which are *different* and NOT children of the root
-							s.add(projectPath);
+					Set<IPath> s = canonicalMap.get(root.getIPath());
+					if (s == null) {
+						s = new CopyOnWriteArraySet<IPath>();
+						Set<IPath> prev = canonicalMap.putIfAbsent(root.getIPath(), s);
+						if (prev != null) {
+							s = prev;
 						}
 					}
+					IPath projectPath = project.getLocation();
+					if (!resource.isLinked(IResource.CHECK_ANCESTORS)
+							&& !root.getIPath().equals(projectPath)
+							&& !root.getIPath().isPrefixOf(projectPath)) {
+						// only add paths which are *different* and NOT children of the root
+						s.add(projectPath);
+					}
 				}
 			} catch (CoreException e) {
 				// Possible reasons:
@@ -296,10 +301,22 @@ public class MercurialRootCache extends AbstractCache {
 					MercurialEclipsePlugin.logError(e);
 				}
 			}
+		} else {
+			// existing resources keep the root in the session property
+			putDirectoryRoot(location, root == null ? noRoot : root);
 		}
 		return root;
 	}
 
+	private void putDirectoryRoot(IPath location, Object root) {
+		if (directoryRoots.put(location, root) == null
+				&& directoryRootCount.incrementAndGet() > MAX_DIRECTORY_ROOTS) {
+			// the roots are searched again on demand
+			directoryRoots.clear();
+			directoryRootCount.set(0);
+		}
+	}
+
 	public static void markAsCached(IResource resource, HgRoot root) throws CoreException {
 		Object value = root == null ? getInstance().noRoot : root;
 		resource.setSessionProperty(SESSION_KEY, value);
@@ -418,6 +435,10 @@ public class MercurialRootCache extends AbstractCache {
 		// known root) as obsolete and then when a resource is queried we can detect this and
 		// discard the cached result thereby making the invalidation lazy. But that would make
 		// things more complex so use brute force for now:
+		IPath location = resource.getLocation();
+		if (location != null) {
+			getInstance().directoryRoots.removeAll(location);
+		}
 		try {
 			resource.accept(new IResourceVisitor() {
 				public boolean visit(IResource res) throws CoreException {
@@ -451,26 +472,11 @@ public class MercurialRootCache extends AbstractCache {
 		Set<IPath> candidates = null;
 		IPath bestKey = null;
 
-		// Search for key that is a prefix of path
-		synchronized (canonicalMap) {
-			int matchingSegments = 1;
-			SortedMap<IPath, Set<IPath>> map = canonicalMap;
-			loop: for (int n = path.segmentCount(); matchingSegments < n && !map.isEmpty(); matchingSegments++) {
-				IPath curPrefix = path.removeLastSegments(n - matchingSegments - 1);
-				IPath curKey = map.firstKey();
-
-				if (curPrefix.isPrefixOf(curKey)) {
-					bestKey = curKey;
-					map = map.subMap(curPrefix, map.lastKey());
-				} else {
-					break loop;
-				}
-			}
-
-			if (bestKey != null && matchingSegments == bestKey.segmentCount()) {
-				candidates = map.get(bestKey);
-				assert bestKey.isPrefixOf(path);
-			}
+		// Search for the longest key that is a prefix of path
+		PathTrie.Entry<Set<IPath>> entry = canonicalMap.getLongestPrefix(path);
+		if (entry != null) {
+			bestKey = entry.getPath();
+			candidates = entry.getValue();
 		}
 
 		// Build results by switching one prefix for the other
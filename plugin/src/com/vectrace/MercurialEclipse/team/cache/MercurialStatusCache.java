@@ -18,6 +18,7 @@ package com.vectrace.MercurialEclipse.team.cache;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -105,16 +106,19 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 				resources.addAll(addedSet);
 			}
 
-			if(resources.contains(project) || resources.size() > NUM_CHANGED_FOR_COMPLETE_STATUS){
-				// refreshing the status of too many files, just refresh the whole project
-				HgRoot projectRoot = resources.rootOf(project);
-				if(projectRoot == null){
-					projectRoot = MercurialTeamProvider.getHgRoot(project);
-				}
-				if(projectRoot != null) {
-					resources.clear();
-					resources.add(projectRoot, project);
-				}
+			if(resources.contains(project)){
+				refreshWholeProject();
+			}
+		}
+
+		private void refreshWholeProject() {
+			HgRoot projectRoot = resources.rootOf(project);
+			if(projectRoot == null){
+				projectRoot = MercurialTeamProvider.getHgRoot(project);
+			}
+			if(projectRoot != null) {
+				resources.clear();
+				resources.add(projectRoot, project);
 			}
 		}
 
@@ -137,6 +141,17 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 		}
 
 		private void updateProject(IProgressMonitor monitor) throws HgException {
+			if (resources.size() > NUM_CHANGED_FOR_COMPLETE_STATUS && !resources.contains(project)) {
+				// most files touched by an update or a build are still clean: sort them out
+				// using the dirstate and only ask hg for the remaining ones
+				Set<IResource> changed = refreshUnchangedFromDirstate(resources);
+				if (resources.size() > NUM_CHANGED_FOR_COMPLETE_STATUS) {
+					// refreshing the status of too many files, just refresh the whole project
+					refreshWholeProject();
+				} else {
+					notifyChanged(changed, false);
+				}
+			}
 			if (resources.size() == 1 && resources.contains(project)) {
 				monitor.beginTask(NLS.bind(Messages.mercurialStatusCache_RefreshingProject, project.getName()), 1);
 				// do not need to call notifyChanged(resources): refreshStatus() does it already
@@ -184,19 +199,40 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 		}
 
 		public boolean visit(IPath childLocation) {
-			Integer memberBitSet = statusMap.get(childLocation);
-			if (memberBitSet != null) {
-				if(Bits.contains(memberBitSet.intValue(), MODIFIED_MASK)){
-					bitSet |= BIT_MODIFIED;
-					// now we are dirty, so we can stop
-					return false;
-				}
+			int memberBitSet = statusTrie.get(childLocation);
+			if(Bits.contains(memberBitSet, MODIFIED_MASK)){
+				bitSet |= BIT_MODIFIED;
+				// now we are dirty, so we can stop
+				return false;
 			}
 			return true;
 		}
 
 	}
 
+	/**
+	 * Collects visited paths with their status, so that they can be processed outside of the
+	 * status trie lock
+	 */
+	private static final class StatusCollector implements StatusTrie.Visitor {
+
+		final List<IPath> paths = new ArrayList<IPath>();
+		final BitSet dirs = new BitSet();
+		int[] statuses = new int[16];
+
+		public void visit(IPath path, int status, boolean isDir) {
+			int index = paths.size();
+			if(index == statuses.length){
+				int[] grown = new int[index * 2];
+				System.arraycopy(statuses, 0, grown, 0, index);
+				statuses = grown;
+			}
+			statuses[index] = status;
+			dirs.set(index, isDir);
+			paths.add(path);
+		}
+	}
+
 	/**
 	 * Initialization On Demand Holder idiom, thread-safe and instance will not be created until getInstance is called
 	 * in the outer class.
@@ -219,16 +255,6 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 	/** directory bit */
 	public static final int BIT_DIR = 1 << 10;
 
-	private static final Integer IGNORE = Integer.valueOf(BIT_IGNORE);
-	private static final Integer CLEAN = Integer.valueOf(BIT_CLEAN);
-	//    private final static Integer _MISSING = Integer.valueOf(BIT_MISSING);
-	//    private final static Integer _REMOVED = Integer.valueOf(BIT_REMOVED);
-	//    private final static Integer _UNKNOWN = Integer.valueOf(BIT_UNKNOWN);
-	//    private final static Integer _ADDED = Integer.valueOf(BIT_ADDED);
-	//    private final static Integer _MODIFIED = Integer.valueOf(BIT_MODIFIED);
-	//    private final static Integer _IMPOSSIBLE = Integer.valueOf(BIT_IMPOSSIBLE);
-	private static final Integer CONFLICT = Integer.valueOf(BIT_CONFLICT);
-
 	/** maximum bits count used in the cache */
 	//    private final static int MAX_BITS_COUNT = 9;
 
@@ -273,10 +299,18 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 	protected static final int MASK_DELTA = MASK_CHANGED | IResourceDelta.MOVED_TO
 			| IResourceDelta.ADDED | IResourceDelta.COPIED_FROM | IResourceDelta.REMOVED;
 
+	/** shared boxed values for all possible status bit combinations, see {@link #box(int)} */
+	private static final Integer[] STATUS_VALUES = new Integer[BIT_DIR << 1];
+
+	/**
+	 * Max number of unreported status changes resolved to workspace files for a notification.
+	 * If there are more, the projects containing them are reported instead, so that observers
+	 * refresh them completely.
+	 */
+	private static final int MAX_UNREPORTED_CHANGES = 1000;
+
 	/** Used to store the last known status of a resource */
-	/* private */final ConcurrentHashMap<IPath, Integer> statusMap = new ConcurrentHashMap<IPath, Integer>(
-			10000, 0.75f, 4);
-	private final BitMap bitMap;
+	/* private */final StatusTrie statusTrie = new StatusTrie(10000);
 	private final Object statusUpdateLock = new byte[0];
 
 	/** Used to store which projects have already been parsed */
@@ -285,100 +319,14 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 	private final ConcurrentHashMap<IPath, String> mergeChangesetIds = new ConcurrentHashMap<IPath, String>(
 			100, 0.75f, 4);
 
-	private boolean enableSubrepos;
+	/** last parsed dirstate per root, see {@link #getDirstate(HgRoot)} */
+	private final ConcurrentHashMap<HgRoot, Dirstate> dirstates = new ConcurrentHashMap<HgRoot, Dirstate>();
 
-	static class BitMap {
-		private final PathsSet ignore = new PathsSet(1000, 0.75f);
-		// don't waste space with most popular state
-		// private final Set<IPath> clean = new HashSet<IPath>();
-		private final PathsSet missing = new PathsSet(1000, 0.75f);
-		private final PathsSet removed = new PathsSet(1000, 0.75f);
-		private final PathsSet unknown = new PathsSet(1000, 0.75f);
-		private final PathsSet added = new PathsSet(1000, 0.75f);
-		private final PathsSet modified = new PathsSet(1000, 0.75f);
-		private final PathsSet conflict = new PathsSet(1000, 0.75f);
-		/** directories */
-		private final PathsSet dir = new PathsSet(1000, 0.75f);
-		// we do not cache impossible values
-		// private final Set<IPath> impossible = new HashSet<IPath>();
-
-		public BitMap() {
-			super();
-		}
-
-		synchronized void put(IPath path, Integer set){
-			// removed is the first one for speed
-			int mask = set.intValue();
-			if((mask & BIT_REMOVED) != 0){
-				removed.add(path);
-			}
-			if((mask & BIT_MISSING) != 0){
-				missing.add(path);
-			}
-			if((mask & BIT_UNKNOWN) != 0){
-				unknown.add(path);
-			}
-			if((mask & BIT_ADDED) != 0){
-				added.add(path);
-			}
-			if((mask & BIT_MODIFIED) != 0){
-				modified.add(path);
-			}
-			if((mask & BIT_CONFLICT) != 0){
-				conflict.add(path);
-			}
-			if((mask & BIT_IGNORE) != 0){
-				ignore.add(path);
-			}
-			if((mask & BIT_DIR) != 0){
-				dir.add(path);
-			}
-		}
-
-		synchronized PathsSet get(int bit){
-			switch (bit) {
-			case BIT_REMOVED:
-				return removed;
-			case BIT_MISSING:
-				return missing;
-			case BIT_UNKNOWN:
-				return unknown;
-			case BIT_ADDED:
-				return added;
-			case BIT_MODIFIED:
-				return modified;
-			case BIT_CONFLICT:
-				return conflict;
-			case BIT_IGNORE:
-				return ignore;
-			case BIT_DIR:
-				return dir;
-			default:
-				return null;
-			}
-		}
-
-		synchronized void remove(IPath path) {
-			remove(path, removed);
-			remove(path, missing);
-			remove(path, unknown);
-			remove(path, added);
-			remove(path, modified);
-			remove(path, conflict);
-			remove(path, ignore);
-			remove(path, dir);
-		}
-
-		static void remove(IPath path, PathsSet set) {
-			if(!set.isEmpty()) {
-				set.remove(path);
-			}
-		}
-	}
+	private boolean enableSubrepos;
 
 	private MercurialStatusCache() {
 		super();
-		bitMap = new BitMap();
+		statusTrie.trackChanges();
 		ResourcesPlugin.getWorkspace().addResourceChangeListener(this,
 				IResourceChangeEvent.POST_CHANGE);
 	}
@@ -423,7 +371,33 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 	 * @return the BitSet with status flags, MAY RETURN NULL, if status is unknown yet
 	 */
 	private Integer getStatus(IPath location) {
-		return location != null? statusMap.get(location) : null;
+		return location != null? box(statusTrie.get(location)) : null;
+	}
+
+	/**
+	 * @return shared boxed status value, or null for the "unknown" status 0
+	 */
+	private static Integer box(int status) {
+		if(status == 0){
+			return null;
+		}
+		if(status >= STATUS_VALUES.length){
+			return Integer.valueOf(status);
+		}
+		Integer value = STATUS_VALUES[status];
+		if(value == null){
+			// benign race: at worst we create the same value twice
+			value = Integer.valueOf(status);
+			STATUS_VALUES[status] = value;
+		}
+		return value;
+	}
+
+	/**
+	 * @return the estimated heap size in bytes used to store the status of all known resources
+	 */
+	public long getMemoryFootprint() {
+		return statusTrie.getMemoryFootprint();
 	}
 
 	public boolean isSupervised(IResource resource) {
@@ -434,8 +408,8 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 		if(path == null){
 			return false;
 		}
-		Integer statusInt = statusMap.get(path);
-		if(statusInt == null){
+		int status = statusTrie.get(path);
+		if(status == 0){
 			return false;
 		}
 		Assert.isNotNull(resource);
@@ -443,7 +417,6 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 		if (path.equals(project.getLocation())) {
 			return MercurialTeamProvider.isHgTeamProviderFor(project);
 		}
-		int status = statusInt.intValue();
 		int highestBit = Bits.highestBit(status);
 		switch (highestBit) {
 		case BIT_IGNORE:
@@ -464,11 +437,7 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 
 	public boolean isAdded(IPath path) {
 		Assert.isNotNull(path);
-		Integer statusInt = statusMap.get(path);
-		if(statusInt == null){
-			return false;
-		}
-		int status = statusInt.intValue();
+		int status = statusTrie.get(path);
 		if (Bits.highestBit(status) == BIT_ADDED) {
 			File fileSystemResource = path.toFile();
 			if (fileSystemResource.isDirectory()) {
@@ -483,7 +452,7 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 		if(location == null){
 			return false;
 		}
-		return bitMap.get(BIT_DIR).contains(location);
+		return statusTrie.isDirectory(location);
 	}
 
 	public boolean isRemoved(IResource resource) {
@@ -564,15 +533,7 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 	 * @return may return null, if no paths for given parent and bitset are known
 	 */
 	private List<IPath> getPaths(int statusBit, IPath parent){
-		boolean isMappedState = statusBit != BIT_CLEAN && statusBit != BIT_IMPOSSIBLE;
-		if(!isMappedState) {
-			return null;
-		}
-		PathsSet all = bitMap.get(statusBit);
-		if(all.isEmpty()){
-			return null;
-		}
-		return all.getChildren(parent);
+		return statusTrie.getChildren(parent, statusBit);
 	}
 
 	/**
@@ -582,15 +543,7 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 	 * @return may return null, if no paths for given parent and bitset are known
 	 */
 	private List<IPath> getDirectChildren(int statusBit, IPath parent){
-		boolean isMappedState = statusBit != BIT_CLEAN && statusBit != BIT_IMPOSSIBLE;
-		if(!isMappedState) {
-			return null;
-		}
-		PathsSet all = bitMap.get(statusBit);
-		if(all.isEmpty()){
-			return null;
-		}
-		return all.getDirectChildren(parent);
+		return statusTrie.getDirectChildren(parent, statusBit);
 	}
 
 	public Set<IFile> getFiles(int statusBits, IContainer folder){
@@ -606,94 +559,72 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 	}
 
 	public Set<IResource> getResources(int statusBits, IContainer folder){
-		// Possible optimization: don't walk the entry set. Call folder.accept() and query statusMap
-		// individually for each.
 		Set<IResource> resources;
 		HgRoot hgRoot = MercurialTeamProvider.getHgRoot(folder);
 		if(hgRoot == null) {
 			return Collections.emptySet();
 		}
+		IPath parentPath = ResourceUtils.getPath(folder);
+		if(parentPath.isEmpty()) {
+			return Collections.emptySet();
+		}
 		boolean isMappedState = statusBits != BIT_CLEAN && statusBits != BIT_IMPOSSIBLE
 				&& Bits.cardinality(statusBits) == 1;
+		// collect first: the trie must not be modified (setStatus) while it is visited
+		StatusCollector collector = new StatusCollector();
+		statusTrie.accept(parentPath, statusBits, !isMappedState, collector);
+		if(collector.paths.isEmpty()){
+			return Collections.emptySet();
+		}
+		resources = new HashSet<IResource>();
 		if(isMappedState){
-			PathsSet set = bitMap.get(statusBits);
-			if(set == null || set.isEmpty()){
-				return Collections.emptySet();
-			}
-			IPath parentPath = ResourceUtils.getPath(folder);
-			if(parentPath.isEmpty()) {
-				return Collections.emptySet();
-			}
-			resources = new HashSet<IResource>();
-			List<IPath> children = set.getChildren(parentPath);
-			if(children != null) {
-				for (IPath path : children) {
-					// TODO try to use container.getFile (performance?)
-					// we don't know if it is a file or folder...
-					IResource tmp;
-					if(isDirectory(path)) {
-						tmp = hgRoot.getResource().getFolder(hgRoot.toRelative(path));
-					} else {
-						tmp = hgRoot.getResource().getFile(hgRoot.toRelative(path));
-					}
-					if(tmp != null) {
-						resources.add(tmp);
-					}
+			for (int i = 0; i < collector.paths.size(); i++) {
+				IPath path = collector.paths.get(i);
+				// TODO try to use container.getFile (performance?)
+				IResource tmp;
+				if(collector.dirs.get(i)) {
+					tmp = hgRoot.getResource().getFolder(hgRoot.toRelative(path));
+				} else {
+					tmp = hgRoot.getResource().getFile(hgRoot.toRelative(path));
+				}
+				if(tmp != null) {
+					resources.add(tmp);
 				}
 			}
 		} else {
-			resources = new HashSet<IResource>();
-			Set<Entry<IPath, Integer>> entrySet = statusMap.entrySet();
-			IPath parentPath = ResourceUtils.getPath(folder);
-			if(parentPath.isEmpty()) {
-				return Collections.emptySet();
-			}
 			IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
-			for (Entry<IPath, Integer> entry : entrySet) {
-				Integer status = entry.getValue();
-				if(status != null && Bits.contains(status.intValue(), statusBits)){
-					IPath path = entry.getKey();
-					if(!ResourceUtils.isPrefixOf(parentPath, path)) {
-						continue;
-					}
-					// we don't know if it is a file or folder...
-					IPath relative = hgRoot.toRelative(path);
-					if(relative.isEmpty()) {
-						resources.add(hgRoot.getResource());
-						continue;
-					}
-					IResource tmp;
-					if(isDirectory(path)) {
-						tmp = hgRoot.getResource().getFolder(relative);
-					} else {
-						tmp = root.getFileForLocation(path);
+			for (int i = 0; i < collector.paths.size(); i++) {
+				IPath path = collector.paths.get(i);
+				int status = collector.statuses[i];
+				// we don't know if it is a file or folder...
+				IPath relative = hgRoot.toRelative(path);
+				if(relative.isEmpty()) {
+					resources.add(hgRoot.getResource());
+					continue;
+				}
+				IResource tmp;
+				if(collector.dirs.get(i)) {
+					tmp = hgRoot.getResource().getFolder(relative);
+				} else {
+					tmp = root.getFileForLocation(path);
+					if(tmp == null) {
+						tmp = root.getContainerForLocation(path);
 						if(tmp != null) {
-							if(!ResourceUtils.isPrefixOf(parentPath, path)) {
-								tmp = null;
-							}
-						} else {
-							tmp = root.getContainerForLocation(path);
-							if(tmp != null) {
-								if(!ResourceUtils.isPrefixOf(parentPath, path)) {
-									tmp = null;
-								} else {
-									setStatus(path, status, true);
-								}
-							}
-						}
-						if(tmp == null) {
-							if(path.toFile().isDirectory()) {
-								setStatus(path, status, true);
-								tmp = hgRoot.getResource().getFolder(relative);
-							} else {
-								tmp = hgRoot.getResource().getFile(relative);
-							}
+							setStatus(path, status, true);
 						}
 					}
-					if(tmp != null) {
-						resources.add(tmp);
+					if(tmp == null) {
+						if(path.toFile().isDirectory()) {
+							setStatus(path, status, true);
+							tmp = hgRoot.getResource().getFolder(relative);
+						} else {
+							tmp = hgRoot.getResource().getFile(relative);
+						}
 					}
 				}
+				if(tmp != null) {
+					resources.add(tmp);
+				}
 			}
 		}
 		return resources;
@@ -768,9 +699,19 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 
 			// for the Root and all its subrepos
 			// we have to iterate over repos instead of projects.getRoot(), because there may be a single project with lot of subrepos inside
-			for(HgRoot repo : repos){
+			List<HgRoot> repoList = new ArrayList<HgRoot>(repos);
+			List<List<StatusLine>> outputs;
+			try {
+				// the status of all subrepos is fetched in parallel
+				outputs = HgStatusClient.getStatusWithoutIgnored(repoList, null);
+			} catch (HgException e) {
+				MercurialEclipsePlugin.logError(e);
+				return;
+			}
+			for (int i = 0; i < repoList.size(); i++) {
+				HgRoot repo = repoList.get(i);
 				// get status and branch for hg root
-				List<StatusLine> output = HgStatusClient.getStatusWithoutIgnored(repo);
+				List<StatusLine> output = outputs.get(i);
 				WorkingCopy workingCopy = repo.getRepository().workingCopy();
 
 				LocalChangesetCache.getInstance().checkWorkingDirectoryParent(repo, nodeOrNull(workingCopy.getParent1()));
@@ -861,10 +802,13 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 				return;
 			}
 
-			for (HgRoot repo : repos) {
+			// Call hg to get the status of the repositories, in parallel for the subrepos
+			List<HgRoot> repoList = new ArrayList<HgRoot>(repos);
+			List<List<StatusLine>> outputs = HgStatusClient.getStatusWithoutIgnored(repoList, res);
 
-				// Call hg to get the status of the repository
-				List<StatusLine> output = HgStatusClient.getStatusWithoutIgnored(repo, res);
+			for (int i = 0; i < repoList.size(); i++) {
+				HgRoot repo = repoList.get(i);
+				List<StatusLine> output = outputs.get(i);
 				monitor.worked(1);
 				if(monitor.isCanceled()){
 					return;
@@ -955,13 +899,10 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 		if(parentPath.isEmpty()) {
 			return children;
 		}
-		Set<IPath> keySet = statusMap.keySet();
-		for (IPath path : keySet) {
-			if(path != null && ResourceUtils.isPrefixOf(parentPath, path)) {
-				children.add(path);
-			}
+		List<IPath> paths = statusTrie.getChildren(parentPath, ~0);
+		if(paths != null) {
+			children.addAll(paths);
 		}
-		children.remove(parentPath);
 		return children;
 	}
 
@@ -1054,11 +995,11 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 				continue;
 			}
 
-			Integer bitSet;
+			int bitSet;
 			if (bit == BIT_UNKNOWN && Team.isIgnoredHint(member)) {
-				bitSet = IGNORE;
+				bitSet = BIT_IGNORE;
 			} else {
-				bitSet = Integer.valueOf(bit);
+				bitSet = bit;
 				changed.add(member);
 			}
 			if(!member.isLinked(IResource.CHECK_ANCESTORS)) {
@@ -1067,7 +1008,8 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 			}
 		}
 		if(debug){
-			System.out.println("Parse status took: " + (System.currentTimeMillis() - start));
+			System.out.println("Parse status took: " + (System.currentTimeMillis() - start)
+					+ ", status cache: " + statusTrie);
 		}
 		return changed;
 	}
@@ -1103,15 +1045,11 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 		return hgRoot.getResource().findMember(rel);
 	}
 
-	private void setStatus(IPath location, Integer status, boolean isDir) {
+	private void setStatus(IPath location, int status, boolean isDir) {
 		if(location == null || location.isEmpty()){
 			return;
 		}
-		statusMap.put(location, status);
-		bitMap.put(location, status);
-		if(isDir){
-			bitMap.put(location, Integer.valueOf(BIT_DIR));
-		}
+		statusTrie.put(location, status, isDir);
 	}
 
 	/**
@@ -1123,7 +1061,7 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 	 * If false, then only dirty state is propagated to parents.
 	 * @return
 	 */
-	private Set<IResource> setStatusToAncestors(IResource child, Integer childState, boolean propagateAllStates) {
+	private Set<IResource> setStatusToAncestors(IResource child, int childState, boolean propagateAllStates) {
 		Set<IResource> ancestors = new HashSet<IResource>();
 		IContainer parent = child.getParent();
 		IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
@@ -1133,12 +1071,9 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 			if(parentLocation == null){
 				continue;
 			}
-			int parentBitSet = BIT_CLEAN;
-			Integer parentBits = statusMap.get(parentLocation);
-			if(parentBits != null){
-				parentBitSet = parentBits.intValue();
-			}
-			int childBitSet = childState.intValue();
+			int parentBits = statusTrie.get(parentLocation);
+			int parentBitSet = parentBits != 0 ? parentBits : BIT_CLEAN;
+			int childBitSet = childState;
 
 			// should not propagate ignores states to parents
 			// TODO issue 237: "two status feature"
@@ -1155,7 +1090,7 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 			} else if (!childIsDirty) {
 				// child is clean, and we have "usual" files and folders
 				if (!propagateAllStates) {
-					if(parentBits != null){
+					if(parentBits != 0){
 						// parent status known: just exit here. Saves us A LOT of time
 						return ancestors;
 					}
@@ -1183,7 +1118,7 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 					}
 				}
 			}
-			setStatus(parentLocation, Integer.valueOf(childBitSet), parent.getType() == IResource.FOLDER);
+			setStatus(parentLocation, childBitSet, parent.getType() == IResource.FOLDER);
 			ancestors.add(parent);
 		}
 		return ancestors;
@@ -1344,14 +1279,13 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 						changed.add(directory);
 						IPath parentPath = directory.getLocation();
 						if(parentPath != null) {
-							bitMap.remove(parentPath);
-							statusMap.remove(parentPath);
+							statusTrie.remove(parentPath);
 						}
 						directory = ResourceUtils.getFirstExistingDirectory(directory.getParent());
 					}
 					// recursive recalculate parents state
 					// TODO better to combine it with parse status below...
-					setStatusToAncestors(curr, CLEAN, true);
+					setStatusToAncestors(curr, BIT_CLEAN, true);
 				}
 			}
 			List<StatusLine> output = HgStatusClient.getStatusWithoutIgnored(root, currentBatch);
@@ -1365,6 +1299,158 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 		}
 	}
 
+	/**
+	 * Sets the status of all files which are unchanged according to the dirstate of their root
+	 * to clean and removes them from the given set, so that only the remaining (suspicious) files
+	 * have to be checked by hg.
+	 *
+	 * @param resources
+	 *            non null, modified by this method
+	 * @return set with resources to refresh
+	 */
+	private Set<IResource> refreshUnchangedFromDirstate(RootResourceSet<IResource> resources) {
+		Set<IResource> changed = new HashSet<IResource>();
+		for (Iterator<Map.Entry<HgRoot, Set<IResource>>> rootIt = resources.entrySet().iterator(); rootIt.hasNext();) {
+			Map.Entry<HgRoot, Set<IResource>> entry = rootIt.next();
+			HgRoot root = entry.getKey();
+			Dirstate dirstate = getDirstate(root);
+			if(dirstate == null) {
+				continue;
+			}
+			synchronized (statusUpdateLock) {
+				for (Iterator<IResource> it = entry.getValue().iterator(); it.hasNext();) {
+					IResource resource = it.next();
+					IPath location = resource.getLocation();
+					if(resource.getType() != IResource.FILE || location == null
+							|| resource.isLinked(IResource.CHECK_ANCESTORS)) {
+						continue;
+					}
+					String path = root.toRelative(location).toString();
+					if(!dirstate.isUnchanged(path, location.toFile())) {
+						continue;
+					}
+					it.remove();
+					if(statusTrie.get(location) == BIT_CLEAN) {
+						continue;
+					}
+					setStatus(location, BIT_CLEAN, false);
+					changed.add(resource);
+					changed.addAll(setStatusToAncestors(resource, BIT_CLEAN, true));
+				}
+			}
+			if(entry.getValue().isEmpty()) {
+				// avoid status calls without files: they would return the status of the whole root
+				rootIt.remove();
+			}
+		}
+		if(debug){
+			System.out.println("Dirstate check: " + changed.size() + " changed, "
+					+ resources.size() + " left to check");
+		}
+		return changed;
+	}
+
+	/**
+	 * @return the current dirstate of the given root, or null if it can't be read
+	 */
+	private Dirstate getDirstate(HgRoot root) {
+		File file = Dirstate.getFile(root);
+		Dirstate dirstate = dirstates.get(root);
+		if(dirstate != null && dirstate.isCurrent(file)) {
+			return dirstate;
+		}
+		try {
+			dirstate = Dirstate.read(file);
+		} catch (IOException e) {
+			MercurialEclipsePlugin.logError(e);
+			dirstate = null;
+		}
+		if(dirstate == null) {
+			dirstates.remove(root);
+		} else {
+			dirstates.put(root, dirstate);
+		}
+		return dirstate;
+	}
+
+	/**
+	 * Reports only the resources whose status has really changed since the last notification.
+	 * Projects are always reported: their decoration shows the branch and the working directory
+	 * parent, which change without a status change.
+	 */
+	@Override
+	protected CacheChangeEvent createEvent(Set<IResource> resources, Set<IResource> expanded) {
+		CacheChangeEvent event = new CacheChangeEvent();
+		Set<IResource> all = resources;
+		if(!expanded.isEmpty()) {
+			all = new HashSet<IResource>(resources);
+			all.addAll(expanded);
+		}
+		List<IPath> locations = new ArrayList<IPath>(all.size());
+		for (IResource resource : all) {
+			IPath location = resource.getLocation();
+			if (location != null) {
+				locations.add(location);
+			}
+		}
+		synchronized (statusUpdateLock) {
+			// changes of other resources are kept: a refresh may be in progress and report
+			// them later
+			Map<IPath, Integer> before = statusTrie.takeChanges(locations);
+			for (IResource resource : all) {
+				IPath location = resource.getLocation();
+				Integer old = location == null ? null : before.remove(location);
+				if (resource.getType() == IResource.PROJECT) {
+					if(old == null) {
+						event.add(resource, CacheChangeEvent.UNKNOWN, CacheChangeEvent.UNKNOWN);
+					} else {
+						event.add(resource, old.intValue(), statusTrie.get(location));
+					}
+				} else if (old != null) {
+					int status = statusTrie.get(location);
+					if (old.intValue() != status) {
+						event.add(resource, old.intValue(), status);
+					}
+				}
+				// else: the status was not touched since the last notification
+			}
+
+			// files changed without being reported, e.g. dirty files removed by a clear
+			if (statusTrie.getChangeCount() <= MAX_UNREPORTED_CHANGES) {
+				for (Entry<IPath, Integer> entry : statusTrie.drainChanges().entrySet()) {
+					IPath location = entry.getKey();
+					int status = statusTrie.get(location);
+					if (entry.getValue().intValue() == status || statusTrie.isDirectory(location)) {
+						continue;
+					}
+					IFile file = ResourceUtils.getFileHandle(location);
+					if (file != null && file.exists()) {
+						event.add(file, entry.getValue().intValue(), status);
+					}
+				}
+			} else {
+				// too many to resolve one by one
+				Set<IPath> unreported = statusTrie.drainChanges().keySet();
+				for (IProject project : ResourcesPlugin.getWorkspace().getRoot().getProjects()) {
+					IPath projectLocation = project.getLocation();
+					if (!project.isOpen() || projectLocation == null) {
+						continue;
+					}
+					for (IPath location : unreported) {
+						if (projectLocation.isPrefixOf(location)) {
+							event.add(project, CacheChangeEvent.UNKNOWN, CacheChangeEvent.UNKNOWN);
+							break;
+						}
+					}
+				}
+			}
+
+			// the observers read the new state next: let them read it without locking
+			statusTrie.publish();
+		}
+		return event;
+	}
+
 	public void clearStatusCache(IResource resource) {
 		if(resource instanceof IProject && !resource.exists()) {
 			return;
@@ -1372,20 +1458,9 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 		IPath parentPath = ResourceUtils.getPath(resource);
 		synchronized (statusUpdateLock) {
 			if(resource instanceof IContainer && !parentPath.isEmpty()){
-				// same can be done via getChildrenFromCache(resource), but we
-				// iterating/removing over keyset directly to reduce memory consumption
-				Set<IPath> entrySet = statusMap.keySet();
-				Iterator<IPath> it = entrySet.iterator();
-				while (it.hasNext()) {
-					IPath path = it.next();
-					if(path != null && ResourceUtils.isPrefixOf(parentPath, path)) {
-						it.remove();
-						bitMap.remove(path);
-					}
-				}
+				statusTrie.removeSubtree(parentPath);
 			} else {
-				bitMap.remove(parentPath);
-				statusMap.remove(parentPath);
+				statusTrie.remove(parentPath);
 			}
 		}
 	}
@@ -1446,6 +1521,7 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 	public void clear(HgRoot root, boolean notify) {
 		Set<IProject> projects = ResourceUtils.getProjects(root);
 		clearMergeStatus(root.getIPath());
+		dirstates.remove(root);
 		for (IProject project : projects) {
 			clear(project, false);
 			if(notify) {
@@ -1471,15 +1547,9 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 		if(location == null){
 			return Collections.emptySet();
 		}
-		Integer status = statusMap.get(location);
+		int status = statusTrie.get(location) | BIT_CONFLICT;
 		boolean isDir = local.getType() == IResource.FOLDER;
-		if(status == null){
-			status = CONFLICT;
-			setStatus(location, CONFLICT, isDir);
-		} else {
-			status = Integer.valueOf(status.intValue() | BIT_CONFLICT);
-			setStatus(location, status, isDir);
-		}
+		setStatus(location, status, isDir);
 		Set<IResource> changed = setStatusToAncestors(local, status, false);
 		changed.add(local);
 		return changed;
@@ -1495,14 +1565,10 @@ public final class MercurialStatusCache extends AbstractCache implements IResour
 		if(local == null){
 			return false;
 		}
-		Integer statusInt = statusMap.get(local);
-		if(statusInt == null){
-			return false;
-		}
-		int status = statusInt.intValue();
+		int status = statusTrie.get(local);
 		if(Bits.contains(status, BIT_CONFLICT)) {
 			status = Bits.clear(status, BIT_CONFLICT);
-			setStatus(local, Integer.valueOf(status), false);
+			setStatus(local, status, false);
 			return true;
 		}
 		return false;
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * Concurrent map from absolute paths to values, with a longest prefix lookup.
+ * <p>
+ * The paths are kept as a trie of path segments (the device, if any, is the first segment). The
+ * children of a node are kept in a concurrent map and the value of a node is set atomically, so
+ * lookups never lock and updates only contend with updates of the same node. A lookup costs one
+ * hash lookup per segment of the path, independent of the number of entries.
+ * <p>
+ * Removing a subtree while entries are added below it may lose the new entries, so the trie is
+ * meant for caches only.
+ */
+final class PathTrie<V> {
+
+	/**
+	 * A path and its value. Immutable
+	 */
+	static final class Entry<V> {
+		private final IPath path;
+		private final V value;
+
+		Entry(IPath path, V value) {
+			this.path = path;
+			this.value = value;
+		}
+
+		IPath getPath() {
+			return path;
+		}
+
+		V getValue() {
+			return value;
+		}
+	}
+
+	private static final class Node<V> {
+		final ConcurrentMap<String, Node<V>> children = new ConcurrentHashMap<String, Node<V>>(
+				4, 0.75f, 2);
+
+		/** null if there is no value for the path of the node */
+		final AtomicReference<Entry<V>> entry = new AtomicReference<Entry<V>>();
+	}
+
+	private final Node<V> top = new Node<V>();
+
+	/**
+	 * @return the value of the path, or null
+	 */
+	V get(IPath path) {
+		Node<V> node = find(path, path.segmentCount());
+		if (node == null) {
+			return null;
+		}
+		Entry<V> entry = node.entry.get();
+		return entry == null ? null : entry.value;
+	}
+
+	/**
+	 * @return the entry with the longest path which is a prefix of (or equal to) the given path,
+	 *         or null if there is none
+	 */
+	Entry<V> getLongestPrefix(IPath path) {
+		Node<V> node = top;
+		Entry<V> best = node.entry.get();
+		String device = path.getDevice();
+		if (device != null) {
+			node = node.children.get(device);
+			if (node == null) {
+				return best;
+			}
+			best = pick(node, best);
+		}
+		for (int i = 0, n = path.segmentCount(); i < n; i++) {
+			node = node.children.get(path.segment(i));
+			if (node == null) {
+				break;
+			}
+			best = pick(node, best);
+		}
+		return best;
+	}
+
+	private static <V> Entry<V> pick(Node<V> node, Entry<V> best) {
+		Entry<V> entry = node.entry.get();
+		return entry == null ? best : entry;
+	}
+
+	/**
+	 * @param value
+	 *            not null
+	 * @return the previous value, or null
+	 */
+	V put(IPath path, V value) {
+		Entry<V> old = getOrCreate(path).entry.getAndSet(new Entry<V>(path, value));
+		return old == null ? null : old.value;
+	}
+
+	/**
+	 * @param value
+	 *            not null
+	 * @return the current value if there is one, or null if the given value was added
+	 */
+	V putIfAbsent(IPath path, V value) {
+		Node<V> node = getOrCreate(path);
+		Entry<V> entry = new Entry<V>(path, value);
+		while (true) {
+			Entry<V> current = node.entry.get();
+			if (current != null) {
+				return current.value;
+			}
+			if (node.entry.compareAndSet(null, entry)) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Removes the value of the path and of all paths below it
+	 */
+	void removeAll(IPath path) {
+		int count = path.segmentCount();
+		if (count == 0) {
+			Node<V> node = path.getDevice() == null ? top : top.children.get(path.getDevice());
+			if (node != null) {
+				node.children.clear();
+				node.entry.set(null);
+			}
+			return;
+		}
+		Node<V> parent = find(path, count - 1);
+		if (parent != null) {
+			parent.children.remove(path.segment(count - 1));
+		}
+	}
+
+	void clear() {
+		top.children.clear();
+		top.entry.set(null);
+	}
+
+	/**
+	 * @return the node of the first segments of the path, or null if it doesn't exist
+	 */
+	private Node<V> find(IPath path, int segments) {
+		Node<V> node = top;
+		String device = path.getDevice();
+		if (device != null) {
+			node = node.children.get(device);
+		}
+		for (int i = 0; i < segments && node != null; i++) {
+			node = node.children.get(path.segment(i));
+		}
+		return node;
+	}
+
+	private Node<V> getOrCreate(IPath path) {
+		Node<V> node = top;
+		String device = path.getDevice();
+		if (device != null) {
+			node = getOrCreate(node, device);
+		}
+		for (int i = 0, n = path.segmentCount(); i < n; i++) {
+			node = getOrCreate(node, path.segment(i));
+		}
+		return node;
+	}
+
+	private static <V> Node<V> getOrCreate(Node<V> parent, String segment) {
+		Node<V> node = parent.children.get(segment);
+		if (node == null) {
+			node = new Node<V>();
+			Node<V> prev = parent.children.putIfAbsent(segment, node);
+			if (prev != null) {
+				node = prev;
+			}
+		}
+		return node;
+	}
+}
@@ -41,6 +41,7 @@ public class RemoteData {
 	private final Direction direction;
 	private final SortedSet<JHgChangeSet> changesets;
 	private final RemoteKey key;
+	private final File bundleFile;
 
 	/**
 	 * @param changesets this map contains AT LEAST a key corresponding to the hgroot of
@@ -54,6 +55,7 @@ public class RemoteData {
 		this.direction = direction;
 		this.changesets = new TreeSet<JHgChangeSet>();
 		this.key = key;
+		this.bundleFile = bundleFile;
 
 		for (int i = 0, n = changesets.size(); i < n; i++) {
 			this.changesets.add(new JHgChangeSet(key.getRoot(), changesets.get(i), key.getRepo(), direction, bundleFile));
@@ -122,6 +124,13 @@ public class RemoteData {
 		return key;
 	}
 
+	/**
+	 * @return the bundle file with the changesets, may be null
+	 */
+	public File getBundleFile(){
+		return bundleFile;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.jface.util.IPropertyChangeListener;
+import org.eclipse.jface.util.PropertyChangeEvent;
+
+import com.vectrace.MercurialEclipse.MercurialEclipsePlugin;
+import com.vectrace.MercurialEclipse.exception.HgException;
+import com.vectrace.MercurialEclipse.model.HgRoot;
+import com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants;
+
+/**
+ * Refreshes the incoming and outgoing changesets of all keys known by the
+ * {@link IncomingChangesetCache} and the {@link OutgoingChangesetCache} in the background, every
+ * {@link MercurialPreferenceConstants#REMOTE_REFRESH_INTERVAL} minutes. So the synchronize view
+ * and the decorators find up-to-date data instead of waiting for the server.
+ * <p>
+ * All keys of a root are refreshed by one worker, and a root is never queued twice. At most
+ * {@link #MAX_PARALLEL} roots are refreshed at the same time. If the refresh of a root fails (e.g.
+ * the server is not reachable), the root is skipped for twice the time of the previous attempt.
+ * The new data is swapped in by {@link AbstractRemoteCache#refresh(RemoteKey)}, so clients are
+ * never blocked by the refresh.
+ */
+public final class RemoteRefreshScheduler implements IPropertyChangeListener {
+
+	/** max number of roots refreshed at the same time */
+	private static final int MAX_PARALLEL = 2;
+
+	/** max delay before a failing root is tried again */
+	private static final long MAX_BACKOFF = 4 * 60 * 60 * 1000L;
+
+	private static final long MINUTE = 60 * 1000L;
+
+	private static RemoteRefreshScheduler instance;
+
+	/** guarded by itself */
+	private final Map<HgRoot, RootState> states = new HashMap<HgRoot, RootState>();
+
+	/** roots waiting for a worker, guarded by {@link #states} */
+	private final LinkedList<HgRoot> queue = new LinkedList<HgRoot>();
+
+	private final Job tickJob = new TickJob();
+
+	private final RefreshJob[] workers = new RefreshJob[MAX_PARALLEL];
+
+	/** in milliseconds, 0 if disabled */
+	private volatile long interval;
+
+	private volatile boolean started;
+
+	/**
+	 * The refresh state of a root, guarded by {@link RemoteRefreshScheduler#states}
+	 */
+	private static final class RootState {
+		/** number of failed refreshes in a row */
+		int failures;
+
+		/** the root is not refreshed before this time */
+		long notBefore;
+
+		/** true while the root is waiting for or being refreshed */
+		boolean queued;
+	}
+
+	private RemoteRefreshScheduler() {
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new RefreshJob();
+		}
+	}
+
+	public static synchronized RemoteRefreshScheduler getInstance() {
+		if (instance == null) {
+			instance = new RemoteRefreshScheduler();
+		}
+		return instance;
+	}
+
+	public void start() {
+		started = true;
+		IPreferenceStore store = MercurialEclipsePlugin.getDefault().getPreferenceStore();
+		store.addPropertyChangeListener(this);
+		configure(store);
+	}
+
+	public void stop() {
+		started = false;
+		MercurialEclipsePlugin.getDefault().getPreferenceStore().removePropertyChangeListener(this);
+		tickJob.cancel();
+		synchronized (states) {
+			queue.clear();
+			states.clear();
+		}
+		for (RefreshJob worker : workers) {
+			worker.cancel();
+		}
+	}
+
+	/**
+	 * @see org.eclipse.jface.util.IPropertyChangeListener#propertyChange(org.eclipse.jface.util.PropertyChangeEvent)
+	 */
+	public void propertyChange(PropertyChangeEvent event) {
+		if (MercurialPreferenceConstants.REMOTE_REFRESH_INTERVAL.equals(event.getProperty())) {
+			configure(MercurialEclipsePlugin.getDefault().getPreferenceStore());
+		}
+	}
+
+	private void configure(IPreferenceStore store) {
+		long minutes = Math.max(0, store.getInt(MercurialPreferenceConstants.REMOTE_REFRESH_INTERVAL));
+		interval = minutes * MINUTE;
+		tickJob.cancel();
+		if (started && interval > 0) {
+			tickJob.schedule(interval);
+		}
+	}
+
+	/**
+	 * Queues the roots with cached remote data which are not queued yet and not backing off
+	 */
+	private void tick() {
+		Set<HgRoot> roots = new HashSet<HgRoot>();
+		for (RemoteKey key : IncomingChangesetCache.getInstance().getKeys()) {
+			roots.add(key.getRoot());
+		}
+		for (RemoteKey key : OutgoingChangesetCache.getInstance().getKeys()) {
+			roots.add(key.getRoot());
+		}
+		long now = System.currentTimeMillis();
+		int queued;
+		synchronized (states) {
+			// forget the roots without data
+			states.keySet().retainAll(roots);
+			for (HgRoot root : roots) {
+				RootState state = states.get(root);
+				if (state == null) {
+					state = new RootState();
+					states.put(root, state);
+				}
+				if (state.queued || now < state.notBefore) {
+					continue;
+				}
+				state.queued = true;
+				queue.add(root);
+			}
+			queued = queue.size();
+		}
+		for (int i = 0; i < workers.length && i < queued; i++) {
+			workers[i].schedule();
+		}
+	}
+
+	/**
+	 * Refreshes all cached keys of the root, stops at the first failure
+	 *
+	 * @return true on success
+	 */
+	private static boolean refresh(HgRoot root, IProgressMonitor monitor) {
+		AbstractRemoteCache[] caches = { IncomingChangesetCache.getInstance(),
+				OutgoingChangesetCache.getInstance() };
+		for (AbstractRemoteCache cache : caches) {
+			for (RemoteKey key : cache.getKeys()) {
+				if (monitor.isCanceled()) {
+					return true;
+				}
+				if (!root.equals(key.getRoot())) {
+					continue;
+				}
+				try {
+					cache.refresh(key);
+				} catch (HgException e) {
+					if (cache.debug) {
+						System.out.println("!background refresh failed for " + key + ": " + e);
+					}
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private void refreshed(HgRoot root, boolean success) {
+		synchronized (states) {
+			RootState state = states.get(root);
+			if (state == null) {
+				return;
+			}
+			state.queued = false;
+			if (success) {
+				state.failures = 0;
+				state.notBefore = 0;
+				return;
+			}
+			state.failures++;
+			long backoff = interval;
+			for (int i = 0; i < state.failures && backoff < MAX_BACKOFF; i++) {
+				backoff *= 2;
+			}
+			state.notBefore = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF);
+		}
+	}
+
+	/**
+	 * Queues the roots due and reschedules itself
+	 */
+	private final class TickJob extends Job {
+
+		public TickJob() {
+			super("Scheduling refresh of incoming and outgoing changesets"); //$NON-NLS-1$
+			setSystem(true);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			if (!started || interval <= 0) {
+				return Status.OK_STATUS;
+			}
+			tick();
+			schedule(interval);
+			return Status.OK_STATUS;
+		}
+	}
+
+	/**
+	 * Refreshes the queued roots one after another
+	 */
+	private final class RefreshJob extends Job {
+
+		public RefreshJob() {
+			super("Refreshing incoming and outgoing changesets"); //$NON-NLS-1$
+			setSystem(true);
+			setPriority(DECORATE);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			while (!monitor.isCanceled()) {
+				HgRoot root;
+				synchronized (states) {
+					if (queue.isEmpty()) {
+						break;
+					}
+					root = queue.removeFirst();
+				}
+				refreshed(root, refresh(root, monitor));
+			}
+			return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+		}
+	}
+}
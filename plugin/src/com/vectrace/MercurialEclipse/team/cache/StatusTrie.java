@@ -0,0 +1,754 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+
+/**
+ * Compact store for the status bits of absolute file system paths.
+ * <p>
+ * Paths are kept as a trie of interned path segments. Every node is an int index into a set of
+ * primitive arrays (parent, status word, subtree mask) and the children of a node are kept as an
+ * int array sorted by segment name under their parent. This avoids an {@link IPath} key, a boxed
+ * status value and a hash entry per tracked file.
+ * <p>
+ * Status value 0 means "no status known". The directory flag is kept separately from the status
+ * bits and is never returned by {@link #get(IPath)}.
+ * <p>
+ * Writers modify the trie under an exclusive lock. After {@link #publish()}, the current state is
+ * an immutable snapshot which readers query without any lock, until the next modification copies
+ * the node arrays again. In between, readers acquire a shared lock. Child tables are never
+ * modified in place, so a copy only has to clone the node arrays themselves. Visitors must not
+ * modify the trie.
+ * <p>
+ * If enabled with {@link #trackChanges()}, the trie remembers the previous status of all modified
+ * paths, so that clients can report the real transitions only.
+ */
+public class StatusTrie {
+
+	/**
+	 * Callback for {@link StatusTrie#accept(IPath, int, boolean, Visitor)}. Must not modify the
+	 * trie.
+	 */
+	public interface Visitor {
+		/**
+		 * @param path
+		 *            the absolute path of the visited node
+		 * @param status
+		 *            the status bits, never 0
+		 * @param isDir
+		 *            true if the path is known to be a directory
+		 */
+		void visit(IPath path, int status, boolean isDir);
+	}
+
+	/** internal flag stored in the status word, never returned to clients */
+	private static final int DIR_FLAG = 1 << 30;
+
+	private static final int STATUS_MASK = ~DIR_FLAG;
+
+	private static final int ROOT = 0;
+
+	private static final int NO_NODE = -1;
+
+	private static final int[] NO_CHILDREN = new int[0];
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Interned segment names, shared by all nodes. Weak, so that the names of removed nodes are
+	 * dropped too. Guarded by the write lock: even reads expunge collected entries
+	 */
+	private final Map<String, WeakReference<String>> segments =
+			new WeakHashMap<String, WeakReference<String>>();
+
+	/** the nodes modified by writers, guarded by the lock */
+	private Nodes nodes;
+
+	/** true if {@link #nodes} is published and must be copied before the next modification */
+	private boolean published;
+
+	/** immutable nodes for lock-free readers, null if modified since the last {@link #publish()} */
+	private volatile Nodes snapshot;
+
+	/** status of the modified paths before their first modification, null if not tracked */
+	private Map<IPath, Integer> changes;
+
+	public StatusTrie(int initialCapacity) {
+		nodes = new Nodes(Math.max(16, initialCapacity));
+	}
+
+	// operations
+
+	/**
+	 * @return the status bits of the given path or 0 if the status is unknown
+	 */
+	public int get(IPath path) {
+		Nodes view = snapshot;
+		if (view != null) {
+			return view.getStatus(view.find(path));
+		}
+		lock.readLock().lock();
+		try {
+			return nodes.getStatus(nodes.find(path));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if the path has a status and is known to be a directory
+	 */
+	public boolean isDirectory(IPath path) {
+		Nodes view = snapshot;
+		if (view != null) {
+			return view.isDirectory(view.find(path));
+		}
+		lock.readLock().lock();
+		try {
+			return nodes.isDirectory(nodes.find(path));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Sets the status of the given path. Once a path is known as directory it stays a directory
+	 * until it is removed.
+	 *
+	 * @param status
+	 *            non zero status bits
+	 */
+	public void put(IPath path, int status, boolean isDir) {
+		if (status == 0) {
+			remove(path);
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			int existing = nodes.find(path);
+			if (existing != NO_NODE && nodes.words[existing] == ((status & STATUS_MASK)
+					| (isDir ? DIR_FLAG : nodes.words[existing] & DIR_FLAG))) {
+				// unchanged: don't invalidate the snapshot
+				return;
+			}
+			Nodes n = modify();
+			int node = ROOT;
+			node = getOrCreateChild(n, node, deviceKey(path));
+			for (int i = 0, count = path.segmentCount(); i < count; i++) {
+				node = getOrCreateChild(n, node, path.segment(i));
+			}
+			int old = n.words[node];
+			if ((old & STATUS_MASK) == 0) {
+				n.size++;
+			}
+			if ((old & STATUS_MASK) != (status & STATUS_MASK)) {
+				record(path, old & STATUS_MASK);
+			}
+			n.words[node] = (status & STATUS_MASK) | (isDir ? DIR_FLAG : old & DIR_FLAG);
+			for (int p = n.parents[node]; p != NO_NODE; p = n.parents[p]) {
+				if ((n.subtreeBits[p] | status) == n.subtreeBits[p]) {
+					break;
+				}
+				n.subtreeBits[p] |= status;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forgets the status of the given path, but keeps the status of its descendants
+	 *
+	 * @return true if the path had a status
+	 */
+	public boolean remove(IPath path) {
+		lock.writeLock().lock();
+		try {
+			int node = nodes.find(path);
+			if (nodes.getStatus(node) == 0) {
+				return false;
+			}
+			Nodes n = modify();
+			record(path, n.words[node] & STATUS_MASK);
+			n.words[node] = 0;
+			n.size--;
+			n.prune(node);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forgets the status of the given path and all its descendants
+	 */
+	public void removeSubtree(IPath path) {
+		lock.writeLock().lock();
+		try {
+			int node = nodes.find(path);
+			if (node == NO_NODE) {
+				return;
+			}
+			Nodes n = modify();
+			if ((n.words[node] & STATUS_MASK) != 0) {
+				n.size--;
+				record(path, n.words[node] & STATUS_MASK);
+			}
+			if (changes != null) {
+				n.visitChildren(node, path, ~0, true, new Visitor() {
+					public void visit(IPath childPath, int status, boolean isDir) {
+						record(childPath, status);
+					}
+				});
+			}
+			n.words[node] = 0;
+			n.subtreeBits[node] = 0;
+			for (int child : n.children[node]) {
+				n.release(child);
+			}
+			n.children[node] = NO_CHILDREN;
+			n.prune(node);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			segments.clear();
+			snapshot = null;
+			published = false;
+			nodes = new Nodes(16);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Publishes the current state as an immutable snapshot, which is read without locking until
+	 * the next modification. Should be called after a batch of modifications: the first
+	 * modification after a publish copies the node arrays.
+	 */
+	public void publish() {
+		lock.writeLock().lock();
+		try {
+			published = true;
+			snapshot = nodes;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Starts recording the status the modified paths had before, see {@link #drainChanges()}
+	 */
+	public void trackChanges() {
+		lock.writeLock().lock();
+		try {
+			if (changes == null) {
+				changes = new HashMap<IPath, Integer>();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the paths modified since the last call, with the status they had before their first
+	 * modification. The current status may be the same again.
+	 *
+	 * @return never null, empty if changes are not tracked
+	 */
+	public Map<IPath, Integer> drainChanges() {
+		lock.writeLock().lock();
+		try {
+			if (changes == null || changes.isEmpty()) {
+				return new HashMap<IPath, Integer>();
+			}
+			Map<IPath, Integer> result = changes;
+			changes = new HashMap<IPath, Integer>();
+			return result;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Like {@link #drainChanges()}, but only for the given paths. The changes of other paths are
+	 * kept for a later call.
+	 *
+	 * @return never null, the given paths which were modified with the status they had before
+	 *         their first modification
+	 */
+	public Map<IPath, Integer> takeChanges(Collection<IPath> paths) {
+		lock.writeLock().lock();
+		try {
+			Map<IPath, Integer> result = new HashMap<IPath, Integer>();
+			if (changes == null || changes.isEmpty()) {
+				return result;
+			}
+			for (IPath path : paths) {
+				Integer status = changes.remove(path);
+				if (status != null) {
+					result.put(path, status);
+				}
+			}
+			return result;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of modified paths not drained yet
+	 */
+	public int getChangeCount() {
+		lock.readLock().lock();
+		try {
+			return changes == null ? 0 : changes.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Visits the descendants of the given parent which have at least one of the given status bits
+	 * set.
+	 *
+	 * @param parent
+	 *            non null
+	 * @param statusBits
+	 *            bits to match, see {@link com.vectrace.MercurialEclipse.utils.Bits#contains(int, int)}
+	 * @param includeParent
+	 *            true to visit the parent itself too
+	 */
+	public void accept(IPath parent, int statusBits, boolean includeParent, Visitor visitor) {
+		visit(parent, statusBits, includeParent, true, visitor);
+	}
+
+	/**
+	 * @return may return null, if no descendants with the given status bits are known
+	 */
+	public List<IPath> getChildren(IPath parent, int statusBits) {
+		return collect(parent, statusBits, true);
+	}
+
+	/**
+	 * @return may return null, if no direct children with the given status bits are known
+	 */
+	public List<IPath> getDirectChildren(IPath parent, int statusBits) {
+		return collect(parent, statusBits, false);
+	}
+
+	private List<IPath> collect(IPath parent, int statusBits, boolean recursive) {
+		// empty or root paths shouldn't be tracked.
+		if (parent.segmentCount() == 0) {
+			return null;
+		}
+		final List<IPath> result = new ArrayList<IPath>();
+		Visitor visitor = new Visitor() {
+			public void visit(IPath path, int status, boolean isDir) {
+				result.add(path);
+			}
+		};
+		if (!visit(parent, statusBits, false, recursive, visitor)) {
+			return null;
+		}
+		return result.isEmpty() ? null : result;
+	}
+
+	/**
+	 * @return false if the parent is not known
+	 */
+	private boolean visit(IPath parent, int statusBits, boolean includeParent, boolean recursive,
+			Visitor visitor) {
+		Nodes view = snapshot;
+		if (view != null) {
+			return view.visit(parent, statusBits, includeParent, recursive, visitor);
+		}
+		lock.readLock().lock();
+		try {
+			return nodes.visit(parent, statusBits, includeParent, recursive, visitor);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of paths with known status
+	 */
+	public int size() {
+		Nodes view = snapshot;
+		if (view != null) {
+			return view.size;
+		}
+		lock.readLock().lock();
+		try {
+			return nodes.size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return the estimated heap size in bytes retained by this trie (arrays, child tables and
+	 *         interned segment names)
+	 */
+	public long getMemoryFootprint() {
+		lock.writeLock().lock();
+		try {
+			int capacity = nodes.names.length;
+			// 5 primitive/reference arrays of the node capacity
+			long bytes = 5L * (16 + 4L * capacity);
+			for (int i = 0; i < nodes.allocated; i++) {
+				int[] nodeChildren = nodes.children[i];
+				if (nodeChildren != null && nodeChildren != NO_CHILDREN) {
+					bytes += 16 + 4L * nodeChildren.length;
+				}
+			}
+			for (String name : segments.keySet()) {
+				// String object + char array + weak hash map entry + weak reference
+				bytes += 40 + 2L * name.length() + 48 + 32;
+			}
+			return bytes;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of trie nodes, including intermediate nodes without status
+	 */
+	public int getNodeCount() {
+		lock.readLock().lock();
+		try {
+			return nodes.nodeCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.writeLock().lock();
+		try {
+			return "StatusTrie [size=" + nodes.size + ", nodes=" + nodes.nodeCount + ", segments="
+					+ segments.size() + ", bytes=" + getMemoryFootprint() + "]";
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// helpers
+
+	/**
+	 * Must be called with the write lock held, before the nodes are modified
+	 *
+	 * @return the nodes to modify, a copy if the current ones are published
+	 */
+	private Nodes modify() {
+		snapshot = null;
+		if (published) {
+			nodes = new Nodes(nodes);
+			published = false;
+		}
+		return nodes;
+	}
+
+	/**
+	 * Remembers the status of the path, if it is the first modification since the last drain
+	 */
+	private void record(IPath path, int status) {
+		if (changes != null && !changes.containsKey(path)) {
+			changes.put(path, Integer.valueOf(status));
+		}
+	}
+
+	private int getOrCreateChild(Nodes n, int node, String name) {
+		int index = n.indexOf(node, name);
+		if (index >= 0) {
+			return n.children[node][index];
+		}
+		int child = n.allocate(node, intern(name));
+		n.insertChild(node, -(index + 1), child);
+		return child;
+	}
+
+	private String intern(String name) {
+		WeakReference<String> ref = segments.get(name);
+		String interned = ref == null ? null : ref.get();
+		if (interned == null) {
+			segments.put(name, new WeakReference<String>(name));
+			interned = name;
+		}
+		return interned;
+	}
+
+	/**
+	 * Key of the first level node: path device and UNC prefix
+	 */
+	private static String deviceKey(IPath path) {
+		String device = path.getDevice();
+		if (path.isUNC()) {
+			return device == null ? "//" : "//" + device;
+		}
+		return device == null ? "" : device;
+	}
+
+	/**
+	 * The node arrays. Every node is an index into them. The child table of a node is sorted by
+	 * segment name and replaced on every change, never modified in place, so that a copy of the
+	 * arrays can share the child tables with the original.
+	 */
+	private static final class Nodes {
+
+		String[] names;
+		int[] parents;
+		/** status bits of the node itself, plus {@link StatusTrie#DIR_FLAG} */
+		int[] words;
+		/** conservative union of the status bits of all descendants (superset) */
+		int[] subtreeBits;
+		int[][] children;
+
+		/** head of the free node list, linked through {@link #parents} */
+		int freeList = NO_NODE;
+		int nodeCount;
+		int allocated;
+		int size;
+
+		Nodes(int capacity) {
+			names = new String[capacity];
+			parents = new int[capacity];
+			words = new int[capacity];
+			subtreeBits = new int[capacity];
+			children = new int[capacity][];
+			names[ROOT] = "";
+			parents[ROOT] = NO_NODE;
+			children[ROOT] = NO_CHILDREN;
+			allocated = 1;
+			nodeCount = 1;
+		}
+
+		/**
+		 * Copies the node arrays of the given nodes, but shares their child tables
+		 */
+		Nodes(Nodes other) {
+			names = other.names.clone();
+			parents = other.parents.clone();
+			words = other.words.clone();
+			subtreeBits = other.subtreeBits.clone();
+			children = other.children.clone();
+			freeList = other.freeList;
+			nodeCount = other.nodeCount;
+			allocated = other.allocated;
+			size = other.size;
+		}
+
+		int getStatus(int node) {
+			return node == NO_NODE ? 0 : words[node] & STATUS_MASK;
+		}
+
+		boolean isDirectory(int node) {
+			return getStatus(node) != 0 && (words[node] & DIR_FLAG) != 0;
+		}
+
+		/**
+		 * @return false if the parent is not known
+		 */
+		boolean visit(IPath parent, int statusBits, boolean includeParent, boolean recursive,
+				Visitor visitor) {
+			int node = find(parent);
+			if (node == NO_NODE) {
+				return false;
+			}
+			if (includeParent && (words[node] & statusBits & STATUS_MASK) != 0) {
+				visitor.visit(parent, words[node] & STATUS_MASK, (words[node] & DIR_FLAG) != 0);
+			}
+			visitChildren(node, parent, statusBits, recursive, visitor);
+			return true;
+		}
+
+		void visitChildren(int node, IPath nodePath, int statusBits, boolean recursive,
+				Visitor visitor) {
+			for (int child : children[node]) {
+				boolean self = (words[child] & statusBits & STATUS_MASK) != 0;
+				boolean below = recursive && (subtreeBits[child] & statusBits) != 0;
+				if (!self && !below) {
+					continue;
+				}
+				IPath childPath = nodePath.append(names[child]);
+				if (self) {
+					visitor.visit(childPath, words[child] & STATUS_MASK, (words[child] & DIR_FLAG) != 0);
+				}
+				if (below) {
+					visitChildren(child, childPath, statusBits, true, visitor);
+				}
+			}
+		}
+
+		int find(IPath path) {
+			if (path == null) {
+				return NO_NODE;
+			}
+			int node = findChild(ROOT, deviceKey(path));
+			for (int i = 0, count = path.segmentCount(); i < count && node != NO_NODE; i++) {
+				node = findChild(node, path.segment(i));
+			}
+			return node;
+		}
+
+		int findChild(int node, String name) {
+			int index = indexOf(node, name);
+			return index < 0 ? NO_NODE : children[node][index];
+		}
+
+		/**
+		 * @return index in the child table or (-(insertion point) - 1)
+		 */
+		int indexOf(int node, String name) {
+			int[] nodeChildren = children[node];
+			int low = 0;
+			int high = nodeChildren.length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int cmp = names[nodeChildren[mid]].compareTo(name);
+				if (cmp < 0) {
+					low = mid + 1;
+				} else if (cmp > 0) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -(low + 1);
+		}
+
+		void insertChild(int node, int index, int child) {
+			int[] nodeChildren = children[node];
+			int[] result = new int[nodeChildren.length + 1];
+			System.arraycopy(nodeChildren, 0, result, 0, index);
+			result[index] = child;
+			System.arraycopy(nodeChildren, index, result, index + 1, nodeChildren.length - index);
+			children[node] = result;
+		}
+
+		void removeChild(int node, int index) {
+			int[] nodeChildren = children[node];
+			if (nodeChildren.length == 1) {
+				children[node] = NO_CHILDREN;
+				return;
+			}
+			int[] result = new int[nodeChildren.length - 1];
+			System.arraycopy(nodeChildren, 0, result, 0, index);
+			System.arraycopy(nodeChildren, index + 1, result, index, result.length - index);
+			children[node] = result;
+		}
+
+		int allocate(int parent, String name) {
+			int node;
+			if (freeList != NO_NODE) {
+				node = freeList;
+				freeList = parents[node];
+			} else {
+				if (allocated == names.length) {
+					grow();
+				}
+				node = allocated++;
+			}
+			names[node] = name;
+			parents[node] = parent;
+			words[node] = 0;
+			subtreeBits[node] = 0;
+			children[node] = NO_CHILDREN;
+			nodeCount++;
+			return node;
+		}
+
+		private void grow() {
+			int capacity = names.length + (names.length >> 1);
+			String[] newNames = new String[capacity];
+			System.arraycopy(names, 0, newNames, 0, allocated);
+			names = newNames;
+			parents = grow(parents, capacity);
+			words = grow(words, capacity);
+			subtreeBits = grow(subtreeBits, capacity);
+			int[][] newChildren = new int[capacity][];
+			System.arraycopy(children, 0, newChildren, 0, allocated);
+			children = newChildren;
+		}
+
+		private int[] grow(int[] array, int capacity) {
+			int[] result = new int[capacity];
+			System.arraycopy(array, 0, result, 0, allocated);
+			return result;
+		}
+
+		/**
+		 * Releases the given node and all its descendants, without touching the parent
+		 */
+		void release(int node) {
+			for (int child : children[node]) {
+				release(child);
+			}
+			if ((words[node] & STATUS_MASK) != 0) {
+				size--;
+			}
+			names[node] = null;
+			children[node] = null;
+			words[node] = 0;
+			subtreeBits[node] = 0;
+			parents[node] = freeList;
+			freeList = node;
+			nodeCount--;
+		}
+
+		/**
+		 * Removes empty nodes starting from the given one up to the root and recomputes the
+		 * subtree bits of the remaining ancestors
+		 */
+		void prune(int node) {
+			while (node != ROOT && words[node] == 0 && children[node].length == 0) {
+				int parent = parents[node];
+				removeChild(parent, indexOf(parent, names[node]));
+				release(node);
+				node = parent;
+			}
+			for (; node != NO_NODE; node = parents[node]) {
+				int bits = 0;
+				for (int child : children[node]) {
+					bits |= subtreeBits[child] | (words[child] & STATUS_MASK);
+				}
+				if (bits == subtreeBits[node]) {
+					// ancestors are not affected
+					break;
+				}
+				subtreeBits[node] = bits;
+			}
+		}
+	}
+}
@@ -70,6 +70,7 @@ import com.vectrace.MercurialEclipse.preferences.MercurialPreferenceConstants;
 import com.vectrace.MercurialEclipse.team.CompareAction;
 import com.vectrace.MercurialEclipse.team.MercurialTeamProvider;
 import com.vectrace.MercurialEclipse.team.MercurialUtilities;
+import com.vectrace.MercurialEclipse.team.cache.CacheChangeEvent;
 import com.vectrace.MercurialEclipse.team.cache.MercurialStatusCache;
 import com.vectrace.MercurialEclipse.ui.AbstractHighlightableTable;
 import com.vectrace.MercurialEclipse.ui.AbstractHighlightableTable.HighlightingLabelProvider;
@@ -447,10 +448,10 @@ public class MergeView extends AbstractRootView implements Observer {
 	}
 
 	public void update(Observable o, Object arg) {
-		if(hgRoot == null || !(arg instanceof Set<?>)){
+		if(hgRoot == null || !(arg instanceof CacheChangeEvent)){
 			return;
 		}
-		Set<?> set = (Set<?>) arg;
+		Set<IResource> set = ((CacheChangeEvent) arg).getResources();
 		Set<IProject> projects = ResourceUtils.getProjects(hgRoot);
 		// create intersection of the root projects with the updated set
 		projects.retainAll(set);
@@ -11,6 +11,7 @@
  *******************************************************************************/
 package com.vectrace.MercurialEclipse.views.console;
 
+import org.eclipse.jface.action.Action;
 import org.eclipse.ui.IActionBars;
 import org.eclipse.ui.console.IConsole;
 import org.eclipse.ui.console.IConsoleConstants;
@@ -18,6 +19,9 @@ import org.eclipse.ui.console.IConsolePageParticipant;
 import org.eclipse.ui.console.actions.CloseConsoleAction;
 import org.eclipse.ui.part.IPageBookViewPage;
 
+import com.vectrace.MercurialEclipse.commands.HgClients;
+import com.vectrace.MercurialEclipse.team.cache.CommandServerCache;
+
 /**
  * Console helper that allows contributing actions to the console view when
  * the Mercurial console is visible. Added to the console via an extension point
@@ -27,14 +31,26 @@ public class HgConsolePageParticipant implements IConsolePageParticipant {
 
 	private CloseConsoleAction consoleRemoveAction;
 
+	private Action serverStatisticsAction;
+
 	public void init(IPageBookViewPage page, IConsole console) {
 		consoleRemoveAction = new CloseConsoleAction(console);
 		IActionBars bars = page.getSite().getActionBars();
 		bars.getToolBarManager().appendToGroup(IConsoleConstants.LAUNCH_GROUP, consoleRemoveAction);
+
+		serverStatisticsAction = new Action(Messages.getString("HgConsolePageParticipant.serverStatistics")) { //$NON-NLS-1$
+			@Override
+			public void run() {
+				HgClients.getConsole().printMessage(
+						CommandServerCache.getInstance().getStatistics(), null);
+			}
+		};
+		bars.getMenuManager().add(serverStatisticsAction);
 	}
 
 	public void dispose() {
 		this.consoleRemoveAction = null;
+		this.serverStatisticsAction = null;
 	}
 
 	public void activated() {
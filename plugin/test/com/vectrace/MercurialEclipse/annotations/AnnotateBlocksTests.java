@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.annotations;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.vectrace.MercurialEclipse.model.ChangeSet;
+import com.vectrace.MercurialEclipse.model.WorkingChangeSet;
+
+/**
+ *
+ */
+public class AnnotateBlocksTests extends TestCase {
+
+	private static ChangeSet cs(String node) {
+		return new WorkingChangeSet(node) {
+		};
+	}
+
+	public void testBlocks() {
+		ChangeSet a = cs("a");
+		ChangeSet b = cs("b");
+		AnnotateBlocks blocks = new AnnotateBlocks();
+		blocks.add(a, 1);
+		blocks.add(a, 2);
+		blocks.add(b, 1);
+		blocks.add(cs("a"), 1);
+
+		assertEquals(5, blocks.getLineCount());
+		assertEquals(3, blocks.getBlockCount());
+		assertEquals(2, blocks.getChangeSets().size());
+
+		List<AnnotateBlock> list = blocks.getAnnotateBlocks();
+		assertEquals(3, list.size());
+		assertSame(a, list.get(0).getChangeSet());
+		assertEquals(0, list.get(0).getStartLine());
+		assertEquals(2, list.get(0).getEndLine());
+		assertSame(b, list.get(1).getChangeSet());
+		assertEquals(3, list.get(1).getStartLine());
+		assertEquals(3, list.get(1).getEndLine());
+		// same node: same changeset object
+		assertSame(a, list.get(2).getChangeSet());
+		assertEquals(4, list.get(2).getStartLine());
+		assertEquals(4, list.get(2).getEndLine());
+
+		assertSame(a, blocks.getChangeSet(1));
+		assertSame(b, blocks.getChangeSet(3));
+		try {
+			blocks.getChangeSet(5);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	public void testAddBlock() {
+		ChangeSet a = cs("a");
+		AnnotateBlocks blocks = new AnnotateBlocks();
+		blocks.add(new AnnotateBlock(a, 0, 0));
+		blocks.add(new AnnotateBlock(a, 1, 1));
+		blocks.add(new AnnotateBlock(cs("b"), 2, 4));
+		assertEquals(5, blocks.getLineCount());
+		assertEquals(2, blocks.getBlockCount());
+		assertEquals(1, blocks.getAnnotateBlocks().get(0).getEndLine());
+	}
+
+	public void testManyLines() {
+		ChangeSet a = cs("a");
+		ChangeSet b = cs("b");
+		AnnotateBlocks blocks = new AnnotateBlocks();
+		for (int i = 0; i < 50000; i++) {
+			blocks.add(i % 3 == 0 ? a : b, 1);
+		}
+		assertEquals(50000, blocks.getLineCount());
+		assertEquals(33334, blocks.getBlockCount());
+		assertSame(b, blocks.getChangeSet(49999));
+	}
+}
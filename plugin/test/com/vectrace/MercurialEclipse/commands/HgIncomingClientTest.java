@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.commands;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import com.vectrace.MercurialEclipse.model.HgRoot;
+
+/**
+ *
+ */
+public class HgIncomingClientTest extends AbstractCommandTest {
+
+	public static void testRebasedRoot() throws Exception {
+		HgRoot root = getRepository();
+		commit("a.txt");
+		commit("b.txt");
+		hg("update", "0");
+		commit("c.txt");
+
+		File mirror = new File(root, ".hg/test-mirror");
+		assertTrue(new File(mirror, ".hg").mkdirs());
+		HgIncomingClient.setRootHeads(mirror, HgIncomingClient.getRootHeads(root));
+		assertFalse(HgIncomingClient.hasLostChangesets(root, mirror));
+
+		// new changesets on top of the heads are fine
+		commit("d.txt");
+		assertFalse(HgIncomingClient.hasLostChangesets(root, mirror));
+
+		// revision 1 is replaced by a new changeset on top of revision 3
+		hg("--config", "extensions.rebase=", "rebase", "--source", "1", "--dest", "3");
+		assertTrue(HgIncomingClient.hasLostChangesets(root, mirror));
+	}
+
+	public static void testMissingHeads() throws Exception {
+		HgRoot root = getRepository();
+		commit("a.txt");
+		File mirror = new File(root, ".hg/test-mirror");
+		assertTrue(new File(mirror, ".hg").mkdirs());
+		// a mirror without recorded heads is recreated
+		assertTrue(HgIncomingClient.hasLostChangesets(root, mirror));
+		HgIncomingClient.setRootHeads(mirror, HgIncomingClient.getRootHeads(root));
+		assertFalse(HgIncomingClient.hasLostChangesets(root, mirror));
+	}
+
+	private static void commit(String name) throws Exception {
+		File file = new File(getRepository(), name);
+		FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(name);
+		} finally {
+			writer.close();
+		}
+		hg("commit", "--addremove", "--user", "test", "--message", name);
+	}
+
+	private static void hg(String... args) throws InterruptedException, IOException {
+		String[] command = new String[args.length + 1];
+		command[0] = "hg";
+		System.arraycopy(args, 0, command, 1, args.length);
+		Process process = Runtime.getRuntime().exec(command, null, getRepository());
+		assertEquals(0, process.waitFor());
+	}
+}
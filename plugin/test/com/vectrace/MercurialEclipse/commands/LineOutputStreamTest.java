@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.commands;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ */
+public class LineOutputStreamTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final List<String> lines = new ArrayList<String>();
+
+	private final ILineHandler handler = new ILineHandler() {
+		public void handleLine(CharSequence line) {
+			lines.add(line.toString());
+		}
+	};
+
+	public void testLines() throws IOException {
+		LineOutputStream out = new LineOutputStream(UTF8, handler);
+		out.write("first\nsec".getBytes("UTF-8"));
+		out.write("ond\r\n\nlast".getBytes("UTF-8"));
+		assertEquals(Arrays.asList("first", "second", ""), lines);
+		out.close();
+		assertEquals(Arrays.asList("first", "second", "", "last"), lines);
+		assertEquals("first\nsecond\n\nlast", out.getTail());
+	}
+
+	public void testSplitCharacters() throws IOException {
+		byte[] bytes = "gr\u00fc\u00dfe \u20ac\n\u00e4".getBytes("UTF-8");
+		LineOutputStream out = new LineOutputStream(UTF8, handler);
+		// one byte at a time splits every multi byte character
+		for (byte b : bytes) {
+			out.write(b);
+		}
+		out.close();
+		assertEquals(Arrays.asList("gr\u00fc\u00dfe \u20ac", "\u00e4"), lines);
+	}
+
+	public void testLongOutput() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			sb.append("line ").append(i).append(" \u00f6\n");
+		}
+		byte[] bytes = sb.toString().getBytes("UTF-8");
+		LineOutputStream out = new LineOutputStream(UTF8, handler);
+		for (int i = 0; i < bytes.length; i += 1000) {
+			out.write(bytes, i, Math.min(1000, bytes.length - i));
+		}
+		out.close();
+		assertEquals(5000, lines.size());
+		assertEquals("line 4321 \u00f6", lines.get(4321));
+		assertTrue(out.getTail().startsWith("line " + (5000 - LineOutputStream.TAIL_LINES) + " "));
+	}
+
+	public void testHandlerFails() throws IOException {
+		LineOutputStream out = new LineOutputStream(UTF8, new ILineHandler() {
+			public void handleLine(CharSequence line) throws IOException {
+				throw new IOException("stop");
+			}
+		});
+		try {
+			out.write("a\nb\n".getBytes("UTF-8"));
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		// no more calls
+		out.close();
+	}
+}
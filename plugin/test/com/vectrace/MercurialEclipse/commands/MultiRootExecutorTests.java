@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+
+import com.vectrace.MercurialEclipse.exception.HgException;
+
+/**
+ *
+ */
+public class MultiRootExecutorTests extends TestCase {
+
+	public void testResultOrder() throws HgException {
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < 10; i++) {
+			tasks.add(new Task(i, 10 - i, false));
+		}
+		List<Integer> results = MultiRootExecutor.invokeAll(tasks);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, results.get(i).intValue());
+		}
+	}
+
+	public void testFirstFailure() {
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		tasks.add(new Task(0, 0, false));
+		tasks.add(new Task(1, 20, true));
+		tasks.add(new Task(2, 0, true));
+		try {
+			MultiRootExecutor.invokeAll(tasks);
+			fail();
+		} catch (HgException e) {
+			assertEquals("1", e.getMessage());
+		}
+	}
+
+	public void testNested() throws HgException {
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < 8; i++) {
+			final int value = i;
+			tasks.add(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					// more nested tasks than threads: must not wait for the pool
+					List<Callable<Integer>> nested = new ArrayList<Callable<Integer>>();
+					nested.add(new Task(value, 5, false));
+					nested.add(new Task(value, 5, false));
+					List<Integer> results = MultiRootExecutor.invokeAll(nested);
+					return Integer.valueOf(results.get(0).intValue() + results.get(1).intValue());
+				}
+			});
+		}
+		List<Integer> results = MultiRootExecutor.invokeAll(tasks);
+		for (int i = 0; i < 8; i++) {
+			assertEquals(2 * i, results.get(i).intValue());
+		}
+	}
+
+	private static final class Task implements Callable<Integer> {
+		private final int value;
+		private final long sleep;
+		private final boolean fail;
+
+		Task(int value, long sleep, boolean fail) {
+			this.value = value;
+			this.sleep = sleep;
+			this.fail = fail;
+		}
+
+		public Integer call() throws Exception {
+			Thread.sleep(sleep);
+			if (fail) {
+				throw new HgException(String.valueOf(value));
+			}
+			return Integer.valueOf(value);
+		}
+	}
+}
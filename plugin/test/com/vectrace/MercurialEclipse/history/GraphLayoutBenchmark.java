@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.history;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.aragost.javahg.Changeset;
+import com.vectrace.MercurialEclipse.HgFeatures;
+import com.vectrace.MercurialEclipse.history.GraphLayout.ParentProvider;
+
+/**
+ * Lays out a synthetic DAG with many merges page by page, like the history view does.
+ * <p>
+ * Disabled by default, run with <code>-Dmercurialeclipse.benchmark=true</code>. The number of
+ * revisions can be set with <code>-Dmercurialeclipse.benchmark.revisions=500000</code>.
+ */
+public class GraphLayoutBenchmark extends TestCase {
+
+	private static final int PAGE_SIZE = 200;
+
+	private static final int ROUNDS = 5;
+
+	public void testLayout() {
+		if (!Boolean.getBoolean("mercurialeclipse.benchmark")) {
+			return;
+		}
+		int count = Integer.getInteger("mercurialeclipse.benchmark.revisions", 500000).intValue();
+		SyntheticDag dag = new SyntheticDag(count, 12, 0.3, 42);
+		Changeset[] log = dag.getLog();
+
+		HgFeatures.PHASES.setEnabled(false);
+		System.out.println("Graph layout of " + count + " revisions, " + dag.merges + " merges:");
+
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			GraphLayout layout = new GraphLayout(dag, 16);
+			Changeset[] page = new Changeset[PAGE_SIZE];
+			int maxColumns = 0;
+
+			for (int i = 0; i < log.length; i += PAGE_SIZE) {
+				int n = Math.min(PAGE_SIZE, log.length - i);
+				if (n != page.length) {
+					page = new Changeset[n];
+				}
+				System.arraycopy(log, i, page, 0, n);
+				layout.add(page);
+			}
+			long time = (System.nanoTime() - start) / 1000000;
+
+			for (int i = 0; i < layout.numRows(); i++) {
+				maxColumns = Math.max(maxColumns, layout.getRow(i).numColumns());
+			}
+			System.out.println("  round " + round + ": " + time + " ms, max " + maxColumns
+					+ " columns");
+			assertEquals(count, layout.numRows());
+		}
+	}
+
+	/**
+	 * A random DAG with a number of long living branches which are merged into each other
+	 */
+	static class SyntheticDag implements ParentProvider {
+
+		private final Changeset[] changesets;
+
+		private final Changeset[][] parents;
+
+		/**
+		 * Revision number of the first changeset
+		 */
+		private final int base;
+
+		int merges;
+
+		public SyntheticDag(int count, int branches, double mergeRatio, long seed) {
+			this(count, branches, mergeRatio, seed, 0);
+		}
+
+		public SyntheticDag(int count, int branches, double mergeRatio, long seed, int base) {
+			Random random = new Random(seed);
+			this.base = base;
+			int[] heads = new int[branches];
+
+			changesets = new Changeset[count];
+			parents = new Changeset[count][];
+
+			for (int i = 0; i < branches; i++) {
+				heads[i] = -1;
+			}
+
+			for (int rev = 0; rev < count; rev++) {
+				changesets[rev] = new SyntheticChangeset(base + rev);
+
+				int branch = random.nextInt(branches);
+				int p1 = heads[branch] < 0 ? rev - 1 : heads[branch];
+				int p2 = -1;
+
+				if (random.nextDouble() < mergeRatio) {
+					int other = heads[random.nextInt(branches)];
+
+					if (other >= 0 && other != p1) {
+						p2 = other;
+						merges++;
+					}
+				}
+
+				if (p1 < 0) {
+					parents[rev] = new Changeset[0];
+				} else if (p2 < 0) {
+					parents[rev] = new Changeset[] { changesets[p1] };
+				} else {
+					parents[rev] = new Changeset[] { changesets[p1], changesets[p2] };
+				}
+				heads[branch] = rev;
+			}
+		}
+
+		/**
+		 * @return The changesets in log order, tip first
+		 */
+		public Changeset[] getLog() {
+			Changeset[] log = new Changeset[changesets.length];
+
+			for (int i = 0; i < log.length; i++) {
+				log[i] = changesets[changesets.length - 1 - i];
+			}
+			return log;
+		}
+
+		public Changeset[] getParents(Changeset cs) {
+			Changeset[] ar = parents[cs.getRevision() - base];
+
+			return ar.length == 0 ? null : ar;
+		}
+	}
+
+	static class SyntheticChangeset extends Changeset {
+
+		private final int rev;
+
+		public SyntheticChangeset(int rev) {
+			super(null, String.format("%040x", Integer.valueOf(rev)));
+			this.rev = rev;
+		}
+
+		@Override
+		public int getRevision() {
+			return rev;
+		}
+	}
+}
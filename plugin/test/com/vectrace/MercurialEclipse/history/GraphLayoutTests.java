@@ -23,8 +23,11 @@ import com.aragost.javahg.commands.flags.MergeCommandFlags;
 import com.aragost.javahg.commands.flags.ResolveCommandFlags;
 import com.aragost.javahg.commands.flags.UpdateCommandFlags;
 import com.vectrace.MercurialEclipse.AbstractJavaHgTestCase;
+import com.vectrace.MercurialEclipse.HgFeatures;
 import com.vectrace.MercurialEclipse.history.GraphLayout.GraphRow;
 import com.vectrace.MercurialEclipse.history.GraphLayout.RowAccessor;
+import com.vectrace.MercurialEclipse.history.GraphLayoutBenchmark.SyntheticChangeset;
+import com.vectrace.MercurialEclipse.history.GraphLayoutBenchmark.SyntheticDag;
 
 /**
  *
@@ -120,6 +123,199 @@ public class GraphLayoutTests extends AbstractJavaHgTestCase {
 		assertFalse(la.isDot(0));
 	}
 
+	public static void testStreamingAppend() {
+		HgFeatures.PHASES.setEnabled(false);
+		SyntheticDag dag = new SyntheticDag(3000, 6, 0.4, 7);
+		Changeset[] log = dag.getLog();
+
+		GraphLayout batch = new GraphLayout(dag, 16);
+		batch.add(log);
+
+		GraphLayout streamed = new GraphLayout(dag, 16);
+		for (int i = 0; i < log.length; i++) {
+			streamed.add(log[i]);
+		}
+
+		GraphLayout paged = new GraphLayout(dag, 16);
+		for (int i = 0; i < log.length; i += 7) {
+			Changeset[] page = new Changeset[Math.min(7, log.length - i)];
+			System.arraycopy(log, i, page, 0, page.length);
+			paged.add(page);
+		}
+
+		assertEquals(log.length, batch.numRows());
+		assertEquals(log.length, streamed.numRows());
+		assertEquals(log.length, paged.numRows());
+		for (int i = 0; i < log.length; i++) {
+			assertEquals(batch.getRow(i).toString(), streamed.getRow(i).toString());
+			assertEquals(batch.getRow(i).toString(), paged.getRow(i).toString());
+		}
+	}
+
+	public static void testRowsSurviveGrowth() {
+		HgFeatures.PHASES.setEnabled(false);
+		SyntheticDag dag = new SyntheticDag(2000, 4, 0.2, 3);
+		Changeset[] log = dag.getLog();
+		GraphLayout graph = new GraphLayout(dag, 16);
+
+		graph.add(log[0]);
+		graph.add(log[1]);
+		GraphRow first = graph.getRow(0);
+		String expected = first.toString();
+
+		for (int i = 2; i < log.length; i++) {
+			graph.add(log[i]);
+		}
+
+		assertEquals(expected, first.toString());
+		assertEquals(expected, graph.getRow(0).toString());
+		assertNotNull(graph.getRow(1).getPrevious());
+	}
+
+	public static void testWideBitTwiddling() {
+		RowAccessor la = new RowAccessor(new long[4], 0, 2, true);
+
+		la.init(1, RowAccessor.PHASE_DRAFT);
+		assertEquals(0, la.numParents(1));
+		assertEquals(RowAccessor.NO_COLOR, la.getColor(1));
+
+		la.setRevision(1, Integer.MAX_VALUE - 1);
+		la.setParentIndex(1, 0, 5000);
+		la.setParentIndex(1, 1, ONES_12);
+		la.setColor(1, 69);
+		la.setDot(1, true);
+
+		assertEquals(Integer.MAX_VALUE - 1, la.getRevision(1));
+		assertEquals(5000, la.getParentIndex(1, 0));
+		assertEquals(ONES_12, la.getParentIndex(1, 1));
+		assertEquals(2, la.numParents(1));
+		assertEquals(69, la.getColor(1));
+		assertEquals(RowAccessor.PHASE_DRAFT, la.getPhaseInt(1));
+		assertTrue(la.isDot(1));
+		assertEquals(1, la.getDot());
+
+		la.shiftRight(1, 0);
+		assertEquals(Integer.MAX_VALUE - 1, la.getRevision(0));
+		assertEquals(5000, la.getParentIndex(0, 0));
+		assertEquals(0, la.getRevision(1));
+		assertEquals(0, la.getDot());
+	}
+
+	public static void testCompactRevisionLimit() {
+		RowAccessor la = new RowAccessor(new long[1]);
+
+		try {
+			la.setRevision(0, ONES_26 + 1);
+			fail("Revision doesn't fit");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	/**
+	 * The revision numbers of the newer half of the log exceed 26 bits. The layout must match the
+	 * compact layout of the same graph.
+	 */
+	public static void testWideRevisions() {
+		HgFeatures.PHASES.setEnabled(false);
+		int count = 2000;
+		int base = ONES_26 - count / 2;
+		SyntheticDag dag = new SyntheticDag(count, 5, 0.3, 5, base);
+		SyntheticDag small = new SyntheticDag(count, 5, 0.3, 5, 0);
+		GraphLayout graph = new GraphLayout(dag, 16);
+		GraphLayout expected = new GraphLayout(small, 16);
+
+		Changeset[] log = dag.getLog();
+		Changeset[] page = new Changeset[count / 4];
+		for (int i = 0; i < count; i += page.length) {
+			System.arraycopy(log, i, page, 0, page.length);
+			graph.add(page);
+			// the tip revisions are added first
+			assertTrue(graph.isWide());
+		}
+		expected.add(small.getLog());
+
+		assertFalse(expected.isWide());
+		assertEquals(count, graph.numRows());
+		for (int i = 0; i < count; i++) {
+			GraphRow row = graph.getRow(i);
+			GraphRow exp = expected.getRow(i);
+
+			assertEquals(exp.numColumns(), row.numColumns());
+			assertEquals(exp.getDot(), row.getDot());
+			for (int col = 0; col < row.numColumns(); col++) {
+				assertEquals(exp.getRevision(col) + base, row.getRevision(col));
+				assertEquals(exp.getColor(col), row.getColor(col));
+				assertEquals(exp.numParents(col), row.numParents(col));
+				for (int p = 0; p < row.numParents(col); p++) {
+					assertEquals(exp.getParentIndex(col, p), row.getParentIndex(col, p));
+				}
+			}
+		}
+	}
+
+	/**
+	 * More open lines than the 12 bit successor indexes can address. The layout switches to the
+	 * wide format after some rows were laid out in the compact format.
+	 */
+	public static void testWideColumns() {
+		HgFeatures.PHASES.setEnabled(false);
+		// 0 <- 1..n <- n+1..2n, the heads n+1..2n are added first and open one line each
+		final int n = 4200;
+		final Changeset[] changesets = new Changeset[2 * n + 1];
+		for (int rev = 0; rev <= 2 * n; rev++) {
+			changesets[rev] = new SyntheticChangeset(rev);
+		}
+		GraphLayout graph = new GraphLayout(new GraphLayout.ParentProvider() {
+			public Changeset[] getParents(Changeset cs) {
+				int rev = cs.getRevision();
+				if (rev == 0) {
+					return null;
+				}
+				return new Changeset[] { changesets[rev > n ? rev - n : 0] };
+			}
+		}, 16);
+
+		String[] compactRows = new String[100];
+		for (int rev = 2 * n; rev >= 0; rev--) {
+			graph.add(changesets[rev]);
+			if (graph.numRows() == compactRows.length + 1) {
+				assertFalse(graph.isWide());
+				for (int i = 0; i < compactRows.length; i++) {
+					compactRows[i] = graph.getRow(i).toString();
+				}
+			}
+		}
+
+		assertTrue(graph.isWide());
+		assertEquals(2 * n + 1, graph.numRows());
+		for (int i = 0; i < compactRows.length; i++) {
+			assertEquals(compactRows[i], graph.getRow(i).toString());
+		}
+		GraphRow root = graph.getRow(2 * n);
+		assertEquals(1, root.numColumns());
+		assertEquals(0, root.getRevision(0));
+		assertEquals(0, root.numParents(0));
+
+		// every column points to the column with the same revision in the row below, or to the
+		// parent if it's the dot
+		int maxColumns = 0;
+		for (int i = 0; i < 2 * n; i++) {
+			GraphRow row = graph.getRow(i);
+			GraphRow below = graph.getRow(i + 1);
+
+			maxColumns = Math.max(maxColumns, row.numColumns());
+			for (int col = 0; col < row.numColumns(); col++) {
+				assertEquals(1, row.numParents(col));
+				int rev = row.getRevision(col);
+				if (row.isDot(col)) {
+					rev = rev > n ? rev - n : 0;
+				}
+				assertEquals(rev, below.getRevision(row.getParentIndex(col, 0)));
+			}
+		}
+		assertTrue(maxColumns > RowAccessor.NO_PARENT);
+	}
+
 	private static GraphLayout makeGraphLayout() {
 		return new GraphLayout(GraphLayout.ROOT_PARENT_PROVIDER, 16);
 	}
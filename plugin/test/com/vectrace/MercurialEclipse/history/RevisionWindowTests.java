@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.history;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ */
+public class RevisionWindowTests extends TestCase {
+
+	public void testIndex() {
+		RevisionWindow<String> window = window(10, 100, 3, 2);
+		assertEquals(10, window.getRowCount());
+		assertEquals(100, window.getRevision(0));
+		assertEquals(73, window.getRevision(9));
+		assertEquals("b0", window.getBranch(0));
+		assertEquals("b1", window.getBranch(1));
+
+		assertEquals(3, window.findRow(91));
+		assertEquals(-1, window.findRow(92));
+		assertEquals(-1, window.findRow(101));
+		assertEquals(4, window.findFirstRowAtOrBelow(89));
+		assertEquals(0, window.findFirstRowAtOrBelow(1000));
+		assertEquals(10, window.findFirstRowAtOrBelow(10));
+	}
+
+	public void testEviction() {
+		// 4 rows per page, 2 pages
+		RevisionWindow<String> window = window(10, 100, 1, 1, 4, 2);
+		assertEquals(2, window.getMaterializedPageCount());
+		// the pages farthest from the last added row are gone
+		assertNull(window.get(0));
+		assertEquals("r92", window.get(8));
+		assertEquals("r96", window.get(4));
+		assertFalse(window.isMaterialized(0));
+		assertTrue(window.isMaterialized(1));
+		assertEquals(6, window.getMaterialized().size());
+
+		// materialize the first page again: the last page is the farthest from the focus
+		window.get(1);
+		window.setPage(0, rows(100, 1, 4));
+		assertEquals("r99", window.get(1));
+		assertTrue(window.isMaterialized(1));
+		assertFalse(window.isMaterialized(2));
+		assertEquals(8, window.getMaterialized().size());
+
+		try {
+			window.setPage(2, rows(92, 1, 4));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// the last page has 2 rows only
+		}
+	}
+
+	public void testAppendToEvictedPage() {
+		RevisionWindow<String> window = window(3, 100, 1, 1, 2, 1);
+		assertNull(window.get(0));
+		window.setPage(0, rows(100, 1, 2));
+		assertFalse(window.isMaterialized(1));
+
+		// the start of the page is missing, the page must be set as a whole
+		window.add("r97", 97, null);
+		assertEquals(4, window.getRowCount());
+		assertNull(window.get(3));
+		assertEquals(list(1), window.getMissingPages(3, 0));
+		window.setPage(1, rows(98, 1, 2));
+		assertEquals("r97", window.get(3));
+	}
+
+	public void testMissingPages() {
+		RevisionWindow<String> window = window(20, 100, 1, 1, 4, 3);
+		// pages 2, 3 and 4 are materialized
+		assertEquals(list(), window.getMissingPages(12, 4));
+		assertEquals(list(1), window.getMissingPages(9, 2));
+		// the page of the row first, then the neighbours, nearest first
+		assertEquals(list(1, 0), window.getMissingPages(4, 4));
+
+		window.get(0);
+		window.setPage(0, rows(100, 1, 4));
+		window.setPage(1, rows(96, 1, 4));
+		// pages 0, 1 and 2 are materialized
+		assertEquals(list(), window.getMissingPages(6, 4));
+		assertEquals(list(3, 4), window.getMissingPages(13, 8));
+
+		// never more than the max number of pages
+		window = window(20, 100, 1, 1, 2, 2);
+		window.get(0);
+		assertEquals(list(0, 1), window.getMissingPages(0, 19));
+	}
+
+	private static RevisionWindow<String> window(int count, int first, int step, int branches) {
+		return window(count, first, step, branches, 100, 100);
+	}
+
+	private static RevisionWindow<String> window(int count, int first, int step, int branches,
+			int pageSize, int maxPages) {
+		RevisionWindow<String> window = new RevisionWindow<String>(pageSize, maxPages);
+		for (int i = 0; i < count; i++) {
+			int revision = first - i * step;
+			window.add("r" + revision, revision, "b" + (i % branches));
+		}
+		return window;
+	}
+
+	private static List<String> rows(int first, int step, int count) {
+		List<String> rows = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			rows.add("r" + (first - i * step));
+		}
+		return rows;
+	}
+
+	private static List<Integer> list(int... pages) {
+		List<Integer> list = new ArrayList<Integer>();
+		for (int page : pages) {
+			list.add(Integer.valueOf(page));
+		}
+		return list;
+	}
+}
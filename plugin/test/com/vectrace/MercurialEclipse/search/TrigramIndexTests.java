@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ */
+public class TrigramIndexTests extends TestCase {
+
+	public void testLiterals() {
+		assertEquals(Arrays.asList("foobar"), TrigramIndex.getLiterals("foobar"));
+		assertEquals(Arrays.asList("foo", "bar"), TrigramIndex.getLiterals("foo.*bar"));
+		assertEquals(Arrays.asList("foo", "bar"), TrigramIndex.getLiterals("^foo\\s+bar$"));
+		assertEquals(Arrays.asList("bar"), TrigramIndex.getLiterals("fox?bar"));
+		assertEquals(Arrays.asList("a.b(c"), TrigramIndex.getLiterals("a\\.b\\(c"));
+		assertEquals(Arrays.asList("x[]*"), TrigramIndex.getLiterals("\\Qx[]*\\E"));
+		assertEquals(Arrays.asList("abc", "def"), TrigramIndex.getLiterals("abc[xyz\\]]def"));
+		assertEquals(Arrays.asList("abc", "ghi"), TrigramIndex.getLiterals("abc(def)?ghi"));
+		assertEquals(Arrays.asList("abc", "def", "ghi"), TrigramIndex.getLiterals("abc(def)ghi"));
+		assertEquals(Arrays.asList("abcd"), TrigramIndex.getLiterals("abcde{2}"));
+
+		assertTrue(TrigramIndex.getLiterals("foo|bar").isEmpty());
+		assertTrue(TrigramIndex.getLiterals("(?i)foo").isEmpty());
+		assertTrue(TrigramIndex.getLiterals("ab.cd").isEmpty());
+		assertTrue(TrigramIndex.getLiterals("(abc").isEmpty());
+	}
+
+	public void testCandidates() throws IOException {
+		TrigramIndex index = createIndex();
+
+		assertEquals(set("a.txt"), index.getCandidates(list("hello"), "UTF-8"));
+		// trigrams are case insensitive, hg grep decides
+		assertEquals(set("a.txt", "b.txt"), index.getCandidates(list("WORLD"), "UTF-8"));
+		assertEquals(set("b.txt"), index.getCandidates(list("new", "world"), "UTF-8"));
+		// trigrams don't span lines
+		assertNull(index.getCandidates(list("lo\nwo"), "UTF-8"));
+		assertEquals(set(), index.getCandidates(list("missing"), "UTF-8"));
+		assertNull(index.getCandidates(list("ab"), "UTF-8"));
+	}
+
+	public void testUnindexedAndBinary() throws IOException {
+		TrigramIndex index = createIndex();
+		index.add("big.txt", null, 0);
+		index.add("bin.dat", bytes("hello\u0000"), 6);
+
+		assertEquals(set("a.txt", "big.txt"), index.getCandidates(list("hello"), "UTF-8"));
+		assertEquals(set("big.txt"), index.getCandidates(list("missing"), "UTF-8"));
+	}
+
+	public void testManyTrigrams() throws IOException {
+		TrigramIndex index = new TrigramIndex();
+		for (int i = 0; i < 2000; i++) {
+			byte[] content = bytes("line " + i + " " + Integer.toHexString(i * 7919) + "\n");
+			index.add("f" + (i % 50), content, content.length);
+		}
+		assertEquals(set("f3"), index.getCandidates(list("line 1753 "), "UTF-8"));
+	}
+
+	public void testRoundTrip() throws IOException {
+		TrigramIndex index = createIndex();
+		index.add("big.txt", null, 0);
+		index.setRevision(7, "abcdef");
+		File file = File.createTempFile("trigram", ".tri");
+		try {
+			index.write(file);
+			TrigramIndex loaded = TrigramIndex.read(file);
+			assertNotNull(loaded);
+			assertEquals(7, loaded.getRevision());
+			assertEquals("abcdef", loaded.getNode());
+			assertEquals(3, loaded.size());
+			assertEquals(set("a.txt", "b.txt", "big.txt"), loaded.getCandidates(list("world"),
+					"UTF-8"));
+			assertEquals(set("b.txt", "big.txt"), loaded.getCandidates(list("new world"), "UTF-8"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static TrigramIndex createIndex() {
+		TrigramIndex index = new TrigramIndex();
+		byte[] a = bytes("hello\nworld\n");
+		byte[] b = bytes("brave new World\n");
+		index.add("a.txt", a, a.length);
+		index.add("b.txt", b, b.length);
+		return index;
+	}
+
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static List<String> list(String... literals) {
+		return Arrays.asList(literals);
+	}
+
+	private static Set<String> set(String... paths) {
+		Set<String> set = new HashSet<String>();
+		Collections.addAll(set, paths);
+		return set;
+	}
+}
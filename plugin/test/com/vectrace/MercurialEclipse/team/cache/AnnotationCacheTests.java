@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.vectrace.MercurialEclipse.team.cache.AnnotationCache.Annotation;
+
+/**
+ *
+ */
+public class AnnotationCacheTests extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("annotations", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+		super.tearDown();
+	}
+
+	public void testAnnotation() {
+		Annotation annotation = annotation("a", "a", "b", "a");
+		assertEquals(4, annotation.getLineCount());
+		assertEquals(2, annotation.getNodeCount());
+		assertEquals("a", annotation.getNode(0));
+		assertEquals("b", annotation.getNode(2));
+		assertEquals("a", annotation.getNode(3));
+	}
+
+	public void testSerialization() {
+		Annotation annotation = annotation("a", "b", "b", "c");
+		byte[] data = annotation.toBytes();
+		Annotation copy = Annotation.fromBytes(data);
+		assertEquals(4, copy.getLineCount());
+		for (int i = 0; i < 4; i++) {
+			assertEquals(annotation.getNode(i), copy.getNode(i));
+		}
+
+		// truncated or foreign data
+		byte[] truncated = new byte[data.length - 2];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		assertNull(Annotation.fromBytes(truncated));
+		assertNull(Annotation.fromBytes(new byte[] { 1, 2, 3 }));
+	}
+
+	public void testMemoryLimit() {
+		AnnotationCache cache = new AnnotationCache(null, 12);
+		// weight: lines + distinct nodes
+		cache.put("a", annotation("x", "x", "y"));
+		cache.put("b", annotation("x", "y", "z"));
+		// recently used
+		assertNotNull(cache.get("a"));
+		cache.put("c", annotation("x", "x"));
+
+		assertEquals(8, cache.getMemorySize());
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		assertEquals(3, cache.getMemoryHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	public void testDiskTier() {
+		AnnotationCache cache = new AnnotationCache(new FileContentCache(dir, 0, 1000), 6);
+		cache.put("a", annotation("x", "x", "y"));
+		cache.put("b", annotation("x", "y", "z"));
+
+		// evicted from memory, read from disk
+		assertEquals("y", cache.get("a").getNode(2));
+		assertEquals(1, cache.getDiskHits());
+
+		// survives a restart
+		AnnotationCache other = new AnnotationCache(new FileContentCache(dir, 0, 1000), 6);
+		assertEquals("z", other.get("b").getNode(2));
+		assertEquals(1, other.getDiskHits());
+
+		// disabled disk tier
+		other = new AnnotationCache(new FileContentCache(dir, 0, 1000), 6);
+		other.setPersistent(false);
+		assertNull(other.get("b"));
+		other.put("c", annotation("x"));
+		assertEquals(2, dir.list().length);
+
+		cache.clear();
+		assertEquals(0, dir.list().length);
+	}
+
+	private static Annotation annotation(String... nodes) {
+		List<String> list = new ArrayList<String>();
+		for (String node : nodes) {
+			list.add(node);
+		}
+		return new Annotation(list);
+	}
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ */
+public class ChangesetIndexStoreTests extends TestCase {
+
+	private File dir;
+	private File changelog;
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("indexstore", "");
+		dir.delete();
+		dir.mkdirs();
+		changelog = new File(dir, "00changelog.i");
+		file = new File(new File(dir, "cache"), "root.idx");
+		writeChangelog(3);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		file.getParentFile().delete();
+		changelog.delete();
+		dir.delete();
+		super.tearDown();
+	}
+
+	public void testRoundTrip() throws IOException {
+		ChangesetIndexStore store = new ChangesetIndexStore(file, changelog);
+		assertNull(store.load(0));
+		assertEquals(2, store.getTipRevision());
+
+		ChangesetIndex index = new ChangesetIndex(0);
+		for (int rev = 0; rev < 3; rev++) {
+			index.add(rev, node(rev), rev - 1, -1, "useré" + rev, rev * 1000L, "default", 1);
+		}
+		store.append(index, new int[] { 0, 1 }, 2);
+		store.append(index, new int[] { 2 }, 1);
+
+		ChangesetIndex loaded = new ChangesetIndexStore(file, changelog).load(0);
+		assertNotNull(loaded);
+		assertEquals(3, loaded.size());
+		assertEquals(node(2), loaded.getNode(2));
+		assertEquals(1, loaded.getParent(2, 0));
+		assertEquals("useré1", loaded.getAuthor(1));
+		assertEquals(2000L, loaded.getDate(2));
+		assertEquals(ChangesetIndex.PHASE_UNKNOWN, loaded.getPhase(2));
+	}
+
+	public void testChangelogGrew() throws IOException {
+		ChangesetIndexStore store = new ChangesetIndexStore(file, changelog);
+		ChangesetIndex index = new ChangesetIndex(0);
+		index.add(2, node(2), 1, -1, "a", 0L, "default", -1);
+		store.append(index, new int[] { 2 }, 1);
+
+		// commit: the changelog is appended
+		writeChangelog(5);
+		ChangesetIndexStore reopened = new ChangesetIndexStore(file, changelog);
+		ChangesetIndex loaded = reopened.load(0);
+		assertNotNull(loaded);
+		assertEquals(4, reopened.getTipRevision());
+		assertTrue(reopened.isValid(loaded));
+	}
+
+	public void testStripped() throws IOException {
+		ChangesetIndexStore store = new ChangesetIndexStore(file, changelog);
+		ChangesetIndex index = new ChangesetIndex(0);
+		index.add(2, node(2), 1, -1, "a", 0L, "default", -1);
+		store.append(index, new int[] { 2 }, 1);
+
+		// strip of revision 2, then two new commits
+		writeChangelog(2);
+		assertFalse(store.isValid(index));
+		RandomAccessFile raf = new RandomAccessFile(changelog, "rw");
+		try {
+			raf.seek(raf.length());
+			raf.write(entry(99));
+			raf.write(entry(100));
+		} finally {
+			raf.close();
+		}
+		assertNull(new ChangesetIndexStore(file, changelog).load(0));
+		assertFalse(file.exists());
+	}
+
+	public void testCorruptFile() throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[] { 1, 2, 3 });
+		} finally {
+			out.close();
+		}
+		assertNull(new ChangesetIndexStore(file, changelog).load(0));
+		assertFalse(file.exists());
+	}
+
+	private void writeChangelog(int revisions) throws IOException {
+		FileOutputStream out = new FileOutputStream(changelog);
+		try {
+			for (int rev = 0; rev < revisions; rev++) {
+				out.write(entry(rev));
+			}
+		} finally {
+			out.close();
+		}
+		// make sure the modification time differs
+		changelog.setLastModified(changelog.lastModified() - 10000 + revisions);
+	}
+
+	/**
+	 * @return a revlog v1 index entry, not inline
+	 */
+	private static byte[] entry(int rev) {
+		byte[] entry = new byte[64];
+		if (rev == 0) {
+			// version 1, no inline flag
+			entry[3] = 1;
+		}
+		String node = node(rev);
+		for (int i = 0; i < 20; i++) {
+			entry[32 + i] = (byte) Integer.parseInt(node.substring(2 * i, 2 * i + 2), 16);
+		}
+		return entry;
+	}
+
+	private static String node(int rev) {
+		return new StringBuilder(String.format("%040x", Integer.valueOf(rev + 1))).reverse()
+				.toString();
+	}
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ */
+public class ChangesetIndexTests extends TestCase {
+
+	private static final String NODE0 = "9b417223cbb2f53e54872bfbd559db35645a6afb";
+	private static final String NODE1 = "0123456789abcdef0123456789abcdef01234567";
+	private static final String NODE2 = "fedcba9876543210fedcba9876543210fedcba98";
+
+	public static void testAddGet() {
+		ChangesetIndex index = new ChangesetIndex(0);
+		index.add(0, NODE0, ChangesetIndex.NO_PARENT, ChangesetIndex.NO_PARENT, "john", 1000L,
+				"default", ChangesetIndex.PHASE_UNKNOWN);
+		index.add(1, NODE1, 0, ChangesetIndex.NO_PARENT, "jane", 2000L, "stable", 1);
+
+		assertEquals(2, index.size());
+		assertTrue(index.contains(1));
+		assertFalse(index.contains(2));
+		assertEquals(NODE1, index.getNode(1));
+		assertNull(index.getNode(5));
+		assertEquals(0, index.getParent(1, 0));
+		assertEquals(ChangesetIndex.NO_PARENT, index.getParent(1, 1));
+		assertEquals("jane", index.getAuthor(1));
+		assertEquals(2000L, index.getDate(1));
+		assertEquals("stable", index.getBranch(1));
+		assertEquals(1, index.getPhase(1));
+		assertEquals(ChangesetIndex.PHASE_UNKNOWN, index.getPhase(0));
+
+		index.setPhase(0, 0);
+		assertEquals(0, index.getPhase(0));
+	}
+
+	public static void testNodeLookup() {
+		ChangesetIndex index = new ChangesetIndex(0);
+		index.add(0, NODE0, -1, -1, "a", 0L, "default", -1);
+		index.add(7, NODE1, 0, -1, "a", 0L, "default", -1);
+
+		assertEquals(0, index.indexOf(NODE0));
+		assertEquals(7, index.indexOf(NODE1));
+		assertEquals(-1, index.indexOf(NODE2));
+		assertEquals(-1, index.indexOf("xyz"));
+		assertEquals(7, index.indexOfPrefix(NODE1.substring(0, 12)));
+		assertEquals(0, index.indexOfPrefix("9B417223CBB2"));
+		assertEquals(-1, index.indexOfPrefix("fedcba987654"));
+		assertFalse(index.contains(3));
+	}
+
+	public static void testReusedRevision() {
+		ChangesetIndex index = new ChangesetIndex(0);
+		index.add(3, NODE1, -1, -1, "a", 0L, "default", -1);
+		index.add(3, NODE2, -1, -1, "b", 0L, "default", -1);
+
+		assertEquals(1, index.size());
+		assertEquals(-1, index.indexOf(NODE1));
+		assertEquals(3, index.indexOf(NODE2));
+		assertEquals("b", index.getAuthor(3));
+	}
+
+	public static void testGrow() {
+		ChangesetIndex index = new ChangesetIndex(0);
+		int count = 10000;
+		for (int rev = 0; rev < count; rev++) {
+			index.add(rev, node(rev), rev - 1, -1, "user" + (rev % 10), rev * 1000L,
+					rev % 2 == 0 ? "default" : "branch", -1);
+		}
+		assertEquals(count, index.size());
+		for (int rev = 0; rev < count; rev += 997) {
+			assertEquals(rev, index.indexOf(node(rev)));
+			assertEquals(rev - 1, index.getParent(rev, 0));
+			assertEquals("user" + (rev % 10), index.getAuthor(rev));
+		}
+		assertTrue(index.getMemoryFootprint() < count * 100L);
+	}
+
+	public static void testUnknownRevision() {
+		ChangesetIndex index = new ChangesetIndex(0);
+		try {
+			index.getAuthor(0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static String node(int rev) {
+		// reversed, so the revisions differ in the leading bytes
+		return new StringBuilder(String.format("%040x", Integer.valueOf(rev))).reverse().toString();
+	}
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.aragost.javahg.Repository;
+import com.aragost.javahg.commands.StatusLine;
+import com.aragost.javahg.commands.flags.StatusCommandFlags;
+import com.google.common.io.Files;
+import com.vectrace.MercurialEclipse.AbstractJavaHgTestCase;
+
+/**
+ * Compares the full status refresh with the dirstate based refresh of a changed batch of files
+ * on a synthetic repository.
+ * <p>
+ * Disabled by default, run with <code>-Dmercurialeclipse.benchmark=true</code>. The number of
+ * files can be set with <code>-Dmercurialeclipse.benchmark.files=100000</code>.
+ */
+public class DirstateRefreshBenchmark extends AbstractJavaHgTestCase {
+
+	private static final int FILES_PER_DIR = 1000;
+
+	private static final int MODIFIED = 100;
+
+	public void testRefreshLatency() throws IOException, InterruptedException {
+		if (!Boolean.getBoolean("mercurialeclipse.benchmark")) {
+			return;
+		}
+		int fileCount = Integer.getInteger("mercurialeclipse.benchmark.files", 100000).intValue();
+		Repository repo = getTestRepository();
+		File root = repo.getDirectory();
+
+		List<File> files = new ArrayList<File>(fileCount);
+		for (int i = 0; i < fileCount; i++) {
+			File dir = new File(root, "dir" + (i / FILES_PER_DIR));
+			if (i % FILES_PER_DIR == 0 && !dir.mkdirs()) {
+				fail("Can't create " + dir);
+			}
+			File file = new File(dir, "File" + i + ".txt");
+			Files.write("content " + i + "\n", file, utf8());
+			files.add(file);
+		}
+		commit();
+
+		// let the dirstate record stable mtimes, then run status once so hg rewrites the
+		// dirstate without "lookup" entries
+		Thread.sleep(2000);
+		StatusCommandFlags.on(repo).modified().lines();
+
+		// a build or update touched all files, but only a few have really changed
+		for (int i = 0; i < MODIFIED; i++) {
+			Files.append("changed\n", files.get(i * (fileCount / MODIFIED)), utf8());
+		}
+
+		long start = System.currentTimeMillis();
+		List<StatusLine> full = StatusCommandFlags.on(repo).modified().added().removed()
+				.deleted().unknown().clean().lines();
+		long fullTime = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		Dirstate dirstate = Dirstate.read(new File(new File(root, ".hg"), "dirstate"));
+		List<File> suspicious = new ArrayList<File>();
+		int rootLength = root.getPath().length() + 1;
+		for (File file : files) {
+			String path = file.getPath().substring(rootLength).replace(File.separatorChar, '/');
+			if (!dirstate.isUnchanged(path, file)) {
+				suspicious.add(file);
+			}
+		}
+		long checkTime = System.currentTimeMillis() - start;
+		List<StatusLine> partial = StatusCommandFlags.on(repo).modified().added().removed()
+				.deleted().unknown().clean().lines(suspicious.toArray(new File[suspicious.size()]));
+		long incrementalTime = System.currentTimeMillis() - start;
+
+		System.out.println("Status refresh of " + fileCount + " files, " + MODIFIED + " modified:");
+		System.out.println("  full hg status:   " + fullTime + " ms, " + full.size() + " lines");
+		System.out.println("  dirstate check:   " + checkTime + " ms, " + suspicious.size()
+				+ " suspicious");
+		System.out.println("  incremental total: " + incrementalTime + " ms, " + partial.size()
+				+ " lines");
+
+		assertEquals(fileCount, full.size());
+		assertTrue(suspicious.size() >= MODIFIED);
+		assertTrue(suspicious.size() < fileCount / 10);
+	}
+}
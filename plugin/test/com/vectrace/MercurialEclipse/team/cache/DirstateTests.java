@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Reads the sample dirstate in the test folder
+ */
+public class DirstateTests extends TestCase {
+
+	private static final String IMPORT_PAGE = "src/com/vectrace/MercurialEclipse/wizards/ImportPage.java";
+
+	private static Dirstate readSample() throws IOException {
+		InputStream in = DirstateTests.class.getResourceAsStream("/dirstate");
+		assertNotNull("test/dirstate must be on the class path", in);
+		try {
+			return Dirstate.read(in, 0);
+		} finally {
+			in.close();
+		}
+	}
+
+	public static void testRead() throws IOException {
+		Dirstate dirstate = readSample();
+
+		assertEquals(438, dirstate.size());
+		assertEquals("9b417223cbb2f53e54872bfbd559db35645a6afb", dirstate.getParent1());
+		assertNull(dirstate.getParent2());
+
+		assertTrue(dirstate.isTracked(IMPORT_PAGE));
+		assertEquals(Dirstate.STATE_NORMAL, dirstate.getState(IMPORT_PAGE));
+		assertEquals(3505, dirstate.getSize(IMPORT_PAGE));
+		assertEquals(1232213815, dirstate.getModificationTime(IMPORT_PAGE));
+
+		assertFalse(dirstate.isTracked("src/NoSuchFile.java"));
+		assertEquals(0, dirstate.getState("src/NoSuchFile.java"));
+		assertEquals(-1, dirstate.getSize("src/NoSuchFile.java"));
+	}
+
+	public static void testUnchanged() throws IOException {
+		Dirstate dirstate = readSample();
+
+		// missing file
+		assertFalse(dirstate.isUnchanged(IMPORT_PAGE, new File("no/such/file")));
+		// untracked file
+		assertFalse(dirstate.isUnchanged("src/NoSuchFile.java", new File("no/such/file")));
+		// dirstate from a stream is never current
+		assertFalse(dirstate.isCurrent(new File("no/such/file")));
+	}
+
+	public static void testEmpty() throws IOException {
+		Dirstate dirstate = Dirstate.read(new ByteArrayInputStream(new byte[0]), 0);
+		assertEquals(0, dirstate.size());
+		assertNull(dirstate.getParent1());
+	}
+}
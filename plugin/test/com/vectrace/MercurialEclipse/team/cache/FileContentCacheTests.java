@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ */
+public class FileContentCacheTests extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("contents", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+		super.tearDown();
+	}
+
+	public void testMemoryHit() {
+		FileContentCache cache = new FileContentCache(null, 1000, 0);
+		String key = FileContentCache.getKey("/repo:settings", "abc", "src/A.java");
+		assertNull(cache.get(key));
+		cache.put(key, content(10, 1));
+
+		assertTrue(Arrays.equals(content(10, 1), cache.get(key)));
+		assertNull(cache.get(FileContentCache.getKey("/repo:settings", "abd", "src/A.java")));
+		assertEquals(1, cache.getMemoryHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(1.0 / 3, cache.getHitRate(), 0.001);
+	}
+
+	public void testMemoryLimit() {
+		FileContentCache cache = new FileContentCache(null, 100, 0);
+		cache.put("a", content(40, 1));
+		cache.put("b", content(40, 2));
+		// recently used
+		assertNotNull(cache.get("a"));
+		cache.put("c", content(40, 3));
+
+		assertEquals(80, cache.getMemorySize());
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+	}
+
+	public void testDiskTier() {
+		FileContentCache cache = new FileContentCache(dir, 50, 1000);
+		cache.put("a", content(40, 1));
+		cache.put("b", content(40, 2));
+
+		// evicted from memory, read from disk
+		assertTrue(Arrays.equals(content(40, 1), cache.get("a")));
+		assertEquals(1, cache.getDiskHits());
+
+		// survives a restart
+		FileContentCache other = new FileContentCache(dir, 50, 1000);
+		assertTrue(Arrays.equals(content(40, 2), other.get("b")));
+		assertEquals(1, other.getDiskHits());
+	}
+
+	public void testDiskLimit() {
+		FileContentCache cache = new FileContentCache(dir, 0, 100);
+		long now = System.currentTimeMillis();
+		cache.put("a", content(40, 1));
+		new File(dir, dir.list()[0]).setLastModified(now - 200000);
+		cache.put("b", content(40, 2));
+		for (File file : dir.listFiles()) {
+			if (file.lastModified() > now - 200000) {
+				file.setLastModified(now - 100000);
+			}
+		}
+		cache.put("c", content(40, 3));
+
+		// the oldest files were deleted, down to 3/4 of the limit
+		assertEquals(1, dir.list().length);
+		assertNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+
+		cache.clear();
+		assertEquals(0, dir.list().length);
+	}
+
+	private static byte[] content(int length, int value) {
+		byte[] content = new byte[length];
+		Arrays.fill(content, (byte) value);
+		return content;
+	}
+}
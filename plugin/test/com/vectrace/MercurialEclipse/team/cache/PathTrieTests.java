@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import junit.framework.TestCase;
+
+import org.eclipse.core.runtime.Path;
+
+/**
+ *
+ */
+public class PathTrieTests extends TestCase {
+
+	public void testGetAndPut() {
+		PathTrie<String> trie = new PathTrie<String>();
+		assertNull(trie.get(new Path("/a/b")));
+		assertNull(trie.put(new Path("/a/b"), "ab"));
+		assertEquals("ab", trie.put(new Path("/a/b"), "ab2"));
+
+		assertEquals("ab2", trie.get(new Path("/a/b")));
+		// intermediate node without value
+		assertNull(trie.get(new Path("/a")));
+		assertNull(trie.get(new Path("/a/b/c")));
+	}
+
+	public void testPutIfAbsent() {
+		PathTrie<String> trie = new PathTrie<String>();
+		assertNull(trie.putIfAbsent(new Path("/a"), "a"));
+		assertEquals("a", trie.putIfAbsent(new Path("/a"), "other"));
+		assertEquals("a", trie.get(new Path("/a")));
+	}
+
+	public void testLongestPrefix() {
+		PathTrie<String> trie = new PathTrie<String>();
+		trie.put(new Path("/a"), "a");
+		trie.put(new Path("/a/b/c"), "abc");
+
+		assertNull(trie.getLongestPrefix(new Path("/x/a")));
+		assertEquals("a", trie.getLongestPrefix(new Path("/a/b")).getValue());
+		assertEquals("a", trie.getLongestPrefix(new Path("/a/bc")).getValue());
+		PathTrie.Entry<String> entry = trie.getLongestPrefix(new Path("/a/b/c/d/e"));
+		assertEquals("abc", entry.getValue());
+		assertEquals(new Path("/a/b/c"), entry.getPath());
+		assertEquals("abc", trie.getLongestPrefix(new Path("/a/b/c")).getValue());
+	}
+
+	public void testDevice() {
+		PathTrie<String> trie = new PathTrie<String>();
+		trie.put(new Path("/a").setDevice("C:"), "c");
+
+		assertEquals("c", trie.get(new Path("/a").setDevice("C:")));
+		assertNull(trie.get(new Path("/a").setDevice("D:")));
+		assertNull(trie.get(new Path("/a")));
+		assertEquals("c", trie.getLongestPrefix(new Path("/a/b").setDevice("C:")).getValue());
+		assertNull(trie.getLongestPrefix(new Path("/a/b").setDevice("D:")));
+	}
+
+	public void testRemoveAll() {
+		PathTrie<String> trie = new PathTrie<String>();
+		trie.put(new Path("/a"), "a");
+		trie.put(new Path("/a/b"), "ab");
+		trie.put(new Path("/a/b/c"), "abc");
+		trie.put(new Path("/a/d"), "ad");
+
+		trie.removeAll(new Path("/a/b"));
+		assertNull(trie.get(new Path("/a/b")));
+		assertNull(trie.get(new Path("/a/b/c")));
+		assertEquals("a", trie.get(new Path("/a")));
+		assertEquals("ad", trie.get(new Path("/a/d")));
+
+		trie.removeAll(new Path("/"));
+		assertNull(trie.get(new Path("/a")));
+		assertNull(trie.getLongestPrefix(new Path("/a/d")));
+	}
+}
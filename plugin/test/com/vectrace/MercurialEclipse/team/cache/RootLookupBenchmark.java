@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+
+/**
+ * Measures the throughput of the root lookups done by {@link MercurialRootCache} for each
+ * decorated resource, from several decorator threads at once: the directory -> root lookup and
+ * the longest prefix search of {@link MercurialRootCache#uncanonicalize(IPath)}. Compares the
+ * {@link PathTrie} with the globally locked tree map used before.
+ * <p>
+ * Disabled by default, run with <code>-Dmercurialeclipse.benchmark=true</code>.
+ */
+public class RootLookupBenchmark extends TestCase {
+
+	private static final int THREADS = 8;
+
+	private static final int LOOKUPS_PER_THREAD = 200000;
+
+	private static final int ROOTS = 50;
+
+	private static final int DIRS_PER_ROOT = 200;
+
+	private static final int ROUNDS = 3;
+
+	/**
+	 * A root lookup structure under test
+	 */
+	private interface Lookup {
+		Object get(IPath dir);
+
+		Object getLongestPrefix(IPath path);
+	}
+
+	public void testThroughput() throws InterruptedException {
+		if (!Boolean.getBoolean("mercurialeclipse.benchmark")) {
+			return;
+		}
+		final PathTrie<Object> trie = new PathTrie<Object>();
+		final TreeMap<IPath, Object> map = new TreeMap<IPath, Object>(new SegmentComparator());
+		IPath[] dirs = new IPath[ROOTS * DIRS_PER_ROOT];
+		for (int r = 0; r < ROOTS; r++) {
+			IPath root = new Path("/home/user/workspace/repo" + r);
+			Object value = root.toString();
+			trie.put(root, value);
+			map.put(root, value);
+			for (int d = 0; d < DIRS_PER_ROOT; d++) {
+				IPath dir = root.append("src/com/example/module" + (d % 10) + "/pkg" + d);
+				dirs[r * DIRS_PER_ROOT + d] = dir;
+				trie.put(dir, value);
+				map.put(dir, value);
+			}
+		}
+
+		Lookup trieLookup = new Lookup() {
+			public Object get(IPath dir) {
+				return trie.get(dir);
+			}
+
+			public Object getLongestPrefix(IPath path) {
+				return trie.getLongestPrefix(path);
+			}
+		};
+		Lookup lockedLookup = new Lookup() {
+			public Object get(IPath dir) {
+				synchronized (map) {
+					return map.get(dir);
+				}
+			}
+
+			public Object getLongestPrefix(IPath path) {
+				synchronized (map) {
+					for (IPath prefix = path; prefix.segmentCount() > 0; prefix = prefix
+							.removeLastSegments(1)) {
+						Object value = map.get(prefix);
+						if (value != null) {
+							return value;
+						}
+					}
+					return null;
+				}
+			}
+		};
+
+		System.out.println("Root lookups from " + THREADS + " threads, " + dirs.length
+				+ " directories in " + ROOTS + " roots:");
+		for (int round = 0; round < ROUNDS; round++) {
+			long locked = run(lockedLookup, dirs);
+			long concurrent = run(trieLookup, dirs);
+			System.out.println("  round " + round + ": locked tree map " + locked
+					+ " lookups/ms, path trie " + concurrent + " lookups/ms");
+		}
+	}
+
+	/**
+	 * @return the number of lookups per millisecond
+	 */
+	private static long run(final Lookup lookup, final IPath[] dirs) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		final AtomicLong found = new AtomicLong();
+		for (int t = 0; t < THREADS; t++) {
+			final Random random = new Random(t);
+			new Thread("Decorator " + t) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						long hits = 0;
+						for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+							IPath dir = dirs[random.nextInt(dirs.length)];
+							// a file: the directory is looked up, then the file path uncanonicalized
+							if (lookup.get(dir) != null) {
+								hits++;
+							}
+							if (lookup.getLongestPrefix(dir.append("File.java")) != null) {
+								hits++;
+							}
+						}
+						found.addAndGet(hits);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long millis = Math.max(1, (System.nanoTime() - begin) / 1000000);
+		assertEquals(2L * THREADS * LOOKUPS_PER_THREAD, found.get());
+		return 2L * THREADS * LOOKUPS_PER_THREAD / millis;
+	}
+
+	/**
+	 * The segment order of the former canonical map
+	 */
+	private static final class SegmentComparator implements Comparator<IPath> {
+		public int compare(IPath o1, IPath o2) {
+			for (int i = 0, n = Math.max(o1.segmentCount(), o2.segmentCount()); i < n; i++) {
+				String a = o1.segment(i), b = o2.segment(i);
+				int res;
+				if (a == null) {
+					res = b == null ? 0 : -1;
+				} else if (b == null) {
+					res = 1;
+				} else {
+					res = a.compareTo(b);
+				}
+				if (res != 0) {
+					return res;
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2005-2012 VecTrace (Zingo Andersen) and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * john	implementation
+ *******************************************************************************/
+package com.vectrace.MercurialEclipse.team.cache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+
+/**
+ *
+ */
+public class StatusTrieTests extends TestCase {
+
+	private static final int MODIFIED = MercurialStatusCache.BIT_MODIFIED;
+	private static final int CLEAN = MercurialStatusCache.BIT_CLEAN;
+	private static final int UNKNOWN = MercurialStatusCache.BIT_UNKNOWN;
+
+	public static void testPutGet() {
+		StatusTrie trie = new StatusTrie(0);
+		IPath file = new Path("/repo/src/a/File.java");
+
+		assertEquals(0, trie.get(file));
+		trie.put(file, MODIFIED, false);
+		assertEquals(MODIFIED, trie.get(file));
+		assertEquals(0, trie.get(file.removeLastSegments(1)));
+		assertEquals(1, trie.size());
+
+		trie.put(file, CLEAN, false);
+		assertEquals(CLEAN, trie.get(file));
+		assertEquals(1, trie.size());
+		assertFalse(trie.isDirectory(file));
+	}
+
+	public static void testDirectoryFlag() {
+		StatusTrie trie = new StatusTrie(0);
+		IPath dir = new Path("/repo/src");
+
+		trie.put(dir, CLEAN, true);
+		assertTrue(trie.isDirectory(dir));
+		assertEquals(CLEAN, trie.get(dir));
+
+		// status update without dir flag keeps the directory
+		trie.put(dir, MODIFIED, false);
+		assertTrue(trie.isDirectory(dir));
+		assertEquals(MODIFIED, trie.get(dir));
+
+		trie.remove(dir);
+		assertFalse(trie.isDirectory(dir));
+	}
+
+	public static void testChildren() {
+		StatusTrie trie = new StatusTrie(0);
+		IPath parent = new Path("/repo/src");
+		trie.put(parent, MODIFIED, true);
+		trie.put(parent.append("a"), MODIFIED, true);
+		trie.put(parent.append("a/A.java"), MODIFIED, false);
+		trie.put(parent.append("a/B.java"), CLEAN, false);
+		trie.put(parent.append("C.java"), UNKNOWN, false);
+		trie.put(new Path("/repo/srcx/D.java"), MODIFIED, false);
+
+		List<IPath> modified = trie.getChildren(parent, MODIFIED);
+		assertEquals(2, modified.size());
+		assertTrue(modified.contains(parent.append("a")));
+		assertTrue(modified.contains(parent.append("a/A.java")));
+
+		List<IPath> direct = trie.getDirectChildren(parent, MODIFIED | UNKNOWN);
+		assertEquals(2, direct.size());
+		assertTrue(direct.contains(parent.append("a")));
+		assertTrue(direct.contains(parent.append("C.java")));
+
+		assertNull(trie.getChildren(parent.append("a/B.java"), ~0));
+		assertNull(trie.getChildren(new Path("/other"), ~0));
+		assertEquals(6, trie.getChildren(new Path("/repo"), ~0).size());
+	}
+
+	public static void testRemoveSubtree() {
+		StatusTrie trie = new StatusTrie(0);
+		IPath parent = new Path("/repo/src");
+		trie.put(parent, MODIFIED, true);
+		trie.put(parent.append("a/A.java"), MODIFIED, false);
+		trie.put(parent.append("b/B.java"), CLEAN, false);
+		trie.put(new Path("/repo/C.java"), CLEAN, false);
+		assertEquals(4, trie.size());
+
+		trie.removeSubtree(parent);
+		assertEquals(1, trie.size());
+		assertEquals(0, trie.get(parent));
+		assertEquals(0, trie.get(parent.append("a/A.java")));
+		assertEquals(CLEAN, trie.get(new Path("/repo/C.java")));
+		assertNull(trie.getChildren(new Path("/repo"), MODIFIED));
+
+		// freed nodes are reused
+		int nodes = trie.getNodeCount();
+		trie.put(parent.append("a/A.java"), MODIFIED, false);
+		trie.remove(parent.append("a/A.java"));
+		assertEquals(nodes, trie.getNodeCount());
+	}
+
+	public static void testDevices() {
+		StatusTrie trie = new StatusTrie(0);
+		IPath c = new Path("C:/repo/A.java");
+		IPath d = new Path("D:/repo/A.java");
+		trie.put(c, MODIFIED, false);
+		assertEquals(MODIFIED, trie.get(c));
+		assertEquals(0, trie.get(d));
+		assertEquals(0, trie.get(new Path("/repo/A.java")));
+		assertEquals(c, trie.getChildren(new Path("C:/repo"), ~0).get(0));
+	}
+
+	public static void testMemoryFootprint() {
+		StatusTrie trie = new StatusTrie(0);
+		long empty = trie.getMemoryFootprint();
+		for (int i = 0; i < 1000; i++) {
+			trie.put(new Path("/repo/src/dir" + (i % 10) + "/File" + i + ".java"), CLEAN, false);
+		}
+		assertEquals(1000, trie.size());
+		assertTrue(trie.getMemoryFootprint() > empty);
+		trie.clear();
+		assertEquals(0, trie.size());
+		assertEquals(0, trie.get(new Path("/repo/src/dir0/File0.java")));
+	}
+
+	public static void testPublish() {
+		StatusTrie trie = new StatusTrie(0);
+		IPath parent = new Path("/repo/src");
+		trie.put(parent.append("A.java"), MODIFIED, false);
+		trie.publish();
+		assertEquals(MODIFIED, trie.get(parent.append("A.java")));
+
+		// modifications after a publish must not change the published nodes
+		trie.put(parent.append("B.java"), CLEAN, false);
+		trie.remove(parent.append("A.java"));
+		assertEquals(0, trie.get(parent.append("A.java")));
+		assertEquals(CLEAN, trie.get(parent.append("B.java")));
+		assertEquals(1, trie.size());
+
+		trie.publish();
+		assertEquals(CLEAN, trie.get(parent.append("B.java")));
+		assertEquals(1, trie.getChildren(parent, ~0).size());
+		trie.removeSubtree(parent);
+		assertNull(trie.getChildren(new Path("/repo"), ~0));
+		trie.publish();
+		assertNull(trie.getChildren(new Path("/repo"), ~0));
+		assertTrue(trie.isEmpty());
+	}
+
+	public static void testTrackChanges() {
+		StatusTrie trie = new StatusTrie(0);
+		IPath parent = new Path("/repo/src");
+		IPath a = parent.append("a/A.java");
+		IPath b = parent.append("b/B.java");
+		trie.put(a, MODIFIED, false);
+		assertTrue(trie.drainChanges().isEmpty());
+
+		trie.trackChanges();
+		trie.put(b, CLEAN, false);
+		// unchanged status is not recorded
+		trie.put(a, MODIFIED, false);
+		Map<IPath, Integer> changes = trie.drainChanges();
+		assertEquals(1, changes.size());
+		assertEquals(Integer.valueOf(0), changes.get(b));
+		assertTrue(trie.drainChanges().isEmpty());
+
+		// the status before the first modification is kept
+		trie.removeSubtree(parent);
+		trie.put(a, CLEAN, false);
+		trie.put(b, CLEAN, false);
+		changes = trie.drainChanges();
+		assertEquals(2, changes.size());
+		assertEquals(Integer.valueOf(MODIFIED), changes.get(a));
+		assertEquals(Integer.valueOf(CLEAN), changes.get(b));
+		assertEquals(CLEAN, trie.get(b));
+
+		trie.remove(a);
+		changes = trie.drainChanges();
+		assertEquals(Integer.valueOf(CLEAN), changes.get(a));
+		assertNull(changes.get(b));
+
+		// taking the changes of some paths keeps the others
+		trie.put(a, MODIFIED, false);
+		trie.put(b, MODIFIED, false);
+		assertEquals(2, trie.getChangeCount());
+		changes = trie.takeChanges(Collections.singleton(a));
+		assertEquals(1, changes.size());
+		assertEquals(Integer.valueOf(0), changes.get(a));
+		assertEquals(1, trie.getChangeCount());
+		assertEquals(Integer.valueOf(CLEAN), trie.drainChanges().get(b));
+		assertEquals(0, trie.getChangeCount());
+	}
+}